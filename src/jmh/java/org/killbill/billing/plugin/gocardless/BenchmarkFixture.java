@@ -0,0 +1,123 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.api.core.PluginCustomField;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.billing.util.api.CustomFieldUserApi;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
+import org.killbill.commons.embeddeddb.h2.H2EmbeddedDB;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+/**
+ * Plugin wired to the fake GoCardless backend and an in-memory H2 database, shared by the benchmarks
+ */
+final class BenchmarkFixture {
+
+	static final String MANDATE_ID = "MD000";
+
+	final FakeGoCardlessServer server = new FakeGoCardlessServer();
+	final H2EmbeddedDB embeddedDB = new H2EmbeddedDB();
+	final Clock clock = new DefaultClock();
+	final UUID kbTenantId = UUID.randomUUID();
+	final UUID kbAccountId = UUID.randomUUID();
+	final GoCardlessConfigProperties config;
+	final GoCardlessConfigurationHandler configurationHandler;
+	final GoCardlessHttpTransport transport;
+	final GoCardlessAuditLog auditLog;
+	final GoCardlessMandateCache mandateCache;
+	final GoCardlessDao dao;
+	final GoCardlessPaymentPluginApi pluginApi;
+	final CallContext context;
+
+	/**
+	 * @param customFields number of custom fields on the account, the mandate id being the last one
+	 */
+	BenchmarkFixture(final int customFields) throws Exception {
+		server.start();
+
+		embeddedDB.initialize();
+		embeddedDB.start();
+		embeddedDB.executeScript(TestUtils.toString("org/killbill/billing/plugin/gocardless/ddl.sql"));
+		dao = new GoCardlessDao(embeddedDB.getDataSource());
+
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.gocardlesstoken", "fake-token");
+		properties.put("org.killbill.billing.plugin.gocardless.baseUrl", server.getBaseUrl());
+		// The limiter is part of the per-call overhead, but shouldn't throttle the benchmark
+		properties.put("org.killbill.billing.plugin.gocardless.rateLimitPerMinute", String.valueOf(Integer.MAX_VALUE));
+		config = new GoCardlessConfigProperties(properties, "");
+
+		final OSGIKillbillAPI killbillAPI = Mockito.mock(OSGIKillbillAPI.class);
+		final CustomFieldUserApi customFieldUserApi = Mockito.mock(CustomFieldUserApi.class);
+		final List<CustomField> fields = new ArrayList<>();
+		for (int i = 1; i < customFields; i++) {
+			fields.add(new PluginCustomField(kbAccountId, ObjectType.ACCOUNT, "FIELD_" + i, "value", clock.getUTCNow()));
+		}
+		fields.add(new PluginCustomField(kbAccountId, ObjectType.ACCOUNT, GoCardlessPaymentPluginApi.MANDATE_ID_CUSTOM_FIELD, MANDATE_ID, clock.getUTCNow()));
+		Mockito.when(customFieldUserApi.getCustomFieldsForAccountType(ArgumentMatchers.eq(kbAccountId), ArgumentMatchers.eq(ObjectType.ACCOUNT), ArgumentMatchers.<TenantContext>any()))
+		       .thenReturn(fields);
+		Mockito.when(killbillAPI.getCustomFieldUserApi()).thenReturn(customFieldUserApi);
+
+		configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, killbillAPI);
+		configurationHandler.setDefaultConfigurable(config);
+		mandateCache = new GoCardlessMandateCache(configurationHandler);
+		transport = new GoCardlessHttpTransport(config);
+		final GoCardlessClientCache clientCache = new GoCardlessClientCache(configurationHandler, transport);
+		auditLog = new GoCardlessAuditLog(config, dao, clock);
+		auditLog.start();
+		final GoCardlessApiExecutor apiExecutor = new GoCardlessApiExecutor(configurationHandler,
+		                                                                    new GoCardlessRateLimiter(configurationHandler),
+		                                                                    new GoCardlessCircuitBreaker(configurationHandler),
+		                                                                    new GoCardlessMetrics(config),
+		                                                                    transport,
+		                                                                    auditLog);
+		pluginApi = new GoCardlessPaymentPluginApi(configurationHandler,
+		                                           clientCache,
+		                                           apiExecutor,
+		                                           mandateCache,
+		                                           new GoCardlessRedirectFlowCache(configurationHandler),
+		                                           dao,
+		                                           new GoCardlessWebhookProcessor(config, dao, mandateCache, killbillAPI, clock),
+		                                           new GoCardlessMandateSync(config, dao, clientCache, apiExecutor, clock),
+		                                           killbillAPI,
+		                                           clock);
+		context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getUTCNow(), kbAccountId, kbTenantId);
+	}
+
+	void close() throws IOException, InterruptedException {
+		auditLog.stop();
+		server.stop();
+		embeddedDB.stop();
+		transport.shutdown();
+	}
+}
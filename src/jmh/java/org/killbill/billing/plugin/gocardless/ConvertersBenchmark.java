@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.gocardless.resources.Payment;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConvertersBenchmark {
+
+	private static final Currency[] KILL_BILL_CURRENCIES = {Currency.USD, Currency.AUD, Currency.CAD, Currency.DKK, Currency.EUR, Currency.GBP, Currency.NZD, Currency.SEK, Currency.JPY};
+	private static final Payment.Currency[] GOCARDLESS_CURRENCIES = Payment.Currency.values();
+	private static final Payment.Status[] GOCARDLESS_STATUSES = Payment.Status.values();
+
+	@Benchmark
+	public void convertKillBillCurrencyToGoCardlessCurrency(final Blackhole blackhole) {
+		for (final Currency currency : KILL_BILL_CURRENCIES) {
+			blackhole.consume(GoCardlessPaymentPluginApi.convertKillBillCurrencyToGoCardlessCurrency(currency));
+		}
+	}
+
+	@Benchmark
+	public void convertGoCardlessCurrencyToKillBillCurrency(final Blackhole blackhole) {
+		for (final Payment.Currency currency : GOCARDLESS_CURRENCIES) {
+			blackhole.consume(GoCardlessPaymentPluginApi.convertGoCardlessCurrencyToKillBillCurrency(currency));
+		}
+	}
+
+	@Benchmark
+	public void convertGoCardlessToKillBillStatus(final Blackhole blackhole) {
+		for (final Payment.Status status : GOCARDLESS_STATUSES) {
+			blackhole.consume(GoCardlessPaymentPluginApi.convertGoCardlessToKillBillStatus(status));
+		}
+	}
+}
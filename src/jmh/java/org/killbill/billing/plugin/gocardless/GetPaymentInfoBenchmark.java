@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class GetPaymentInfoBenchmark {
+
+	// Number of GoCardless resources (payments, retries, refunds) attached to the Kill Bill payment
+	@Param({"1", "10", "50"})
+	public int historyLength;
+
+	private BenchmarkFixture fixture;
+	private UUID kbPaymentId;
+
+	@Setup
+	public void setUp() throws Exception {
+		fixture = new BenchmarkFixture(1);
+		kbPaymentId = UUID.randomUUID();
+		for (int i = 0; i < historyLength; i++) {
+			final String goCardlessId = "PMH" + i;
+			// Already up to date locally, so that only the lookups are measured
+			fixture.server.addPayment(goCardlessId, 1000, "GBP", "confirmed", BenchmarkFixture.MANDATE_ID);
+			fixture.dao.addPayment(fixture.kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.GBP,
+			                       goCardlessId, BenchmarkFixture.MANDATE_ID, "CONFIRMED", fixture.clock.getUTCNow(), fixture.kbTenantId);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		fixture.close();
+	}
+
+	@Benchmark
+	public List<PaymentTransactionInfoPlugin> getPaymentInfo() throws PaymentPluginApiException {
+		return fixture.pluginApi.getPaymentInfo(fixture.kbAccountId, kbPaymentId, ImmutableList.of(), fixture.context);
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Drives the plugin from many threads against the fake GoCardless API, and reports throughput and latency percentiles
+ * per operation. Unlike the JMH benchmarks, this measures the plugin under contention (client, rate limiter,
+ * circuit breaker, connection pool, database), with the injected latency and failures of a busy GoCardless.
+ *
+ * Settings (system properties): load.threads, load.durationSeconds, load.minLatencyMillis, load.maxLatencyMillis,
+ * load.errorRate and load.rateLimitRate.
+ */
+public class GoCardlessLoadHarness {
+
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+	public static void main(final String[] args) throws Exception {
+		final int threads = Integer.getInteger("load.threads", 16);
+		final int durationSeconds = Integer.getInteger("load.durationSeconds", 30);
+
+		final BenchmarkFixture fixture = new BenchmarkFixture(10);
+		fixture.server.setLatency(Long.getLong("load.minLatencyMillis", 20L), Long.getLong("load.maxLatencyMillis", 80L))
+		              .setErrorRate(Double.parseDouble(System.getProperty("load.errorRate", "0.01")))
+		              .setRateLimitRate(Double.parseDouble(System.getProperty("load.rateLimitRate", "0.001")));
+		try {
+			new GoCardlessLoadHarness().run(fixture, threads, durationSeconds);
+		} finally {
+			fixture.close();
+		}
+	}
+
+	void run(final BenchmarkFixture fixture, final int threads, final int durationSeconds) throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+		final long start = System.nanoTime();
+		final List<Future<?>> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			workers.add(executor.submit(() -> {
+				while (System.nanoTime() < deadline) {
+					runIteration(fixture);
+				}
+				return null;
+			}));
+		}
+		for (final Future<?> worker : workers) {
+			worker.get();
+		}
+		final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+		executor.shutdown();
+
+		System.out.printf("%d threads, %ds, %d GoCardless requests (%d injected errors, %d injected 429)%n",
+		                  threads, durationSeconds, fixture.server.getRequests(), fixture.server.getInjectedErrors(), fixture.server.getInjectedRateLimits());
+		System.out.printf("%-16s %10s %10s %10s %10s %10s %10s %10s%n", "operation", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "count");
+		for (final Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+			final Histogram histogram = entry.getValue().getIntervalHistogram();
+			System.out.printf("%-16s %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f %10d%n",
+			                  entry.getKey(),
+			                  histogram.getTotalCount() / elapsedSeconds,
+			                  millis(histogram.getValueAtPercentile(50)),
+			                  millis(histogram.getValueAtPercentile(90)),
+			                  millis(histogram.getValueAtPercentile(99)),
+			                  millis(histogram.getValueAtPercentile(99.9)),
+			                  millis(histogram.getMaxValue()),
+			                  histogram.getTotalCount());
+		}
+		System.out.println("Outcomes: " + outcomes);
+	}
+
+	private void runIteration(final BenchmarkFixture fixture) {
+		final UUID kbPaymentId = UUID.randomUUID();
+
+		long startNanos = System.nanoTime();
+		try {
+			final PaymentTransactionInfoPlugin purchase = fixture.pluginApi.purchasePayment(fixture.kbAccountId, kbPaymentId, UUID.randomUUID(), UUID.randomUUID(),
+			                                                                                BigDecimal.TEN, Currency.GBP, ImmutableList.of(), fixture.context);
+			record("purchasePayment", startNanos, String.valueOf(purchase.getStatus()));
+		} catch (final PaymentPluginApiException | RuntimeException e) {
+			record("purchasePayment", startNanos, e.getClass().getSimpleName());
+		}
+
+		startNanos = System.nanoTime();
+		try {
+			fixture.pluginApi.getPaymentInfo(fixture.kbAccountId, kbPaymentId, ImmutableList.of(), fixture.context);
+			record("getPaymentInfo", startNanos, "OK");
+		} catch (final PaymentPluginApiException | RuntimeException e) {
+			record("getPaymentInfo", startNanos, e.getClass().getSimpleName());
+		}
+	}
+
+	private void record(final String operation, final long startNanos, final String outcome) {
+		recorders.computeIfAbsent(operation, key -> new Recorder(HIGHEST_TRACKABLE_NANOS, 3))
+		         .recordValue(Math.min(System.nanoTime() - startNanos, HIGHEST_TRACKABLE_NANOS));
+		outcomes.computeIfAbsent(operation + ":" + outcome, key -> new LongAdder()).increment();
+	}
+
+	private static double millis(final long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -19,9 +19,11 @@ import org.killbill.billing.osgi.api.Healthcheck;
 import org.killbill.billing.osgi.api.OSGIPluginProperties;
 import org.killbill.billing.osgi.libs.killbill.KillbillActivatorBase;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
+import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHandler;
 import org.killbill.billing.plugin.core.config.PluginEnvironmentConfig;
 import org.killbill.billing.plugin.core.resources.jooby.PluginApp;
 import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
 import org.osgi.framework.BundleContext;
 
 import javax.servlet.Servlet;
@@ -34,6 +36,14 @@ public class GoCardlessActivator extends KillbillActivatorBase {
 	public static final String PLUGIN_NAME = "killbill-gocardless"; 
 	
 	private GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private GoCardlessWebhookProcessor goCardlessWebhookProcessor;
+	private GoCardlessBulkPaymentService goCardlessBulkPaymentService;
+	private GoCardlessReconciliationJob goCardlessReconciliationJob;
+	private GoCardlessJobLeases goCardlessJobLeases;
+	private GoCardlessMandateImportService goCardlessMandateImportService;
+	private GoCardlessHttpTransport goCardlessHttpTransport;
+	private GoCardlessWarmUp goCardlessWarmUp;
+	private GoCardlessAuditLog goCardlessAuditLog;
 
 	@Override
     public void start(final BundleContext context) throws Exception {
@@ -46,22 +56,115 @@ public class GoCardlessActivator extends KillbillActivatorBase {
 				.createConfigurable(configProperties.getProperties());
         goCardlessConfigurationHandler.setDefaultConfigurable(globalConfiguration);        
         
-        final GoCardlessPaymentPluginApi pluginApi = new GoCardlessPaymentPluginApi(goCardlessConfigurationHandler,killbillAPI,clock.getClock());
-        registerPaymentPluginApi(context, pluginApi);
+        // One client per tenant, rebuilt when the tenant configuration changes, all on the same connection pool
+        goCardlessHttpTransport = new GoCardlessHttpTransport(globalConfiguration);
+        goCardlessHttpTransport.verify();
+        final GoCardlessClientCache goCardlessClientCache = new GoCardlessClientCache(goCardlessConfigurationHandler, goCardlessHttpTransport);
+        final GoCardlessMandateCache goCardlessMandateCache = new GoCardlessMandateCache(goCardlessConfigurationHandler);
+        final GoCardlessRedirectFlowCache goCardlessRedirectFlowCache = new GoCardlessRedirectFlowCache(goCardlessConfigurationHandler);
+        // All GoCardless calls share the tenant rate limit
+        final GoCardlessRateLimiter goCardlessRateLimiter = new GoCardlessRateLimiter(goCardlessConfigurationHandler);
+        final GoCardlessCircuitBreaker goCardlessCircuitBreaker = new GoCardlessCircuitBreaker(goCardlessConfigurationHandler);
+        // Metrics can only be turned on or off globally
+        final GoCardlessMetrics goCardlessMetrics = new GoCardlessMetrics(globalConfiguration);
+        goCardlessMetrics.registerTransport(goCardlessHttpTransport);
+        
+        final GoCardlessDao dao = new GoCardlessDao(dataSource.getDataSource());
+        
+        // GoCardless requests are audited asynchronously, the buffer settings are global
+        goCardlessAuditLog = new GoCardlessAuditLog(globalConfiguration, dao, clock.getClock());
+        goCardlessAuditLog.start();
+        final GoCardlessApiExecutor goCardlessApiExecutor = new GoCardlessApiExecutor(goCardlessConfigurationHandler, goCardlessRateLimiter, goCardlessCircuitBreaker, goCardlessMetrics, goCardlessHttpTransport, goCardlessAuditLog);
+        
+        // Warms up clients and connections while the rest of the plugin starts, the budget is global
+        goCardlessWarmUp = new GoCardlessWarmUp(globalConfiguration, dao, goCardlessClientCache, goCardlessApiExecutor);
+        goCardlessWarmUp.start();
+        
+        // Webhook events are applied asynchronously, the queue settings are global
+        goCardlessWebhookProcessor = new GoCardlessWebhookProcessor(globalConfiguration, dao, goCardlessMandateCache, killbillAPI, clock.getClock());
+        goCardlessWebhookProcessor.start();
+        
+        // Payment method refreshes are incremental, the page size is global
+        final GoCardlessMandateSync goCardlessMandateSync = new GoCardlessMandateSync(globalConfiguration, dao, goCardlessClientCache, goCardlessApiExecutor, clock.getClock());
+        
+        final GoCardlessPaymentPluginApi pluginApi = new GoCardlessPaymentPluginApi(goCardlessConfigurationHandler,goCardlessClientCache,goCardlessApiExecutor,goCardlessMandateCache,goCardlessRedirectFlowCache,dao,goCardlessWebhookProcessor,goCardlessMandateSync,killbillAPI,clock.getClock());
+        // Kill Bill and the webhook route go through the metrics
+        final GoCardlessInstrumentedPaymentPluginApi instrumentedPluginApi = new GoCardlessInstrumentedPaymentPluginApi(pluginApi, goCardlessMetrics);
+        registerPaymentPluginApi(context, instrumentedPluginApi);
+        
+        // Scheduled jobs run once across the cluster, through leases kept in the database
+        goCardlessJobLeases = new GoCardlessJobLeases(globalConfiguration, dao, clock.getClock());
+        goCardlessJobLeases.start();
+        
+        // Catches up on missed webhooks, the schedule is global
+        goCardlessReconciliationJob = new GoCardlessReconciliationJob(globalConfiguration, dao, goCardlessClientCache, goCardlessApiExecutor, goCardlessWebhookProcessor, goCardlessJobLeases, clock.getClock());
+        goCardlessReconciliationJob.start();
+        
+        goCardlessBulkPaymentService = new GoCardlessBulkPaymentService(goCardlessConfigurationHandler, pluginApi, goCardlessWebhookProcessor, goCardlessMetrics, killbillAPI, clock.getClock());
+        
+        // Payouts are exported one page at a time, the page size is global
+        final GoCardlessPayoutExportService goCardlessPayoutExportService = new GoCardlessPayoutExportService(globalConfiguration, goCardlessClientCache, goCardlessApiExecutor, clock.getClock());
+        
+        // Mandates are imported one page at a time, the page size and parallelism are global
+        goCardlessMandateImportService = new GoCardlessMandateImportService(globalConfiguration, goCardlessClientCache, goCardlessApiExecutor, pluginApi, goCardlessMandateCache, dao, goCardlessJobLeases, killbillAPI, clock.getClock());
         
 		// Expose a healthcheck, so other plugins can check on the plugin status
-		final Healthcheck healthcheck = new GoCardlessHealthCheck(goCardlessConfigurationHandler);
+		final Healthcheck healthcheck = new GoCardlessHealthCheck(goCardlessConfigurationHandler, goCardlessClientCache, goCardlessApiExecutor, goCardlessMandateCache, goCardlessRedirectFlowCache, goCardlessWebhookProcessor, goCardlessRateLimiter, goCardlessCircuitBreaker, goCardlessWarmUp, goCardlessAuditLog);
 		registerHealthcheck(context, healthcheck);        
 
         // Register the servlet, which is used as the entry point to generate the Hosted Payment Pages redirect url
         final PluginApp pluginApp = new PluginAppBuilder(PLUGIN_NAME, killbillAPI, dataSource, super.clock, configProperties)
                 .withRouteClass(GoCardlessCheckoutServlet.class)
+                .withRouteClass(GoCardlessWebhookServlet.class)
+                .withRouteClass(GoCardlessBulkPaymentServlet.class)
+                .withRouteClass(GoCardlessPayoutExportServlet.class)
+                .withRouteClass(GoCardlessMandateImportServlet.class)
                 .withRouteClass(GoCardlessHealthCheckServlet.class).withService(healthcheck)
+                .withRouteClass(GoCardlessMetricsServlet.class).withService(goCardlessMetrics)
                 .withService(pluginApi)
+                .withService(instrumentedPluginApi)
+                .withService(goCardlessBulkPaymentService)
+                .withService(goCardlessPayoutExportService)
+                .withService(goCardlessMandateImportService)
                 .withService(clock)
                 .build();
         final HttpServlet goCardlessServlet = PluginApp.createServlet(pluginApp);
         registerServlet(context, goCardlessServlet);
+        
+        // Listen to tenant configuration changes
+        dispatcher.registerEventHandlers(new PluginConfigurationEventHandler(goCardlessConfigurationHandler));
+        
+        // Never holds the activation past the warm-up budget
+        goCardlessWarmUp.awaitCompletion();
+    }
+	
+    @Override
+    public void stop(final BundleContext context) throws Exception {
+        if (goCardlessWarmUp != null) {
+            goCardlessWarmUp.stop();
+        }
+        if (goCardlessWebhookProcessor != null) {
+            goCardlessWebhookProcessor.stop();
+        }
+        if (goCardlessReconciliationJob != null) {
+            goCardlessReconciliationJob.stop();
+        }
+        if (goCardlessMandateImportService != null) {
+            goCardlessMandateImportService.shutdown();
+        }
+        if (goCardlessJobLeases != null) {
+            goCardlessJobLeases.stop();
+        }
+        if (goCardlessBulkPaymentService != null) {
+            goCardlessBulkPaymentService.shutdown();
+        }
+        if (goCardlessAuditLog != null) {
+            goCardlessAuditLog.stop();
+        }
+        if (goCardlessHttpTransport != null) {
+            goCardlessHttpTransport.shutdown();
+        }
+        super.stop(context);
     }
 	
     private void registerPaymentPluginApi(final BundleContext context, final PaymentPluginApi api) {
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gocardless.GoCardlessException;
+import com.gocardless.errors.GoCardlessApiException;
+import com.gocardless.http.ApiResponse;
+
+/**
+ * Single entry point for the GoCardless calls of the plugin: calls share the tenant rate limit and
+ * circuit breaker, as well as the bundle wide connection limit, and idempotent calls are retried on
+ * server and network errors with jittered backoff, and once when rate limited. Every attempt is recorded in the audit log.
+ */
+public class GoCardlessApiExecutor {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessApiExecutor.class);
+
+	// Metrics outcomes of a GoCardless request
+	static final String OUTCOME_SUCCESS = "success";
+	static final String OUTCOME_CLIENT_ERROR = "client_error";
+	static final String OUTCOME_RATE_LIMITED = "rate_limited";
+	static final String OUTCOME_SERVER_ERROR = "server_error";
+	static final String OUTCOME_NETWORK_ERROR = "network_error";
+	static final String OUTCOME_ERROR = "error";
+
+	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final GoCardlessRateLimiter goCardlessRateLimiter;
+	private final GoCardlessCircuitBreaker goCardlessCircuitBreaker;
+	private final GoCardlessMetrics goCardlessMetrics;
+	private final GoCardlessHttpTransport goCardlessHttpTransport;
+	private final GoCardlessAuditLog goCardlessAuditLog;
+
+	public GoCardlessApiExecutor(final GoCardlessConfigurationHandler goCardlessConfigurationHandler,
+	                             final GoCardlessRateLimiter goCardlessRateLimiter,
+	                             final GoCardlessCircuitBreaker goCardlessCircuitBreaker,
+	                             final GoCardlessMetrics goCardlessMetrics,
+	                             final GoCardlessHttpTransport goCardlessHttpTransport,
+	                             final GoCardlessAuditLog goCardlessAuditLog) {
+		this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+		this.goCardlessRateLimiter = goCardlessRateLimiter;
+		this.goCardlessCircuitBreaker = goCardlessCircuitBreaker;
+		this.goCardlessMetrics = goCardlessMetrics;
+		this.goCardlessHttpTransport = goCardlessHttpTransport;
+		this.goCardlessAuditLog = goCardlessAuditLog;
+	}
+
+	/**
+	 * Runs the call once a rate limit token is available. A 429 is retried once, after waiting for the limit to reset.
+	 * Server and network errors are retried up to retryMaxAttempts when the call is idempotent.
+	 *
+	 * @param kbTenantId
+	 * @param operation  name of the call, for logging and metrics
+	 * @param idempotent true for reads, and for creations carrying an idempotency key
+	 * @param call       the request, e.g. () -> client.payments().get(id).executeWrapped()
+	 * @return the GoCardless resource
+	 * @throws GoCardlessRateLimitedException if the call couldn't be made within rateLimitMaxWaitMillis, or no connection was free
+	 * @throws GoCardlessCircuitOpenException if GoCardless is considered down for the tenant
+	 */
+	public <T> T execute(@Nullable final UUID kbTenantId, final String operation, final boolean idempotent, final Supplier<ApiResponse<T>> call) {
+		return execute(kbTenantId, operation, null, null, idempotent, call);
+	}
+
+	/**
+	 * Same as above, the ids being recorded in the audit log
+	 *
+	 * @param kbTenantId
+	 * @param operation      name of the call, for logging and metrics
+	 * @param objectId       Kill Bill or GoCardless id the call is about, e.g. the Kill Bill payment id of a payment creation
+	 * @param idempotencyKey idempotency key sent to GoCardless, if any
+	 * @param idempotent     true for reads, and for creations carrying an idempotency key
+	 * @param call           the request
+	 * @return the GoCardless resource
+	 */
+	public <T> T execute(@Nullable final UUID kbTenantId, final String operation, @Nullable final String objectId, @Nullable final String idempotencyKey,
+	                     final boolean idempotent, final Supplier<ApiResponse<T>> call) {
+		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(kbTenantId);
+		boolean rateLimited = false;
+		int attempt = 0;
+		while (true) {
+			// An open circuit fails fast, without spending a rate limit token
+			goCardlessCircuitBreaker.acquire(kbTenantId);
+			try {
+				goCardlessRateLimiter.acquire(kbTenantId);
+			} catch (final GoCardlessRateLimitedException e) {
+				// Not sent, the circuit doesn't learn anything
+				goCardlessCircuitBreaker.release(kbTenantId);
+				throw e;
+			}
+			attempt++;
+			final GoCardlessException failure;
+			final long startNanos = goCardlessMetrics.startGoCardlessApiCall(kbTenantId, operation);
+			// Captured before a 429 gives the attempt back
+			final int auditedAttempt = attempt;
+			final long auditStartNanos = System.nanoTime();
+			String outcome = OUTCOME_ERROR;
+			Integer statusCode = null;
+			String errorType = null;
+			String requestId = null;
+			try {
+				final ApiResponse<T> response = goCardlessHttpTransport.execute(call);
+				outcome = OUTCOME_SUCCESS;
+				statusCode = response.getStatusCode();
+				goCardlessCircuitBreaker.onSuccess(kbTenantId);
+				goCardlessRateLimiter.update(kbTenantId, response.getHeaders());
+				return response.getResource();
+			} catch (final GoCardlessApiException e) {
+				statusCode = e.getCode();
+				errorType = e.getType() == null ? null : e.getType().name();
+				requestId = e.getRequestId();
+				if (e.getCode() < 500) {
+					// GoCardless is up, the request itself is wrong (or rate limited)
+					goCardlessCircuitBreaker.onSuccess(kbTenantId);
+					if (e.getCode() != GoCardlessHttpTransport.TOO_MANY_REQUESTS) {
+						outcome = OUTCOME_CLIENT_ERROR;
+						throw e;
+					}
+					outcome = OUTCOME_RATE_LIMITED;
+					logger.info("GoCardless rate limit hit for {}, kbTenantId={}", operation, kbTenantId);
+					goCardlessRateLimiter.onRateLimited(kbTenantId, goCardlessHttpTransport.getRateLimitedHeaders());
+					// Nothing proves the request wasn't processed (e.g. a 429 from a proxy once GoCardless answered):
+					// only requests which can safely be sent twice are sent again, once
+					if (rateLimited || !idempotent) {
+						throw e;
+					}
+					rateLimited = true;
+					attempt--;
+					continue;
+				}
+				outcome = OUTCOME_SERVER_ERROR;
+				goCardlessCircuitBreaker.onFailure(kbTenantId);
+				failure = e;
+			} catch (final GoCardlessException e) {
+				// Network error (timeout, connection reset, etc.)
+				outcome = OUTCOME_NETWORK_ERROR;
+				errorType = (e.getCause() == null ? e : e.getCause()).getClass().getSimpleName();
+				goCardlessCircuitBreaker.onFailure(kbTenantId);
+				failure = e;
+			} catch (final RuntimeException e) {
+				errorType = e.getClass().getSimpleName();
+				goCardlessCircuitBreaker.release(kbTenantId);
+				throw e;
+			} finally {
+				goCardlessMetrics.endGoCardlessApiCall(kbTenantId, operation, startNanos, outcome);
+				goCardlessAuditLog.record(kbTenantId, operation, objectId, idempotencyKey, auditedAttempt, statusCode,
+				                          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - auditStartNanos), outcome, errorType, requestId);
+			}
+
+			if (!idempotent || attempt >= config.getRetryMaxAttempts()) {
+				throw failure;
+			}
+			final long backoffMillis = backoffMillis(attempt, config.getRetryInitialBackoffMillis(), config.getRetryMaxBackoffMillis());
+			logger.info("GoCardless call {} failed (attempt {}), retrying in {}ms, kbTenantId={}", operation, attempt, backoffMillis, kbTenantId, failure);
+			try {
+				Thread.sleep(backoffMillis);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Full jitter: uniformly random between 0 and the exponential backoff, capped
+	 */
+	static long backoffMillis(final int attempt, final long initialBackoffMillis, final long maxBackoffMillis) {
+		final long exponential = initialBackoffMillis << Math.min(attempt - 1, 30);
+		final long cap = exponential <= 0 ? maxBackoffMillis : Math.min(maxBackoffMillis, exponential);
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessAuditRecord;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Audit trail of the GoCardless requests, written off the request thread.
+ * Records are queued in a bounded buffer, and written in batches to the gocardless_audit_log table by a single worker.
+ * When the buffer is full, records are dropped and counted: auditing never slows down nor fails a GoCardless call.
+ */
+public class GoCardlessAuditLog {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessAuditLog.class);
+
+	private static final long PURGE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final GoCardlessDao dao;
+	private final Clock clock;
+	private final boolean enabled;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final int retentionDays;
+	private final BlockingQueue<GoCardlessAuditRecord> queue;
+
+	private final LongAdder recorded = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	private volatile boolean running;
+	private Thread worker;
+	private long lastPurgeMillis;
+
+	public GoCardlessAuditLog(final GoCardlessConfigProperties config, final GoCardlessDao dao, final Clock clock) {
+		this.dao = dao;
+		this.clock = clock;
+		this.enabled = config.isAuditEnabled();
+		this.batchSize = config.getAuditBatchSize();
+		this.flushIntervalMillis = config.getAuditFlushIntervalMillis();
+		this.retentionDays = config.getAuditRetentionDays();
+		this.queue = new ArrayBlockingQueue<>(config.getAuditQueueCapacity());
+	}
+
+	public synchronized void start() {
+		if (!enabled || running) {
+			return;
+		}
+		running = true;
+		worker = new Thread(this::run, "gocardless-audit-log");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stops the worker, once what is already queued has been written
+	 */
+	public synchronized void stop() throws InterruptedException {
+		running = false;
+		if (worker != null) {
+			worker.interrupt();
+			worker.join(TimeUnit.SECONDS.toMillis(5));
+			worker = null;
+		}
+		flushPending();
+	}
+
+	/**
+	 * Queues the record of a GoCardless request attempt, never blocks
+	 *
+	 * @param kbTenantId
+	 * @param operation      name of the call
+	 * @param objectId       Kill Bill or GoCardless id the call is about, if any
+	 * @param idempotencyKey idempotency key sent to GoCardless, if any
+	 * @param attempt        1 for the first attempt
+	 * @param statusCode     HTTP status, or null if GoCardless didn't answer
+	 * @param latencyMillis
+	 * @param outcome        see GoCardlessApiExecutor
+	 * @param errorType      GoCardless error type, or exception name for network errors
+	 * @param requestId      GoCardless request id of a failed request
+	 */
+	public void record(@Nullable final UUID kbTenantId, final String operation, @Nullable final String objectId, @Nullable final String idempotencyKey,
+	                   final int attempt, @Nullable final Integer statusCode, final long latencyMillis, final String outcome,
+	                   @Nullable final String errorType, @Nullable final String requestId) {
+		if (!enabled) {
+			return;
+		}
+		recorded.increment();
+		final GoCardlessAuditRecord auditRecord = new GoCardlessAuditRecord(null, operation, objectId, idempotencyKey, attempt, statusCode,
+		                                                                    latencyMillis, outcome, errorType, requestId, clock.getUTCNow(), kbTenantId);
+		if (!queue.offer(auditRecord)) {
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Writes all queued records on the calling thread
+	 */
+	void flushPending() {
+		final List<GoCardlessAuditRecord> batch = new ArrayList<>();
+		while (queue.drainTo(batch, batchSize) > 0) {
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getRecorded() {
+		return recorded.sum();
+	}
+
+	public long getWritten() {
+		return written.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	private void run() {
+		final List<GoCardlessAuditRecord> batch = new ArrayList<>(batchSize);
+		while (running) {
+			try {
+				final GoCardlessAuditRecord first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+					write(batch);
+				}
+				purgeIfDue();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (final RuntimeException e) {
+				logger.warn("Unexpected error while writing the audit log", e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(final List<GoCardlessAuditRecord> batch) {
+		try {
+			dao.addAuditRecords(batch);
+			written.add(batch.size());
+		} catch (final SQLException e) {
+			// Not retried, so that a database outage doesn't back up the buffer
+			failed.add(batch.size());
+			logger.warn("Unable to write {} audit records", batch.size(), e);
+		}
+	}
+
+	private void purgeIfDue() {
+		if (retentionDays <= 0 || clock.getUTCNow().getMillis() - lastPurgeMillis < PURGE_INTERVAL_MILLIS) {
+			return;
+		}
+		lastPurgeMillis = clock.getUTCNow().getMillis();
+		try {
+			final int deleted = dao.deleteAuditRecordsBefore(clock.getUTCNow().minusDays(retentionDays));
+			if (deleted > 0) {
+				logger.info("Purged {} audit records older than {} days", deleted, retentionDays);
+			}
+		} catch (final SQLException e) {
+			logger.warn("Unable to purge the audit log", e);
+		}
+	}
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessPaymentRecord;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gocardless.errors.GoCardlessApiException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Submits batches of purchases through Kill Bill, with a bounded number of concurrent
+ * GoCardless calls per tenant (bulkPaymentParallelism). Mandates are resolved once per account,
+ * before any payment is submitted, and results are streamed back in completion order.
+ *
+ * Batches of GoCardless payments can be cancelled the same way, e.g. to withdraw a collection run
+ * before it is submitted to the banks. Purchases are measured by the plugin API Kill Bill calls, cancellations
+ * don't go through Kill Bill and are measured here.
+ */
+public class GoCardlessBulkPaymentService {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessBulkPaymentService.class);
+
+	private static final ObjectMapper objectMapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final GoCardlessPaymentPluginApi goCardlessPaymentPluginApi;
+	private final GoCardlessWebhookProcessor goCardlessWebhookProcessor;
+	private final GoCardlessMetrics goCardlessMetrics;
+	private final OSGIKillbillAPI killbillAPI;
+	private final Clock clock;
+	private final ConcurrentMap<UUID, ExecutorService> executors = new ConcurrentHashMap<>();
+
+	public GoCardlessBulkPaymentService(final GoCardlessConfigurationHandler goCardlessConfigurationHandler,
+	                                    final GoCardlessPaymentPluginApi goCardlessPaymentPluginApi,
+	                                    final GoCardlessWebhookProcessor goCardlessWebhookProcessor,
+	                                    final GoCardlessMetrics goCardlessMetrics,
+	                                    final OSGIKillbillAPI killbillAPI,
+	                                    final Clock clock) {
+		this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+		this.goCardlessPaymentPluginApi = goCardlessPaymentPluginApi;
+		this.goCardlessWebhookProcessor = goCardlessWebhookProcessor;
+		this.goCardlessMetrics = goCardlessMetrics;
+		this.killbillAPI = killbillAPI;
+		this.clock = clock;
+		// Resize the tenant pool on configuration change, in-flight payments are let through
+		this.goCardlessConfigurationHandler.addConfigurationChangeListener(kbTenantId -> {
+			final ExecutorService executor = executors.remove(GoCardlessConfigurationHandler.tenantKey(kbTenantId));
+			if (executor != null) {
+				executor.shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Submits the entries, without waiting for the payments
+	 *
+	 * @param entries
+	 * @param kbTenantId
+	 * @return the results, one JSON document per line, in completion order
+	 */
+	public InputStream submit(final List<BulkPaymentEntry> entries, final UUID kbTenantId) {
+		final ExecutorService executor = getExecutor(kbTenantId);
+		final BlockingQueue<BulkPaymentResult> results = new LinkedBlockingQueue<>();
+
+		// One account and mandate lookup per account, shared by its entries
+		final Map<UUID, CompletableFuture<ResolvedAccount>> accounts = new HashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			final BulkPaymentEntry entry = entries.get(i);
+			final String validationError = entry.validate();
+			if (validationError != null) {
+				results.add(BulkPaymentResult.failed(i, entry, BulkPaymentResult.INVALID, validationError));
+				continue;
+			}
+			final int index = i;
+			accounts.computeIfAbsent(entry.getKbAccountId(), kbAccountId -> CompletableFuture.supplyAsync(() -> resolveAccount(kbAccountId, kbTenantId), executor))
+			        .thenApplyAsync(resolvedAccount -> purchase(index, entry, resolvedAccount, kbTenantId), executor)
+			        .whenComplete((result, throwable) -> results.add(throwable == null ? result : BulkPaymentResult.failed(index, entry, BulkPaymentResult.ERROR, throwable.getMessage())));
+		}
+		return new ResultStream<>(results, entries.size());
+	}
+
+	/**
+	 * Cancels the GoCardless payments of the entries, without waiting for the cancellations.
+	 * The purchase of each cancelled payment is failed in Kill Bill right away.
+	 *
+	 * @param entries
+	 * @param kbTenantId
+	 * @return the results, one JSON document per line, in completion order
+	 */
+	public InputStream cancel(final List<BulkCancelEntry> entries, final UUID kbTenantId) {
+		final ExecutorService executor = getExecutor(kbTenantId);
+		final BlockingQueue<BulkCancelResult> results = new LinkedBlockingQueue<>();
+		for (int i = 0; i < entries.size(); i++) {
+			final BulkCancelEntry entry = entries.get(i);
+			final String validationError = entry.validate();
+			if (validationError != null) {
+				results.add(new BulkCancelResult(i, null, null, BulkCancelResult.INVALID, validationError));
+				continue;
+			}
+			final int index = i;
+			CompletableFuture.supplyAsync(() -> cancel(index, entry.getKbPaymentId(), kbTenantId), executor)
+			                 .whenComplete((result, throwable) -> results.add(throwable == null ? result
+			                                                                                   : new BulkCancelResult(index, entry.getKbPaymentId(), null, BulkCancelResult.ERROR, throwable.getMessage())));
+		}
+		return new ResultStream<>(results, entries.size());
+	}
+
+	private BulkCancelResult cancel(final int index, final UUID kbPaymentId, final UUID kbTenantId) {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(kbTenantId, "bulkCancelPayment");
+		String outcome = GoCardlessInstrumentedPaymentPluginApi.OUTCOME_ERROR;
+		try {
+			final BulkCancelResult result = doCancel(index, kbPaymentId, kbTenantId);
+			outcome = result.getStatus();
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(kbTenantId, "bulkCancelPayment", startNanos, outcome);
+		}
+	}
+
+	private BulkCancelResult doCancel(final int index, final UUID kbPaymentId, final UUID kbTenantId) {
+		GoCardlessPaymentRecord purchaseRecord = null;
+		try {
+			purchaseRecord = goCardlessPaymentPluginApi.getPurchaseRecord(kbPaymentId, kbTenantId);
+			if (purchaseRecord == null) {
+				return new BulkCancelResult(index, kbPaymentId, null, BulkCancelResult.NOT_FOUND, null);
+			}
+			final CallContext context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getUTCNow(), purchaseRecord.getKbAccountId(), kbTenantId);
+			final com.gocardless.resources.Payment payment = goCardlessPaymentPluginApi.cancelPayment(purchaseRecord, context);
+			// Don't wait for the webhook event to fail the purchase
+			goCardlessWebhookProcessor.applyStatus(purchaseRecord, payment.getStatus().name());
+			return new BulkCancelResult(index, kbPaymentId, payment.getId(), payment.getStatus().name(), null);
+		} catch (final GoCardlessApiException e) {
+			// typically cancellation_failed: the payment was already submitted to the banks
+			return new BulkCancelResult(index, kbPaymentId, purchaseRecord == null ? null : purchaseRecord.getGoCardlessId(), BulkCancelResult.ERROR, e.getErrorMessage());
+		} catch (final SQLException | AccountApiException | GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+			logger.warn("Bulk cancellation failed for kbPaymentId={}", kbPaymentId, e);
+			return new BulkCancelResult(index, kbPaymentId, purchaseRecord == null ? null : purchaseRecord.getGoCardlessId(), BulkCancelResult.ERROR, e.getMessage());
+		}
+	}
+
+	private ResolvedAccount resolveAccount(final UUID kbAccountId, final UUID kbTenantId) {
+		final CallContext context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getUTCNow(), kbAccountId, kbTenantId);
+		try {
+			final Account account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
+			return new ResolvedAccount(account, goCardlessPaymentPluginApi.getMandateId(kbAccountId, context), null);
+		} catch (final AccountApiException e) {
+			return new ResolvedAccount(null, null, e.getMessage());
+		}
+	}
+
+	private BulkPaymentResult purchase(final int index, final BulkPaymentEntry entry, final ResolvedAccount resolvedAccount, final UUID kbTenantId) {
+		if (resolvedAccount.account == null) {
+			return BulkPaymentResult.failed(index, entry, BulkPaymentResult.ERROR, resolvedAccount.error);
+		}
+		if (resolvedAccount.mandateId == null) {
+			// Don't create a payment in Kill Bill which would be cancelled anyway
+			return BulkPaymentResult.failed(index, entry, BulkPaymentResult.NO_MANDATE, null);
+		}
+
+		final CallContext context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getUTCNow(), entry.getKbAccountId(), kbTenantId);
+		final List<PluginProperty> properties = ImmutableList.of(new PluginProperty("idempotencykey", entry.getIdempotencyKey(), false));
+		try {
+			final Payment payment = killbillAPI.getPaymentApi().createPurchase(resolvedAccount.account,
+			                                                                   resolvedAccount.account.getPaymentMethodId(),
+			                                                                   null,
+			                                                                   entry.getAmount(),
+			                                                                   entry.getCurrency(),
+			                                                                   null,
+			                                                                   null,
+			                                                                   entry.getIdempotencyKey(),
+			                                                                   properties,
+			                                                                   context);
+			final PaymentTransaction transaction = payment.getTransactions().get(payment.getTransactions().size() - 1);
+			return new BulkPaymentResult(index, entry.getKbAccountId(), entry.getIdempotencyKey(), transaction.getTransactionStatus().toString(),
+			                             payment.getId(), transaction.getId(), transaction.getGatewayErrorMsg());
+		} catch (final PaymentApiException e) {
+			logger.warn("Bulk purchase failed for kbAccountId={}, idempotencyKey={}", entry.getKbAccountId(), entry.getIdempotencyKey(), e);
+			return BulkPaymentResult.failed(index, entry, BulkPaymentResult.ERROR, e.getMessage());
+		}
+	}
+
+	public void shutdown() {
+		for (final ExecutorService executor : executors.values()) {
+			executor.shutdownNow();
+		}
+		executors.clear();
+	}
+
+	private ExecutorService getExecutor(@Nullable final UUID kbTenantId) {
+		final ExecutorService executor = executors.get(GoCardlessConfigurationHandler.tenantKey(kbTenantId));
+		if (executor != null) {
+			return executor;
+		}
+		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(kbTenantId);
+		return executors.computeIfAbsent(GoCardlessConfigurationHandler.tenantKey(kbTenantId), key -> Executors.newFixedThreadPool(config.getBulkPaymentParallelism(),
+		                                                                                             new ThreadFactoryBuilder().setNameFormat("gocardless-bulk-" + key + "-%d")
+		                                                                                                                       .setDaemon(true)
+		                                                                                                                       .build()));
+	}
+
+	/**
+	 * @param body a JSON array of {"kbAccountId", "amount", "currency", "idempotencyKey"}
+	 * @return the entries, malformed ones being reported when submitted
+	 * @throws IOException if the body isn't a JSON array
+	 */
+	public static List<BulkPaymentEntry> parseEntries(final String body) throws IOException {
+		final JsonNode nodes = objectMapper.readTree(body);
+		if (nodes == null || !nodes.isArray()) {
+			throw new IOException("Expected a JSON array of payments");
+		}
+		final List<BulkPaymentEntry> entries = new ArrayList<>(nodes.size());
+		for (final JsonNode node : nodes) {
+			entries.add(new BulkPaymentEntry(node.path("kbAccountId").asText(null),
+			                                 node.path("amount").asText(null),
+			                                 node.path("currency").asText(null),
+			                                 node.path("idempotencyKey").asText(null)));
+		}
+		return entries;
+	}
+
+	/**
+	 * @param body a JSON array of {"kbPaymentId"}
+	 * @return the entries, malformed ones being reported when submitted
+	 * @throws IOException if the body isn't a JSON array
+	 */
+	public static List<BulkCancelEntry> parseCancelEntries(final String body) throws IOException {
+		final JsonNode nodes = objectMapper.readTree(body);
+		if (nodes == null || !nodes.isArray()) {
+			throw new IOException("Expected a JSON array of payments");
+		}
+		final List<BulkCancelEntry> entries = new ArrayList<>(nodes.size());
+		for (final JsonNode node : nodes) {
+			entries.add(new BulkCancelEntry(node.path("kbPaymentId").asText(null)));
+		}
+		return entries;
+	}
+
+	private static final class ResolvedAccount {
+
+		private final Account account;
+		private final String mandateId;
+		private final String error;
+
+		private ResolvedAccount(final Account account, final String mandateId, final String error) {
+			this.account = account;
+			this.mandateId = mandateId;
+			this.error = error;
+		}
+	}
+
+	public static class BulkPaymentEntry {
+
+		private final String kbAccountId;
+		private final String amount;
+		private final String currency;
+		private final String idempotencyKey;
+
+		public BulkPaymentEntry(final String kbAccountId, final String amount, final String currency, final String idempotencyKey) {
+			this.kbAccountId = kbAccountId;
+			this.amount = amount;
+			this.currency = currency;
+			this.idempotencyKey = idempotencyKey;
+		}
+
+		public UUID getKbAccountId() {
+			return UUID.fromString(kbAccountId);
+		}
+
+		public BigDecimal getAmount() {
+			return new BigDecimal(amount);
+		}
+
+		public Currency getCurrency() {
+			return Currency.valueOf(currency);
+		}
+
+		public String getIdempotencyKey() {
+			return idempotencyKey;
+		}
+
+		/**
+		 * @return the reason why the entry cannot be submitted, or null if it is valid
+		 */
+		String validate() {
+			if (idempotencyKey == null || idempotencyKey.isEmpty()) {
+				return "idempotencyKey is required";
+			}
+			try {
+				getKbAccountId();
+			} catch (final RuntimeException e) {
+				return "Invalid kbAccountId: " + kbAccountId;
+			}
+			try {
+				if (getAmount().signum() <= 0) {
+					return "amount must be positive";
+				}
+			} catch (final RuntimeException e) {
+				return "Invalid amount: " + amount;
+			}
+			try {
+				getCurrency();
+			} catch (final RuntimeException e) {
+				return "Invalid currency: " + currency;
+			}
+			return null;
+		}
+	}
+
+	public static class BulkPaymentResult {
+
+		public static final String INVALID = "INVALID";
+		public static final String NO_MANDATE = "NO_MANDATE";
+		public static final String ERROR = "ERROR";
+
+		private final int index;
+		private final UUID kbAccountId;
+		private final String idempotencyKey;
+		private final String status;
+		private final UUID kbPaymentId;
+		private final UUID kbTransactionId;
+		private final String error;
+
+		public BulkPaymentResult(final int index, final UUID kbAccountId, final String idempotencyKey, final String status,
+		                         final UUID kbPaymentId, final UUID kbTransactionId, final String error) {
+			this.index = index;
+			this.kbAccountId = kbAccountId;
+			this.idempotencyKey = idempotencyKey;
+			this.status = status;
+			this.kbPaymentId = kbPaymentId;
+			this.kbTransactionId = kbTransactionId;
+			this.error = error;
+		}
+
+		static BulkPaymentResult failed(final int index, final BulkPaymentEntry entry, final String status, final String error) {
+			return new BulkPaymentResult(index, entry.validate() == null ? entry.getKbAccountId() : null, entry.getIdempotencyKey(), status, null, null, error);
+		}
+
+		/**
+		 * @return the position of the entry in the submitted batch
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public UUID getKbAccountId() {
+			return kbAccountId;
+		}
+
+		public String getIdempotencyKey() {
+			return idempotencyKey;
+		}
+
+		/**
+		 * @return the Kill Bill transaction status, or INVALID, NO_MANDATE, ERROR if no transaction was created
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		public UUID getKbPaymentId() {
+			return kbPaymentId;
+		}
+
+		public UUID getKbTransactionId() {
+			return kbTransactionId;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+	public static class BulkCancelEntry {
+
+		private final String kbPaymentId;
+
+		public BulkCancelEntry(final String kbPaymentId) {
+			this.kbPaymentId = kbPaymentId;
+		}
+
+		public UUID getKbPaymentId() {
+			return UUID.fromString(kbPaymentId);
+		}
+
+		/**
+		 * @return the reason why the entry cannot be cancelled, or null if it is valid
+		 */
+		String validate() {
+			try {
+				getKbPaymentId();
+			} catch (final RuntimeException e) {
+				return "Invalid kbPaymentId: " + kbPaymentId;
+			}
+			return null;
+		}
+	}
+
+	public static class BulkCancelResult {
+
+		public static final String INVALID = "INVALID";
+		public static final String NOT_FOUND = "NOT_FOUND";
+		public static final String ERROR = "ERROR";
+
+		private final int index;
+		private final UUID kbPaymentId;
+		private final String paymentId;
+		private final String status;
+		private final String error;
+
+		public BulkCancelResult(final int index, final UUID kbPaymentId, final String paymentId, final String status, final String error) {
+			this.index = index;
+			this.kbPaymentId = kbPaymentId;
+			this.paymentId = paymentId;
+			this.status = status;
+			this.error = error;
+		}
+
+		/**
+		 * @return the position of the entry in the submitted batch
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public UUID getKbPaymentId() {
+			return kbPaymentId;
+		}
+
+		/**
+		 * @return the GoCardless payment id
+		 */
+		public String getPaymentId() {
+			return paymentId;
+		}
+
+		/**
+		 * @return the GoCardless payment status after the cancellation, or INVALID, NOT_FOUND, ERROR if the payment wasn't cancelled
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+	// Newline delimited JSON, blocking until the next result is available
+	private static final class ResultStream<T> extends InputStream {
+
+		private final BlockingQueue<T> results;
+		private int remaining;
+		private byte[] current = new byte[0];
+		private int position;
+
+		private ResultStream(final BlockingQueue<T> results, final int expected) {
+			this.results = results;
+			this.remaining = expected;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return current[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			final int count = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		private boolean fill() throws IOException {
+			if (position < current.length) {
+				return true;
+			}
+			if (remaining == 0) {
+				return false;
+			}
+			try {
+				final T result = results.take();
+				remaining--;
+				final byte[] json = objectMapper.writeValueAsBytes(result);
+				current = new byte[json.length + 1];
+				System.arraycopy(json, 0, current, 0, json.length);
+				current[json.length] = '\n';
+				position = 0;
+				return true;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for bulk results");
+			}
+		}
+	}
+}
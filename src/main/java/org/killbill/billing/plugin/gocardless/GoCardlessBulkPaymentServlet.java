@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import com.google.inject.Inject;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.Body;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.POST;
+import org.jooby.mvc.Path;
+import org.killbill.billing.plugin.gocardless.GoCardlessBulkPaymentService.BulkCancelEntry;
+import org.killbill.billing.plugin.gocardless.GoCardlessBulkPaymentService.BulkPaymentEntry;
+import org.killbill.billing.tenant.api.Tenant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.List;
+
+@Singleton
+// Handle /plugins/killbill-gocardless/payments/bulk and /plugins/killbill-gocardless/payments/bulk/cancel
+@Path("/payments/bulk")
+public class GoCardlessBulkPaymentServlet {
+
+    private static final Logger logger = LoggerFactory.getLogger(GoCardlessBulkPaymentServlet.class);
+
+    private final GoCardlessBulkPaymentService goCardlessBulkPaymentService;
+
+    @Inject
+    public GoCardlessBulkPaymentServlet(final GoCardlessBulkPaymentService goCardlessBulkPaymentService) {
+        this.goCardlessBulkPaymentService = goCardlessBulkPaymentService;
+    }
+
+    // Purchases against the default payment method of each account, one result per line as they complete
+    @POST
+    public Result submit(@Body final String body,
+                         @Local @Named("killbill_tenant") final Tenant tenant) {
+        final List<BulkPaymentEntry> entries;
+        try {
+            entries = GoCardlessBulkPaymentService.parseEntries(body);
+        } catch (final IOException e) {
+            logger.warn("Invalid bulk payment request", e);
+            return Results.with(e.getMessage(), Status.BAD_REQUEST);
+        }
+        logger.info("Submitting {} bulk payments for kbTenantId={}", entries.size(), tenant.getId());
+        return Results.with(goCardlessBulkPaymentService.submit(entries, tenant.getId()), Status.OK)
+                      .type("application/x-ndjson");
+    }
+
+    // Cancels the GoCardless payments of Kill Bill payments, one result per line as they complete
+    @POST
+    @Path("/cancel")
+    public Result cancel(@Body final String body,
+                         @Local @Named("killbill_tenant") final Tenant tenant) {
+        final List<BulkCancelEntry> entries;
+        try {
+            entries = GoCardlessBulkPaymentService.parseCancelEntries(body);
+        } catch (final IOException e) {
+            logger.warn("Invalid bulk cancel request", e);
+            return Results.with(e.getMessage(), Status.BAD_REQUEST);
+        }
+        logger.info("Cancelling {} payments for kbTenantId={}", entries.size(), tenant.getId());
+        return Results.with(goCardlessBulkPaymentService.cancel(entries, tenant.getId()), Status.OK)
+                      .type("application/x-ndjson");
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-tenant circuit breaker around the GoCardless API. After circuitBreakerFailureThreshold consecutive
+ * failures (server errors, network errors), calls fail fast for circuitBreakerOpenMillis, then a single
+ * trial call decides whether the circuit closes again.
+ */
+public class GoCardlessCircuitBreaker {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessCircuitBreaker.class);
+
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final ConcurrentMap<UUID, Circuit> circuits = new ConcurrentHashMap<>();
+
+	public GoCardlessCircuitBreaker(final GoCardlessConfigurationHandler goCardlessConfigurationHandler) {
+		this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+		this.goCardlessConfigurationHandler.addConfigurationChangeListener(kbTenantId -> circuits.remove(GoCardlessConfigurationHandler.tenantKey(kbTenantId)));
+	}
+
+	/**
+	 * Must be followed by {@link #onSuccess}, {@link #onFailure} or {@link #release}
+	 *
+	 * @param kbTenantId
+	 * @throws GoCardlessCircuitOpenException if GoCardless is considered down for the tenant
+	 */
+	public void acquire(@Nullable final UUID kbTenantId) {
+		if (!getCircuit(kbTenantId).tryAcquire(System.nanoTime())) {
+			throw new GoCardlessCircuitOpenException("GoCardless circuit open for kbTenantId=" + kbTenantId);
+		}
+	}
+
+	/**
+	 * GoCardless answered, even with a client error
+	 */
+	public void onSuccess(@Nullable final UUID kbTenantId) {
+		getCircuit(kbTenantId).onSuccess();
+	}
+
+	public void onFailure(@Nullable final UUID kbTenantId) {
+		if (getCircuit(kbTenantId).onFailure(System.nanoTime())) {
+			logger.warn("Too many GoCardless failures, opening circuit for kbTenantId={}", kbTenantId);
+		}
+	}
+
+	/**
+	 * The call failed before reaching GoCardless
+	 */
+	public void release(@Nullable final UUID kbTenantId) {
+		getCircuit(kbTenantId).release();
+	}
+
+	public State getState(@Nullable final UUID kbTenantId) {
+		final Circuit circuit = circuits.get(GoCardlessConfigurationHandler.tenantKey(kbTenantId));
+		return circuit == null ? State.CLOSED : circuit.getState(System.nanoTime());
+	}
+
+	/**
+	 * @return the state of each tenant circuit, keyed by tenant id ("default" for the global configuration)
+	 */
+	public Map<String, String> getStates() {
+		final Map<String, String> states = new HashMap<>();
+		final long nowNanos = System.nanoTime();
+		for (final Map.Entry<UUID, Circuit> entry : circuits.entrySet()) {
+			states.put(GoCardlessConfigurationHandler.tenantLabel(entry.getKey()), entry.getValue().getState(nowNanos).toString());
+		}
+		return states;
+	}
+
+	private Circuit getCircuit(@Nullable final UUID kbTenantId) {
+		final Circuit circuit = circuits.get(GoCardlessConfigurationHandler.tenantKey(kbTenantId));
+		if (circuit != null) {
+			return circuit;
+		}
+		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(kbTenantId);
+		return circuits.computeIfAbsent(GoCardlessConfigurationHandler.tenantKey(kbTenantId), key -> new Circuit(config.getCircuitBreakerFailureThreshold(), config.getCircuitBreakerOpenMillis()));
+	}
+
+	private static final class Circuit {
+
+		private final int failureThreshold;
+		private final long openNanos;
+
+		private int consecutiveFailures;
+		private long openedAtNanos;
+		private boolean open;
+		private boolean trialInFlight;
+
+		private Circuit(final int failureThreshold, final long openMillis) {
+			this.failureThreshold = failureThreshold;
+			this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		}
+
+		private synchronized boolean tryAcquire(final long nowNanos) {
+			if (!open) {
+				return true;
+			}
+			if (nowNanos - openedAtNanos < openNanos || trialInFlight) {
+				return false;
+			}
+			// Half-open: let a single call through
+			trialInFlight = true;
+			return true;
+		}
+
+		private synchronized void onSuccess() {
+			consecutiveFailures = 0;
+			open = false;
+			trialInFlight = false;
+		}
+
+		/**
+		 * @return true if the circuit just opened
+		 */
+		private synchronized boolean onFailure(final long nowNanos) {
+			consecutiveFailures++;
+			final boolean wasOpen = open;
+			if (trialInFlight || consecutiveFailures >= failureThreshold) {
+				open = true;
+				openedAtNanos = nowNanos;
+			}
+			trialInFlight = false;
+			return open && !wasOpen;
+		}
+
+		private synchronized void release() {
+			trialInFlight = false;
+		}
+
+		private synchronized State getState(final long nowNanos) {
+			if (!open) {
+				return State.CLOSED;
+			}
+			return nowNanos - openedAtNanos < openNanos ? State.OPEN : State.HALF_OPEN;
+		}
+	}
+}
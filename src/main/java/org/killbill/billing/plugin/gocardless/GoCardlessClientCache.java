@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gocardless.GoCardlessClient;
+
+/**
+ * Keeps one GoCardlessClient per tenant, all of them on the shared HTTP transport.
+ * An entry is rebuilt when the tenant token or environment changes.
+ */
+public class GoCardlessClientCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessClientCache.class);
+
+	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final GoCardlessHttpTransport goCardlessHttpTransport;
+	private final ConcurrentMap<UUID, CachedClient> clients = new ConcurrentHashMap<>();
+
+	public GoCardlessClientCache(final GoCardlessConfigurationHandler goCardlessConfigurationHandler, final GoCardlessHttpTransport goCardlessHttpTransport) {
+		this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+		this.goCardlessHttpTransport = goCardlessHttpTransport;
+		this.goCardlessConfigurationHandler.addConfigurationChangeListener(this::invalidate);
+	}
+
+	/**
+	 * Returns the client for the tenant, building it on first use
+	 *
+	 * @param kbTenantId
+	 * @return the client, or null if the tenant is not configured
+	 */
+	public GoCardlessClient getClient(@Nullable final UUID kbTenantId) {
+		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(kbTenantId);
+		if (config == null || config.getGCAccessToken() == null || config.getGCAccessToken().isEmpty()) {
+			logger.warn("Per-tenant properties not configured");
+			return null;
+		}
+		final String accessToken = config.getGCAccessToken();
+		final String environment = config.getBaseUrl() == null ? config.getEnvironment() : config.getBaseUrl();
+
+		final CachedClient cachedClient = clients.get(GoCardlessConfigurationHandler.tenantKey(kbTenantId));
+		if (cachedClient != null && cachedClient.matches(accessToken, environment)) {
+			cachedClient.hits.increment();
+			return cachedClient.client;
+		}
+		return clients.compute(GoCardlessConfigurationHandler.tenantKey(kbTenantId), (key, existing) -> {
+			if (existing != null && existing.matches(accessToken, environment)) {
+				existing.hits.increment();
+				return existing;
+			}
+			logger.info("Building GoCardless client for kbTenantId={}", kbTenantId);
+			return new CachedClient(accessToken, environment, buildClient(config, goCardlessHttpTransport));
+		}).client;
+	}
+
+	/**
+	 * Drops the cached client, so that the next call picks up the new tenant configuration
+	 *
+	 * @param kbTenantId
+	 */
+	public void invalidate(@Nullable final UUID kbTenantId) {
+		if (clients.remove(GoCardlessConfigurationHandler.tenantKey(kbTenantId)) != null) {
+			logger.info("Invalidated GoCardless client for kbTenantId={}", kbTenantId);
+		}
+	}
+
+	public int getLiveClients() {
+		return clients.size();
+	}
+
+	/**
+	 * @return the number of cache hits per tenant, keyed by tenant id ("default" for the global configuration)
+	 */
+	public Map<String, Long> getHits() {
+		final Map<String, Long> hits = new HashMap<>();
+		for (final Map.Entry<UUID, CachedClient> entry : clients.entrySet()) {
+			final String tenant = GoCardlessConfigurationHandler.tenantLabel(entry.getKey());
+			hits.put(tenant, entry.getValue().hits.sum());
+		}
+		return hits;
+	}
+
+	static GoCardlessClient buildClient(final GoCardlessConfigProperties config, final GoCardlessHttpTransport transport) {
+		// Idempotency conflicts are left as errors: the plugin looks the conflicting resource up itself, and checks it's the one requested
+		final GoCardlessClient.Builder builder = transport.newClientBuilder(config.getGCAccessToken());
+		if (config.getBaseUrl() != null) {
+			return transport.install(builder.withBaseUrl(config.getBaseUrl()).build());
+		}
+		final GoCardlessClient.Environment environment = config.getEnvironment().equalsIgnoreCase("live") ? GoCardlessClient.Environment.LIVE : GoCardlessClient.Environment.SANDBOX;
+		return transport.install(builder.withEnvironment(environment).build());
+	}
+
+	private static final class CachedClient {
+
+		private final String accessToken;
+		// environment, or base URL when set
+		private final String environment;
+		private final GoCardlessClient client;
+		private final LongAdder hits = new LongAdder();
+
+		private CachedClient(final String accessToken, final String environment, final GoCardlessClient client) {
+			this.accessToken = accessToken;
+			this.environment = environment;
+			this.client = client;
+		}
+
+		private boolean matches(final String accessToken, final String environment) {
+			return Objects.equals(this.accessToken, accessToken) && Objects.equals(this.environment, environment);
+		}
+	}
+}
@@ -27,12 +27,139 @@ public class GoCardlessConfigProperties {
 	public static final String GOCARDLESS_ACCESS_TOKEN_KEY = "GOCARDLESS_ACCESS_TOKEN";
 	public static final String GOCARDLESS_ENVIRONMENT_KEY = "GOCARDLESS_ENVIRONMENT";
 	
+	private static final String DEFAULT_MANDATE_CACHE_MAX_SIZE = "10000";
+	private static final String DEFAULT_MANDATE_CACHE_TTL_SECONDS = "3600";
+	private static final String DEFAULT_REDIRECT_FLOW_CACHE_MAX_SIZE = "10000";
+	// GoCardless expires redirect flows 30 minutes after their creation, leave the customer time to complete it
+	private static final String DEFAULT_REDIRECT_FLOW_CACHE_TTL_SECONDS = "1200";
+	private static final String DEFAULT_WEBHOOK_QUEUE_CAPACITY = "10000";
+	private static final String DEFAULT_WEBHOOK_BATCH_SIZE = "100";
+	private static final String DEFAULT_WEBHOOK_MAX_RETRIES = "3";
+	private static final String DEFAULT_WEBHOOK_RETRY_DELAY_MILLIS = "1000";
+	private static final String DEFAULT_BULK_PAYMENT_PARALLELISM = "8";
+	private static final String DEFAULT_RATE_LIMIT_PER_MINUTE = "1000";
+	private static final String DEFAULT_RATE_LIMIT_MAX_WAIT_MILLIS = "5000";
+	private static final String DEFAULT_RETRY_MAX_ATTEMPTS = "3";
+	private static final String DEFAULT_RETRY_INITIAL_BACKOFF_MILLIS = "100";
+	private static final String DEFAULT_RETRY_MAX_BACKOFF_MILLIS = "2000";
+	private static final String DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "5";
+	private static final String DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = "30000";
+	private static final String DEFAULT_METRICS_ENABLED = "true";
+	private static final String DEFAULT_HEALTH_CHECK_TTL_SECONDS = "30";
+	private static final String DEFAULT_RECONCILIATION_INTERVAL_SECONDS = "600";
+	private static final String DEFAULT_RECONCILIATION_PAGE_SIZE = "500";
+	private static final String DEFAULT_RECONCILIATION_FETCH_THRESHOLD = "20";
+	private static final String DEFAULT_JOB_LEASE_SECONDS = "60";
+	private static final String DEFAULT_MANDATE_SYNC_PAGE_SIZE = "500";
+	private static final String DEFAULT_PAYOUT_EXPORT_PAGE_SIZE = "500";
+	private static final String DEFAULT_MANDATE_IMPORT_PAGE_SIZE = "500";
+	private static final String DEFAULT_MANDATE_IMPORT_PARALLELISM = "8";
+	private static final String DEFAULT_HTTP_MAX_CONNECTIONS = "50";
+	private static final String DEFAULT_HTTP_KEEP_ALIVE_SECONDS = "300";
+	private static final String DEFAULT_HTTP_CONNECT_TIMEOUT_MILLIS = "10000";
+	private static final String DEFAULT_HTTP_READ_TIMEOUT_MILLIS = "30000";
+	private static final String DEFAULT_HTTP_WRITE_TIMEOUT_MILLIS = "30000";
+	private static final String DEFAULT_WARM_UP_ENABLED = "false";
+	private static final String DEFAULT_WARM_UP_TIMEOUT_MILLIS = "5000";
+	private static final String DEFAULT_WARM_UP_PARALLELISM = "8";
+	private static final String DEFAULT_AUDIT_ENABLED = "true";
+	private static final String DEFAULT_AUDIT_QUEUE_CAPACITY = "10000";
+	private static final String DEFAULT_AUDIT_BATCH_SIZE = "500";
+	private static final String DEFAULT_AUDIT_FLUSH_INTERVAL_MILLIS = "1000";
+	private static final String DEFAULT_AUDIT_RETENTION_DAYS = "90";
+	
 	private final String goCardlessAccessToken;
 	private final String environment;
+	private final String baseUrl;
+	private final long mandateCacheMaxSize;
+	private final long mandateCacheTtlSeconds;
+	private final long redirectFlowCacheMaxSize;
+	private final long redirectFlowCacheTtlSeconds;
+	private final String webhookSecret;
+	private final int webhookQueueCapacity;
+	private final int webhookBatchSize;
+	private final int webhookMaxRetries;
+	private final long webhookRetryDelayMillis;
+	private final int bulkPaymentParallelism;
+	private final int rateLimitPerMinute;
+	private final long rateLimitMaxWaitMillis;
+	private final int retryMaxAttempts;
+	private final long retryInitialBackoffMillis;
+	private final long retryMaxBackoffMillis;
+	private final int circuitBreakerFailureThreshold;
+	private final long circuitBreakerOpenMillis;
+	private final boolean metricsEnabled;
+	private final long healthCheckTtlSeconds;
+	private final long reconciliationIntervalSeconds;
+	private final int reconciliationPageSize;
+	private final int reconciliationFetchThreshold;
+	private final long jobLeaseSeconds;
+	private final int mandateSyncPageSize;
+	private final int payoutExportPageSize;
+	private final int mandateImportPageSize;
+	private final int mandateImportParallelism;
+	private final int httpMaxConnections;
+	private final long httpKeepAliveSeconds;
+	private final long httpConnectTimeoutMillis;
+	private final long httpReadTimeoutMillis;
+	private final long httpWriteTimeoutMillis;
+	private final String proxyHost;
+	private final int proxyPort;
+	private final boolean warmUpEnabled;
+	private final long warmUpTimeoutMillis;
+	private final int warmUpParallelism;
+	private final boolean auditEnabled;
+	private final int auditQueueCapacity;
+	private final int auditBatchSize;
+	private final long auditFlushIntervalMillis;
+	private final int auditRetentionDays;
 	
 	public GoCardlessConfigProperties(final Properties properties, final String region) {
 		this.goCardlessAccessToken = properties.getProperty(PROPERTY_PREFIX + "gocardlesstoken");
 		this.environment = properties.getProperty(PROPERTY_PREFIX + "environment", "sandbox"); //defaults to sandbox
+		this.baseUrl = properties.getProperty(PROPERTY_PREFIX + "baseUrl"); //overrides the environment, e.g. for a local stub
+		this.mandateCacheMaxSize = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "mandateCacheMaxSize", DEFAULT_MANDATE_CACHE_MAX_SIZE));
+		this.mandateCacheTtlSeconds = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "mandateCacheTtlSeconds", DEFAULT_MANDATE_CACHE_TTL_SECONDS));
+		this.redirectFlowCacheMaxSize = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "redirectFlowCacheMaxSize", DEFAULT_REDIRECT_FLOW_CACHE_MAX_SIZE));
+		this.redirectFlowCacheTtlSeconds = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "redirectFlowCacheTtlSeconds", DEFAULT_REDIRECT_FLOW_CACHE_TTL_SECONDS));
+		this.webhookSecret = properties.getProperty(PROPERTY_PREFIX + "webhookSecret");
+		this.webhookQueueCapacity = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "webhookQueueCapacity", DEFAULT_WEBHOOK_QUEUE_CAPACITY));
+		this.webhookBatchSize = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "webhookBatchSize", DEFAULT_WEBHOOK_BATCH_SIZE));
+		this.webhookMaxRetries = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "webhookMaxRetries", DEFAULT_WEBHOOK_MAX_RETRIES));
+		this.webhookRetryDelayMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "webhookRetryDelayMillis", DEFAULT_WEBHOOK_RETRY_DELAY_MILLIS));
+		this.bulkPaymentParallelism = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "bulkPaymentParallelism", DEFAULT_BULK_PAYMENT_PARALLELISM));
+		this.rateLimitPerMinute = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "rateLimitPerMinute", DEFAULT_RATE_LIMIT_PER_MINUTE));
+		this.rateLimitMaxWaitMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "rateLimitMaxWaitMillis", DEFAULT_RATE_LIMIT_MAX_WAIT_MILLIS));
+		this.retryMaxAttempts = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "retryMaxAttempts", DEFAULT_RETRY_MAX_ATTEMPTS));
+		this.retryInitialBackoffMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "retryInitialBackoffMillis", DEFAULT_RETRY_INITIAL_BACKOFF_MILLIS));
+		this.retryMaxBackoffMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "retryMaxBackoffMillis", DEFAULT_RETRY_MAX_BACKOFF_MILLIS));
+		this.circuitBreakerFailureThreshold = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "circuitBreakerFailureThreshold", DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD));
+		this.circuitBreakerOpenMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "circuitBreakerOpenMillis", DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS));
+		this.metricsEnabled = Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "metricsEnabled", DEFAULT_METRICS_ENABLED));
+		this.healthCheckTtlSeconds = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "healthCheckTtlSeconds", DEFAULT_HEALTH_CHECK_TTL_SECONDS));
+		this.reconciliationIntervalSeconds = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "reconciliationIntervalSeconds", DEFAULT_RECONCILIATION_INTERVAL_SECONDS));
+		this.reconciliationPageSize = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "reconciliationPageSize", DEFAULT_RECONCILIATION_PAGE_SIZE));
+		this.reconciliationFetchThreshold = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "reconciliationFetchThreshold", DEFAULT_RECONCILIATION_FETCH_THRESHOLD));
+		this.jobLeaseSeconds = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "jobLeaseSeconds", DEFAULT_JOB_LEASE_SECONDS));
+		this.mandateSyncPageSize = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "mandateSyncPageSize", DEFAULT_MANDATE_SYNC_PAGE_SIZE));
+		this.payoutExportPageSize = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "payoutExportPageSize", DEFAULT_PAYOUT_EXPORT_PAGE_SIZE));
+		this.mandateImportPageSize = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "mandateImportPageSize", DEFAULT_MANDATE_IMPORT_PAGE_SIZE));
+		this.mandateImportParallelism = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "mandateImportParallelism", DEFAULT_MANDATE_IMPORT_PARALLELISM));
+		this.httpMaxConnections = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "httpMaxConnections", DEFAULT_HTTP_MAX_CONNECTIONS));
+		this.httpKeepAliveSeconds = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "httpKeepAliveSeconds", DEFAULT_HTTP_KEEP_ALIVE_SECONDS));
+		this.httpConnectTimeoutMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "httpConnectTimeoutMillis", DEFAULT_HTTP_CONNECT_TIMEOUT_MILLIS));
+		this.httpReadTimeoutMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "httpReadTimeoutMillis", DEFAULT_HTTP_READ_TIMEOUT_MILLIS));
+		this.httpWriteTimeoutMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "httpWriteTimeoutMillis", DEFAULT_HTTP_WRITE_TIMEOUT_MILLIS));
+		this.proxyHost = properties.getProperty(PROPERTY_PREFIX + "proxyHost");
+		this.proxyPort = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "proxyPort", "0"));
+		this.warmUpEnabled = Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "warmUpEnabled", DEFAULT_WARM_UP_ENABLED));
+		this.warmUpTimeoutMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "warmUpTimeoutMillis", DEFAULT_WARM_UP_TIMEOUT_MILLIS));
+		this.warmUpParallelism = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "warmUpParallelism", DEFAULT_WARM_UP_PARALLELISM));
+		this.auditEnabled = Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "auditEnabled", DEFAULT_AUDIT_ENABLED));
+		this.auditQueueCapacity = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "auditQueueCapacity", DEFAULT_AUDIT_QUEUE_CAPACITY));
+		this.auditBatchSize = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "auditBatchSize", DEFAULT_AUDIT_BATCH_SIZE));
+		this.auditFlushIntervalMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "auditFlushIntervalMillis", DEFAULT_AUDIT_FLUSH_INTERVAL_MILLIS));
+		this.auditRetentionDays = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "auditRetentionDays", DEFAULT_AUDIT_RETENTION_DAYS));
 	}	
 	
 	public String getGCAccessToken() {
@@ -49,6 +176,178 @@ public class GoCardlessConfigProperties {
 		return environment;
 	}	
 	
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+	
+	public long getMandateCacheMaxSize() {
+		return mandateCacheMaxSize;
+	}
+	
+	public long getMandateCacheTtlSeconds() {
+		return mandateCacheTtlSeconds;
+	}
+	
+	public long getRedirectFlowCacheMaxSize() {
+		return redirectFlowCacheMaxSize;
+	}
+	
+	public long getRedirectFlowCacheTtlSeconds() {
+		return redirectFlowCacheTtlSeconds;
+	}
+	
+	public String getWebhookSecret() {
+		return webhookSecret;
+	}
+	
+	public int getWebhookQueueCapacity() {
+		return webhookQueueCapacity;
+	}
+	
+	public int getWebhookBatchSize() {
+		return webhookBatchSize;
+	}
+	
+	public int getWebhookMaxRetries() {
+		return webhookMaxRetries;
+	}
+	
+	public long getWebhookRetryDelayMillis() {
+		return webhookRetryDelayMillis;
+	}
+	
+	public int getBulkPaymentParallelism() {
+		return bulkPaymentParallelism;
+	}
+	
+	public int getRateLimitPerMinute() {
+		return rateLimitPerMinute;
+	}
+	
+	public long getRateLimitMaxWaitMillis() {
+		return rateLimitMaxWaitMillis;
+	}
+	
+	public int getRetryMaxAttempts() {
+		return retryMaxAttempts;
+	}
+	
+	public long getRetryInitialBackoffMillis() {
+		return retryInitialBackoffMillis;
+	}
+	
+	public long getRetryMaxBackoffMillis() {
+		return retryMaxBackoffMillis;
+	}
+	
+	public int getCircuitBreakerFailureThreshold() {
+		return circuitBreakerFailureThreshold;
+	}
+	
+	public long getCircuitBreakerOpenMillis() {
+		return circuitBreakerOpenMillis;
+	}
+	
+	public boolean isMetricsEnabled() {
+		return metricsEnabled;
+	}
+	
+	public long getHealthCheckTtlSeconds() {
+		return healthCheckTtlSeconds;
+	}
+	
+	public long getReconciliationIntervalSeconds() {
+		return reconciliationIntervalSeconds;
+	}
+	
+	public int getReconciliationPageSize() {
+		return reconciliationPageSize;
+	}
+	
+	public int getReconciliationFetchThreshold() {
+		return reconciliationFetchThreshold;
+	}
+	
+	public long getJobLeaseSeconds() {
+		return jobLeaseSeconds;
+	}
+	
+	public int getMandateSyncPageSize() {
+		return mandateSyncPageSize;
+	}
+	
+	public int getPayoutExportPageSize() {
+		return payoutExportPageSize;
+	}
+	
+	public int getMandateImportPageSize() {
+		return mandateImportPageSize;
+	}
+	
+	public int getMandateImportParallelism() {
+		return mandateImportParallelism;
+	}
+	
+	public int getHttpMaxConnections() {
+		return httpMaxConnections;
+	}
+	
+	public long getHttpKeepAliveSeconds() {
+		return httpKeepAliveSeconds;
+	}
+	
+	public long getHttpConnectTimeoutMillis() {
+		return httpConnectTimeoutMillis;
+	}
+	
+	public long getHttpReadTimeoutMillis() {
+		return httpReadTimeoutMillis;
+	}
+	
+	public long getHttpWriteTimeoutMillis() {
+		return httpWriteTimeoutMillis;
+	}
+	
+	public String getProxyHost() {
+		return proxyHost;
+	}
+	
+	public int getProxyPort() {
+		return proxyPort;
+	}
+	
+	public boolean isWarmUpEnabled() {
+		return warmUpEnabled;
+	}
+	
+	public long getWarmUpTimeoutMillis() {
+		return warmUpTimeoutMillis;
+	}
+	
+	public int getWarmUpParallelism() {
+		return warmUpParallelism;
+	}
+	
+	public boolean isAuditEnabled() {
+		return auditEnabled;
+	}
+	
+	public int getAuditQueueCapacity() {
+		return auditQueueCapacity;
+	}
+	
+	public int getAuditBatchSize() {
+		return auditBatchSize;
+	}
+	
+	public long getAuditFlushIntervalMillis() {
+		return auditFlushIntervalMillis;
+	}
+	
+	public int getAuditRetentionDays() {
+		return auditRetentionDays;
+	}
+	
 	private String getClient(String envKey, String defaultValue) {
 		Map<String, String> env = System.getenv();
 
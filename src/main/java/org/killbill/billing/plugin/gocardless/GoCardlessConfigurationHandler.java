@@ -16,7 +16,13 @@
  */
 package org.killbill.billing.plugin.gocardless;
 
+import java.util.List;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
 
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.plugin.api.notification.PluginTenantConfigurableConfigurationHandler;
@@ -24,7 +30,11 @@ import org.killbill.billing.plugin.api.notification.PluginTenantConfigurableConf
 public class GoCardlessConfigurationHandler
 		extends PluginTenantConfigurableConfigurationHandler<GoCardlessConfigProperties> {
 
+	// Key used for the default (non per-tenant) configuration
+	private static final UUID DEFAULT_TENANT_KEY = new UUID(0L, 0L);
+
 	private final String region;
+	private final List<Consumer<UUID>> configurationChangeListeners = new CopyOnWriteArrayList<>();
 
 	public GoCardlessConfigurationHandler(final String region, final String pluginName,
 			final OSGIKillbillAPI osgiKillbillAPI) {
@@ -37,4 +47,41 @@ public class GoCardlessConfigurationHandler
 		return new GoCardlessConfigProperties(properties, region);
 	}
 
+	@Override
+	protected void configure(@Nullable final UUID kbTenantId) {
+		super.configure(kbTenantId);
+		for (final Consumer<UUID> listener : configurationChangeListeners) {
+			listener.accept(kbTenantId);
+		}
+	}
+
+	/**
+	 * Registers a callback invoked with the tenant id every time a tenant configuration is (re)loaded.
+	 *
+	 * Loading the configuration, e.g. on the first getConfigurable call for a tenant, can invoke the listeners: state
+	 * cleared by a listener should be built from a configuration resolved beforehand, not from within a computeIfAbsent
+	 * on the same map.
+	 *
+	 * @param listener
+	 */
+	public void addConfigurationChangeListener(final Consumer<UUID> listener) {
+		configurationChangeListeners.add(listener);
+	}
+
+	/**
+	 * @param kbTenantId the tenant, or null for the default configuration
+	 * @return the key of the tenant in maps of per-tenant state, which don't accept null keys
+	 */
+	public static UUID tenantKey(@Nullable final UUID kbTenantId) {
+		return kbTenantId == null ? DEFAULT_TENANT_KEY : kbTenantId;
+	}
+
+	/**
+	 * @param tenantKey
+	 * @return the tenant id, or "default" for the default configuration, for logs and metrics
+	 */
+	public static String tenantLabel(final UUID tenantKey) {
+		return DEFAULT_TENANT_KEY.equals(tenantKey) ? "default" : tenantKey.toString();
+	}
+
 }
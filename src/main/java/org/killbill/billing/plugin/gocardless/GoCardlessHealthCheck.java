@@ -16,7 +16,12 @@
  */
 package org.killbill.billing.plugin.gocardless;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -26,39 +31,143 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.gocardless.GoCardlessClient;
+import com.gocardless.GoCardlessException;
+import com.google.common.cache.CacheStats;
 
 public class GoCardlessHealthCheck implements Healthcheck {
 	
 	private static final Logger logger = LoggerFactory.getLogger(GoCardlessHealthCheck.class);
 	
 	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final GoCardlessClientCache goCardlessClientCache;
+	private final GoCardlessApiExecutor goCardlessApiExecutor;
+	private final GoCardlessMandateCache goCardlessMandateCache;
+	private final GoCardlessRedirectFlowCache goCardlessRedirectFlowCache;
+	private final GoCardlessWebhookProcessor goCardlessWebhookProcessor;
+	private final GoCardlessRateLimiter goCardlessRateLimiter;
+	private final GoCardlessCircuitBreaker goCardlessCircuitBreaker;
+	private final GoCardlessWarmUp goCardlessWarmUp;
+	private final GoCardlessAuditLog goCardlessAuditLog;
+	// Last probe per tenant, so that frequent checks don't all reach GoCardless
+	private final ConcurrentMap<UUID, CachedProbe> probes = new ConcurrentHashMap<>();
 	
-    public GoCardlessHealthCheck(final GoCardlessConfigurationHandler goCardlessConfigurationHandler) {
+    public GoCardlessHealthCheck(final GoCardlessConfigurationHandler goCardlessConfigurationHandler, final GoCardlessClientCache goCardlessClientCache,
+                                 final GoCardlessApiExecutor goCardlessApiExecutor, final GoCardlessMandateCache goCardlessMandateCache,
+                                 final GoCardlessRedirectFlowCache goCardlessRedirectFlowCache, final GoCardlessWebhookProcessor goCardlessWebhookProcessor, final GoCardlessRateLimiter goCardlessRateLimiter,
+                                 final GoCardlessCircuitBreaker goCardlessCircuitBreaker, final GoCardlessWarmUp goCardlessWarmUp,
+                                 final GoCardlessAuditLog goCardlessAuditLog) {
         this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+        this.goCardlessClientCache = goCardlessClientCache;
+        this.goCardlessApiExecutor = goCardlessApiExecutor;
+        this.goCardlessMandateCache = goCardlessMandateCache;
+        this.goCardlessRedirectFlowCache = goCardlessRedirectFlowCache;
+        this.goCardlessWebhookProcessor = goCardlessWebhookProcessor;
+        this.goCardlessRateLimiter = goCardlessRateLimiter;
+        this.goCardlessCircuitBreaker = goCardlessCircuitBreaker;
+        this.goCardlessWarmUp = goCardlessWarmUp;
+        this.goCardlessAuditLog = goCardlessAuditLog;
+        // A new token or environment must be probed right away (tenants without their own configuration use the default one)
+        this.goCardlessConfigurationHandler.addConfigurationChangeListener(kbTenantId -> {
+            if (kbTenantId == null) {
+                probes.clear();
+            } else {
+                probes.remove(kbTenantId);
+            }
+        });
     }
-    
     public HealthStatus getHealthStatus(@Nullable final Tenant tenant, @Nullable final Map properties) {
         if (tenant == null) {
-            // The plugin is running
-            return HealthStatus.healthy("Gocardless OK");
+            // The plugin is running, and ready once warmed up
+            final boolean warmingUp = goCardlessWarmUp.getState() == GoCardlessWarmUp.State.WARMING;
+            final Map<String, Object> details = new HashMap<>();
+            details.put("message", warmingUp ? "Gocardless warming up" : "Gocardless OK");
+            details.put("warmUp", goCardlessWarmUp.getStats());
+            details.put("liveClients", goCardlessClientCache.getLiveClients());
+            details.put("clientCacheHits", goCardlessClientCache.getHits());
+            final CacheStats mandateCacheStats = goCardlessMandateCache.getStats();
+            details.put("mandateCacheSize", goCardlessMandateCache.getSize());
+            details.put("mandateCacheHits", mandateCacheStats.hitCount());
+            details.put("mandateCacheMisses", mandateCacheStats.missCount());
+            final CacheStats redirectFlowCacheStats = goCardlessRedirectFlowCache.getStats();
+            details.put("redirectFlowCacheSize", goCardlessRedirectFlowCache.getSize());
+            details.put("redirectFlowCacheHits", redirectFlowCacheStats.hitCount());
+            details.put("redirectFlowCacheMisses", redirectFlowCacheStats.missCount());
+            details.put("redirectFlowCacheHitRate", redirectFlowCacheStats.hitRate());
+            details.put("webhookQueueDepth", goCardlessWebhookProcessor.getQueueDepth());
+            details.put("webhookOldestEventAgeMs", goCardlessWebhookProcessor.getOldestEventAgeMillis());
+            details.put("webhookLastLagMs", goCardlessWebhookProcessor.getLastLagMillis());
+            details.put("webhookReceived", goCardlessWebhookProcessor.getReceived());
+            details.put("webhookProcessed", goCardlessWebhookProcessor.getProcessed());
+            details.put("webhookDuplicates", goCardlessWebhookProcessor.getDuplicates());
+            details.put("webhookDropped", goCardlessWebhookProcessor.getDropped());
+            details.put("webhookRetried", goCardlessWebhookProcessor.getRetried());
+            details.put("auditQueueDepth", goCardlessAuditLog.getQueueDepth());
+            details.put("auditWritten", goCardlessAuditLog.getWritten());
+            details.put("auditDropped", goCardlessAuditLog.getDropped());
+            details.put("auditFailed", goCardlessAuditLog.getFailed());
+            details.put("rateLimiter", goCardlessRateLimiter.getStats());
+            details.put("circuitBreakers", goCardlessCircuitBreaker.getStates());
+            return new HealthStatus(!warmingUp, details);
         } else {
             // Specifying the tenant lets you also validate the tenant configuration
-            final GoCardlessConfigProperties goCardlessConfigProperties = goCardlessConfigurationHandler.getConfigurable(tenant.getId());
-            return pingGocardless(goCardlessConfigProperties);
+            return pingGocardless(tenant);
         }
     }
     
-    private HealthStatus pingGocardless(final GoCardlessConfigProperties config) {
-    	
-	    try {
-			final GoCardlessClient.Environment environment = config.getEnvironment().equalsIgnoreCase("live") ? GoCardlessClient.Environment.LIVE : GoCardlessClient.Environment.SANDBOX;
-			GoCardlessClient.newBuilder(config.getGCAccessToken())
-			.withEnvironment(environment).build();
-			return HealthStatus.healthy("Gocardless OK");
-		} catch (Exception e) {
-			logger.warn("Healthcheck error", e);
-			return HealthStatus.unHealthy("Gocardless error: " + e.getMessage());
-		}
-    }    
+    private HealthStatus pingGocardless(final Tenant tenant) {
+        final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(tenant.getId());
+        if (config == null) {
+            return HealthStatus.unHealthy("Gocardless error: tenant not configured");
+        }
+        final long ttlNanos = TimeUnit.SECONDS.toNanos(config.getHealthCheckTtlSeconds());
+        final CachedProbe cachedProbe = probes.computeIfAbsent(tenant.getId(), key -> new CachedProbe());
+        // Only one probe per tenant at a time, concurrent checks wait for its result
+        synchronized (cachedProbe) {
+            if (cachedProbe.checkedAtNanos == 0 || System.nanoTime() - cachedProbe.checkedAtNanos >= ttlNanos) {
+                probe(tenant.getId(), cachedProbe);
+            }
+            final Map<String, Object> details = new HashMap<>();
+            details.put("message", cachedProbe.message);
+            details.put("latencyMs", cachedProbe.latencyMillis);
+            details.put("ageMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cachedProbe.checkedAtNanos));
+            return new HealthStatus(cachedProbe.healthy, details);
+        }
+    }
 
+    // Cheapest authenticated call: a single creditor
+    private void probe(final UUID kbTenantId, final CachedProbe cachedProbe) {
+        final long startNanos = System.nanoTime();
+        try {
+            final GoCardlessClient client = goCardlessClientCache.getClient(kbTenantId);
+            if (client == null) {
+                cachedProbe.update(false, "Gocardless error: tenant not configured", startNanos);
+                return;
+            }
+            goCardlessApiExecutor.execute(kbTenantId, "healthcheck", false, () -> client.creditors().list().withLimit(1).executeWrapped());
+            cachedProbe.update(true, "Gocardless OK", startNanos);
+        } catch (final GoCardlessCircuitOpenException e) {
+            cachedProbe.update(false, "Gocardless error: circuit " + goCardlessCircuitBreaker.getState(kbTenantId), startNanos);
+        } catch (final GoCardlessException | GoCardlessRateLimitedException e) {
+            logger.warn("Healthcheck error, kbTenantId={}", kbTenantId, e);
+            cachedProbe.update(false, "Gocardless error: " + e.getMessage(), startNanos);
+        } catch (final RuntimeException e) {
+            logger.warn("Healthcheck error, kbTenantId={}", kbTenantId, e);
+            cachedProbe.update(false, "Gocardless error: " + e, startNanos);
+        }
+    }
+
+    private static final class CachedProbe {
+
+        private boolean healthy;
+        private String message;
+        private long latencyMillis;
+        private long checkedAtNanos;
+
+        private void update(final boolean healthy, final String message, final long startNanos) {
+            this.healthy = healthy;
+            this.message = message;
+            this.checkedAtNanos = System.nanoTime();
+            this.latencyMillis = TimeUnit.NANOSECONDS.toMillis(checkedAtNanos - startNanos);
+        }
+    }
 }
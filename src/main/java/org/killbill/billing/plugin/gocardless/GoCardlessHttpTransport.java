@@ -0,0 +1,235 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import com.gocardless.GoCardlessClient;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * HTTP transport shared by the GoCardless clients of all tenants: one connection pool, one set of timeouts and
+ * proxy, and a bound on concurrent requests, so that the number of connections doesn't grow with the number of tenants.
+ * The settings are global, taken from the plugin configuration at startup.
+ *
+ * The proxy goes through the library builder. The library has no option for the connection pool or timeouts, and
+ * builds its own OkHttpClient, so those are installed into each client once built, through its private fields. This
+ * depends on the library version (GOCARDLESS_PRO_VERSION, pinned in the pom): the plugin refuses to start if the
+ * library layout doesn't allow it (see verify), rather than silently running unbounded.
+ */
+public class GoCardlessHttpTransport {
+
+	static final int TOO_MANY_REQUESTS = 429;
+	// The gocardless-pro version whose layout install relies on
+	static final String GOCARDLESS_PRO_VERSION = "3.10.0";
+
+	private final int maxConnections;
+	private final long connectTimeoutMillis;
+	private final long readTimeoutMillis;
+	private final long writeTimeoutMillis;
+	private final Proxy proxy;
+	private final ConnectionPool connectionPool;
+	// Bounds in-flight requests: the pool only bounds idle connections
+	private final Semaphore permits;
+	// Headers of the 429 response of the last request of the calling thread, the library doesn't expose the headers of errors
+	private final ThreadLocal<Map<String, List<String>>> rateLimitedHeaders = new ThreadLocal<>();
+
+	public GoCardlessHttpTransport(final GoCardlessConfigProperties config) {
+		this.maxConnections = config.getHttpMaxConnections();
+		this.connectTimeoutMillis = config.getHttpConnectTimeoutMillis();
+		this.readTimeoutMillis = config.getHttpReadTimeoutMillis();
+		this.writeTimeoutMillis = config.getHttpWriteTimeoutMillis();
+		this.proxy = config.getProxyHost() == null || config.getProxyHost().isEmpty() ? null
+		             : new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(config.getProxyHost(), config.getProxyPort()));
+		this.connectionPool = new ConnectionPool(maxConnections, config.getHttpKeepAliveSeconds(), TimeUnit.SECONDS);
+		this.permits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * @param accessToken
+	 * @return a builder going through the shared proxy, if any
+	 */
+	public GoCardlessClient.Builder newClientBuilder(final String accessToken) {
+		final GoCardlessClient.Builder builder = GoCardlessClient.newBuilder(accessToken);
+		return proxy == null ? builder : builder.withProxy(proxy);
+	}
+
+	/**
+	 * Checks that clients can be put on the shared transport, to be called at startup.
+	 * No request is sent.
+	 *
+	 * @throws IllegalStateException if the GoCardless library layout isn't the expected one
+	 */
+	public void verify() {
+		final GoCardlessClient client = install(newClientBuilder("verify").build());
+		if (getRawClient(client).connectionPool() != connectionPool) {
+			throw new IllegalStateException("The shared HTTP connection pool could not be installed into the GoCardless client");
+		}
+	}
+
+	/**
+	 * Points the client to the shared connection pool and timeouts
+	 *
+	 * @param client a client built from newClientBuilder
+	 * @return the client
+	 * @throws IllegalStateException if the GoCardless library layout isn't the expected one
+	 */
+	public GoCardlessClient install(final GoCardlessClient client) {
+		if (client == null) {
+			return null;
+		}
+		try {
+			final Object httpClient = getHttpClient(client);
+			final Field rawClientField = findFieldOfType(httpClient.getClass(), OkHttpClient.class);
+			final OkHttpClient rawClient = (OkHttpClient) rawClientField.get(httpClient);
+			// Derived from the library client, so that its own settings (TLS, interceptors) are kept
+			OkHttpClient.Builder builder = rawClient.newBuilder()
+			                                        .connectionPool(connectionPool)
+			                                        .connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+			                                        .readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+			                                        .writeTimeout(writeTimeoutMillis, TimeUnit.MILLISECONDS)
+			                                        .addInterceptor(this::recordRateLimitedHeaders);
+			if (proxy != null) {
+				builder = builder.proxy(proxy);
+			}
+			rawClientField.set(httpClient, builder.build());
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			throw new IllegalStateException("Unable to install the shared HTTP transport into the GoCardless client, gocardless-pro " + GOCARDLESS_PRO_VERSION + " is expected", e);
+		}
+		return client;
+	}
+
+	/**
+	 * Runs the request once a connection slot is free
+	 *
+	 * @param request
+	 * @return the request result
+	 * @throws GoCardlessRateLimitedException if no slot was freed within the connect timeout, the request was not sent
+	 */
+	public <T> T execute(final Supplier<T> request) {
+		final boolean acquired;
+		try {
+			acquired = permits.tryAcquire(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GoCardlessRateLimitedException("Interrupted while waiting for a GoCardless connection");
+		}
+		if (!acquired) {
+			throw new GoCardlessRateLimitedException("No GoCardless connection available within " + connectTimeoutMillis + "ms");
+		}
+		rateLimitedHeaders.remove();
+		try {
+			return request.get();
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return the headers of the 429 response to the last request run by the calling thread, or null if it wasn't rate limited
+	 */
+	@Nullable
+	public Map<String, List<String>> getRateLimitedHeaders() {
+		return rateLimitedHeaders.get();
+	}
+
+	// The library sends requests on the calling thread
+	private Response recordRateLimitedHeaders(final Interceptor.Chain chain) throws IOException {
+		final Response response = chain.proceed(chain.request());
+		if (response.code() == TOO_MANY_REQUESTS) {
+			rateLimitedHeaders.set(response.headers().toMultimap());
+		}
+		return response;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return the number of requests in flight
+	 */
+	public int getActiveRequests() {
+		return maxConnections - permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of requests waiting for a free slot
+	 */
+	public int getWaitingRequests() {
+		return permits.getQueueLength();
+	}
+
+	public int getOpenConnections() {
+		return connectionPool.connectionCount();
+	}
+
+	public int getIdleConnections() {
+		return connectionPool.idleConnectionCount();
+	}
+
+	@Nullable
+	Proxy getProxy() {
+		return proxy;
+	}
+
+	public void shutdown() {
+		connectionPool.evictAll();
+	}
+
+	static OkHttpClient getRawClient(final GoCardlessClient client) {
+		try {
+			final Object httpClient = getHttpClient(client);
+			return (OkHttpClient) findFieldOfType(httpClient.getClass(), OkHttpClient.class).get(httpClient);
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Object getHttpClient(final GoCardlessClient client) throws ReflectiveOperationException {
+		final Object httpClient = findFieldOfType(client.getClass(), com.gocardless.http.HttpClient.class).get(client);
+		if (httpClient == null) {
+			throw new NoSuchFieldException("No HTTP client in " + client.getClass().getName());
+		}
+		return httpClient;
+	}
+
+	private static Field findFieldOfType(final Class<?> clazz, final Class<?> type) throws NoSuchFieldException {
+		for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+			for (final Field field : current.getDeclaredFields()) {
+				if (type.isAssignableFrom(field.getType())) {
+					field.setAccessible(true);
+					return field;
+				}
+			}
+		}
+		throw new NoSuchFieldException(type.getName() + " in " + clazz.getName());
+	}
+}
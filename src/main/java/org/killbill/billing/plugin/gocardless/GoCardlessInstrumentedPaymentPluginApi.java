@@ -0,0 +1,305 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.GatewayNotification;
+import org.killbill.billing.payment.plugin.api.HostedPaymentPageFormDescriptor;
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.entity.Pagination;
+
+/**
+ * PaymentPluginApi registered with Kill Bill: records the latency, outcome and concurrency of each call
+ * before handing it to GoCardlessPaymentPluginApi.
+ */
+public class GoCardlessInstrumentedPaymentPluginApi implements PaymentPluginApi {
+
+	// Metrics outcomes (transactions report their plugin status instead)
+	static final String OUTCOME_SUCCESS = "success";
+	static final String OUTCOME_ERROR = "error";
+
+	private final PaymentPluginApi delegate;
+	private final GoCardlessMetrics goCardlessMetrics;
+
+	public GoCardlessInstrumentedPaymentPluginApi(final PaymentPluginApi delegate, final GoCardlessMetrics goCardlessMetrics) {
+		this.delegate = delegate;
+		this.goCardlessMetrics = goCardlessMetrics;
+	}
+
+	@Override
+	public PaymentTransactionInfoPlugin authorizePayment(final UUID kbAccountId, final UUID kbPaymentId,
+			final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "authorizePayment");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final PaymentTransactionInfoPlugin result = delegate.authorizePayment(kbAccountId, kbPaymentId, kbTransactionId,
+					kbPaymentMethodId, amount, currency, properties, context);
+			outcome = outcome(result);
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "authorizePayment", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public PaymentTransactionInfoPlugin capturePayment(final UUID kbAccountId, final UUID kbPaymentId,
+			final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "capturePayment");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final PaymentTransactionInfoPlugin result = delegate.capturePayment(kbAccountId, kbPaymentId, kbTransactionId,
+					kbPaymentMethodId, amount, currency, properties, context);
+			outcome = outcome(result);
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "capturePayment", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public PaymentTransactionInfoPlugin purchasePayment(final UUID kbAccountId, final UUID kbPaymentId,
+			final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "purchasePayment");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final PaymentTransactionInfoPlugin result = delegate.purchasePayment(kbAccountId, kbPaymentId, kbTransactionId,
+					kbPaymentMethodId, amount, currency, properties, context);
+			outcome = outcome(result);
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "purchasePayment", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public PaymentTransactionInfoPlugin voidPayment(final UUID kbAccountId, final UUID kbPaymentId,
+			final UUID kbTransactionId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties,
+			final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "voidPayment");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final PaymentTransactionInfoPlugin result = delegate.voidPayment(kbAccountId, kbPaymentId, kbTransactionId,
+					kbPaymentMethodId, properties, context);
+			outcome = outcome(result);
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "voidPayment", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public PaymentTransactionInfoPlugin creditPayment(final UUID kbAccountId, final UUID kbPaymentId,
+			final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "creditPayment");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final PaymentTransactionInfoPlugin result = delegate.creditPayment(kbAccountId, kbPaymentId, kbTransactionId,
+					kbPaymentMethodId, amount, currency, properties, context);
+			outcome = outcome(result);
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "creditPayment", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public PaymentTransactionInfoPlugin refundPayment(final UUID kbAccountId, final UUID kbPaymentId,
+			final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "refundPayment");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final PaymentTransactionInfoPlugin result = delegate.refundPayment(kbAccountId, kbPaymentId, kbTransactionId,
+					kbPaymentMethodId, amount, currency, properties, context);
+			outcome = outcome(result);
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "refundPayment", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public List<PaymentTransactionInfoPlugin> getPaymentInfo(final UUID kbAccountId, final UUID kbPaymentId,
+			final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "getPaymentInfo");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final List<PaymentTransactionInfoPlugin> result = delegate.getPaymentInfo(kbAccountId, kbPaymentId, properties, context);
+			outcome = OUTCOME_SUCCESS;
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "getPaymentInfo", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public Pagination<PaymentTransactionInfoPlugin> searchPayments(final String searchKey, final Long offset,
+			final Long limit, final Iterable<PluginProperty> properties,
+			final TenantContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "searchPayments");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final Pagination<PaymentTransactionInfoPlugin> result = delegate.searchPayments(searchKey, offset, limit, properties, context);
+			outcome = OUTCOME_SUCCESS;
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "searchPayments", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public void addPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId,
+			final PaymentMethodPlugin paymentMethodProps, final boolean setDefault, final Iterable<PluginProperty> properties,
+			final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "addPaymentMethod");
+		String outcome = OUTCOME_ERROR;
+		try {
+			delegate.addPaymentMethod(kbAccountId, kbPaymentMethodId, paymentMethodProps, setDefault, properties, context);
+			outcome = OUTCOME_SUCCESS;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "addPaymentMethod", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public void deletePaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "deletePaymentMethod");
+		String outcome = OUTCOME_ERROR;
+		try {
+			delegate.deletePaymentMethod(kbAccountId, kbPaymentMethodId, properties, context);
+			outcome = OUTCOME_SUCCESS;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "deletePaymentMethod", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public PaymentMethodPlugin getPaymentMethodDetail(final UUID kbAccountId, final UUID kbPaymentMethodId,
+			final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "getPaymentMethodDetail");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final PaymentMethodPlugin result = delegate.getPaymentMethodDetail(kbAccountId, kbPaymentMethodId, properties, context);
+			outcome = OUTCOME_SUCCESS;
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "getPaymentMethodDetail", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public void setDefaultPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "setDefaultPaymentMethod");
+		String outcome = OUTCOME_ERROR;
+		try {
+			delegate.setDefaultPaymentMethod(kbAccountId, kbPaymentMethodId, properties, context);
+			outcome = OUTCOME_SUCCESS;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "setDefaultPaymentMethod", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public List<PaymentMethodInfoPlugin> getPaymentMethods(final UUID kbAccountId, final boolean refreshFromGateway,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "getPaymentMethods");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final List<PaymentMethodInfoPlugin> result = delegate.getPaymentMethods(kbAccountId, refreshFromGateway, properties, context);
+			outcome = OUTCOME_SUCCESS;
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "getPaymentMethods", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public Pagination<PaymentMethodPlugin> searchPaymentMethods(final String searchKey, final Long offset, final Long limit,
+			final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "searchPaymentMethods");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final Pagination<PaymentMethodPlugin> result = delegate.searchPaymentMethods(searchKey, offset, limit, properties, context);
+			outcome = OUTCOME_SUCCESS;
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "searchPaymentMethods", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public void resetPaymentMethods(final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods,
+			final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "resetPaymentMethods");
+		String outcome = OUTCOME_ERROR;
+		try {
+			delegate.resetPaymentMethods(kbAccountId, paymentMethods, properties, context);
+			outcome = OUTCOME_SUCCESS;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "resetPaymentMethods", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public HostedPaymentPageFormDescriptor buildFormDescriptor(final UUID kbAccountId,
+			final Iterable<PluginProperty> customFields, final Iterable<PluginProperty> properties,
+			final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "buildFormDescriptor");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final HostedPaymentPageFormDescriptor result = delegate.buildFormDescriptor(kbAccountId, customFields, properties, context);
+			outcome = OUTCOME_SUCCESS;
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "buildFormDescriptor", startNanos, outcome);
+		}
+	}
+
+	@Override
+	public GatewayNotification processNotification(final String notification, final Iterable<PluginProperty> properties,
+			final CallContext context) throws PaymentPluginApiException {
+		final long startNanos = goCardlessMetrics.startPluginApiCall(context.getTenantId(), "processNotification");
+		String outcome = OUTCOME_ERROR;
+		try {
+			final GatewayNotification result = delegate.processNotification(notification, properties, context);
+			outcome = OUTCOME_SUCCESS;
+			return result;
+		} finally {
+			goCardlessMetrics.endPluginApiCall(context.getTenantId(), "processNotification", startNanos, outcome);
+		}
+	}
+
+	private static String outcome(final PaymentTransactionInfoPlugin transaction) {
+		return transaction == null || transaction.getStatus() == null ? OUTCOME_SUCCESS : transaction.getStatus().name();
+	}
+}
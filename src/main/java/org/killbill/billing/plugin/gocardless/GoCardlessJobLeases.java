@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Cluster wide leases of the scheduled jobs, per job and tenant, kept in the gocardless_job_leases table. Every
+ * Kill Bill node schedules the jobs, but a node only works on a tenant once it holds the lease of the job for it.
+ *
+ * Held leases are renewed by a heartbeat while the work lasts. A node which dies stops renewing, and its leases are
+ * taken over by the other nodes once they expire. Once done, the lease is kept until the next run is due, so that the
+ * other nodes don't redo the work on their own schedule. Expiry relies on the node clocks being in sync within a
+ * fraction of jobLeaseSeconds.
+ */
+public class GoCardlessJobLeases {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessJobLeases.class);
+
+	private final GoCardlessDao dao;
+	private final Clock clock;
+	private final long leaseMillis;
+	// pid@host, made unique in case of a restart within the lease
+	private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+	private final ConcurrentMap<String, Lease> held = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService heartbeat;
+
+	public GoCardlessJobLeases(final GoCardlessConfigProperties config, final GoCardlessDao dao, final Clock clock) {
+		this.dao = dao;
+		this.clock = clock;
+		this.leaseMillis = TimeUnit.SECONDS.toMillis(config.getJobLeaseSeconds());
+	}
+
+	public synchronized void start() {
+		if (heartbeat != null) {
+			return;
+		}
+		heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("gocardless-job-leases")
+		                                                                                 .setDaemon(true)
+		                                                                                 .build());
+		// A couple of heartbeats can be missed before the lease expires
+		final long heartbeatMillis = Math.max(1, leaseMillis / 3);
+		heartbeat.scheduleWithFixedDelay(this::renewHeldLeases, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the heartbeat, and gives up the leases still held so that another node takes over right away
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (heartbeat != null) {
+			heartbeat.shutdownNow();
+			heartbeat.awaitTermination(5, TimeUnit.SECONDS);
+			heartbeat = null;
+		}
+		for (final Lease lease : held.values()) {
+			lease.close();
+		}
+	}
+
+	/**
+	 * @param jobName
+	 * @param kbTenantId
+	 * @return the lease, or null if another node holds it (or the job was done recently)
+	 */
+	@Nullable
+	public Lease tryAcquire(final String jobName, final UUID kbTenantId) {
+		final DateTime utcNow = clock.getUTCNow();
+		try {
+			if (!dao.acquireJobLease(jobName, owner, utcNow, utcNow.plus(leaseMillis), kbTenantId)) {
+				return null;
+			}
+		} catch (final SQLException e) {
+			logger.warn("Unable to acquire the lease of jobName={}, kbTenantId={}", jobName, kbTenantId, e);
+			return null;
+		}
+		final Lease lease = new Lease(jobName, kbTenantId);
+		held.put(lease.key, lease);
+		return lease;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public int getHeldLeases() {
+		return held.size();
+	}
+
+	void renewHeldLeases() {
+		for (final Lease lease : held.values()) {
+			lease.renew();
+		}
+	}
+
+	/**
+	 * Lease of a job for a tenant, held until completed or closed
+	 */
+	public final class Lease implements AutoCloseable {
+
+		private final String jobName;
+		private final UUID kbTenantId;
+		private final String key;
+		private boolean released;
+		private volatile boolean lost;
+
+		private Lease(final String jobName, final UUID kbTenantId) {
+			this.jobName = jobName;
+			this.kbTenantId = kbTenantId;
+			this.key = jobName + "/" + kbTenantId;
+		}
+
+		/**
+		 * @return false once another node took the lease over, the work should then stop
+		 */
+		public boolean isHeld() {
+			return !lost;
+		}
+
+		/**
+		 * Ends the work, the other nodes skipping the job for the tenant until then
+		 *
+		 * @param holdUntil e.g. when the next run is due
+		 */
+		public synchronized void complete(final DateTime holdUntil) {
+			giveUp(holdUntil);
+		}
+
+		/**
+		 * Ends the work and lets any node pick the job up again right away, e.g. after a failure
+		 */
+		@Override
+		public synchronized void close() {
+			giveUp(clock.getUTCNow());
+		}
+
+		private synchronized void renew() {
+			if (released) {
+				return;
+			}
+			final DateTime utcNow = clock.getUTCNow();
+			try {
+				if (!dao.updateJobLease(jobName, owner, utcNow, utcNow.plus(leaseMillis), kbTenantId)) {
+					logger.warn("Lost the lease of jobName={}, kbTenantId={}", jobName, kbTenantId);
+					lost = true;
+					released = true;
+					held.remove(key, this);
+				}
+			} catch (final SQLException e) {
+				// Retried by the next heartbeat, the lease is only lost once it expires
+				logger.warn("Unable to renew the lease of jobName={}, kbTenantId={}", jobName, kbTenantId, e);
+			}
+		}
+
+		private void giveUp(final DateTime leaseExpires) {
+			if (released) {
+				return;
+			}
+			released = true;
+			held.remove(key, this);
+			try {
+				dao.updateJobLease(jobName, owner, clock.getUTCNow(), leaseExpires, kbTenantId);
+			} catch (final SQLException e) {
+				// The lease expires on its own
+				logger.warn("Unable to release the lease of jobName={}, kbTenantId={}", jobName, kbTenantId, e);
+			}
+		}
+	}
+}
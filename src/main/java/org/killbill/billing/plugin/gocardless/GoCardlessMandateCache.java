@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Bounded, per-tenant cache of kbAccountId to GoCardless mandate id, in front of the custom field lookup.
+ * Size and TTL are taken from the tenant configuration.
+ */
+public class GoCardlessMandateCache {
+
+	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final ConcurrentMap<UUID, Cache<UUID, String>> caches = new ConcurrentHashMap<>();
+
+	public GoCardlessMandateCache(final GoCardlessConfigurationHandler goCardlessConfigurationHandler) {
+		this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+		// Rebuild the tenant cache with the new size and TTL on configuration change
+		this.goCardlessConfigurationHandler.addConfigurationChangeListener(kbTenantId -> caches.remove(GoCardlessConfigurationHandler.tenantKey(kbTenantId)));
+	}
+
+	/**
+	 * @param kbTenantId
+	 * @param kbAccountId
+	 * @return the cached mandate id, or null on a miss
+	 */
+	public String getIfPresent(@Nullable final UUID kbTenantId, final UUID kbAccountId) {
+		return getCache(kbTenantId).getIfPresent(kbAccountId);
+	}
+
+	public void put(@Nullable final UUID kbTenantId, final UUID kbAccountId, final String mandateId) {
+		getCache(kbTenantId).put(kbAccountId, mandateId);
+	}
+
+	public void invalidate(@Nullable final UUID kbTenantId, final UUID kbAccountId) {
+		getCache(kbTenantId).invalidate(kbAccountId);
+	}
+
+	/**
+	 * Drops every account pointing to the mandate, e.g. when GoCardless reports it cancelled or expired
+	 *
+	 * @param kbTenantId
+	 * @param mandateId
+	 */
+	public void invalidateMandate(@Nullable final UUID kbTenantId, final String mandateId) {
+		getCache(kbTenantId).asMap().values().removeIf(mandateId::equals);
+	}
+
+	public long getSize() {
+		long size = 0;
+		for (final Cache<UUID, String> cache : caches.values()) {
+			size += cache.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return hit and miss counters, aggregated across tenants
+	 */
+	public CacheStats getStats() {
+		CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+		for (final Cache<UUID, String> cache : caches.values()) {
+			stats = stats.plus(cache.stats());
+		}
+		return stats;
+	}
+
+	private Cache<UUID, String> getCache(@Nullable final UUID kbTenantId) {
+		final Cache<UUID, String> cache = caches.get(GoCardlessConfigurationHandler.tenantKey(kbTenantId));
+		if (cache != null) {
+			return cache;
+		}
+		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(kbTenantId);
+		return caches.computeIfAbsent(GoCardlessConfigurationHandler.tenantKey(kbTenantId), key -> CacheBuilder.newBuilder()
+				.maximumSize(config.getMandateCacheMaxSize())
+				.expireAfterWrite(config.getMandateCacheTtlSeconds(), TimeUnit.SECONDS)
+				.recordStats()
+				.build());
+	}
+}
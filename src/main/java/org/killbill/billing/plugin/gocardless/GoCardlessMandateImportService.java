@@ -0,0 +1,665 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.api.core.PluginCustomField;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessPaymentMethodRecord;
+import org.killbill.billing.util.api.CustomFieldApiException;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.entity.Pagination;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Customer;
+import com.gocardless.resources.Mandate;
+import com.gocardless.services.MandateService.MandateListRequest;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Imports the mandates of a tenant created outside of Kill Bill, e.g. when moving an existing GoCardless
+ * integration to Kill Bill. Each mandate is matched to a Kill Bill account through the kbAccountId or
+ * kbAccountExternalKey metadata of the mandate, then of its customer, then through the customer email,
+ * and gets a Kill Bill payment method.
+ *
+ * Mandates are listed one page at a time (mandateImportPageSize), the page being matched and imported by
+ * mandateImportParallelism workers, and the mandate custom fields of the page written at once. The listing
+ * position is checkpointed after each page, so that an interrupted import resumes where it stopped. A single
+ * import runs per tenant across the cluster, through a job lease.
+ */
+public class GoCardlessMandateImportService {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessMandateImportService.class);
+
+	static final String JOB_NAME = "mandate_import";
+	// metadata keys, on the mandate or its customer, naming the Kill Bill account
+	static final String KB_ACCOUNT_ID_METADATA = "kbAccountId";
+	static final String KB_ACCOUNT_EXTERNAL_KEY_METADATA = "kbAccountExternalKey";
+	// accounts looked at when searching by email, only exact matches are kept
+	private static final long EMAIL_SEARCH_LIMIT = 10;
+	// customers shared by the mandates of an import, fetched once
+	private static final long CUSTOMER_CACHE_MAX_SIZE = 10000;
+	private static final Set<Mandate.Status> INACTIVE_STATUSES = EnumSet.of(Mandate.Status.FAILED,
+	                                                                        Mandate.Status.CANCELLED,
+	                                                                        Mandate.Status.EXPIRED,
+	                                                                        Mandate.Status.CONSUMED);
+	private static final Object END = new Object();
+
+	private static final ObjectMapper objectMapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+	private final GoCardlessClientCache goCardlessClientCache;
+	private final GoCardlessApiExecutor goCardlessApiExecutor;
+	private final GoCardlessPaymentPluginApi goCardlessPaymentPluginApi;
+	private final GoCardlessMandateCache goCardlessMandateCache;
+	private final GoCardlessDao dao;
+	private final GoCardlessJobLeases goCardlessJobLeases;
+	private final OSGIKillbillAPI killbillAPI;
+	private final Clock clock;
+	private final int pageSize;
+	private final int parallelism;
+	private final ExecutorService imports = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("gocardless-mandate-import-%d")
+	                                                                                               .setDaemon(true)
+	                                                                                               .build());
+
+	public GoCardlessMandateImportService(final GoCardlessConfigProperties config,
+	                                      final GoCardlessClientCache goCardlessClientCache,
+	                                      final GoCardlessApiExecutor goCardlessApiExecutor,
+	                                      final GoCardlessPaymentPluginApi goCardlessPaymentPluginApi,
+	                                      final GoCardlessMandateCache goCardlessMandateCache,
+	                                      final GoCardlessDao dao,
+	                                      final GoCardlessJobLeases goCardlessJobLeases,
+	                                      final OSGIKillbillAPI killbillAPI,
+	                                      final Clock clock) {
+		this.goCardlessClientCache = goCardlessClientCache;
+		this.goCardlessApiExecutor = goCardlessApiExecutor;
+		this.goCardlessPaymentPluginApi = goCardlessPaymentPluginApi;
+		this.goCardlessMandateCache = goCardlessMandateCache;
+		this.dao = dao;
+		this.goCardlessJobLeases = goCardlessJobLeases;
+		this.killbillAPI = killbillAPI;
+		this.clock = clock;
+		this.pageSize = config.getMandateImportPageSize();
+		this.parallelism = config.getMandateImportParallelism();
+	}
+
+	/**
+	 * Starts importing the mandates of the tenant, without waiting for the import
+	 *
+	 * @param kbTenantId
+	 * @param dryRun     to only report what would be imported, from the first mandate and without checkpoint
+	 * @param restart    to start over from the first mandate instead of the checkpoint
+	 * @return the results, one JSON document per mandate in listing order, then a summary, or null if the tenant isn't configured
+	 * @throws IllegalStateException if an import is running for the tenant already
+	 */
+	public InputStream importMandates(final UUID kbTenantId, final boolean dryRun, final boolean restart) {
+		final GoCardlessClient client = goCardlessClientCache.getClient(kbTenantId);
+		if (client == null) {
+			return null;
+		}
+		final GoCardlessJobLeases.Lease lease;
+		if (dryRun) {
+			lease = null;
+		} else {
+			lease = goCardlessJobLeases.tryAcquire(JOB_NAME, kbTenantId);
+			if (lease == null) {
+				throw new IllegalStateException("A mandate import is running for the tenant already");
+			}
+		}
+
+		// Bounded, so that the import doesn't outpace the client reading the results
+		final BlockingQueue<Object> results = new LinkedBlockingQueue<>(pageSize);
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		try {
+			imports.execute(() -> run(kbTenantId, client, dryRun, restart, lease, results, cancelled));
+		} catch (final RuntimeException e) {
+			if (lease != null) {
+				lease.close();
+			}
+			throw e;
+		}
+		return new ImportStream(results, cancelled);
+	}
+
+	public void shutdown() {
+		imports.shutdownNow();
+	}
+
+	private void run(final UUID kbTenantId,
+	                 final GoCardlessClient client,
+	                 final boolean dryRun,
+	                 final boolean restart,
+	                 @Nullable final GoCardlessJobLeases.Lease lease,
+	                 final BlockingQueue<Object> results,
+	                 final AtomicBoolean cancelled) {
+		final ImportSummary summary = new ImportSummary(dryRun);
+		final ExecutorService workers = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("gocardless-mandate-import-worker-%d")
+		                                                                                                     .setDaemon(true)
+		                                                                                                     .build());
+		final Cache<String, Customer> customers = CacheBuilder.newBuilder().maximumSize(CUSTOMER_CACHE_MAX_SIZE).build();
+		try {
+			String after = dryRun || restart ? null : dao.getJobCursor(JOB_NAME, kbTenantId);
+			summary.checkpoint = after;
+			logger.info("Importing mandates for kbTenantId={}, dryRun={}, after={}", kbTenantId, dryRun, after);
+			do {
+				if (lease != null && !lease.isHeld()) {
+					throw new IllegalStateException("Lost the lease of the mandate import");
+				}
+				final String pageAfter = after;
+				final ListResponse<Mandate> page = goCardlessApiExecutor.execute(kbTenantId, "mandates.list", true, () -> {
+					final MandateListRequest<ListResponse<Mandate>> request = client.mandates().list()
+					                                                                .withLimit(pageSize);
+					return (pageAfter == null ? request : request.withAfter(pageAfter)).executeWrapped();
+				});
+				final List<ImportResult> pageResults = importPage(page.getItems(), kbTenantId, client, dryRun, customers, workers);
+				after = page.getAfter();
+				if (!dryRun) {
+					// Cleared after the last page, the next import starts over (imported mandates being skipped)
+					dao.saveJobCursor(JOB_NAME, after, clock.getUTCNow(), kbTenantId);
+					summary.checkpoint = after;
+				}
+				for (final ImportResult result : pageResults) {
+					summary.add(result);
+					publish(result, results, cancelled);
+				}
+			} while (after != null && !cancelled.get() && !Thread.currentThread().isInterrupted());
+			summary.status = after == null ? ImportSummary.COMPLETED : ImportSummary.INTERRUPTED;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			summary.status = ImportSummary.INTERRUPTED;
+		} catch (final Exception e) {
+			// The next import resumes from the checkpoint
+			logger.warn("Mandate import failed, kbTenantId={}", kbTenantId, e);
+			summary.status = ImportSummary.FAILED;
+			summary.error = e.getMessage();
+		} finally {
+			workers.shutdownNow();
+			if (lease != null) {
+				lease.close();
+			}
+			logger.info("Mandate import {} for kbTenantId={}, dryRun={}, counts={}", summary.status, kbTenantId, dryRun, summary.counts);
+			try {
+				publish(summary, results, cancelled);
+				publish(END, results, cancelled);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private List<ImportResult> importPage(final List<Mandate> mandates,
+	                                      final UUID kbTenantId,
+	                                      final GoCardlessClient client,
+	                                      final boolean dryRun,
+	                                      final Cache<String, Customer> customers,
+	                                      final ExecutorService workers) throws Exception {
+		final CallContext context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getUTCNow(), null, kbTenantId);
+
+		// One query for the mandates imported already, e.g. by a previous import or through a redirect flow
+		final List<String> mandateIds = new ArrayList<>();
+		for (final Mandate mandate : mandates) {
+			mandateIds.add(mandate.getId());
+		}
+		final Map<String, GoCardlessPaymentMethodRecord> existing = new HashMap<>();
+		for (final GoCardlessPaymentMethodRecord record : dao.getPaymentMethodsByMandateIds(mandateIds, kbTenantId)) {
+			existing.put(record.getGoCardlessMandateId(), record);
+		}
+
+		final List<CompletableFuture<Match>> matches = new ArrayList<>();
+		for (final Mandate mandate : mandates) {
+			final GoCardlessPaymentMethodRecord record = existing.get(mandate.getId());
+			if (record != null) {
+				matches.add(CompletableFuture.completedFuture(Match.skipped(mandate, ImportResult.ALREADY_IMPORTED, record.getKbAccountId())));
+			} else if (mandate.getStatus() != null && INACTIVE_STATUSES.contains(mandate.getStatus())) {
+				matches.add(CompletableFuture.completedFuture(Match.skipped(mandate, ImportResult.INACTIVE, null)));
+			} else {
+				matches.add(CompletableFuture.supplyAsync(() -> match(mandate, kbTenantId, client, customers, context), workers));
+			}
+		}
+
+		// The mandates of an account are imported one after the other, so that a single one becomes the default
+		final Map<String, ImportResult> resultsByMandate = new HashMap<>();
+		final Map<UUID, List<Match>> matchesByAccount = new LinkedHashMap<>();
+		for (final CompletableFuture<Match> future : matches) {
+			final Match match = future.get();
+			if (match.account == null) {
+				resultsByMandate.put(match.mandate.getId(), match.toResult(match.status, null, match.error));
+			} else {
+				matchesByAccount.computeIfAbsent(match.account.getId(), kbAccountId -> new ArrayList<>()).add(match);
+			}
+		}
+		final List<CompletableFuture<List<ImportResult>>> imported = new ArrayList<>();
+		for (final List<Match> accountMatches : matchesByAccount.values()) {
+			imported.add(CompletableFuture.supplyAsync(() -> importAccount(accountMatches, kbTenantId, dryRun), workers));
+		}
+		final List<CustomField> customFields = new ArrayList<>();
+		final List<ImportResult> customFieldResults = new ArrayList<>();
+		for (final CompletableFuture<List<ImportResult>> future : imported) {
+			boolean first = true;
+			for (final ImportResult result : future.get()) {
+				resultsByMandate.put(result.getMandateId(), result);
+				if (first && ImportResult.IMPORTED.equals(result.getStatus())) {
+					first = false;
+					// One custom field per account, for the mandate picked first, unless the account has one already (redirect flow, previous import)
+					if (!hasMandateIdCustomField(result.getKbAccountId(), context)) {
+						customFields.add(new PluginCustomField(result.getKbAccountId(), ObjectType.ACCOUNT, GoCardlessPaymentPluginApi.MANDATE_ID_CUSTOM_FIELD,
+						                                       result.getMandateId(), clock.getUTCNow()));
+						customFieldResults.add(result);
+					}
+				}
+			}
+		}
+		if (!customFields.isEmpty()) {
+			try {
+				killbillAPI.getCustomFieldUserApi().addCustomFields(customFields, context);
+				for (final ImportResult result : customFieldResults) {
+					goCardlessMandateCache.put(kbTenantId, result.getKbAccountId(), result.getMandateId());
+				}
+			} catch (final CustomFieldApiException e) {
+				// The payment methods are in place, payments find the mandate through them
+				logger.warn("Unable to save the mandate custom fields of {} accounts, kbTenantId={}", customFields.size(), kbTenantId, e);
+				for (final ImportResult result : customFieldResults) {
+					resultsByMandate.put(result.getMandateId(), result.withError("Unable to save the " + GoCardlessPaymentPluginApi.MANDATE_ID_CUSTOM_FIELD + " custom field: " + e.getMessage()));
+				}
+			}
+		}
+
+		final List<ImportResult> results = new ArrayList<>();
+		for (final Mandate mandate : mandates) {
+			results.add(resultsByMandate.get(mandate.getId()));
+		}
+		return results;
+	}
+
+	private boolean hasMandateIdCustomField(final UUID kbAccountId, final CallContext context) {
+		for (final CustomField customField : killbillAPI.getCustomFieldUserApi().getCustomFieldsForAccountType(kbAccountId, ObjectType.ACCOUNT, context)) {
+			if (GoCardlessPaymentPluginApi.MANDATE_ID_CUSTOM_FIELD.equals(customField.getFieldName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Match match(final Mandate mandate, final UUID kbTenantId, final GoCardlessClient client, final Cache<String, Customer> customers, final CallContext context) {
+		final String customerId = mandate.getLinks() == null ? null : mandate.getLinks().getCustomer();
+		try {
+			Account account = findAccountByMetadata(mandate.getMetadata(), context);
+			if (account != null) {
+				return Match.matched(mandate, customerId, account, ImportResult.MANDATE_METADATA);
+			}
+			if (customerId == null) {
+				return Match.skipped(mandate, ImportResult.NO_ACCOUNT, null);
+			}
+			final Customer customer = customers.get(customerId, () -> goCardlessApiExecutor.execute(kbTenantId, "customers.get", customerId, null, true,
+			                                                                                        () -> client.customers().get(customerId).executeWrapped()));
+			account = findAccountByMetadata(customer.getMetadata(), context);
+			if (account != null) {
+				return Match.matched(mandate, customerId, account, ImportResult.CUSTOMER_METADATA);
+			}
+			if (customer.getEmail() == null || customer.getEmail().isEmpty()) {
+				return Match.skipped(mandate, ImportResult.NO_ACCOUNT, null);
+			}
+			final List<Account> accounts = findAccountsByEmail(customer.getEmail(), context);
+			if (accounts.isEmpty()) {
+				return Match.skipped(mandate, ImportResult.NO_ACCOUNT, null);
+			}
+			if (accounts.size() > 1) {
+				return Match.skipped(mandate, ImportResult.AMBIGUOUS, null);
+			}
+			return Match.matched(mandate, customerId, accounts.get(0), ImportResult.EMAIL);
+		} catch (final ExecutionException | UncheckedExecutionException e) {
+			logger.warn("Unable to match mandateId={}, kbTenantId={}", mandate.getId(), kbTenantId, e.getCause());
+			return Match.failed(mandate, customerId, e.getCause().getMessage());
+		} catch (final RuntimeException e) {
+			logger.warn("Unable to match mandateId={}, kbTenantId={}", mandate.getId(), kbTenantId, e);
+			return Match.failed(mandate, customerId, e.getMessage());
+		}
+	}
+
+	@Nullable
+	private Account findAccountByMetadata(@Nullable final Map<String, String> metadata, final CallContext context) {
+		if (metadata == null) {
+			return null;
+		}
+		try {
+			final String kbAccountId = metadata.get(KB_ACCOUNT_ID_METADATA);
+			if (kbAccountId != null) {
+				return killbillAPI.getAccountUserApi().getAccountById(UUID.fromString(kbAccountId), context);
+			}
+			final String externalKey = metadata.get(KB_ACCOUNT_EXTERNAL_KEY_METADATA);
+			if (externalKey != null) {
+				return killbillAPI.getAccountUserApi().getAccountByKey(externalKey, context);
+			}
+		} catch (final AccountApiException | IllegalArgumentException e) {
+			// e.g. a deleted account, the customer email is tried next
+			logger.debug("No account for metadata={}", metadata, e);
+		}
+		return null;
+	}
+
+	private List<Account> findAccountsByEmail(final String email, final CallContext context) {
+		final List<Account> accounts = new ArrayList<>();
+		// The search matches on other columns, and partially
+		final Pagination<Account> candidates = killbillAPI.getAccountUserApi().searchAccounts(email, 0L, EMAIL_SEARCH_LIMIT, context);
+		for (final Account candidate : candidates) {
+			if (candidate.getEmail() != null && candidate.getEmail().toLowerCase(Locale.ROOT).equals(email.toLowerCase(Locale.ROOT))) {
+				accounts.add(candidate);
+			}
+		}
+		return accounts;
+	}
+
+	private List<ImportResult> importAccount(final List<Match> matches, final UUID kbTenantId, final boolean dryRun) {
+		final List<ImportResult> results = new ArrayList<>();
+		final Account account = matches.get(0).account;
+		final CallContext context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getUTCNow(), account.getId(), kbTenantId);
+		// Left alone if the account pays through another payment method already
+		boolean setDefault = account.getPaymentMethodId() == null;
+		for (final Match match : matches) {
+			if (dryRun) {
+				results.add(match.toResult(ImportResult.WOULD_IMPORT, null, null));
+				continue;
+			}
+			try {
+				final UUID kbPaymentMethodId = goCardlessPaymentPluginApi.importMandate(account, match.mandate, setDefault, context);
+				setDefault = false;
+				results.add(match.toResult(ImportResult.IMPORTED, kbPaymentMethodId, null));
+			} catch (final Exception e) {
+				logger.warn("Unable to import mandateId={} on kbAccountId={}", match.mandate.getId(), account.getId(), e);
+				results.add(match.toResult(ImportResult.ERROR, null, e.getMessage()));
+			}
+		}
+		return results;
+	}
+
+	private static void publish(final Object result, final BlockingQueue<Object> results, final AtomicBoolean cancelled) throws InterruptedException {
+		// Dropped once the client went away
+		while (!cancelled.get()) {
+			if (results.offer(result, 1, TimeUnit.SECONDS)) {
+				return;
+			}
+		}
+	}
+
+	private static final class Match {
+
+		private final Mandate mandate;
+		private final String customerId;
+		private final Account account;
+		private final String matchedBy;
+		private final String status;
+		private final UUID kbAccountId;
+		private final String error;
+
+		private Match(final Mandate mandate, final String customerId, final Account account, final String matchedBy, final String status, final UUID kbAccountId, final String error) {
+			this.mandate = mandate;
+			this.customerId = customerId;
+			this.account = account;
+			this.matchedBy = matchedBy;
+			this.status = status;
+			this.kbAccountId = kbAccountId;
+			this.error = error;
+		}
+
+		private static Match matched(final Mandate mandate, final String customerId, final Account account, final String matchedBy) {
+			return new Match(mandate, customerId, account, matchedBy, null, account.getId(), null);
+		}
+
+		private static Match skipped(final Mandate mandate, final String status, @Nullable final UUID kbAccountId) {
+			return new Match(mandate, mandate.getLinks() == null ? null : mandate.getLinks().getCustomer(), null, null, status, kbAccountId, null);
+		}
+
+		private static Match failed(final Mandate mandate, final String customerId, final String error) {
+			return new Match(mandate, customerId, null, null, ImportResult.ERROR, null, error);
+		}
+
+		private ImportResult toResult(final String resultStatus, @Nullable final UUID kbPaymentMethodId, @Nullable final String resultError) {
+			return new ImportResult(mandate.getId(), customerId, kbAccountId, kbPaymentMethodId, matchedBy, resultStatus, resultError);
+		}
+	}
+
+	public static class ImportResult {
+
+		public static final String IMPORTED = "IMPORTED";
+		public static final String WOULD_IMPORT = "WOULD_IMPORT";
+		public static final String ALREADY_IMPORTED = "ALREADY_IMPORTED";
+		public static final String INACTIVE = "INACTIVE";
+		public static final String NO_ACCOUNT = "NO_ACCOUNT";
+		public static final String AMBIGUOUS = "AMBIGUOUS";
+		public static final String ERROR = "ERROR";
+
+		public static final String MANDATE_METADATA = "MANDATE_METADATA";
+		public static final String CUSTOMER_METADATA = "CUSTOMER_METADATA";
+		public static final String EMAIL = "EMAIL";
+
+		private final String mandateId;
+		private final String customerId;
+		private final UUID kbAccountId;
+		private final UUID kbPaymentMethodId;
+		private final String matchedBy;
+		private final String status;
+		private final String error;
+
+		public ImportResult(final String mandateId, final String customerId, final UUID kbAccountId, final UUID kbPaymentMethodId,
+		                    final String matchedBy, final String status, final String error) {
+			this.mandateId = mandateId;
+			this.customerId = customerId;
+			this.kbAccountId = kbAccountId;
+			this.kbPaymentMethodId = kbPaymentMethodId;
+			this.matchedBy = matchedBy;
+			this.status = status;
+			this.error = error;
+		}
+
+		private ImportResult withError(final String newError) {
+			return new ImportResult(mandateId, customerId, kbAccountId, kbPaymentMethodId, matchedBy, status, newError);
+		}
+
+		public String getMandateId() {
+			return mandateId;
+		}
+
+		public String getCustomerId() {
+			return customerId;
+		}
+
+		public UUID getKbAccountId() {
+			return kbAccountId;
+		}
+
+		/**
+		 * @return the payment method created for the mandate, if imported
+		 */
+		public UUID getKbPaymentMethodId() {
+			return kbPaymentMethodId;
+		}
+
+		/**
+		 * @return MANDATE_METADATA, CUSTOMER_METADATA or EMAIL, how the account was found
+		 */
+		public String getMatchedBy() {
+			return matchedBy;
+		}
+
+		/**
+		 * @return IMPORTED (WOULD_IMPORT for a dry run), or ALREADY_IMPORTED, INACTIVE, NO_ACCOUNT, AMBIGUOUS, ERROR if the mandate wasn't imported
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * Last line of the results
+	 */
+	public static class ImportSummary {
+
+		public static final String COMPLETED = "COMPLETED";
+		public static final String INTERRUPTED = "INTERRUPTED";
+		public static final String FAILED = "FAILED";
+
+		private final boolean dryRun;
+		private final Map<String, Integer> counts = new TreeMap<>();
+		private String status;
+		private String checkpoint;
+		private String error;
+
+		private ImportSummary(final boolean dryRun) {
+			this.dryRun = dryRun;
+		}
+
+		private void add(final ImportResult result) {
+			counts.merge(result.getStatus(), 1, Integer::sum);
+		}
+
+		public boolean isDryRun() {
+			return dryRun;
+		}
+
+		/**
+		 * @return the number of mandates per result status
+		 */
+		public Map<String, Integer> getCounts() {
+			return counts;
+		}
+
+		/**
+		 * @return COMPLETED once all mandates were looked at, INTERRUPTED or FAILED otherwise
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return where the next import resumes from, null if it starts over
+		 */
+		public String getCheckpoint() {
+			return checkpoint;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+	private static final class ImportStream extends InputStream {
+
+		private final BlockingQueue<Object> results;
+		private final AtomicBoolean cancelled;
+		private byte[] current = new byte[0];
+		private int position;
+		private boolean done;
+
+		private ImportStream(final BlockingQueue<Object> results, final AtomicBoolean cancelled) {
+			this.results = results;
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return current[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			final int count = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+			// Stops the import after the current page, which is checkpointed
+			cancelled.set(true);
+		}
+
+		private boolean fill() throws IOException {
+			if (position < current.length) {
+				return true;
+			}
+			if (done) {
+				return false;
+			}
+			try {
+				final Object result = results.take();
+				if (result == END) {
+					done = true;
+					return false;
+				}
+				final byte[] json = objectMapper.writeValueAsBytes(result);
+				current = new byte[json.length + 1];
+				System.arraycopy(json, 0, current, 0, json.length);
+				current[json.length] = '\n';
+				position = 0;
+				return true;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for mandate import results");
+			}
+		}
+	}
+}
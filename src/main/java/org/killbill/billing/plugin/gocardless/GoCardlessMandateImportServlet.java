@@ -0,0 +1,68 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import com.google.inject.Inject;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.POST;
+import org.jooby.mvc.Path;
+import org.killbill.billing.tenant.api.Tenant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.InputStream;
+import java.util.Optional;
+
+@Singleton
+// Handle /plugins/killbill-gocardless/mandates/import
+@Path("/mandates/import")
+public class GoCardlessMandateImportServlet {
+
+    private static final Logger logger = LoggerFactory.getLogger(GoCardlessMandateImportServlet.class);
+
+    private final GoCardlessMandateImportService goCardlessMandateImportService;
+
+    @Inject
+    public GoCardlessMandateImportServlet(final GoCardlessMandateImportService goCardlessMandateImportService) {
+        this.goCardlessMandateImportService = goCardlessMandateImportService;
+    }
+
+    // Mandates created outside of Kill Bill, attached to their accounts as the results are streamed
+    @POST
+    public Result importMandates(@Named("dryRun") final Optional<String> dryRun,
+                                 @Named("restart") final Optional<String> restart,
+                                 @Local @Named("killbill_tenant") final Tenant tenant) {
+        final boolean isDryRun = Boolean.parseBoolean(dryRun.orElse("false"));
+        final InputStream results;
+        try {
+            results = goCardlessMandateImportService.importMandates(tenant.getId(), isDryRun, Boolean.parseBoolean(restart.orElse("false")));
+        } catch (final IllegalStateException e) {
+            logger.warn("Mandate import not started, kbTenantId={}", tenant.getId(), e);
+            return Results.with(e.getMessage(), Status.CONFLICT);
+        }
+        if (results == null) {
+            return Results.with(Status.NOT_FOUND);
+        }
+        logger.info("Importing mandates for kbTenantId={}, dryRun={}", tenant.getId(), isDryRun);
+        return Results.with(results, Status.OK)
+                      .type("application/x-ndjson");
+    }
+}
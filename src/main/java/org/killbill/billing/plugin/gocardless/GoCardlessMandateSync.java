@@ -0,0 +1,228 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessPaymentMethodRecord;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Event;
+import com.gocardless.resources.Mandate;
+import com.gocardless.services.EventService.EventListRequest;
+import com.gocardless.services.MandateService.MandateListRequest;
+
+/**
+ * Brings the mandate state of the payment methods table up to date from GoCardless, for a whole tenant.
+ *
+ * The incremental sync lists the mandate events created since the previous sync, page by page, and only updates the
+ * payment methods whose mandate changed. The mandates API can only be filtered by creation date, so events are what
+ * tells which mandates changed. The position is persisted per tenant, and only moves once a sync has completed.
+ *
+ * The full resync lists the mandates themselves, one page at a time, for when events can't be trusted (e.g. when
+ * Kill Bill resets the payment methods).
+ */
+public class GoCardlessMandateSync {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessMandateSync.class);
+
+	static final String JOB_NAME = "mandate_sync";
+	// Our created_date is recorded after the GoCardless created_at
+	private static final long WINDOW_MARGIN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final GoCardlessDao dao;
+	private final GoCardlessClientCache goCardlessClientCache;
+	private final GoCardlessApiExecutor goCardlessApiExecutor;
+	private final Clock clock;
+	private final int pageSize;
+	// One sync at a time per tenant
+	private final ConcurrentMap<UUID, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+	public GoCardlessMandateSync(final GoCardlessConfigProperties config,
+	                             final GoCardlessDao dao,
+	                             final GoCardlessClientCache goCardlessClientCache,
+	                             final GoCardlessApiExecutor goCardlessApiExecutor,
+	                             final Clock clock) {
+		this.dao = dao;
+		this.goCardlessClientCache = goCardlessClientCache;
+		this.goCardlessApiExecutor = goCardlessApiExecutor;
+		this.clock = clock;
+		this.pageSize = config.getMandateSyncPageSize();
+	}
+
+	/**
+	 * Applies the mandate events created since the previous sync
+	 *
+	 * @param kbTenantId
+	 * @return the number of payment methods whose mandate changed
+	 */
+	public int sync(final UUID kbTenantId) throws SQLException {
+		final GoCardlessClient client = goCardlessClientCache.getClient(kbTenantId);
+		if (client == null) {
+			return 0;
+		}
+		final ReentrantLock lock = locks.computeIfAbsent(kbTenantId, key -> new ReentrantLock());
+		lock.lock();
+		try {
+			String createdAtGte = dao.getJobCursor(JOB_NAME, kbTenantId);
+			if (createdAtGte == null) {
+				// The mandate was retrieved when the payment method was added, only later events matter
+				final DateTime oldestPaymentMethod = dao.getOldestPaymentMethodDate(kbTenantId);
+				if (oldestPaymentMethod == null) {
+					return 0;
+				}
+				createdAtGte = oldestPaymentMethod.minus(WINDOW_MARGIN_MILLIS).toString();
+			}
+
+			// Events are listed newest first: the first event seen for a mandate is its latest state
+			final String windowStart = createdAtGte;
+			final Set<String> seenMandateIds = new HashSet<>();
+			String newestCreatedAt = null;
+			String after = null;
+			int updated = 0;
+			do {
+				final String pageAfter = after;
+				final ListResponse<Event> page = goCardlessApiExecutor.execute(kbTenantId, "events.list", true, () -> {
+					final EventListRequest<ListResponse<Event>> request = client.events().list()
+					                                                            .withResourceType(EventListRequest.ResourceType.MANDATES)
+					                                                            .withCreatedAtGte(windowStart)
+					                                                            .withLimit(pageSize);
+					return (pageAfter == null ? request : request.withAfter(pageAfter)).executeWrapped();
+				});
+				final Map<String, Mandate.Status> statuses = new HashMap<>();
+				for (final Event event : page.getItems()) {
+					if (newestCreatedAt == null) {
+						newestCreatedAt = event.getCreatedAt();
+					}
+					final String mandateId = event.getLinks() == null ? null : event.getLinks().getMandate();
+					final Mandate.Status status = GoCardlessWebhookProcessor.toMandateStatus(event.getAction());
+					if (mandateId != null && status != null && seenMandateIds.add(mandateId)) {
+						statuses.put(mandateId, status);
+					}
+				}
+				updated += apply(statuses, null, kbTenantId);
+				after = page.getAfter();
+			} while (after != null && !Thread.currentThread().isInterrupted());
+
+			if (after == null && newestCreatedAt != null) {
+				dao.saveJobCursor(JOB_NAME, newestCreatedAt, clock.getUTCNow(), kbTenantId);
+			}
+			return updated;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lists all the mandates of the tenant (created since its oldest payment method), one page in memory at a time
+	 *
+	 * @param kbTenantId
+	 * @return the number of payment methods whose mandate changed, or -1 if a sync of the tenant was already running
+	 */
+	public int resync(final UUID kbTenantId) throws SQLException {
+		final GoCardlessClient client = goCardlessClientCache.getClient(kbTenantId);
+		if (client == null) {
+			return 0;
+		}
+		final ReentrantLock lock = locks.computeIfAbsent(kbTenantId, key -> new ReentrantLock());
+		if (!lock.tryLock()) {
+			logger.info("Mandate sync already running, kbTenantId={}", kbTenantId);
+			return -1;
+		}
+		try {
+			final DateTime oldestPaymentMethod = dao.getOldestPaymentMethodDate(kbTenantId);
+			if (oldestPaymentMethod == null) {
+				return 0;
+			}
+			final String createdAtGte = oldestPaymentMethod.minus(WINDOW_MARGIN_MILLIS).toString();
+			// Events created during the pass are picked up by the next incremental sync
+			final String passStart = clock.getUTCNow().minus(WINDOW_MARGIN_MILLIS).toString();
+
+			String after = null;
+			int updated = 0;
+			do {
+				final String pageAfter = after;
+				final ListResponse<Mandate> page = goCardlessApiExecutor.execute(kbTenantId, "mandates.list", true, () -> {
+					final MandateListRequest<ListResponse<Mandate>> request = client.mandates().list()
+					                                                                .withCreatedAtGte(createdAtGte)
+					                                                                .withLimit(pageSize);
+					return (pageAfter == null ? request : request.withAfter(pageAfter)).executeWrapped();
+				});
+				final Map<String, Mandate.Status> statuses = new HashMap<>();
+				final Map<String, String> nextPossibleChargeDates = new HashMap<>();
+				for (final Mandate mandate : page.getItems()) {
+					if (mandate.getStatus() != null) {
+						statuses.put(mandate.getId(), mandate.getStatus());
+						nextPossibleChargeDates.put(mandate.getId(), mandate.getNextPossibleChargeDate());
+					}
+				}
+				updated += apply(statuses, nextPossibleChargeDates, kbTenantId);
+				after = page.getAfter();
+			} while (after != null && !Thread.currentThread().isInterrupted());
+
+			if (after == null) {
+				dao.saveJobCursor(JOB_NAME, passStart, clock.getUTCNow(), kbTenantId);
+			}
+			return updated;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// One query for the page, then only the mandates which changed are updated
+	private int apply(final Map<String, Mandate.Status> statuses, @Nullable final Map<String, String> nextPossibleChargeDates, final UUID kbTenantId) throws SQLException {
+		final List<GoCardlessPaymentMethodRecord> paymentMethodRecords = dao.getPaymentMethodsByMandateIds(statuses.keySet(), kbTenantId);
+		final Set<String> updatedMandateIds = new HashSet<>();
+		int updated = 0;
+		for (final GoCardlessPaymentMethodRecord paymentMethodRecord : paymentMethodRecords) {
+			final String mandateId = paymentMethodRecord.getGoCardlessMandateId();
+			final String status = statuses.get(mandateId).name();
+			final String nextPossibleChargeDate = nextPossibleChargeDates == null ? null : nextPossibleChargeDates.get(mandateId);
+			final LocalDate nextPossibleChargeDateValue = nextPossibleChargeDate == null ? null : LocalDate.parse(nextPossibleChargeDate);
+			final boolean changed = !status.equals(paymentMethodRecord.getMandateStatus())
+			                        || (nextPossibleChargeDateValue != null && !Objects.equals(nextPossibleChargeDateValue, paymentMethodRecord.getNextPossibleChargeDate()));
+			if (!changed) {
+				continue;
+			}
+			// All the payment methods of the mandate are updated at once
+			if (updatedMandateIds.add(mandateId)) {
+				dao.updateMandate(mandateId, status, nextPossibleChargeDateValue, clock.getUTCNow(), kbTenantId);
+			}
+			updated++;
+		}
+		return updated;
+	}
+}
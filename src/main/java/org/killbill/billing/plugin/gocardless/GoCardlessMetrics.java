@@ -0,0 +1,215 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Latency histograms, outcome counters and in-flight gauges, per tenant and operation, for the PaymentPluginApi
+ * methods and the outgoing GoCardless requests. Rendered in the Prometheus text format by GoCardlessMetricsServlet.
+ *
+ * Recording doesn't allocate once a tenant/operation pair has been seen, and is a no-op when metrics are disabled.
+ */
+public class GoCardlessMetrics {
+
+	static final String PLUGIN_API = "gocardless_plugin_api";
+	static final String GOCARDLESS_API = "gocardless_api_requests";
+	static final String HTTP_POOL = "gocardless_http_pool";
+
+	// Upper bounds of the latency buckets, in seconds
+	private static final double[] BUCKETS_SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+	private static final long[] BUCKETS_NANOS = new long[BUCKETS_SECONDS.length];
+
+	static {
+		for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+			BUCKETS_NANOS[i] = (long) (BUCKETS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	private final boolean enabled;
+	private final Family pluginApi = new Family(PLUGIN_API, "PaymentPluginApi calls");
+	private final Family goCardlessApi = new Family(GOCARDLESS_API, "Requests sent to GoCardless, retries included");
+	private volatile GoCardlessHttpTransport transport;
+
+	public GoCardlessMetrics(final GoCardlessConfigProperties config) {
+		this.enabled = config.isMetricsEnabled();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the start time, to pass to endPluginApiCall
+	 */
+	public long startPluginApiCall(@Nullable final UUID kbTenantId, final String operation) {
+		return enabled ? pluginApi.start(kbTenantId, operation) : 0L;
+	}
+
+	public void endPluginApiCall(@Nullable final UUID kbTenantId, final String operation, final long startNanos, final String outcome) {
+		if (enabled) {
+			pluginApi.end(kbTenantId, operation, startNanos, outcome);
+		}
+	}
+
+	/**
+	 * @return the start time, to pass to endGoCardlessApiCall
+	 */
+	public long startGoCardlessApiCall(@Nullable final UUID kbTenantId, final String operation) {
+		return enabled ? goCardlessApi.start(kbTenantId, operation) : 0L;
+	}
+
+	public void endGoCardlessApiCall(@Nullable final UUID kbTenantId, final String operation, final long startNanos, final String outcome) {
+		if (enabled) {
+			goCardlessApi.end(kbTenantId, operation, startNanos, outcome);
+		}
+	}
+
+	/**
+	 * Exports the utilisation of the shared connection pool
+	 *
+	 * @param transport
+	 */
+	public void registerTransport(final GoCardlessHttpTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * @return all metrics, in the Prometheus text exposition format (version 0.0.4)
+	 */
+	public String toPrometheus() {
+		final StringBuilder out = new StringBuilder();
+		pluginApi.render(out);
+		goCardlessApi.render(out);
+		if (enabled && transport != null) {
+			renderGauge(out, HTTP_POOL + "_max_connections", "Maximum number of concurrent GoCardless requests", transport.getMaxConnections());
+			renderGauge(out, HTTP_POOL + "_active_requests", "GoCardless requests holding a connection slot", transport.getActiveRequests());
+			renderGauge(out, HTTP_POOL + "_waiting_requests", "GoCardless requests waiting for a connection slot", transport.getWaitingRequests());
+			renderGauge(out, HTTP_POOL + "_open_connections", "Connections open to GoCardless", transport.getOpenConnections());
+			renderGauge(out, HTTP_POOL + "_idle_connections", "Idle connections kept alive", transport.getIdleConnections());
+		}
+		return out.toString();
+	}
+
+	private static void renderGauge(final StringBuilder out, final String name, final String help, final long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static final class Family {
+
+		private final String name;
+		private final String help;
+		private final ConcurrentMap<UUID, ConcurrentMap<String, OperationMetrics>> tenants = new ConcurrentHashMap<>();
+
+		private Family(final String name, final String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		private long start(@Nullable final UUID kbTenantId, final String operation) {
+			get(kbTenantId, operation).inFlight.increment();
+			return System.nanoTime();
+		}
+
+		private void end(@Nullable final UUID kbTenantId, final String operation, final long startNanos, final String outcome) {
+			final OperationMetrics metrics = get(kbTenantId, operation);
+			metrics.inFlight.decrement();
+			metrics.record(System.nanoTime() - startNanos, outcome);
+		}
+
+		private OperationMetrics get(@Nullable final UUID kbTenantId, final String operation) {
+			final UUID tenantKey = GoCardlessConfigurationHandler.tenantKey(kbTenantId);
+			ConcurrentMap<String, OperationMetrics> operations = tenants.get(tenantKey);
+			if (operations == null) {
+				operations = tenants.computeIfAbsent(tenantKey, key -> new ConcurrentHashMap<>());
+			}
+			final OperationMetrics metrics = operations.get(operation);
+			return metrics != null ? metrics : operations.computeIfAbsent(operation, key -> new OperationMetrics());
+		}
+
+		private void render(final StringBuilder out) {
+			out.append("# HELP ").append(name).append("_duration_seconds ").append(help).append(", latency\n");
+			out.append("# TYPE ").append(name).append("_duration_seconds histogram\n");
+			forEach((labels, metrics) -> {
+				long cumulative = 0;
+				for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+					cumulative += metrics.buckets[i].sum();
+					out.append(name).append("_duration_seconds_bucket{").append(labels).append(",le=\"").append(BUCKETS_SECONDS[i]).append("\"} ").append(cumulative).append('\n');
+				}
+				cumulative += metrics.buckets[BUCKETS_SECONDS.length].sum();
+				out.append(name).append("_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+				out.append(name).append("_duration_seconds_sum{").append(labels).append("} ").append(metrics.sumNanos.sum() / 1e9).append('\n');
+				out.append(name).append("_duration_seconds_count{").append(labels).append("} ").append(cumulative).append('\n');
+			});
+
+			out.append("# HELP ").append(name).append("_total ").append(help).append(", by outcome\n");
+			out.append("# TYPE ").append(name).append("_total counter\n");
+			forEach((labels, metrics) -> {
+				for (final Map.Entry<String, LongAdder> outcome : metrics.outcomes.entrySet()) {
+					out.append(name).append("_total{").append(labels).append(",outcome=\"").append(outcome.getKey()).append("\"} ").append(outcome.getValue().sum()).append('\n');
+				}
+			});
+
+			out.append("# HELP ").append(name).append("_in_flight ").append(help).append(", in progress\n");
+			out.append("# TYPE ").append(name).append("_in_flight gauge\n");
+			forEach((labels, metrics) -> out.append(name).append("_in_flight{").append(labels).append("} ").append(metrics.inFlight.sum()).append('\n'));
+		}
+
+		private void forEach(final BiConsumer<String, OperationMetrics> consumer) {
+			for (final Map.Entry<UUID, ConcurrentMap<String, OperationMetrics>> tenant : tenants.entrySet()) {
+				for (final Map.Entry<String, OperationMetrics> operation : tenant.getValue().entrySet()) {
+					consumer.accept("tenant=\"" + GoCardlessConfigurationHandler.tenantLabel(tenant.getKey()) + "\",operation=\"" + operation.getKey() + "\"", operation.getValue());
+				}
+			}
+		}
+	}
+
+	private static final class OperationMetrics {
+
+		// Last bucket is +Inf
+		private final LongAdder[] buckets = new LongAdder[BUCKETS_NANOS.length + 1];
+		private final LongAdder sumNanos = new LongAdder();
+		private final LongAdder inFlight = new LongAdder();
+		private final ConcurrentMap<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+		private OperationMetrics() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		private void record(final long durationNanos, final String outcome) {
+			int bucket = 0;
+			while (bucket < BUCKETS_NANOS.length && durationNanos > BUCKETS_NANOS[bucket]) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+			sumNanos.add(durationNanos);
+			final LongAdder counter = outcomes.get(outcome);
+			(counter != null ? counter : outcomes.computeIfAbsent(outcome, key -> new LongAdder())).increment();
+		}
+	}
+}
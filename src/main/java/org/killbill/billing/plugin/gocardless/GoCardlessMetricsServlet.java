@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import javax.inject.Singleton;
+
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Path;
+
+import com.google.inject.Inject;
+
+@Singleton
+// Handle /plugins/killbill-gocardless/metrics, in the Prometheus text format
+@Path("/metrics")
+public class GoCardlessMetricsServlet {
+
+    static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final GoCardlessMetrics goCardlessMetrics;
+
+    @Inject
+    public GoCardlessMetricsServlet(final GoCardlessMetrics goCardlessMetrics) {
+        this.goCardlessMetrics = goCardlessMetrics;
+    }
+
+    @GET
+    public Result scrape() {
+        if (!goCardlessMetrics.isEnabled()) {
+            return Results.with(Status.NOT_FOUND);
+        }
+        return Results.with(goCardlessMetrics.toPrometheus(), Status.OK).type(PROMETHEUS_CONTENT_TYPE);
+    }
+}
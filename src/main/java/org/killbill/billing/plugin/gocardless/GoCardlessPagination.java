@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.killbill.billing.util.entity.Pagination;
+
+/**
+ * Page of results already loaded in memory
+ */
+public class GoCardlessPagination<T> implements Pagination<T> {
+
+	private final Long currentOffset;
+	private final Long nextOffset;
+	private final Long totalNbRecords;
+	private final Long maxNbRecords;
+	private final List<T> results;
+
+	public GoCardlessPagination(final Long currentOffset, final Long nextOffset, final Long totalNbRecords, final Long maxNbRecords, final List<T> results) {
+		this.currentOffset = currentOffset;
+		this.nextOffset = nextOffset;
+		this.totalNbRecords = totalNbRecords;
+		this.maxNbRecords = maxNbRecords;
+		this.results = results;
+	}
+
+	@Override
+	public Long getCurrentOffset() {
+		return currentOffset;
+	}
+
+	@Override
+	public Long getNextOffset() {
+		return nextOffset;
+	}
+
+	@Override
+	public Long getMaxNbRecords() {
+		return maxNbRecords;
+	}
+
+	@Override
+	public Long getTotalNbRecords() {
+		return totalNbRecords;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return results.iterator();
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -15,14 +15,22 @@
  */
 package org.killbill.billing.plugin.gocardless;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.killbill.billing.account.api.Account;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.PaymentApiException;
 import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.payment.api.TransactionType;
@@ -34,7 +42,12 @@ import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
 import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.api.PluginProperties;
+import org.killbill.billing.plugin.api.payment.PluginGatewayNotification;
 import org.killbill.billing.plugin.api.payment.PluginHostedPaymentPageFormDescriptor;
+import org.killbill.billing.plugin.api.payment.PluginPaymentMethodInfoPlugin;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessPaymentMethodRecord;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessPaymentRecord;
 import org.killbill.billing.plugin.util.KillBillMoney;
 import org.killbill.billing.util.api.CustomFieldApiException;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -46,24 +59,68 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.gocardless.GoCardlessClient;
+import com.gocardless.errors.ApiErrorDetail;
 import com.gocardless.errors.GoCardlessApiException;
+import com.gocardless.errors.InvalidStateException;
+import com.gocardless.http.ListResponse;
 import com.gocardless.resources.Mandate;
 import com.gocardless.resources.Payment;
 import com.gocardless.resources.RedirectFlow;
+import com.gocardless.resources.Refund;
 import com.gocardless.services.RedirectFlowService.RedirectFlowCreateRequest.PrefilledCustomer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import org.killbill.billing.plugin.api.core.PluginCustomField;
 import org.killbill.billing.ObjectType;
 
 public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 	private static final Logger logger = LoggerFactory.getLogger(GoCardlessPaymentPluginApi.class);
+	// Name of the account custom field holding the GoCardless mandate id
+	static final String MANDATE_ID_CUSTOM_FIELD = "GOCARDLESS_MANDATE_ID";
+	static final String WEBHOOK_SIGNATURE_HEADER = "Webhook-Signature";
+	// status GoCardless expects when the signature doesn't match
+	static final int WEBHOOK_INVALID_SIGNATURE_STATUS = 498;
+	static final long DEFAULT_SEARCH_LIMIT = 100;
+	// reason of the GoCardless error when an idempotency key was already used
+	static final String IDEMPOTENT_CREATION_CONFLICT = "idempotent_creation_conflict";
+	// payment method property of the mandates attached by the mandate import, instead of a redirect flow
+	static final String IMPORTED_MANDATE_ID_PROPERTY = "imported_mandate_id";
+	// attempts to save a transaction created at GoCardless in the plugin table
+	static final int SAVE_PAYMENT_ATTEMPTS = 3;
 	private final OSGIKillbillAPI killbillAPI;
 	private final Clock clock;
 	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final GoCardlessClientCache goCardlessClientCache;
+	private final GoCardlessMandateCache goCardlessMandateCache;
+	private final GoCardlessRedirectFlowCache goCardlessRedirectFlowCache;
+	private final GoCardlessDao dao;
+	private final GoCardlessWebhookProcessor goCardlessWebhookProcessor;
+	private final GoCardlessApiExecutor goCardlessApiExecutor;
+	private final GoCardlessMandateSync goCardlessMandateSync;
+	// tenant/idempotency key to the payment created with it, so that Kill Bill retries don't reach GoCardless
+	private final Cache<String, GoCardlessPaymentRecord> recentPayments = CacheBuilder.newBuilder()
+			.maximumSize(10000)
+			.expireAfterWrite(24, TimeUnit.HOURS)
+			.build();
+	// tenant/mandate id to the mandates being attached by the mandate import, already fetched from GoCardless
+	private final ConcurrentMap<String, Mandate> importedMandates = new ConcurrentHashMap<>();
 
-	public GoCardlessPaymentPluginApi(final GoCardlessConfigurationHandler goCardlessConfigurationHandler, final OSGIKillbillAPI killbillAPI, final Clock clock) {
+	public GoCardlessPaymentPluginApi(final GoCardlessConfigurationHandler goCardlessConfigurationHandler, final GoCardlessClientCache goCardlessClientCache,
+			final GoCardlessApiExecutor goCardlessApiExecutor, final GoCardlessMandateCache goCardlessMandateCache,
+			final GoCardlessRedirectFlowCache goCardlessRedirectFlowCache, final GoCardlessDao dao,
+			final GoCardlessWebhookProcessor goCardlessWebhookProcessor, final GoCardlessMandateSync goCardlessMandateSync, final OSGIKillbillAPI killbillAPI,
+			final Clock clock) {
 		this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+		this.goCardlessClientCache = goCardlessClientCache;
+		this.goCardlessApiExecutor = goCardlessApiExecutor;
+		this.goCardlessMandateCache = goCardlessMandateCache;
+		this.goCardlessRedirectFlowCache = goCardlessRedirectFlowCache;
+		this.dao = dao;
+		this.goCardlessWebhookProcessor = goCardlessWebhookProcessor;
+		this.goCardlessMandateSync = goCardlessMandateSync;
 		this.killbillAPI = killbillAPI;
 		this.clock = clock;
 	}
@@ -92,34 +149,78 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 	public PaymentTransactionInfoPlugin purchasePayment(UUID kbAccountId, UUID kbPaymentId, UUID kbTransactionId,
 			UUID kbPaymentMethodId, BigDecimal amount, Currency currency, Iterable<PluginProperty> properties,
 			CallContext context) throws PaymentPluginApiException {
-		logger.info("purchasePayment, kbAccountId=" + kbAccountId);
+		logger.info("purchasePayment, kbAccountId={}", kbAccountId);
+		String idempotencyKey = PluginProperties.findPluginPropertyValue("idempotencykey", properties);
+		if (idempotencyKey == null) {
+			// stable across Kill Bill retries of the transaction, so that a retry after a timeout can't collect twice
+			idempotencyKey = kbTransactionId.toString();
+		}
+		final GoCardlessPaymentRecord existingPayment = findCreatedPayment(kbPaymentId, kbTransactionId, idempotencyKey, context);
+		if (existingPayment != null) {
+			logger.info("Payment already created, PaymentId={}", existingPayment.getGoCardlessId());
+			return buildPaymentTransactionInfoPlugin(existingPayment);
+		}
 		PaymentTransactionInfoPlugin paymentTransactionInfoPlugin;
 		String mandate = getMandateId(kbAccountId, context); // retrieve mandateId from Kill Bill tables
-		logger.info("MandateId="+mandate);
+		logger.info("MandateId={}", mandate);
 		if (mandate != null) {
 			logger.info("Processing payment");
 			try {
-				String idempotencyKey = PluginProperties.findPluginPropertyValue("idempotencykey", properties);
+				final String paymentIdempotencyKey = idempotencyKey;
 				com.gocardless.services.PaymentService.PaymentCreateRequest.Currency goCardlessCurrency = convertKillBillCurrencyToGoCardlessCurrency(
 						currency);
-				Payment payment = buildGoCardlessClient(context).payments().create()
-						.withAmount(Math.toIntExact(KillBillMoney.toMinorUnits(currency.toString(), amount))) //convert to minor unit since Gocardless requires the amount to be specified in the lowet denomination of the currency
-						.withCurrency(goCardlessCurrency).withLinksMandate(mandate).withIdempotencyKey(idempotencyKey)
-						.withMetadata("kbPaymentId", kbPaymentId.toString()).withMetadata("kbTransactionId", kbTransactionId.toString()) //added for getPaymentInfo
-						.execute();
+				final int paymentAmount = Math.toIntExact(KillBillMoney.toMinorUnits(currency.toString(), amount)); //convert to minor unit since Gocardless requires the amount to be specified in the lowet denomination of the currency
+				final GoCardlessClient client = buildGoCardlessClient(context);
+				Payment payment;
+				try {
+					payment = goCardlessApiExecutor.execute(context.getTenantId(), "payments.create", kbPaymentId.toString(), paymentIdempotencyKey, true, () -> client.payments().create()
+							.withAmount(paymentAmount)
+							.withCurrency(goCardlessCurrency).withLinksMandate(mandate).withIdempotencyKey(paymentIdempotencyKey)
+							.withMetadata("kbPaymentId", kbPaymentId.toString()).withMetadata("kbTransactionId", kbTransactionId.toString()) //added for getPaymentInfo
+							.executeWrapped());
+				} catch (InvalidStateException e) {
+					// the idempotency key was used before: the payment created then is only returned if it's the one requested
+					final String conflictingPaymentId = getConflictingResourceId(e);
+					if (conflictingPaymentId == null) {
+						throw e;
+					}
+					logger.info("Idempotency key {} already used, fetching PaymentId={}", paymentIdempotencyKey, conflictingPaymentId);
+					payment = goCardlessApiExecutor.execute(context.getTenantId(), "payments.get", conflictingPaymentId, null, true,
+							() -> client.payments().get(conflictingPaymentId).executeWrapped());
+					if (!isSamePayment(payment, paymentAmount, mandate)) {
+						logger.warn("Idempotency key {} already used by PaymentId={} with a different amount or mandate", paymentIdempotencyKey, conflictingPaymentId);
+						throw e;
+					}
+				}
 				List<PluginProperty> outputProperties = new ArrayList<PluginProperty>();
 				outputProperties.add(new PluginProperty("paymentId", payment.getId(), false));
+				// typically PENDING: the final state is pushed to Kill Bill by the webhook processor
 				paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
-						TransactionType.PURCHASE, amount, currency, PaymentPluginStatus.PROCESSED, null, null,
+						TransactionType.PURCHASE, amount, currency, convertGoCardlessToKillBillStatus(payment.getStatus()), null, null,
 						String.valueOf(payment.getId()), null, new DateTime(), new DateTime(payment.getCreatedAt()),
 						outputProperties);
-				logger.info("Payment processed, PaymentId="+payment.getId());
+				logger.info("Payment processed, PaymentId={}", payment.getId());
+				final DateTime utcNow = clock.getUTCNow();
+				final String goCardlessStatus = payment.getStatus() == null ? null : payment.getStatus().name();
+				recentPayments.put(idempotencyKeyCacheKey(context.getTenantId(), idempotencyKey),
+						new GoCardlessPaymentRecord(null, kbAccountId, kbPaymentId, kbTransactionId, TransactionType.PURCHASE, amount, currency,
+								payment.getId(), mandate, goCardlessStatus, utcNow, utcNow, context.getTenantId()));
+				// keep track of the GoCardless payment id, so that getPaymentInfo can look it up directly
+				// if it can't be saved, the payment is still pending in Kill Bill: the next getPaymentInfo (Kill Bill janitor) saves it again
+				savePayment(kbAccountId, kbPaymentId, kbTransactionId, TransactionType.PURCHASE, amount, currency,
+						payment.getId(), mandate, goCardlessStatus, utcNow, context.getTenantId());
 			} catch (GoCardlessApiException e) {
 				paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
 						TransactionType.PURCHASE, amount, currency, PaymentPluginStatus.ERROR, e.getErrorMessage(),
 						String.valueOf(e.getCode()), null, null, new DateTime(), null, null);
 
 				logger.warn("Error occured in purchasePayment", e.getType(), e);
+			} catch (GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+				// the request wasn't sent, so the payment can safely be retried
+				paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+						TransactionType.PURCHASE, amount, currency, PaymentPluginStatus.CANCELED, e.getMessage(),
+						null, null, null, new DateTime(), null, null);
+				logger.warn("GoCardless not called in purchasePayment", e);
 			}
 		} else {
 			logger.warn("Unable to fetch mandate, so cannot process payment");
@@ -132,33 +233,63 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 	}
 
 	/**
-	 * Retrieves mandateId from Kill Bill tables
+	 * Retrieves mandateId from the mandate cache, falling back to the plugin payment methods table, then to Kill Bill tables
 	 * 
 	 * @param kbAccountId
 	 * @param context
 	 * @return
 	 */
-	private String getMandateId(UUID kbAccountId, TenantContext context) {
+	String getMandateId(UUID kbAccountId, TenantContext context) {
+		String mandateId = goCardlessMandateCache.getIfPresent(context.getTenantId(), kbAccountId);
+		if (mandateId != null) {
+			return mandateId;
+		}
+		mandateId = getMandateIdFromPaymentMethods(kbAccountId, context);
+		if (mandateId != null) {
+			goCardlessMandateCache.put(context.getTenantId(), kbAccountId, mandateId);
+			return mandateId;
+		}
+		// payment method added before the plugin kept track of mandates
 		final List<CustomField> customFields = killbillAPI.getCustomFieldUserApi()
 				.getCustomFieldsForAccountType(kbAccountId, ObjectType.ACCOUNT, context);
-		String mandateId = null;
 		for (final CustomField customField : customFields) {
-			if (customField.getFieldName().equals("GOCARDLESS_MANDATE_ID")) {
+			if (customField.getFieldName().equals(MANDATE_ID_CUSTOM_FIELD)) {
 				mandateId = customField.getFieldValue();
 				break;
 			}
 		}
+		if (mandateId != null) {
+			goCardlessMandateCache.put(context.getTenantId(), kbAccountId, mandateId);
+		}
 		return mandateId;
 
 	}
 
+	// the default payment method, or the latest one
+	private String getMandateIdFromPaymentMethods(UUID kbAccountId, TenantContext context) {
+		final List<GoCardlessPaymentMethodRecord> paymentMethodRecords;
+		try {
+			paymentMethodRecords = dao.getPaymentMethods(kbAccountId, context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while retrieving payment methods for kbAccountId={}", kbAccountId, e);
+			return null;
+		}
+		GoCardlessPaymentMethodRecord paymentMethodRecord = null;
+		for (final GoCardlessPaymentMethodRecord record : paymentMethodRecords) {
+			if (paymentMethodRecord == null || !paymentMethodRecord.isDefault()) {
+				paymentMethodRecord = record;
+			}
+		}
+		return paymentMethodRecord == null ? null : paymentMethodRecord.getGoCardlessMandateId();
+	}
+
 	/**
 	 * Converts Kill Bill currency to GoCardless currency
 	 * 
 	 * @param currency
 	 * @return
 	 */
-	private com.gocardless.services.PaymentService.PaymentCreateRequest.Currency convertKillBillCurrencyToGoCardlessCurrency(
+	static com.gocardless.services.PaymentService.PaymentCreateRequest.Currency convertKillBillCurrencyToGoCardlessCurrency(
 			Currency currency) {
 
 		switch (currency) {
@@ -190,7 +321,7 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 	 * @param currency
 	 * @return
 	 */
-	private Currency convertGoCardlessCurrencyToKillBillCurrency(com.gocardless.resources.Payment.Currency currency) {
+	static Currency convertGoCardlessCurrencyToKillBillCurrency(com.gocardless.resources.Payment.Currency currency) {
 
 		switch (currency) {
 		case USD:
@@ -219,11 +350,84 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 	public PaymentTransactionInfoPlugin voidPayment(UUID kbAccountId, UUID kbPaymentId, UUID kbTransactionId,
 			UUID kbPaymentMethodId, Iterable<PluginProperty> properties, CallContext context)
 			throws PaymentPluginApiException {
-		PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
-				TransactionType.VOID, null, null, PaymentPluginStatus.CANCELED, null, 
-				null, null, null, new DateTime(), null, null);
+		logger.info("voidPayment, kbAccountId={}", kbAccountId);
+		final GoCardlessPaymentRecord purchaseRecord;
+		try {
+			purchaseRecord = getPurchaseRecord(kbPaymentId, context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while retrieving payments for kbPaymentId={}", kbPaymentId, e);
+			throw new PaymentPluginApiException("Error occured while retrieving payments", e);
+		}
+		if (purchaseRecord == null) {
+			// payment created before the plugin kept track of GoCardless payment ids
+			logger.warn("Unable to find the GoCardless payment of kbPaymentId={}, so cannot cancel it", kbPaymentId);
+			return new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+					TransactionType.VOID, null, null, PaymentPluginStatus.CANCELED, null,
+					null, null, null, new DateTime(), null, null);
+		}
+		PaymentTransactionInfoPlugin paymentTransactionInfoPlugin;
+		try {
+			// the purchase itself is failed in Kill Bill by the cancelled webhook event
+			final Payment payment = cancelPayment(purchaseRecord, context);
+			List<PluginProperty> outputProperties = new ArrayList<PluginProperty>();
+			outputProperties.add(new PluginProperty("paymentId", payment.getId(), false));
+			outputProperties.add(new PluginProperty("gocardlessstatus", payment.getStatus(), false));
+			paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+					TransactionType.VOID, null, null, PaymentPluginStatus.PROCESSED, null, null,
+					String.valueOf(payment.getId()), null, new DateTime(), new DateTime(), outputProperties);
+			logger.info("Payment cancelled, PaymentId={}", payment.getId());
+		} catch (GoCardlessApiException e) {
+			// typically cancellation_failed: the payment was already submitted to the banks
+			paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+					TransactionType.VOID, null, null, PaymentPluginStatus.ERROR, e.getErrorMessage(),
+					String.valueOf(e.getCode()), null, null, new DateTime(), null, null);
+			logger.warn("Error occured in voidPayment", e.getType(), e);
+		} catch (GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+			paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+					TransactionType.VOID, null, null, PaymentPluginStatus.CANCELED, e.getMessage(),
+					null, null, null, new DateTime(), null, null);
+			logger.warn("GoCardless not called in voidPayment", e);
+		}
+		logger.info("Returning paymentTransactionInfoPlugin={}", paymentTransactionInfoPlugin);
 		return paymentTransactionInfoPlugin;
+	}
 
+	/**
+	 * @param kbPaymentId
+	 * @param kbTenantId
+	 * @return the GoCardless payment created for the Kill Bill payment, or null if the plugin doesn't know it
+	 */
+	GoCardlessPaymentRecord getPurchaseRecord(final UUID kbPaymentId, final UUID kbTenantId) throws SQLException {
+		for (final GoCardlessPaymentRecord paymentRecord : dao.getPayments(kbPaymentId, kbTenantId)) {
+			if (paymentRecord.getTransactionType() == TransactionType.PURCHASE) {
+				return paymentRecord;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Cancels the GoCardless payment, which GoCardless only allows until it is submitted to the banks
+	 *
+	 * @param purchaseRecord
+	 * @param context
+	 * @return the cancelled GoCardless payment
+	 */
+	Payment cancelPayment(final GoCardlessPaymentRecord purchaseRecord, final TenantContext context) {
+		final GoCardlessClient client = buildGoCardlessClient(context);
+		final String paymentId = purchaseRecord.getGoCardlessId();
+		try {
+			return goCardlessApiExecutor.execute(context.getTenantId(), "payments.cancel", paymentId, null, true,
+					() -> client.payments().cancel(paymentId).executeWrapped());
+		} catch (InvalidStateException e) {
+			// a retried cancellation fails once the first one went through
+			final Payment payment = goCardlessApiExecutor.execute(context.getTenantId(), "payments.get", paymentId, null, true,
+					() -> client.payments().get(paymentId).executeWrapped());
+			if (payment.getStatus() == Payment.Status.CANCELLED) {
+				return payment;
+			}
+			throw e;
+		}
 	}
 
 	@Override
@@ -241,47 +445,240 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 	public PaymentTransactionInfoPlugin refundPayment(UUID kbAccountId, UUID kbPaymentId, UUID kbTransactionId,
 			UUID kbPaymentMethodId, BigDecimal amount, Currency currency, Iterable<PluginProperty> properties,
 			CallContext context) throws PaymentPluginApiException {
-		PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
-				TransactionType.REFUND, amount, currency, PaymentPluginStatus.CANCELED, null, 
-				null, null, null, new DateTime(), null, null);
+		logger.info("refundPayment, kbAccountId={}", kbAccountId);
+		final List<GoCardlessPaymentRecord> paymentRecords;
+		try {
+			// the GoCardless payment and its previous refunds, without calling GoCardless
+			paymentRecords = dao.getPayments(kbPaymentId, context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while retrieving payments for kbPaymentId={}", kbPaymentId, e);
+			throw new PaymentPluginApiException("Error occured while retrieving payments", e);
+		}
+		GoCardlessPaymentRecord purchaseRecord = null;
+		long refundedAmount = 0;
+		for (final GoCardlessPaymentRecord paymentRecord : paymentRecords) {
+			if (paymentRecord.getTransactionType() == TransactionType.PURCHASE && purchaseRecord == null) {
+				purchaseRecord = paymentRecord;
+			} else if (paymentRecord.getTransactionType() == TransactionType.REFUND) {
+				if (kbTransactionId.equals(paymentRecord.getKbPaymentTransactionId())) {
+					logger.info("Refund already created, RefundId={}", paymentRecord.getGoCardlessId());
+					return buildPaymentTransactionInfoPlugin(paymentRecord);
+				}
+				if (isLiveRefund(paymentRecord)) {
+					refundedAmount += KillBillMoney.toMinorUnits(paymentRecord.getCurrency().toString(), paymentRecord.getAmount());
+				}
+			}
+		}
+		if (purchaseRecord == null) {
+			// payment created before the plugin kept track of GoCardless payment ids
+			logger.warn("Unable to find the GoCardless payment of kbPaymentId={}, so cannot process refund", kbPaymentId);
+			return new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+					TransactionType.REFUND, amount, currency, PaymentPluginStatus.CANCELED, null,
+					null, null, null, new DateTime(), null, null);
+		}
+		String idempotencyKey = PluginProperties.findPluginPropertyValue("idempotencykey", properties);
+		if (idempotencyKey == null) {
+			idempotencyKey = kbTransactionId.toString();
+		}
+
+		PaymentTransactionInfoPlugin paymentTransactionInfoPlugin;
+		final String goCardlessPaymentId = purchaseRecord.getGoCardlessId();
+		try {
+			final String refundIdempotencyKey = idempotencyKey;
+			final int refundAmount = Math.toIntExact(KillBillMoney.toMinorUnits(currency.toString(), amount));
+			// GoCardless checks it against the refunds of the payment so far, so that a refund can't be created twice
+			final int totalAmountConfirmation = Math.toIntExact(refundedAmount + refundAmount);
+			final GoCardlessClient client = buildGoCardlessClient(context);
+			Refund refund;
+			try {
+				refund = goCardlessApiExecutor.execute(context.getTenantId(), "refunds.create", kbPaymentId.toString(), refundIdempotencyKey, true, () -> client.refunds().create()
+						.withAmount(refundAmount).withTotalAmountConfirmation(totalAmountConfirmation).withLinksPayment(goCardlessPaymentId)
+						.withIdempotencyKey(refundIdempotencyKey)
+						.withMetadata("kbPaymentId", kbPaymentId.toString()).withMetadata("kbTransactionId", kbTransactionId.toString())
+						.executeWrapped());
+			} catch (InvalidStateException e) {
+				final String conflictingRefundId = getConflictingResourceId(e);
+				if (conflictingRefundId == null) {
+					throw e;
+				}
+				logger.info("Idempotency key {} already used, fetching RefundId={}", refundIdempotencyKey, conflictingRefundId);
+				refund = goCardlessApiExecutor.execute(context.getTenantId(), "refunds.get", conflictingRefundId, null, true,
+						() -> client.refunds().get(conflictingRefundId).executeWrapped());
+				if (!isSameRefund(refund, refundAmount, goCardlessPaymentId)) {
+					logger.warn("Idempotency key {} already used by RefundId={} with a different amount or payment", refundIdempotencyKey, conflictingRefundId);
+					throw e;
+				}
+			}
+			List<PluginProperty> outputProperties = new ArrayList<PluginProperty>();
+			outputProperties.add(new PluginProperty("refundId", refund.getId(), false));
+			outputProperties.add(new PluginProperty("paymentId", goCardlessPaymentId, false));
+			// typically PENDING: the final state is pushed to Kill Bill by the webhook processor or the reconciliation job
+			paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+					TransactionType.REFUND, amount, currency, convertGoCardlessRefundToKillBillStatus(refund.getStatus()), null, null,
+					String.valueOf(refund.getId()), null, new DateTime(), new DateTime(refund.getCreatedAt()),
+					outputProperties);
+			logger.info("Refund processed, RefundId={}", refund.getId());
+			savePayment(kbAccountId, kbPaymentId, kbTransactionId, TransactionType.REFUND, amount, currency,
+					refund.getId(), purchaseRecord.getGoCardlessMandateId(), refund.getStatus() == null ? null : refund.getStatus().name(),
+					clock.getUTCNow(), context.getTenantId());
+		} catch (GoCardlessApiException e) {
+			paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+					TransactionType.REFUND, amount, currency, PaymentPluginStatus.ERROR, e.getErrorMessage(),
+					String.valueOf(e.getCode()), null, null, new DateTime(), null, null);
+			logger.warn("Error occured in refundPayment", e.getType(), e);
+		} catch (GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+			// the request wasn't sent, so the refund can safely be retried
+			paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId,
+					TransactionType.REFUND, amount, currency, PaymentPluginStatus.CANCELED, e.getMessage(),
+					null, null, null, new DateTime(), null, null);
+			logger.warn("GoCardless not called in refundPayment", e);
+		}
+		logger.info("Returning paymentTransactionInfoPlugin={}", paymentTransactionInfoPlugin);
 		return paymentTransactionInfoPlugin;
 	}
 
+	// refunds still counting towards the refunded total of the payment
+	private static boolean isLiveRefund(final GoCardlessPaymentRecord refundRecord) {
+		if (refundRecord.getGoCardlessStatus() == null) {
+			return true;
+		}
+		final PaymentPluginStatus status = convertGoCardlessToKillBillStatus(TransactionType.REFUND, refundRecord.getGoCardlessStatus());
+		return status == PaymentPluginStatus.PENDING || status == PaymentPluginStatus.PROCESSED;
+	}
+
 	public List<PaymentTransactionInfoPlugin> getPaymentInfo(UUID kbAccountId, UUID kbPaymentId,
 			Iterable<PluginProperty> properties, TenantContext context) throws PaymentPluginApiException {
 		logger.info("getPaymentInfo, kbAccountId={}", kbAccountId);
+		final List<GoCardlessPaymentRecord> paymentRecords;
+		try {
+			paymentRecords = dao.getPayments(kbPaymentId, context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while retrieving payments for kbPaymentId={}", kbPaymentId, e);
+			throw new PaymentPluginApiException("Error occured while retrieving payments", e);
+		}
+		if (paymentRecords.isEmpty()) {
+			// payment created before the plugin kept track of GoCardless payment ids
+			return getPaymentInfoFromCustomerPayments(kbAccountId, kbPaymentId, context);
+		}
+
+		List<PaymentTransactionInfoPlugin> paymentTransactionInfoPluginList = new ArrayList<>();
+		final GoCardlessClient client = buildGoCardlessClient(context);
+		for (final GoCardlessPaymentRecord paymentRecord : paymentRecords) {
+			if (paymentRecord.getTransactionType() == TransactionType.REFUND) {
+				// kept up to date by webhooks and the reconciliation job
+				paymentTransactionInfoPluginList.add(buildPaymentTransactionInfoPlugin(paymentRecord));
+				continue;
+			}
+			Payment payment = goCardlessApiExecutor.execute(context.getTenantId(), "payments.get", paymentRecord.getGoCardlessId(), null, true,
+					() -> client.payments().get(paymentRecord.getGoCardlessId()).executeWrapped()); //direct lookup of the GoCardless payment
+			updatePaymentStatusIfChanged(paymentRecord, payment, context);
+			List<PluginProperty> outputProperties = new ArrayList<PluginProperty>();
+			outputProperties.add(new PluginProperty("mandateId",paymentRecord.getGoCardlessMandateId(),false)); //arbitrary data to be returned to the caller
+			outputProperties.add(new PluginProperty("gocardlessstatus",payment.getStatus(),false)); //arbitrary data to be returned to the caller
+			PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = buildPaymentTransactionInfoPlugin(kbPaymentId,
+					paymentRecord.getKbPaymentTransactionId(), paymentRecord.getTransactionType(), payment, outputProperties);
+			logger.info("Created paymentTransactionInfoPlugin {}",paymentTransactionInfoPlugin);
+			paymentTransactionInfoPluginList.add(paymentTransactionInfoPlugin);
+		}
+		return paymentTransactionInfoPluginList;
+	}
+
+	/**
+	 * Looks up the payments by listing all the customer payments and matching the kbPaymentId metadata
+	 * 
+	 * @param kbAccountId
+	 * @param kbPaymentId
+	 * @param context
+	 * @return
+	 */
+	private List<PaymentTransactionInfoPlugin> getPaymentInfoFromCustomerPayments(UUID kbAccountId, UUID kbPaymentId, TenantContext context) {
 		List<PaymentTransactionInfoPlugin> paymentTransactionInfoPluginList = new ArrayList<>();
 		String mandateId = getMandateId(kbAccountId, context) ;
+		if (mandateId == null) {
+			return paymentTransactionInfoPluginList;
+		}
 		final GoCardlessClient client = buildGoCardlessClient(context);
-		Mandate mandate = client.mandates().get(mandateId).execute(); //get GoCardless Mandate object
+		Mandate mandate = goCardlessApiExecutor.execute(context.getTenantId(), "mandates.get", mandateId, null, true, () -> client.mandates().get(mandateId).executeWrapped()); //get GoCardless Mandate object
 		String customerId = mandate.getLinks().getCustomer(); //retrieve customer id from mandate
 		
-		Iterable<Payment> payments = client.payments().all().withCustomer(customerId).execute(); //get all payments related to customer
+		// get all payments related to customer, one rate limited call per page
+		List<Payment> payments = new ArrayList<>();
+		String after = null;
+		do {
+			final String cursor = after;
+			ListResponse<Payment> page = goCardlessApiExecutor.execute(context.getTenantId(), "payments.list", true,
+					() -> client.payments().list().withCustomer(customerId).withAfter(cursor).executeWrapped());
+			payments.addAll(page.getItems());
+			after = page.getAfter();
+		} while (after != null);
 		
 		for (Payment payment : payments) {
 			String kbPaymentIdFromPayment = payment.getMetadata().get("kbPaymentId"); //get kbPaymentId from metadata in payment
 			if(kbPaymentIdFromPayment != null && kbPaymentId.toString().equals(kbPaymentIdFromPayment)) {
-				Currency killBillCurrency = convertGoCardlessCurrencyToKillBillCurrency(payment.getCurrency());
-				PaymentPluginStatus status = convertGoCardlessToKillBillStatus(payment.getStatus());
 				String kbTransactionPaymentIdStr = payment.getMetadata().get("kbTransactionId"); 
 				UUID kbTransactionPaymentId = kbTransactionPaymentIdStr !=null?UUID.fromString(kbTransactionPaymentIdStr):null;
 				List<PluginProperty> outputProperties = new ArrayList<PluginProperty>();
 				outputProperties.add(new PluginProperty("mandateId",mandateId,false)); //arbitrary data to be returned to the caller
 				outputProperties.add(new PluginProperty("customerId",customerId,false));  //arbitrary data to be returned to the caller
 				outputProperties.add(new PluginProperty("gocardlessstatus",payment.getStatus(),false)); //arbitrary data to be returned to the caller
-				GoCardlessPaymentTransactionInfoPlugin paymentTransactionInfoPlugin = new GoCardlessPaymentTransactionInfoPlugin(
-						kbPaymentId, kbTransactionPaymentId, TransactionType.PURCHASE, // In a real-world plugin, set to the appropriate TransactionType
-						KillBillMoney.fromMinorUnits(String.valueOf(killBillCurrency), Long.valueOf(payment.getAmount())), killBillCurrency,
-						status, null, null, String.valueOf(payment.getId()), null, new DateTime(),
-						new DateTime(payment.getCreatedAt()), outputProperties); 
+				PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = buildPaymentTransactionInfoPlugin(kbPaymentId,
+						kbTransactionPaymentId, TransactionType.PURCHASE, payment, outputProperties);
 				logger.info("Created paymentTransactionInfoPlugin {}",paymentTransactionInfoPlugin);
 				paymentTransactionInfoPluginList.add(paymentTransactionInfoPlugin);
+				if (kbTransactionPaymentId != null) {
+					// e.g. it couldn't be saved when created: webhooks and the reconciliation job only find payments in the plugin table
+					savePayment(kbAccountId, kbPaymentId, kbTransactionPaymentId, TransactionType.PURCHASE, paymentTransactionInfoPlugin.getAmount(),
+							paymentTransactionInfoPlugin.getCurrency(), payment.getId(), mandateId, payment.getStatus() == null ? null : payment.getStatus().name(),
+							clock.getUTCNow(), context.getTenantId());
+				}
 			}
 		}
 		
 		return paymentTransactionInfoPluginList;
 	}
 
+	// retried, as the transaction can't be updated by webhooks nor the reconciliation job until it's saved
+	private void savePayment(UUID kbAccountId, UUID kbPaymentId, UUID kbTransactionId, TransactionType transactionType, BigDecimal amount,
+			Currency currency, String goCardlessId, String mandateId, String goCardlessStatus, DateTime utcNow, UUID kbTenantId) {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				dao.addPayment(kbAccountId, kbPaymentId, kbTransactionId, transactionType, amount, currency,
+						goCardlessId, mandateId, goCardlessStatus, utcNow, kbTenantId);
+				return;
+			} catch (SQLException e) {
+				if (attempt >= SAVE_PAYMENT_ATTEMPTS) {
+					logger.error("Unable to save GoCardless {} {}, kbAccountId={}, kbPaymentId={}, kbTransactionId={}, kbTenantId={}",
+							transactionType, goCardlessId, kbAccountId, kbPaymentId, kbTransactionId, kbTenantId, e);
+					return;
+				}
+				logger.warn("Error occured while saving GoCardless {} {}, attempt {}", transactionType, goCardlessId, attempt, e);
+			}
+		}
+	}
+
+	private PaymentTransactionInfoPlugin buildPaymentTransactionInfoPlugin(UUID kbPaymentId, UUID kbTransactionPaymentId,
+			TransactionType transactionType, Payment payment, List<PluginProperty> outputProperties) {
+		Currency killBillCurrency = convertGoCardlessCurrencyToKillBillCurrency(payment.getCurrency());
+		PaymentPluginStatus status = convertGoCardlessToKillBillStatus(payment.getStatus());
+		return new GoCardlessPaymentTransactionInfoPlugin(
+				kbPaymentId, kbTransactionPaymentId, transactionType,
+				KillBillMoney.fromMinorUnits(String.valueOf(killBillCurrency), Long.valueOf(payment.getAmount())), killBillCurrency,
+				status, null, null, String.valueOf(payment.getId()), null, new DateTime(),
+				new DateTime(payment.getCreatedAt()), outputProperties);
+	}
+
+	private void updatePaymentStatusIfChanged(GoCardlessPaymentRecord paymentRecord, Payment payment, TenantContext context) {
+		final String goCardlessStatus = payment.getStatus() == null ? null : payment.getStatus().name();
+		if (goCardlessStatus == null || goCardlessStatus.equals(paymentRecord.getGoCardlessStatus())) {
+			return;
+		}
+		try {
+			dao.updatePaymentStatus(payment.getId(), goCardlessStatus, clock.getUTCNow(), context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while updating status of payment {}", payment.getId(), e);
+		}
+	}
+
 
 	/**
 	 * Converts GoCardless status to Kill Bill status
@@ -289,7 +686,7 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 	 * @param status
 	 * @return
 	 */
-	private PaymentPluginStatus convertGoCardlessToKillBillStatus(Payment.Status status) {
+	static PaymentPluginStatus convertGoCardlessToKillBillStatus(Payment.Status status) {
 		switch (status) {
 		case PENDING_CUSTOMER_APPROVAL://waiting for the customer to approve this payment
 		case PENDING_SUBMISSION: //the payment has been created, but not yet submitted to the banks TODO: Should this be translated to PaymentPluginStatus.PROCESSED? 
@@ -310,35 +707,195 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 		}
 	}
 
+	/**
+	 * Converts GoCardless refund status to Kill Bill status
+	 * @param status
+	 * @return
+	 */
+	static PaymentPluginStatus convertGoCardlessRefundToKillBillStatus(Refund.Status status) {
+		switch (status) {
+		case CREATED: //the refund has been created
+		case PENDING_SUBMISSION: //the refund has been created, but not yet submitted to the banks
+		case SUBMITTED: //the refund has been submitted to the banks
+			return PaymentPluginStatus.PENDING;
+		case PAID: //the refund has been included in a payout
+			return PaymentPluginStatus.PROCESSED;
+		case CANCELLED: //the refund has been cancelled
+			return PaymentPluginStatus.CANCELED;
+		case BOUNCED: //the refund has failed to be paid
+		case FUNDS_RETURNED: //the refund has had its funds returned
+			return PaymentPluginStatus.ERROR;
+		default:
+			return PaymentPluginStatus.UNDEFINED;
+		}
+	}
+
+	/**
+	 * Converts the GoCardless status of a plugin payments table row to Kill Bill status
+	 * @param transactionType REFUND for GoCardless refunds, GoCardless payments otherwise
+	 * @param goCardlessStatus
+	 * @return
+	 */
+	static PaymentPluginStatus convertGoCardlessToKillBillStatus(TransactionType transactionType, String goCardlessStatus) {
+		if (transactionType == TransactionType.REFUND) {
+			return convertGoCardlessRefundToKillBillStatus(Refund.Status.valueOf(goCardlessStatus));
+		}
+		return convertGoCardlessToKillBillStatus(Payment.Status.valueOf(goCardlessStatus));
+	}
+
 	@Override
 	public Pagination<PaymentTransactionInfoPlugin> searchPayments(String searchKey, Long offset, Long limit,
 			Iterable<PluginProperty> properties, TenantContext context) throws PaymentPluginApiException {
-		
-		 throw new PaymentPluginApiException(null, "SEARCH: unsupported operation"); //TODO: Causes NullPointerException, to be fixed later
+		logger.info("searchPayments, searchKey={}", searchKey);
+		final long currentOffset = offset == null ? 0 : offset;
+		final long pageSize = limit == null ? DEFAULT_SEARCH_LIMIT : limit;
+		final List<GoCardlessPaymentRecord> paymentRecords;
+		final boolean hasNextPage;
+		final long totalNbRecords;
+		try {
+			// One more record tells whether there is a next page
+			paymentRecords = dao.searchPayments(searchKey, currentOffset, pageSize + 1, context.getTenantId());
+			hasNextPage = paymentRecords.size() > pageSize;
+			if (hasNextPage) {
+				paymentRecords.remove(paymentRecords.size() - 1);
+			}
+			totalNbRecords = currentOffset == 0 && hasNextPage ? dao.getSearchPaymentsCount(searchKey, context.getTenantId())
+					: estimateTotalNbRecords(currentOffset, paymentRecords.size(), hasNextPage);
+		} catch (SQLException e) {
+			logger.warn("Error occured while searching payments for searchKey={}", searchKey, e);
+			throw new PaymentPluginApiException("Error occured while searching payments", e);
+		}
+
+		final List<PaymentTransactionInfoPlugin> results = new ArrayList<>();
+		for (final GoCardlessPaymentRecord paymentRecord : paymentRecords) {
+			results.add(buildPaymentTransactionInfoPlugin(paymentRecord));
+		}
+		return new GoCardlessPagination<>(currentOffset, hasNextPage ? currentOffset + pageSize : null, totalNbRecords, null, results);
+	}
+
+	/**
+	 * The records are only counted for the first page: the next pages report the records up to theirs, plus one if there are more
+	 * (exact on the last page)
+	 */
+	static long estimateTotalNbRecords(final long offset, final int nbRecords, final boolean hasNextPage) {
+		return offset + nbRecords + (hasNextPage ? 1 : 0);
+	}
+
+	/**
+	 * Looks for the payment of a transaction Kill Bill retries, in the recent idempotency keys, then in the plugin table
+	 *
+	 * @return the payment already created for the transaction, or null
+	 */
+	private GoCardlessPaymentRecord findCreatedPayment(final UUID kbPaymentId, final UUID kbTransactionId, final String idempotencyKey,
+			final CallContext context) {
+		final GoCardlessPaymentRecord recentPayment = recentPayments.getIfPresent(idempotencyKeyCacheKey(context.getTenantId(), idempotencyKey));
+		if (recentPayment != null && kbTransactionId.equals(recentPayment.getKbPaymentTransactionId())) {
+			return recentPayment;
+		}
+		try {
+			for (final GoCardlessPaymentRecord paymentRecord : dao.getPayments(kbPaymentId, context.getTenantId())) {
+				if (kbTransactionId.equals(paymentRecord.getKbPaymentTransactionId()) && paymentRecord.getTransactionType() == TransactionType.PURCHASE) {
+					return paymentRecord;
+				}
+			}
+		} catch (SQLException e) {
+			// GoCardless dedupes on the idempotency key anyway
+			logger.warn("Error occured while looking up the payments of kbPaymentId={}", kbPaymentId, e);
+		}
+		return null;
+	}
+
+	private static String idempotencyKeyCacheKey(final UUID kbTenantId, final String idempotencyKey) {
+		return kbTenantId + "/" + idempotencyKey;
+	}
+
+	/**
+	 * @return the id of the resource created with the same idempotency key, or null if the error isn't an idempotency conflict
+	 */
+	static String getConflictingResourceId(final GoCardlessApiException e) {
+		if (e.getErrors() == null) {
+			return null;
+		}
+		for (final ApiErrorDetail error : e.getErrors()) {
+			if (IDEMPOTENT_CREATION_CONFLICT.equals(error.getReason()) && error.getLinks() != null) {
+				return error.getLinks().get("conflicting_resource_id");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the payment found through an idempotency conflict is the one that was about to be created
+	 */
+	static boolean isSamePayment(final Payment payment, final int amount, final String mandateId) {
+		return payment.getAmount() != null && payment.getAmount() == amount
+				&& payment.getLinks() != null && mandateId.equals(payment.getLinks().getMandate());
+	}
+
+	/**
+	 * @return true if the refund found through an idempotency conflict is the one that was about to be created
+	 */
+	static boolean isSameRefund(final Refund refund, final int amount, final String goCardlessPaymentId) {
+		return refund.getAmount() != null && refund.getAmount() == amount
+				&& refund.getLinks() != null && goCardlessPaymentId.equals(refund.getLinks().getPayment());
+	}
+
+	// From the plugin table only, GoCardless isn't called
+	private PaymentTransactionInfoPlugin buildPaymentTransactionInfoPlugin(final GoCardlessPaymentRecord paymentRecord) {
+		final List<PluginProperty> outputProperties = new ArrayList<PluginProperty>();
+		outputProperties.add(new PluginProperty("mandateId", paymentRecord.getGoCardlessMandateId(), false));
+		outputProperties.add(new PluginProperty("gocardlessstatus", paymentRecord.getGoCardlessStatus(), false));
+		final PaymentPluginStatus status = paymentRecord.getGoCardlessStatus() == null ? PaymentPluginStatus.UNDEFINED
+				: convertGoCardlessToKillBillStatus(paymentRecord.getTransactionType(), paymentRecord.getGoCardlessStatus());
+		return new GoCardlessPaymentTransactionInfoPlugin(paymentRecord.getKbPaymentId(), paymentRecord.getKbPaymentTransactionId(),
+				paymentRecord.getTransactionType(), paymentRecord.getAmount(), paymentRecord.getCurrency(), status, null, null,
+				paymentRecord.getGoCardlessId(), null, paymentRecord.getCreatedDate(), paymentRecord.getCreatedDate(), outputProperties);
 	}
 
 	@Override
 	public void addPaymentMethod(UUID kbAccountId, UUID kbPaymentMethodId, PaymentMethodPlugin paymentMethodProps,
 			boolean setDefault, Iterable<PluginProperty> properties, CallContext context)
 			throws PaymentPluginApiException {
-		logger.info("addPaymentMethod, kbAccountId=" + kbAccountId);
+		logger.info("addPaymentMethod, kbAccountId={}", kbAccountId);
 		final Iterable<PluginProperty> allProperties = PluginProperties.merge(paymentMethodProps.getProperties(),
 				properties);
 		String redirectFlowId = PluginProperties.findPluginPropertyValue("redirect_flow_id", allProperties); // retrieve the redirect flow id
 		String sessionToken = PluginProperties.findPluginPropertyValue("session_token", allProperties);
 
+		final String importedMandateId = PluginProperties.findPluginPropertyValue(IMPORTED_MANDATE_ID_PROPERTY, allProperties);
+		final Mandate importedMandate = importedMandateId == null ? null : importedMandates.get(context.getTenantId() + "/" + importedMandateId);
+		if (importedMandate != null) {
+			// The import writes the mandate custom fields itself, in batches
+			try {
+				dao.addPaymentMethod(kbAccountId, kbPaymentMethodId, importedMandate.getId(), importedMandate.getLinks().getCustomer(),
+						importedMandate.getStatus() == null ? null : importedMandate.getStatus().name(),
+						importedMandate.getScheme(),
+						importedMandate.getNextPossibleChargeDate() == null ? null : LocalDate.parse(importedMandate.getNextPossibleChargeDate()),
+						setDefault, clock.getUTCNow(), context.getTenantId());
+			} catch (SQLException e) {
+				logger.warn("Error occured while saving payment method {}", kbPaymentMethodId, e);
+				throw new PaymentPluginApiException("Error occured while saving payment method", e);
+			}
+			return;
+		}
+
 		try {
 			// Use the redirect flow id to "complete" the GoCardless flow
-			RedirectFlow redirectFlow = buildGoCardlessClient(context).redirectFlows().complete(redirectFlowId).withSessionToken(sessionToken)
-					.execute();
+			final GoCardlessClient client = buildGoCardlessClient(context);
+			RedirectFlow redirectFlow = goCardlessApiExecutor.execute(context.getTenantId(), "redirect_flows.complete", redirectFlowId, null, false,
+					() -> client.redirectFlows().complete(redirectFlowId).withSessionToken(sessionToken).executeWrapped());
+			// A completed flow can't be handed out again
+			goCardlessRedirectFlowCache.invalidateRedirectFlow(context.getTenantId(), redirectFlowId);
 
 			String mandateId = redirectFlow.getLinks().getMandate(); // obtain mandate id from the redirect flow
-			logger.info("MandateId=" + mandateId);
+			logger.info("MandateId={}", mandateId);
+			savePaymentMethod(kbAccountId, kbPaymentMethodId, mandateId, redirectFlow.getLinks().getCustomer(), setDefault, client, context);
 
 			try {
 				// save Mandate id in the Kill Bill database
 				killbillAPI.getCustomFieldUserApi().addCustomFields(ImmutableList.of(new PluginCustomField(kbAccountId,
-						ObjectType.ACCOUNT, "GOCARDLESS_MANDATE_ID", mandateId, clock.getUTCNow())), context);
+						ObjectType.ACCOUNT, MANDATE_ID_CUSTOM_FIELD, mandateId, clock.getUTCNow())), context);
+				goCardlessMandateCache.put(context.getTenantId(), kbAccountId, mandateId);
 			} catch (CustomFieldApiException e) {
 				logger.warn("Error occured while saving mandate id", e);
 				throw new PaymentPluginApiException("Error occured while saving mandate id", e);
@@ -348,49 +905,198 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 			logger.warn("Error occured while completing the GoCardless flow", e.getType(), e);
 			throw new PaymentPluginApiException("Error occured while completing the GoCardless flow", e);
 
+		} catch (GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+			logger.warn("GoCardless not called to complete the GoCardless flow", e);
+			throw new PaymentPluginApiException("GoCardless unavailable, please retry", e);
 		}
 
 	}
 
+	/**
+	 * Adds a Kill Bill payment method for a mandate created outside of Kill Bill, e.g. before moving to Kill Bill
+	 *
+	 * @param account
+	 * @param mandate     as listed from GoCardless, saved as is
+	 * @param setDefault
+	 * @param context
+	 * @return the Kill Bill payment method id
+	 * @throws PaymentApiException
+	 */
+	UUID importMandate(final Account account, final Mandate mandate, final boolean setDefault, final CallContext context) throws PaymentApiException {
+		final String key = context.getTenantId() + "/" + mandate.getId();
+		importedMandates.put(key, mandate);
+		try {
+			// The mandate id doubles as payment method external key, so that a mandate can't be imported twice
+			return killbillAPI.getPaymentApi().addPaymentMethod(account, mandate.getId(), GoCardlessActivator.PLUGIN_NAME, setDefault,
+					new GoCardlessPaymentMethodPlugin(null, mandate.getId(), setDefault, ImmutableList.of()),
+					ImmutableList.of(new PluginProperty(IMPORTED_MANDATE_ID_PROPERTY, mandate.getId(), false)), context);
+		} finally {
+			importedMandates.remove(key);
+		}
+	}
+
+	/**
+	 * Keeps track of the mandate behind the payment method, so that payment method calls don't need GoCardless
+	 */
+	private void savePaymentMethod(UUID kbAccountId, UUID kbPaymentMethodId, String mandateId, String customerId, boolean setDefault,
+			GoCardlessClient client, CallContext context) {
+		Mandate mandate = null;
+		try {
+			mandate = goCardlessApiExecutor.execute(context.getTenantId(), "mandates.get", mandateId, null, true, () -> client.mandates().get(mandateId).executeWrapped());
+		} catch (GoCardlessApiException | GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+			// the redirect flow is completed already, the mandate state is caught up by webhooks
+			logger.warn("Unable to retrieve mandate {}", mandateId, e);
+		}
+		try {
+			dao.addPaymentMethod(kbAccountId, kbPaymentMethodId, mandateId, customerId,
+					mandate == null || mandate.getStatus() == null ? null : mandate.getStatus().name(),
+					mandate == null ? null : mandate.getScheme(),
+					mandate == null || mandate.getNextPossibleChargeDate() == null ? null : LocalDate.parse(mandate.getNextPossibleChargeDate()),
+					setDefault, clock.getUTCNow(), context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while saving payment method {}", kbPaymentMethodId, e);
+		}
+	}
+
 	@Override
 	public void deletePaymentMethod(UUID kbAccountId, UUID kbPaymentMethodId, Iterable<PluginProperty> properties,
 			CallContext context) throws PaymentPluginApiException {
+		try {
+			dao.markPaymentMethodAsDeleted(kbPaymentMethodId, clock.getUTCNow(), context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while deleting payment method {}", kbPaymentMethodId, e);
+			throw new PaymentPluginApiException("Error occured while deleting payment method", e);
+		}
+		goCardlessMandateCache.invalidate(context.getTenantId(), kbAccountId);
 	}
 
 	@Override
 	public PaymentMethodPlugin getPaymentMethodDetail(UUID kbAccountId, UUID kbPaymentMethodId,
 			Iterable<PluginProperty> properties, TenantContext context) throws PaymentPluginApiException {
-		return new GoCardlessPaymentMethodPlugin(kbPaymentMethodId, null,false, null);
+		final GoCardlessPaymentMethodRecord paymentMethodRecord;
+		try {
+			paymentMethodRecord = dao.getPaymentMethod(kbPaymentMethodId, context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while retrieving payment method {}", kbPaymentMethodId, e);
+			throw new PaymentPluginApiException("Error occured while retrieving payment method", e);
+		}
+		if (paymentMethodRecord == null) {
+			// payment method added before the plugin kept track of mandates
+			return new GoCardlessPaymentMethodPlugin(kbPaymentMethodId, null, false, null);
+		}
+		return buildPaymentMethodPlugin(paymentMethodRecord);
+	}
+
+	private static GoCardlessPaymentMethodPlugin buildPaymentMethodPlugin(final GoCardlessPaymentMethodRecord paymentMethodRecord) {
+		final List<PluginProperty> outputProperties = new ArrayList<PluginProperty>();
+		outputProperties.add(new PluginProperty("mandateId", paymentMethodRecord.getGoCardlessMandateId(), false));
+		outputProperties.add(new PluginProperty("customerId", paymentMethodRecord.getGoCardlessCustomerId(), false));
+		outputProperties.add(new PluginProperty("mandateStatus", paymentMethodRecord.getMandateStatus(), false));
+		outputProperties.add(new PluginProperty("scheme", paymentMethodRecord.getScheme(), false));
+		outputProperties.add(new PluginProperty("nextPossibleChargeDate", paymentMethodRecord.getNextPossibleChargeDate() == null ? null
+				: paymentMethodRecord.getNextPossibleChargeDate().toString(), false));
+		return new GoCardlessPaymentMethodPlugin(paymentMethodRecord.getKbPaymentMethodId(), paymentMethodRecord.getGoCardlessMandateId(),
+				paymentMethodRecord.isDefault(), outputProperties);
 	}
 
 	@Override
 	public void setDefaultPaymentMethod(UUID kbAccountId, UUID kbPaymentMethodId, Iterable<PluginProperty> properties,
 			CallContext context) throws PaymentPluginApiException {
+		try {
+			dao.setDefaultPaymentMethod(kbAccountId, kbPaymentMethodId, clock.getUTCNow(), context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while setting default payment method {}", kbPaymentMethodId, e);
+			throw new PaymentPluginApiException("Error occured while setting default payment method", e);
+		}
+		goCardlessMandateCache.invalidate(context.getTenantId(), kbAccountId);
 	}
 
 	@Override
 	public List<PaymentMethodInfoPlugin> getPaymentMethods(UUID kbAccountId, boolean refreshFromGateway,
 			Iterable<PluginProperty> properties, CallContext context) throws PaymentPluginApiException {
-		
+		if (refreshFromGateway) {
+			// tenant wide, but only the mandates which changed since the previous refresh are updated
+			try {
+				final int updated = goCardlessMandateSync.sync(context.getTenantId());
+				logger.info("Mandate sync updated {} payment methods, kbTenantId={}", updated, context.getTenantId());
+			} catch (SQLException | GoCardlessApiException e) {
+				logger.warn("Error occured while refreshing mandates, kbTenantId={}", context.getTenantId(), e);
+				throw new PaymentPluginApiException("Error occured while refreshing mandates", e);
+			} catch (GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+				logger.warn("GoCardless not called to refresh mandates", e);
+				throw new PaymentPluginApiException("GoCardless unavailable, please retry", e);
+			}
+		}
+		final List<GoCardlessPaymentMethodRecord> paymentMethodRecords;
+		try {
+			paymentMethodRecords = dao.getPaymentMethods(kbAccountId, context.getTenantId());
+		} catch (SQLException e) {
+			logger.warn("Error occured while retrieving payment methods for kbAccountId={}", kbAccountId, e);
+			throw new PaymentPluginApiException("Error occured while retrieving payment methods", e);
+		}
 		List<PaymentMethodInfoPlugin> result = new ArrayList<PaymentMethodInfoPlugin>();
+		for (final GoCardlessPaymentMethodRecord paymentMethodRecord : paymentMethodRecords) {
+			result.add(new PluginPaymentMethodInfoPlugin(kbAccountId, paymentMethodRecord.getKbPaymentMethodId(), paymentMethodRecord.isDefault(),
+					paymentMethodRecord.getGoCardlessMandateId()));
+		}
 		return result;
 	}
 
 	@Override
 	public Pagination<PaymentMethodPlugin> searchPaymentMethods(String searchKey, Long offset, Long limit,
 			Iterable<PluginProperty> properties, TenantContext context) throws PaymentPluginApiException {
-		throw new PaymentPluginApiException(null, "SEARCH: unsupported operation");//TODO: Causes NullPointerException, to be fixed later
+		logger.info("searchPaymentMethods, searchKey={}", searchKey);
+		final long currentOffset = offset == null ? 0 : offset;
+		final long pageSize = limit == null ? DEFAULT_SEARCH_LIMIT : limit;
+		final List<GoCardlessPaymentMethodRecord> paymentMethodRecords;
+		final boolean hasNextPage;
+		final long totalNbRecords;
+		try {
+			paymentMethodRecords = dao.searchPaymentMethods(searchKey, currentOffset, pageSize + 1, context.getTenantId());
+			hasNextPage = paymentMethodRecords.size() > pageSize;
+			if (hasNextPage) {
+				paymentMethodRecords.remove(paymentMethodRecords.size() - 1);
+			}
+			totalNbRecords = currentOffset == 0 && hasNextPage ? dao.getSearchPaymentMethodsCount(searchKey, context.getTenantId())
+					: estimateTotalNbRecords(currentOffset, paymentMethodRecords.size(), hasNextPage);
+		} catch (SQLException e) {
+			logger.warn("Error occured while searching payment methods for searchKey={}", searchKey, e);
+			throw new PaymentPluginApiException("Error occured while searching payment methods", e);
+		}
+
+		final List<PaymentMethodPlugin> results = new ArrayList<>();
+		for (final GoCardlessPaymentMethodRecord paymentMethodRecord : paymentMethodRecords) {
+			results.add(buildPaymentMethodPlugin(paymentMethodRecord));
+		}
+		return new GoCardlessPagination<>(currentOffset, hasNextPage ? currentOffset + pageSize : null, totalNbRecords, null, results);
 	}
 
 	@Override
 	public void resetPaymentMethods(UUID kbAccountId, List<PaymentMethodInfoPlugin> paymentMethods,
 			Iterable<PluginProperty> properties, CallContext context) throws PaymentPluginApiException {
+		final List<UUID> kbPaymentMethodIds = new ArrayList<>();
+		for (final PaymentMethodInfoPlugin paymentMethod : paymentMethods) {
+			kbPaymentMethodIds.add(paymentMethod.getPaymentMethodId());
+		}
+		try {
+			// payment methods Kill Bill doesn't know about anymore
+			dao.markOtherPaymentMethodsAsDeleted(kbAccountId, kbPaymentMethodIds, clock.getUTCNow(), context.getTenantId());
+			goCardlessMandateCache.invalidate(context.getTenantId(), kbAccountId);
+			final int updated = goCardlessMandateSync.resync(context.getTenantId());
+			logger.info("Mandate resync updated {} payment methods, kbTenantId={}", updated, context.getTenantId());
+		} catch (SQLException | GoCardlessApiException e) {
+			logger.warn("Error occured while resetting payment methods for kbAccountId={}", kbAccountId, e);
+			throw new PaymentPluginApiException("Error occured while resetting payment methods", e);
+		} catch (GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+			logger.warn("GoCardless not called to resync mandates", e);
+			throw new PaymentPluginApiException("GoCardless unavailable, please retry", e);
+		}
 	}
 
 	@Override
 	public HostedPaymentPageFormDescriptor buildFormDescriptor(UUID kbAccountId, Iterable<PluginProperty> customFields,
 			Iterable<PluginProperty> properties, CallContext context) throws PaymentPluginApiException {
-		logger.info("buildFormDescriptor, kbAccountId=" + kbAccountId);
+		logger.info("buildFormDescriptor, kbAccountId={}", kbAccountId);
 
 		// retrieve properties
 		String successRedirectUrl = PluginProperties.findPluginPropertyValue("success_redirect_url", properties); // "https://developer.gocardless.com/example-redirect-uri/"; this is the URL to which GoCardless redirects to after users set up the mandate
@@ -398,13 +1104,20 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 		String redirectFlowDescription = PluginProperties.findPluginPropertyValue("redirect_flow_description",properties);
 		String sessionToken = PluginProperties.findPluginPropertyValue("session_token", properties); // "dummy_session_token"
 
-		PrefilledCustomer customer = buildCustomer(customFields);// build a PrefilledCuctomer object from custom fields if present
+		// Repeated checkouts (reloads, double-clicks) get the flow created the first time, while it is still valid
+		final String key = GoCardlessRedirectFlowCache.key(kbAccountId, sessionToken, redirectFlowDescription, successRedirectUrl);
+		RedirectFlow redirectFlow = goCardlessRedirectFlowCache.get(context.getTenantId(), key, () -> {
+			PrefilledCustomer customer = buildCustomer(customFields);// build a PrefilledCuctomer object from custom fields if present
 
-		RedirectFlow redirectFlow = buildGoCardlessClient(context).redirectFlows().create().withDescription(redirectFlowDescription)
-				.withSessionToken(sessionToken).withSuccessRedirectUrl(successRedirectUrl)
-				.withPrefilledCustomer(customer).execute();
-		logger.info("RedirectFlow Id=" + redirectFlow.getId());
-		logger.info("RedirectFlow URL=" + redirectFlow.getRedirectUrl());
+			final GoCardlessClient client = buildGoCardlessClient(context);
+			RedirectFlow createdRedirectFlow = goCardlessApiExecutor.execute(context.getTenantId(), "redirect_flows.create", kbAccountId.toString(), null, false,
+					() -> client.redirectFlows().create().withDescription(redirectFlowDescription)
+							.withSessionToken(sessionToken).withSuccessRedirectUrl(successRedirectUrl)
+							.withPrefilledCustomer(customer).executeWrapped());
+			logger.info("RedirectFlow Id={}", createdRedirectFlow.getId());
+			return createdRedirectFlow;
+		});
+		logger.info("RedirectFlow URL={}", redirectFlow.getRedirectUrl());
 
 		PluginHostedPaymentPageFormDescriptor pluginHostedPaymentPageFormDescriptor = new PluginHostedPaymentPageFormDescriptor(
 				kbAccountId, redirectFlow.getRedirectUrl());
@@ -428,20 +1141,35 @@ public class GoCardlessPaymentPluginApi implements PaymentPluginApi {
 	@Override
 	public GatewayNotification processNotification(String notification, Iterable<PluginProperty> properties,
 			CallContext context) throws PaymentPluginApiException {
-		throw new PaymentPluginApiException("INTERNAL", "#processNotification not yet implemented, please contact support@killbill.io");
+		final String signature = PluginProperties.findPluginPropertyValue(WEBHOOK_SIGNATURE_HEADER, properties);
+		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(context.getTenantId());
+		if (config == null || !GoCardlessWebhookProcessor.isValidSignature(notification, signature, config.getWebhookSecret())) {
+			logger.warn("Rejecting webhook with an invalid signature, kbTenantId={}", context.getTenantId());
+			return buildGatewayNotification(WEBHOOK_INVALID_SIGNATURE_STATUS);
+		}
+
+		final List<GoCardlessWebhookEvent> events;
+		try {
+			events = GoCardlessWebhookProcessor.parseEvents(notification, context.getTenantId(), clock.getUTCNow().getMillis());
+		} catch (IOException e) {
+			logger.warn("Rejecting malformed webhook, kbTenantId={}", context.getTenantId(), e);
+			return buildGatewayNotification(400);
+		}
+
+		// only acknowledge once everything is queued, otherwise let GoCardless redeliver (accepted events are deduped)
+		boolean queued = true;
+		for (final GoCardlessWebhookEvent event : events) {
+			queued = goCardlessWebhookProcessor.submit(event) && queued;
+		}
+		return buildGatewayNotification(queued ? 204 : 503);
+	}
+
+	private GatewayNotification buildGatewayNotification(final int status) {
+		return new PluginGatewayNotification(null, status, "", ImmutableMap.of(), ImmutableList.of());
 	}
 	
-	private GoCardlessClient buildGoCardlessClient(final TenantContext tenantContext) {
-		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(tenantContext.getTenantId());
-	    if (config == null || config.getGCAccessToken() == null || config.getGCAccessToken().isEmpty()) {
-	    	logger.warn("Per-tenant properties not configured");
-	        return null;
-	    }
-	    final GoCardlessClient.Environment environment = config.getEnvironment().equalsIgnoreCase("live") ? GoCardlessClient.Environment.LIVE : GoCardlessClient.Environment.SANDBOX;
-	    final GoCardlessClient client = GoCardlessClient.newBuilder(config.getGCAccessToken())
-		.withEnvironment(environment).build();
-
-	    return client;
+	GoCardlessClient buildGoCardlessClient(final TenantContext tenantContext) {
+		return goCardlessClientCache.getClient(tenantContext.getTenantId());
 	}
 
 }
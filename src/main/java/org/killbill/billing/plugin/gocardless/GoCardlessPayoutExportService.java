@@ -0,0 +1,382 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Payout;
+import com.gocardless.resources.PayoutItem;
+import com.gocardless.services.PayoutItemService.PayoutItemListRequest;
+import com.gocardless.services.PayoutService.PayoutListRequest;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Exports the GoCardless payouts of a tenant, or their payout items, created over a date range.
+ *
+ * The export is streamed: GoCardless is paged through as the response is read, one page of payouts (and one page of
+ * payout items) at a time, so that an export of a quarter uses as little memory as an export of a day. Every row
+ * carries a resume token, the position right after it: an export interrupted by a dropped connection continues after
+ * the last row received, by sending its token back.
+ */
+public class GoCardlessPayoutExportService {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessPayoutExportService.class);
+
+	public enum Type {
+		PAYOUTS,
+		PAYOUT_ITEMS
+	}
+
+	public enum Format {
+		CSV,
+		NDJSON
+	}
+
+	static final String RESUME_TOKEN_COLUMN = "resume_token";
+	private static final List<String> PAYOUT_COLUMNS = ImmutableList.of("id", "created_at", "arrival_date", "status", "currency", "amount",
+	                                                                    "deducted_fees", "reference", RESUME_TOKEN_COLUMN);
+	private static final List<String> PAYOUT_ITEM_COLUMNS = ImmutableList.of("payout_id", "arrival_date", "currency", "type", "amount",
+	                                                                         "payment_id", "mandate_id", "refund_id", RESUME_TOKEN_COLUMN);
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final GoCardlessClientCache goCardlessClientCache;
+	private final GoCardlessApiExecutor goCardlessApiExecutor;
+	private final Clock clock;
+	private final int pageSize;
+
+	public GoCardlessPayoutExportService(final GoCardlessConfigProperties config,
+	                                     final GoCardlessClientCache goCardlessClientCache,
+	                                     final GoCardlessApiExecutor goCardlessApiExecutor,
+	                                     final Clock clock) {
+		this.goCardlessClientCache = goCardlessClientCache;
+		this.goCardlessApiExecutor = goCardlessApiExecutor;
+		this.clock = clock;
+		this.pageSize = config.getPayoutExportPageSize();
+	}
+
+	/**
+	 * @param type
+	 * @param from first day, inclusive (UTC)
+	 * @param to   last day, inclusive (UTC)
+	 * @return the position of a new export
+	 * @throws IllegalArgumentException if the range is empty
+	 */
+	public ExportPosition start(final Type type, final LocalDate from, final LocalDate to) {
+		if (to.isBefore(from)) {
+			throw new IllegalArgumentException("Invalid date range, from=" + from + " is after to=" + to);
+		}
+		// Payouts created while the export runs would shift the first page: the export stops at its start time
+		final DateTime end = to.plusDays(1).toDateTimeAtStartOfDay(DateTimeZone.UTC);
+		final DateTime now = clock.getUTCNow();
+		return new ExportPosition(type,
+		                          from.toDateTimeAtStartOfDay(DateTimeZone.UTC).toString(),
+		                          (end.isAfter(now) ? now : end).toString(),
+		                          null, 0, null, 0);
+	}
+
+	/**
+	 * Starts streaming an export. The first page is listed right away, so that GoCardless errors are raised before
+	 * anything is sent; later errors interrupt the stream, and the export is resumed from the last row received.
+	 *
+	 * @param kbTenantId
+	 * @param format
+	 * @param position   see {@link #start}, or {@link ExportPosition#decode} to resume an export
+	 * @return the export, or null if the tenant isn't configured
+	 */
+	@Nullable
+	public InputStream export(final UUID kbTenantId, final Format format, final ExportPosition position) {
+		final GoCardlessClient client = goCardlessClientCache.getClient(kbTenantId);
+		if (client == null) {
+			return null;
+		}
+		final ExportStream exportStream = new ExportStream(kbTenantId, client, format, position);
+		exportStream.prime();
+		return exportStream;
+	}
+
+	/**
+	 * Position in an export, encoded as its resume token: the payouts page being read and the next payout in it, and
+	 * for payout items, the page of items of that payout and the next item in it
+	 */
+	public static final class ExportPosition {
+
+		private static final String VERSION = "1";
+		private static final String SEPARATOR = "|";
+
+		private final Type type;
+		private final String createdAtGte;
+		private final String createdAtLt;
+		private final String payoutsAfter;
+		private final int payoutIndex;
+		private final String itemsAfter;
+		private final int itemIndex;
+
+		ExportPosition(final Type type, final String createdAtGte, final String createdAtLt, @Nullable final String payoutsAfter,
+		               final int payoutIndex, @Nullable final String itemsAfter, final int itemIndex) {
+			this.type = type;
+			this.createdAtGte = createdAtGte;
+			this.createdAtLt = createdAtLt;
+			this.payoutsAfter = payoutsAfter;
+			this.payoutIndex = payoutIndex;
+			this.itemsAfter = itemsAfter;
+			this.itemIndex = itemIndex;
+		}
+
+		Type getType() {
+			return type;
+		}
+
+		boolean isStart() {
+			return payoutsAfter == null && payoutIndex == 0 && itemsAfter == null && itemIndex == 0;
+		}
+
+		String encode() {
+			final String token = String.join(SEPARATOR, VERSION, type.name(), createdAtGte, createdAtLt, Objects.toString(payoutsAfter, ""),
+			                                 String.valueOf(payoutIndex), Objects.toString(itemsAfter, ""), String.valueOf(itemIndex));
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * @throws IllegalArgumentException if the token wasn't issued by an export
+		 */
+		static ExportPosition decode(final String token) {
+			final String[] parts;
+			try {
+				parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\\" + SEPARATOR, -1);
+				if (parts.length != 8 || !VERSION.equals(parts[0])) {
+					throw new IllegalArgumentException("Invalid resume token " + token);
+				}
+				return new ExportPosition(Type.valueOf(parts[1]), parts[2], parts[3], parts[4].isEmpty() ? null : parts[4],
+				                          Integer.parseInt(parts[5]), parts[6].isEmpty() ? null : parts[6], Integer.parseInt(parts[7]));
+			} catch (final IllegalArgumentException e) {
+				// Also covers bad Base64, unknown types and bad numbers
+				throw new IllegalArgumentException("Invalid resume token " + token, e);
+			}
+		}
+	}
+
+	// CSV or newline delimited JSON, listing the next page once the previous one has been read
+	private final class ExportStream extends InputStream {
+
+		private final UUID kbTenantId;
+		private final GoCardlessClient client;
+		private final Format format;
+		private final Type type;
+		private final String createdAtGte;
+		private final String createdAtLt;
+
+		private String payoutsAfter;
+		private int payoutIndex;
+		private String itemsAfter;
+		private int itemIndex;
+		private ListResponse<Payout> payouts;
+		private ListResponse<PayoutItem> items;
+
+		private byte[] current = new byte[0];
+		private int position;
+		private boolean done;
+
+		private ExportStream(final UUID kbTenantId, final GoCardlessClient client, final Format format, final ExportPosition start) {
+			this.kbTenantId = kbTenantId;
+			this.client = client;
+			this.format = format;
+			this.type = start.type;
+			this.createdAtGte = start.createdAtGte;
+			this.createdAtLt = start.createdAtLt;
+			this.payoutsAfter = start.payoutsAfter;
+			this.payoutIndex = start.payoutIndex;
+			this.itemsAfter = start.itemsAfter;
+			this.itemIndex = start.itemIndex;
+			// A resumed export is appended to what was already received
+			if (format == Format.CSV && start.isStart()) {
+				current = toCsv(columns());
+			}
+		}
+
+		private void prime() {
+			payouts = listPayouts(payoutsAfter);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return current[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			final int count = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		private boolean fill() throws IOException {
+			if (position < current.length) {
+				return true;
+			}
+			if (done) {
+				return false;
+			}
+			final List<Object> row;
+			try {
+				row = nextRow();
+			} catch (final RuntimeException e) {
+				// Nothing more can be sent: the client resumes from the last row it received
+				logger.warn("Payout export interrupted, kbTenantId={}", kbTenantId, e);
+				throw new IOException("Payout export interrupted, resume from the last row received", e);
+			}
+			if (row == null) {
+				done = true;
+				return false;
+			}
+			current = format == Format.CSV ? toCsv(row) : toJson(row);
+			position = 0;
+			return true;
+		}
+
+		@Nullable
+		private List<Object> nextRow() {
+			while (true) {
+				if (payouts == null) {
+					payouts = listPayouts(payoutsAfter);
+				}
+				if (payoutIndex >= payouts.getItems().size()) {
+					if (payouts.getAfter() == null) {
+						return null;
+					}
+					payoutsAfter = payouts.getAfter();
+					payoutIndex = 0;
+					payouts = null;
+					continue;
+				}
+
+				final Payout payout = payouts.getItems().get(payoutIndex);
+				if (type == Type.PAYOUTS) {
+					payoutIndex++;
+					return Arrays.asList(payout.getId(), payout.getCreatedAt(), payout.getArrivalDate(), payout.getStatus(), payout.getCurrency(),
+					                     payout.getAmount(), payout.getDeductedFees(), payout.getReference(), resumeToken());
+				}
+
+				if (items == null) {
+					items = listPayoutItems(payout.getId(), itemsAfter);
+				}
+				if (itemIndex < items.getItems().size()) {
+					final PayoutItem item = items.getItems().get(itemIndex++);
+					final PayoutItem.Links links = item.getLinks();
+					return Arrays.asList(payout.getId(), payout.getArrivalDate(), payout.getCurrency(), item.getType(), item.getAmount(),
+					                     links == null ? null : links.getPayment(), links == null ? null : links.getMandate(),
+					                     links == null ? null : links.getRefund(), resumeToken());
+				}
+				if (items.getAfter() != null) {
+					itemsAfter = items.getAfter();
+				} else {
+					// Done with the items of that payout
+					payoutIndex++;
+					itemsAfter = null;
+				}
+				itemIndex = 0;
+				items = null;
+			}
+		}
+
+		private String resumeToken() {
+			return new ExportPosition(type, createdAtGte, createdAtLt, payoutsAfter, payoutIndex, itemsAfter, itemIndex).encode();
+		}
+
+		private ListResponse<Payout> listPayouts(@Nullable final String after) {
+			return goCardlessApiExecutor.execute(kbTenantId, "payouts.list", true, () -> {
+				final PayoutListRequest<ListResponse<Payout>> request = client.payouts().list()
+				                                                              .withCreatedAtGte(createdAtGte)
+				                                                              .withCreatedAtLt(createdAtLt)
+				                                                              .withLimit(pageSize);
+				return (after == null ? request : request.withAfter(after)).executeWrapped();
+			});
+		}
+
+		private ListResponse<PayoutItem> listPayoutItems(final String payoutId, @Nullable final String after) {
+			return goCardlessApiExecutor.execute(kbTenantId, "payout_items.list", payoutId, null, true, () -> {
+				final PayoutItemListRequest<ListResponse<PayoutItem>> request = client.payoutItems().list()
+				                                                                      .withPayout(payoutId)
+				                                                                      .withLimit(pageSize);
+				return (after == null ? request : request.withAfter(after)).executeWrapped();
+			});
+		}
+
+		private List<String> columns() {
+			return type == Type.PAYOUTS ? PAYOUT_COLUMNS : PAYOUT_ITEM_COLUMNS;
+		}
+
+		private byte[] toJson(final List<Object> row) throws IOException {
+			final Map<String, Object> document = new LinkedHashMap<>();
+			final List<String> columns = columns();
+			for (int i = 0; i < columns.size(); i++) {
+				final Object value = row.get(i);
+				document.put(columns.get(i), value instanceof Enum ? value.toString() : value);
+			}
+			final byte[] json = objectMapper.writeValueAsBytes(document);
+			final byte[] line = Arrays.copyOf(json, json.length + 1);
+			line[json.length] = '\n';
+			return line;
+		}
+	}
+
+	private static byte[] toCsv(final List<?> row) {
+		final StringBuilder line = new StringBuilder();
+		for (int i = 0; i < row.size(); i++) {
+			if (i > 0) {
+				line.append(',');
+			}
+			final String value = Objects.toString(row.get(i), "");
+			if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+				line.append('"').append(value.replace("\"", "\"\"")).append('"');
+			} else {
+				line.append(value);
+			}
+		}
+		return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import com.gocardless.errors.GoCardlessApiException;
+import com.google.inject.Inject;
+import org.joda.time.LocalDate;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.Path;
+import org.killbill.billing.plugin.gocardless.GoCardlessPayoutExportService.ExportPosition;
+import org.killbill.billing.plugin.gocardless.GoCardlessPayoutExportService.Format;
+import org.killbill.billing.plugin.gocardless.GoCardlessPayoutExportService.Type;
+import org.killbill.billing.tenant.api.Tenant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Optional;
+
+@Singleton
+// Handle /plugins/killbill-gocardless/payouts/export
+@Path("/payouts/export")
+public class GoCardlessPayoutExportServlet {
+
+    private static final Logger logger = LoggerFactory.getLogger(GoCardlessPayoutExportServlet.class);
+
+    private final GoCardlessPayoutExportService goCardlessPayoutExportService;
+
+    @Inject
+    public GoCardlessPayoutExportServlet(final GoCardlessPayoutExportService goCardlessPayoutExportService) {
+        this.goCardlessPayoutExportService = goCardlessPayoutExportService;
+    }
+
+    // Payouts or payout items created between two days, streamed as they are listed from GoCardless
+    @GET
+    public Result export(@Named("type") final Optional<String> type,
+                         @Named("format") final Optional<String> format,
+                         @Named("from") final Optional<String> from,
+                         @Named("to") final Optional<String> to,
+                         @Named("resumeToken") final Optional<String> resumeToken,
+                         @Local @Named("killbill_tenant") final Tenant tenant) {
+        final Format exportFormat;
+        final ExportPosition position;
+        try {
+            exportFormat = Format.valueOf(format.orElse("csv").toUpperCase(Locale.ROOT));
+            if (resumeToken.isPresent()) {
+                // The type and date range are those of the interrupted export
+                position = ExportPosition.decode(resumeToken.get());
+            } else {
+                if (!from.isPresent() || !to.isPresent()) {
+                    return Results.with("from and to are required", Status.BAD_REQUEST);
+                }
+                position = goCardlessPayoutExportService.start(Type.valueOf(type.orElse("payouts").toUpperCase(Locale.ROOT)),
+                                                               LocalDate.parse(from.get()),
+                                                               LocalDate.parse(to.get()));
+            }
+        } catch (final IllegalArgumentException e) {
+            logger.warn("Invalid payout export request", e);
+            return Results.with(e.getMessage(), Status.BAD_REQUEST);
+        }
+
+        final InputStream export;
+        try {
+            export = goCardlessPayoutExportService.export(tenant.getId(), exportFormat, position);
+        } catch (final GoCardlessRateLimitedException | GoCardlessCircuitOpenException e) {
+            logger.warn("GoCardless not called to export payouts, kbTenantId={}", tenant.getId(), e);
+            return Results.with(e.getMessage(), Status.SERVICE_UNAVAILABLE);
+        } catch (final GoCardlessApiException e) {
+            logger.warn("Unable to export payouts, kbTenantId={}", tenant.getId(), e);
+            return Results.with(e.getMessage(), Status.BAD_GATEWAY);
+        }
+        if (export == null) {
+            return Results.with(Status.NOT_FOUND);
+        }
+        logger.info("Exporting {} for kbTenantId={}", position.getType(), tenant.getId());
+        return Results.with(export, Status.OK)
+                      .type(exportFormat == Format.CSV ? "text/csv" : "application/x-ndjson");
+    }
+}
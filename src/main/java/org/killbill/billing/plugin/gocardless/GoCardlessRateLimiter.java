@@ -0,0 +1,247 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-tenant token bucket in front of the GoCardless API. The bucket refills at rateLimitPerMinute
+ * and is corrected with the RateLimit-Remaining and RateLimit-Reset headers returned by GoCardless,
+ * so that callers wait (up to rateLimitMaxWaitMillis) instead of getting 429 responses.
+ */
+public class GoCardlessRateLimiter {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessRateLimiter.class);
+
+	static final String RATE_LIMIT_REMAINING_HEADER = "RateLimit-Remaining";
+	static final String RATE_LIMIT_RESET_HEADER = "RateLimit-Reset";
+
+	// Pause after a 429 when GoCardless didn't tell us when the limit resets
+	private static final long DEFAULT_RATE_LIMITED_PAUSE_MILLIS = 1000;
+
+	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final ConcurrentMap<UUID, Bucket> buckets = new ConcurrentHashMap<>();
+
+	public GoCardlessRateLimiter(final GoCardlessConfigurationHandler goCardlessConfigurationHandler) {
+		this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+		this.goCardlessConfigurationHandler.addConfigurationChangeListener(kbTenantId -> buckets.remove(GoCardlessConfigurationHandler.tenantKey(kbTenantId)));
+	}
+
+	/**
+	 * Takes a token, waiting for one if needed
+	 *
+	 * @param kbTenantId
+	 * @throws GoCardlessRateLimitedException if no token is available within rateLimitMaxWaitMillis
+	 */
+	public void acquire(@Nullable final UUID kbTenantId) {
+		final Bucket bucket = getBucket(kbTenantId);
+		final long waitNanos = bucket.reserve(System.nanoTime());
+		if (waitNanos < 0) {
+			bucket.rejections.increment();
+			throw new GoCardlessRateLimitedException("GoCardless rate limit reached for kbTenantId=" + kbTenantId);
+		}
+		if (waitNanos == 0) {
+			return;
+		}
+		bucket.waits.increment();
+		bucket.waitNanos.add(waitNanos);
+		try {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GoCardlessRateLimitedException("Interrupted while waiting for the GoCardless rate limit");
+		}
+	}
+
+	/**
+	 * Aligns the bucket with the rate limit headers of a GoCardless response
+	 *
+	 * @param kbTenantId
+	 * @param headers
+	 */
+	public void update(@Nullable final UUID kbTenantId, @Nullable final Map<String, List<String>> headers) {
+		final String remaining = getHeader(headers, RATE_LIMIT_REMAINING_HEADER);
+		if (remaining == null) {
+			return;
+		}
+		try {
+			getBucket(kbTenantId).update(System.nanoTime(), Long.parseLong(remaining.trim()), parseReset(getHeader(headers, RATE_LIMIT_RESET_HEADER)));
+		} catch (final NumberFormatException e) {
+			logger.debug("Ignoring invalid {} header {}", RATE_LIMIT_REMAINING_HEADER, remaining);
+		}
+	}
+
+	/**
+	 * Empties the bucket after a 429, until the reset time of the response
+	 *
+	 * @param kbTenantId
+	 * @param headers    headers of the 429 response, if known
+	 */
+	public void onRateLimited(@Nullable final UUID kbTenantId, @Nullable final Map<String, List<String>> headers) {
+		final Bucket bucket = getBucket(kbTenantId);
+		bucket.throttled.increment();
+		final Long resetDelayNanos = parseReset(getHeader(headers, RATE_LIMIT_RESET_HEADER));
+		// Without a reset time, a short pause rather than the one of an older response
+		bucket.update(System.nanoTime(), 0, resetDelayNanos == null ? TimeUnit.MILLISECONDS.toNanos(DEFAULT_RATE_LIMITED_PAUSE_MILLIS) : resetDelayNanos);
+	}
+
+	/**
+	 * @return per tenant ("default" for the global configuration): waits, waitTimeMs, rejections and throttled (429) counts
+	 */
+	public Map<String, Map<String, Long>> getStats() {
+		final Map<String, Map<String, Long>> stats = new HashMap<>();
+		for (final Map.Entry<UUID, Bucket> entry : buckets.entrySet()) {
+			final Map<String, Long> tenantStats = new HashMap<>();
+			tenantStats.put("waits", entry.getValue().waits.sum());
+			tenantStats.put("waitTimeMs", TimeUnit.NANOSECONDS.toMillis(entry.getValue().waitNanos.sum()));
+			tenantStats.put("rejections", entry.getValue().rejections.sum());
+			tenantStats.put("throttled", entry.getValue().throttled.sum());
+			stats.put(GoCardlessConfigurationHandler.tenantLabel(entry.getKey()), tenantStats);
+		}
+		return stats;
+	}
+
+	private Bucket getBucket(@Nullable final UUID kbTenantId) {
+		final Bucket bucket = buckets.get(GoCardlessConfigurationHandler.tenantKey(kbTenantId));
+		if (bucket != null) {
+			return bucket;
+		}
+		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(kbTenantId);
+		return buckets.computeIfAbsent(GoCardlessConfigurationHandler.tenantKey(kbTenantId), key -> new Bucket(config.getRateLimitPerMinute(), config.getRateLimitMaxWaitMillis(), System.nanoTime()));
+	}
+
+	@Nullable
+	private static String getHeader(@Nullable final Map<String, List<String>> headers, final String name) {
+		if (headers == null) {
+			return null;
+		}
+		for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+				return header.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param reset RateLimit-Reset, an HTTP date
+	 * @return the delay until the reset, in nanoseconds, or null if unknown
+	 */
+	@Nullable
+	static Long parseReset(@Nullable final String reset) {
+		if (reset == null) {
+			return null;
+		}
+		try {
+			final long resetMillis = ZonedDateTime.parse(reset.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			return TimeUnit.MILLISECONDS.toNanos(Math.max(0, resetMillis - System.currentTimeMillis()));
+		} catch (final DateTimeParseException e) {
+			logger.debug("Ignoring invalid {} header {}", RATE_LIMIT_RESET_HEADER, reset);
+			return null;
+		}
+	}
+
+	private static final class Bucket {
+
+		private final double capacity;
+		private final double tokensPerNano;
+		private final long maxWaitNanos;
+		private final LongAdder waits = new LongAdder();
+		private final LongAdder waitNanos = new LongAdder();
+		private final LongAdder rejections = new LongAdder();
+		private final LongAdder throttled = new LongAdder();
+
+		// Negative when callers are waiting for tokens
+		private double tokens;
+		private long lastRefillNanos;
+		// Set when GoCardless reports the quota exhausted: no refill before that
+		private long blockedUntilNanos;
+		private long lastResetDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RATE_LIMITED_PAUSE_MILLIS);
+
+		private Bucket(final int ratePerMinute, final long maxWaitMillis, final long nowNanos) {
+			this.capacity = ratePerMinute;
+			this.tokensPerNano = ratePerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+			this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+			this.tokens = capacity;
+			this.lastRefillNanos = nowNanos;
+		}
+
+		/**
+		 * @return how long the caller has to wait for its token, or -1 if longer than the maximum wait
+		 */
+		private synchronized long reserve(final long nowNanos) {
+			refill(nowNanos);
+			if (tokens >= 1 && blockedUntilNanos == 0) {
+				tokens -= 1;
+				return 0;
+			}
+			final long waitNanos;
+			if (blockedUntilNanos == 0) {
+				waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+			} else {
+				final double tokensAfterReset = Math.min(capacity, tokens + capacity);
+				waitNanos = blockedUntilNanos - nowNanos + (tokensAfterReset >= 1 ? 0 : (long) Math.ceil((1 - tokensAfterReset) / tokensPerNano));
+			}
+			if (waitNanos > maxWaitNanos) {
+				return -1;
+			}
+			tokens -= 1;
+			return Math.max(waitNanos, 1);
+		}
+
+		private synchronized void update(final long nowNanos, final long remaining, @Nullable final Long resetDelayNanos) {
+			refill(nowNanos);
+			if (resetDelayNanos != null) {
+				lastResetDelayNanos = resetDelayNanos;
+			}
+			if (remaining < tokens) {
+				tokens = remaining;
+			}
+			if (remaining == 0) {
+				blockedUntilNanos = nowNanos + lastResetDelayNanos;
+			}
+		}
+
+		private void refill(final long nowNanos) {
+			if (blockedUntilNanos != 0) {
+				if (nowNanos < blockedUntilNanos) {
+					return;
+				}
+				// GoCardless restored the full quota, minus the callers already waiting
+				tokens = Math.min(capacity, tokens + capacity);
+				lastRefillNanos = blockedUntilNanos;
+				blockedUntilNanos = 0;
+			}
+			tokens = Math.min(capacity, tokens + (nowNanos - lastRefillNanos) * tokensPerNano);
+			lastRefillNanos = nowNanos;
+		}
+	}
+}
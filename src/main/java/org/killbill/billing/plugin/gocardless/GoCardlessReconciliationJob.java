@@ -0,0 +1,305 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.gocardless.GoCardlessJobLeases.Lease;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessPaymentRecord;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ApiResponse;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Payment;
+import com.gocardless.resources.Refund;
+import com.gocardless.services.PaymentService.PaymentListRequest;
+import com.gocardless.services.RefundService.RefundListRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Periodically brings pending payments up to date, in case webhooks were missed. Instead of one GoCardless call per
+ * payment (what the Kill Bill janitor does through getPaymentInfo), payments created since the oldest pending one are
+ * listed page by page, and all pending payments of a page are updated at once. A tenant with only a few pending
+ * payments has them fetched one by one, so that an old one doesn't make the pass list every payment created since.
+ *
+ * Refunds are reconciled the same way, from the refunds created since the oldest pending one.
+ *
+ * The position in each listing is persisted per tenant, so that a pass interrupted by a restart resumes where it stopped.
+ *
+ * Every node of the cluster runs the job, a tenant being reconciled by the node holding its lease (see
+ * GoCardlessJobLeases). Nodes go through the tenants in a random order, so that the work is spread across them.
+ */
+public class GoCardlessReconciliationJob {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessReconciliationJob.class);
+
+	static final String JOB_NAME = "reconciliation";
+	static final String REFUNDS_JOB_NAME = "reconciliation_refunds";
+	static final Collection<String> PENDING_STATUSES = ImmutableList.of(Payment.Status.PENDING_CUSTOMER_APPROVAL.name(),
+	                                                                    Payment.Status.PENDING_SUBMISSION.name(),
+	                                                                    Payment.Status.SUBMITTED.name());
+	static final Collection<String> PENDING_REFUND_STATUSES = ImmutableList.of(Refund.Status.CREATED.name(),
+	                                                                           Refund.Status.PENDING_SUBMISSION.name(),
+	                                                                           Refund.Status.SUBMITTED.name());
+	private static final Collection<String> ALL_PENDING_STATUSES = ImmutableSet.<String>builder().addAll(PENDING_STATUSES)
+	                                                                                           .addAll(PENDING_REFUND_STATUSES)
+	                                                                                           .build();
+	// Our created_date is recorded after the GoCardless created_at
+	private static final long WINDOW_MARGIN_MILLIS = TimeUnit.HOURS.toMillis(1);
+	// Cursor format: <created_at lower bound> <after>, the page cursor being absent once the pass is complete
+	private static final String CURSOR_SEPARATOR = " ";
+
+	private final GoCardlessDao dao;
+	private final GoCardlessClientCache goCardlessClientCache;
+	private final GoCardlessApiExecutor goCardlessApiExecutor;
+	private final GoCardlessWebhookProcessor goCardlessWebhookProcessor;
+	private final GoCardlessJobLeases goCardlessJobLeases;
+	private final Clock clock;
+	private final long intervalSeconds;
+	private final int pageSize;
+	private final int fetchThreshold;
+
+	private ScheduledExecutorService scheduler;
+
+	public GoCardlessReconciliationJob(final GoCardlessConfigProperties config,
+	                                   final GoCardlessDao dao,
+	                                   final GoCardlessClientCache goCardlessClientCache,
+	                                   final GoCardlessApiExecutor goCardlessApiExecutor,
+	                                   final GoCardlessWebhookProcessor goCardlessWebhookProcessor,
+	                                   final GoCardlessJobLeases goCardlessJobLeases,
+	                                   final Clock clock) {
+		this.dao = dao;
+		this.goCardlessClientCache = goCardlessClientCache;
+		this.goCardlessApiExecutor = goCardlessApiExecutor;
+		this.goCardlessWebhookProcessor = goCardlessWebhookProcessor;
+		this.goCardlessJobLeases = goCardlessJobLeases;
+		this.clock = clock;
+		this.intervalSeconds = config.getReconciliationIntervalSeconds();
+		this.pageSize = config.getReconciliationPageSize();
+		this.fetchThreshold = config.getReconciliationFetchThreshold();
+	}
+
+	public synchronized void start() {
+		if (intervalSeconds <= 0 || scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("gocardless-reconciliation")
+		                                                                                 .setDaemon(true)
+		                                                                                 .build());
+		scheduler.scheduleWithFixedDelay(this::runOnce, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() throws InterruptedException {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler.awaitTermination(5, TimeUnit.SECONDS);
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Reconciles every tenant with pending payments or refunds, which no other node reconciled recently
+	 */
+	void runOnce() {
+		final List<UUID> kbTenantIds;
+		try {
+			kbTenantIds = new ArrayList<>(dao.getTenantsWithPaymentsInStatus(ALL_PENDING_STATUSES));
+		} catch (final SQLException e) {
+			logger.warn("Unable to look up tenants with pending payments", e);
+			return;
+		}
+		// Nodes running at the same time start on different tenants
+		Collections.shuffle(kbTenantIds);
+		for (final UUID kbTenantId : kbTenantIds) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			final DateTime startDate = clock.getUTCNow();
+			final Lease lease = goCardlessJobLeases.tryAcquire(JOB_NAME, kbTenantId);
+			if (lease == null) {
+				// Being reconciled, or reconciled recently, by another node
+				continue;
+			}
+			try {
+				final int updated = reconcile(lease, kbTenantId);
+				if (lease.isHeld() && !Thread.currentThread().isInterrupted()) {
+					logger.info("Reconciliation updated {} payments and refunds, kbTenantId={}", updated, kbTenantId);
+					// No other node reconciles the tenant until this one's next run is about due
+					lease.complete(startDate.plus(TimeUnit.SECONDS.toMillis(intervalSeconds) * 9 / 10));
+				} else {
+					// Cut short: the next run (on any node) resumes from the saved cursor
+					logger.info("Reconciliation stopped after updating {} payments and refunds, kbTenantId={}", updated, kbTenantId);
+					lease.close();
+				}
+			} catch (final Exception e) {
+				// The cursor was saved after the last successful page, the next run (on any node) resumes from there
+				logger.warn("Reconciliation failed, kbTenantId={}", kbTenantId, e);
+				lease.close();
+			}
+		}
+	}
+
+	/**
+	 * @param lease      the pass stops once the lease is lost, or the thread interrupted
+	 * @param kbTenantId
+	 * @return the number of payments and refunds whose status changed
+	 */
+	int reconcile(final Lease lease, final UUID kbTenantId) throws Exception {
+		final GoCardlessClient client = goCardlessClientCache.getClient(kbTenantId);
+		if (client == null) {
+			return 0;
+		}
+		final int updatedPayments = reconcile(lease, kbTenantId, JOB_NAME, TransactionType.PURCHASE, PENDING_STATUSES, "payments.list",
+		                                      (createdAtGte, after) -> {
+			                                      final PaymentListRequest<ListResponse<Payment>> request = client.payments().list()
+			                                                                                                      .withCreatedAtGte(createdAtGte)
+			                                                                                                      .withLimit(pageSize);
+			                                      return (after == null ? request : request.withAfter(after)).executeWrapped();
+		                                      },
+		                                      "payments.get",
+		                                      goCardlessId -> client.payments().get(goCardlessId).executeWrapped(),
+		                                      Payment::getId,
+		                                      payment -> payment.getStatus() == null ? null : payment.getStatus().name());
+		final int updatedRefunds = reconcile(lease, kbTenantId, REFUNDS_JOB_NAME, TransactionType.REFUND, PENDING_REFUND_STATUSES, "refunds.list",
+		                                     (createdAtGte, after) -> {
+			                                     final RefundListRequest<ListResponse<Refund>> request = client.refunds().list()
+			                                                                                                   .withCreatedAtGte(createdAtGte)
+			                                                                                                   .withLimit(pageSize);
+			                                     return (after == null ? request : request.withAfter(after)).executeWrapped();
+		                                     },
+		                                     "refunds.get",
+		                                     goCardlessId -> client.refunds().get(goCardlessId).executeWrapped(),
+		                                     Refund::getId,
+		                                     refund -> refund.getStatus() == null ? null : refund.getStatus().name());
+		return updatedPayments + updatedRefunds;
+	}
+
+	/**
+	 * One pass over a GoCardless listing, payments or refunds. When only a few records are pending, they are fetched one
+	 * by one instead: a single old pending record would otherwise have the pass list everything created since.
+	 *
+	 * @param listPage   lists the page after the cursor (null for the first page) of the resources created since the lower bound
+	 * @param getOne     fetches a resource by GoCardless id
+	 * @param idOf       GoCardless id of a listed resource
+	 * @param statusOf   GoCardless status of a listed resource, or null if unknown
+	 * @return the number of records whose status changed
+	 */
+	private <T> int reconcile(final Lease lease,
+	                          final UUID kbTenantId,
+	                          final String jobName,
+	                          final TransactionType transactionType,
+	                          final Collection<String> pendingStatuses,
+	                          final String operation,
+	                          final BiFunction<String, String, ApiResponse<ListResponse<T>>> listPage,
+	                          final String getOperation,
+	                          final Function<String, ApiResponse<T>> getOne,
+	                          final Function<T, String> idOf,
+	                          final Function<T, String> statusOf) throws Exception {
+		final String createdAtGte;
+		String after = null;
+		final String cursor = dao.getJobCursor(jobName, kbTenantId);
+		if (cursor != null && cursor.contains(CURSOR_SEPARATOR)) {
+			// Interrupted pass
+			createdAtGte = cursor.substring(0, cursor.indexOf(CURSOR_SEPARATOR));
+			after = cursor.substring(cursor.indexOf(CURSOR_SEPARATOR) + 1);
+			logger.info("Resuming {} from {} after {}, kbTenantId={}", jobName, createdAtGte, after, kbTenantId);
+		} else {
+			final List<GoCardlessPaymentRecord> pendingRecords = dao.getPaymentsInStatus(transactionType, pendingStatuses, fetchThreshold + 1, kbTenantId);
+			if (pendingRecords.size() <= fetchThreshold) {
+				return fetch(lease, kbTenantId, pendingRecords, getOperation, getOne, statusOf);
+			}
+			final DateTime oldestPending = dao.getOldestPaymentDateInStatus(transactionType, pendingStatuses, kbTenantId);
+			if (oldestPending == null) {
+				return 0;
+			}
+			createdAtGte = oldestPending.minus(WINDOW_MARGIN_MILLIS).toString();
+		}
+
+		int updated = 0;
+		do {
+			if (!lease.isHeld() || Thread.currentThread().isInterrupted()) {
+				// Another node took the tenant over, or the job is stopping
+				break;
+			}
+			final String pageAfter = after;
+			final ListResponse<T> page = goCardlessApiExecutor.execute(kbTenantId, operation, true, () -> listPage.apply(createdAtGte, pageAfter));
+			updated += apply(page.getItems(), pendingStatuses, idOf, statusOf, kbTenantId);
+			after = page.getAfter();
+			dao.saveJobCursor(jobName, after == null ? createdAtGte : createdAtGte + CURSOR_SEPARATOR + after, clock.getUTCNow(), kbTenantId);
+		} while (after != null);
+		return updated;
+	}
+
+	private <T> int fetch(final Lease lease,
+	                      final UUID kbTenantId,
+	                      final List<GoCardlessPaymentRecord> pendingRecords,
+	                      final String operation,
+	                      final Function<String, ApiResponse<T>> getOne,
+	                      final Function<T, String> statusOf) throws Exception {
+		int updated = 0;
+		for (final GoCardlessPaymentRecord paymentRecord : pendingRecords) {
+			if (!lease.isHeld() || Thread.currentThread().isInterrupted()) {
+				break;
+			}
+			final T resource = goCardlessApiExecutor.execute(kbTenantId, operation, true, () -> getOne.apply(paymentRecord.getGoCardlessId()));
+			final String status = statusOf.apply(resource);
+			if (status != null && goCardlessWebhookProcessor.applyStatus(paymentRecord, status)) {
+				updated++;
+			}
+		}
+		return updated;
+	}
+
+	// One query for the page, then only the records still pending locally are updated
+	private <T> int apply(final List<T> resources, final Collection<String> pendingStatuses, final Function<T, String> idOf,
+	                      final Function<T, String> statusOf, final UUID kbTenantId) throws Exception {
+		final Map<String, String> statusesById = new HashMap<>();
+		for (final T resource : resources) {
+			final String status = statusOf.apply(resource);
+			if (status != null) {
+				statusesById.put(idOf.apply(resource), status);
+			}
+		}
+		int updated = 0;
+		for (final GoCardlessPaymentRecord paymentRecord : dao.getPaymentsByGoCardlessIds(new ArrayList<>(statusesById.keySet()), kbTenantId)) {
+			if (pendingStatuses.contains(paymentRecord.getGoCardlessStatus())
+			    && goCardlessWebhookProcessor.applyStatus(paymentRecord, statusesById.get(paymentRecord.getGoCardlessId()))) {
+				updated++;
+			}
+		}
+		return updated;
+	}
+}
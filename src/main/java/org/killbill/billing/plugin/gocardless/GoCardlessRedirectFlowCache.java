@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import com.gocardless.resources.RedirectFlow;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Bounded, per-tenant cache of the redirect flows created for the checkout, so that double-clicks and page reloads
+ * get the flow created the first time instead of a new one. Concurrent requests for the same flow wait for a single
+ * creation. Flows are handed out for less than their GoCardless validity, and dropped once completed.
+ * Size and TTL are taken from the tenant configuration.
+ */
+public class GoCardlessRedirectFlowCache {
+
+	private final GoCardlessConfigurationHandler goCardlessConfigurationHandler;
+	private final ConcurrentMap<UUID, Cache<String, RedirectFlow>> caches = new ConcurrentHashMap<>();
+
+	public GoCardlessRedirectFlowCache(final GoCardlessConfigurationHandler goCardlessConfigurationHandler) {
+		this.goCardlessConfigurationHandler = goCardlessConfigurationHandler;
+		// Rebuild the tenant cache with the new size and TTL on configuration change
+		this.goCardlessConfigurationHandler.addConfigurationChangeListener(kbTenantId -> caches.remove(GoCardlessConfigurationHandler.tenantKey(kbTenantId)));
+	}
+
+	/**
+	 * @param kbTenantId
+	 * @param key     see {@link #key}
+	 * @param creator creates the redirect flow on a miss
+	 * @return the cached redirect flow, or the one just created
+	 */
+	public RedirectFlow get(@Nullable final UUID kbTenantId, final String key, final Supplier<RedirectFlow> creator) {
+		final Cache<String, RedirectFlow> cache = getCache(kbTenantId);
+		if (cache == null) {
+			return creator.get();
+		}
+		try {
+			return cache.get(key, creator::get);
+		} catch (final ExecutionException | UncheckedExecutionException e) {
+			// e.g. GoCardless errors, rate limiting or an open circuit: let them through as is
+			Throwables.throwIfUnchecked(e.getCause());
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Drops the redirect flow, e.g. once it has been completed
+	 *
+	 * @param kbTenantId
+	 * @param redirectFlowId
+	 */
+	public void invalidateRedirectFlow(@Nullable final UUID kbTenantId, final String redirectFlowId) {
+		final Cache<String, RedirectFlow> cache = getCache(kbTenantId);
+		if (cache != null) {
+			cache.asMap().values().removeIf(redirectFlow -> redirectFlowId.equals(redirectFlow.getId()));
+		}
+	}
+
+	/**
+	 * @return the cache key of a checkout: a different success URL or description needs its own flow
+	 */
+	public static String key(final UUID kbAccountId, @Nullable final String sessionToken, @Nullable final String description,
+	                         @Nullable final String successRedirectUrl) {
+		return kbAccountId + "\n" + sessionToken + "\n" + description + "\n" + successRedirectUrl;
+	}
+
+	public long getSize() {
+		long size = 0;
+		for (final Cache<String, RedirectFlow> cache : caches.values()) {
+			size += cache.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return hit and miss counters, aggregated across tenants
+	 */
+	public CacheStats getStats() {
+		CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+		for (final Cache<String, RedirectFlow> cache : caches.values()) {
+			stats = stats.plus(cache.stats());
+		}
+		return stats;
+	}
+
+	@Nullable
+	private Cache<String, RedirectFlow> getCache(@Nullable final UUID kbTenantId) {
+		final Cache<String, RedirectFlow> cache = caches.get(GoCardlessConfigurationHandler.tenantKey(kbTenantId));
+		if (cache != null) {
+			return cache;
+		}
+		final GoCardlessConfigProperties config = goCardlessConfigurationHandler.getConfigurable(kbTenantId);
+		if (config == null || config.getRedirectFlowCacheTtlSeconds() <= 0) {
+			return null;
+		}
+		return caches.computeIfAbsent(GoCardlessConfigurationHandler.tenantKey(kbTenantId), key -> CacheBuilder.newBuilder()
+				.maximumSize(config.getRedirectFlowCacheMaxSize())
+				.expireAfterWrite(config.getRedirectFlowCacheTtlSeconds(), TimeUnit.SECONDS)
+				.recordStats()
+				.build());
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gocardless.GoCardlessClient;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Warms up the plugin when the bundle starts, so that the first payments of each tenant don't pay for the client
+ * construction, class loading, TLS handshakes and JSON mapping.
+ *
+ * The default configuration and the tenants having payment methods are warmed up in parallel: their client is built,
+ * and a single creditor is listed, which opens a pooled connection and goes through the SDK response mapping. The
+ * whole warm-up is bounded by a time budget, past which it is abandoned: the remaining tenants are then warmed up by
+ * their first call, as they would have been without it.
+ */
+public class GoCardlessWarmUp {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessWarmUp.class);
+
+	public enum State {
+		DISABLED,
+		WARMING,
+		READY,
+		TIMED_OUT
+	}
+
+	private final GoCardlessDao dao;
+	private final GoCardlessClientCache goCardlessClientCache;
+	private final GoCardlessApiExecutor goCardlessApiExecutor;
+	private final boolean enabled;
+	private final long timeoutMillis;
+	private final int parallelism;
+	private final AtomicReference<State> state = new AtomicReference<>(State.DISABLED);
+	private final AtomicInteger warmed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private ExecutorService executor;
+	private CountDownLatch remaining;
+	private volatile int tenants;
+	private volatile long startNanos;
+	private volatile long durationMillis;
+
+	public GoCardlessWarmUp(final GoCardlessConfigProperties config,
+	                        final GoCardlessDao dao,
+	                        final GoCardlessClientCache goCardlessClientCache,
+	                        final GoCardlessApiExecutor goCardlessApiExecutor) {
+		this.dao = dao;
+		this.goCardlessClientCache = goCardlessClientCache;
+		this.goCardlessApiExecutor = goCardlessApiExecutor;
+		this.enabled = config.isWarmUpEnabled();
+		this.timeoutMillis = config.getWarmUpTimeoutMillis();
+		this.parallelism = config.getWarmUpParallelism();
+	}
+
+	/**
+	 * Starts warming up in the background, the time budget starts now
+	 */
+	public synchronized void start() {
+		if (!enabled || executor != null) {
+			return;
+		}
+		startNanos = System.nanoTime();
+		state.set(State.WARMING);
+
+		final List<UUID> kbTenantIds = new ArrayList<>();
+		// The default configuration, used by the tenants without their own
+		kbTenantIds.add(null);
+		try {
+			kbTenantIds.addAll(dao.getTenantsWithPaymentMethods());
+		} catch (final SQLException e) {
+			logger.warn("Unable to list the tenants to warm up, only the default configuration is warmed up", e);
+		}
+		tenants = kbTenantIds.size();
+		remaining = new CountDownLatch(kbTenantIds.size());
+
+		executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, kbTenantIds.size())),
+		                                        new ThreadFactoryBuilder().setNameFormat("gocardless-warmup-%d")
+		                                                                  .setDaemon(true)
+		                                                                  .build());
+		for (final UUID kbTenantId : kbTenantIds) {
+			executor.execute(() -> {
+				try {
+					warmUp(kbTenantId);
+				} finally {
+					remaining.countDown();
+					if (remaining.getCount() == 0) {
+						finish(State.READY);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits for the warm-up, at most until the time budget is spent. Past it, the tenants still warming up are abandoned.
+	 *
+	 * @return the final state
+	 */
+	public State awaitCompletion() throws InterruptedException {
+		final CountDownLatch latch;
+		synchronized (this) {
+			latch = remaining;
+		}
+		if (latch == null) {
+			return state.get();
+		}
+		final long waitNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis) - (System.nanoTime() - startNanos);
+		if (latch.await(Math.max(0, waitNanos), TimeUnit.NANOSECONDS)) {
+			// The last tenant may not have reported yet
+			finish(State.READY);
+		} else {
+			if (finish(State.TIMED_OUT)) {
+				logger.warn("Warm-up timed out after {}ms, warmed={}, failed={}, tenants={}", timeoutMillis, warmed.get(), failed.get(), tenants);
+			}
+			stop();
+		}
+		return state.get();
+	}
+
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	public Map<String, Object> getStats() {
+		final Map<String, Object> stats = new HashMap<>();
+		stats.put("state", state.get());
+		stats.put("tenants", tenants);
+		stats.put("warmed", warmed.get());
+		stats.put("failed", failed.get());
+		stats.put("durationMs", state.get() == State.WARMING ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) : durationMillis);
+		return stats;
+	}
+
+	private void warmUp(@Nullable final UUID kbTenantId) {
+		if (Thread.currentThread().isInterrupted()) {
+			return;
+		}
+		try {
+			final GoCardlessClient client = goCardlessClientCache.getClient(kbTenantId);
+			if (client == null) {
+				// Not configured, nothing to warm up
+				return;
+			}
+			// Same call as the healthcheck: authenticated, cheap, and with a response to map
+			goCardlessApiExecutor.execute(kbTenantId, "warmup", false, () -> client.creditors().list().withLimit(1).executeWrapped());
+			warmed.incrementAndGet();
+		} catch (final RuntimeException e) {
+			logger.warn("Unable to warm up kbTenantId={}", kbTenantId, e);
+			failed.incrementAndGet();
+		}
+	}
+
+	private boolean finish(final State finalState) {
+		if (!state.compareAndSet(State.WARMING, finalState)) {
+			return false;
+		}
+		durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		if (finalState == State.READY) {
+			logger.info("Warm-up completed in {}ms, warmed={}, failed={}, tenants={}", durationMillis, warmed.get(), failed.get(), tenants);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.util.UUID;
+
+/**
+ * A GoCardless webhook event, as queued by {@link GoCardlessWebhookProcessor}
+ */
+public class GoCardlessWebhookEvent {
+
+	private final String id;
+	private final String createdAt;
+	private final String resourceType;
+	private final String action;
+	private final String resourceId;
+	private final UUID kbTenantId;
+	private final long receivedAtMillis;
+	private int attempts;
+
+	public GoCardlessWebhookEvent(final String id,
+	                              final String createdAt,
+	                              final String resourceType,
+	                              final String action,
+	                              final String resourceId,
+	                              final UUID kbTenantId,
+	                              final long receivedAtMillis) {
+		this.id = id;
+		this.createdAt = createdAt;
+		this.resourceType = resourceType;
+		this.action = action;
+		this.resourceId = resourceId;
+		this.kbTenantId = kbTenantId;
+		this.receivedAtMillis = receivedAtMillis;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the ISO 8601 creation date, as sent by GoCardless
+	 */
+	public String getCreatedAt() {
+		return createdAt;
+	}
+
+	public String getResourceType() {
+		return resourceType;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	/**
+	 * @return the id of the payment or mandate the event is about
+	 */
+	public String getResourceId() {
+		return resourceId;
+	}
+
+	public UUID getKbTenantId() {
+		return kbTenantId;
+	}
+
+	public long getReceivedAtMillis() {
+		return receivedAtMillis;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	int incrementAttempts() {
+		return ++attempts;
+	}
+
+	@Override
+	public String toString() {
+		return "GoCardlessWebhookEvent{" +
+		       "id='" + id + '\'' +
+		       ", createdAt='" + createdAt + '\'' +
+		       ", resourceType='" + resourceType + '\'' +
+		       ", action='" + action + '\'' +
+		       ", resourceId='" + resourceId + '\'' +
+		       ", kbTenantId=" + kbTenantId +
+		       ", attempts=" + attempts +
+		       '}';
+	}
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessPaymentRecord;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gocardless.resources.Mandate;
+import com.gocardless.resources.Payment;
+import com.gocardless.resources.Refund;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Applies GoCardless webhook events to the payment, refund and mandate state, off the request thread.
+ * Events are deduped by id, queued in a bounded queue and applied in batches by a single worker:
+ * within a batch, only the latest event of each payment or refund is applied. Failed events are retried with an exponential backoff.
+ * Queued events are applied before the processor stops: the ones still queued when the node crashes are caught up by the reconciliation
+ * if the transaction was pending.
+ */
+public class GoCardlessWebhookProcessor {
+
+	private static final Logger logger = LoggerFactory.getLogger(GoCardlessWebhookProcessor.class);
+
+	private static final String HMAC_SHA256 = "HmacSHA256";
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	// GoCardless retries a webhook for up to a few days, duplicates after that are very unlikely
+	private static final long DEDUPE_WINDOW_HOURS = 72;
+	private static final long DEDUPE_MAX_SIZE = 100000;
+
+	private final GoCardlessDao dao;
+	private final GoCardlessMandateCache goCardlessMandateCache;
+	private final OSGIKillbillAPI killbillAPI;
+	private final Clock clock;
+	private final int batchSize;
+	private final int maxRetries;
+	private final long retryDelayMillis;
+	private final BlockingQueue<GoCardlessWebhookEvent> queue;
+	// Events waiting for their retry, put back in the queue once the delay is over
+	private final Map<String, GoCardlessWebhookEvent> delayedRetries = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("gocardless-webhook-retries")
+	                                                                                                                          .setDaemon(true)
+	                                                                                                                          .build());
+	private final Cache<String, Boolean> seenEventIds = CacheBuilder.newBuilder()
+	                                                                .maximumSize(DEDUPE_MAX_SIZE)
+	                                                                .expireAfterWrite(DEDUPE_WINDOW_HOURS, TimeUnit.HOURS)
+	                                                                .build();
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+	private volatile long lastLagMillis;
+
+	private volatile boolean running;
+	private volatile boolean stopping;
+	private Thread worker;
+
+	public GoCardlessWebhookProcessor(final GoCardlessConfigProperties config,
+	                                  final GoCardlessDao dao,
+	                                  final GoCardlessMandateCache goCardlessMandateCache,
+	                                  final OSGIKillbillAPI killbillAPI,
+	                                  final Clock clock) {
+		this.dao = dao;
+		this.goCardlessMandateCache = goCardlessMandateCache;
+		this.killbillAPI = killbillAPI;
+		this.clock = clock;
+		this.batchSize = config.getWebhookBatchSize();
+		this.maxRetries = config.getWebhookMaxRetries();
+		this.retryDelayMillis = config.getWebhookRetryDelayMillis();
+		this.queue = new ArrayBlockingQueue<>(config.getWebhookQueueCapacity());
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		worker = new Thread(this::run, "gocardless-webhook-processor");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Rejects new events, and applies the queued ones (including the ones waiting for a retry) on the calling thread.
+	 * The processor can't be restarted afterwards.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		stopping = true;
+		running = false;
+		if (worker != null) {
+			worker.interrupt();
+			worker.join(TimeUnit.SECONDS.toMillis(5));
+			worker = null;
+		}
+		retryScheduler.shutdownNow();
+		retryScheduler.awaitTermination(5, TimeUnit.SECONDS);
+		for (final GoCardlessWebhookEvent event : delayedRetries.values()) {
+			requeue(event);
+		}
+		if (!queue.isEmpty()) {
+			logger.info("Applying {} webhook events before stopping", queue.size());
+			processPending();
+		}
+	}
+
+	/**
+	 * Queues the event, unless it has already been received
+	 *
+	 * @param event
+	 * @return false if the queue is full or the processor is stopping, and the event should be redelivered
+	 */
+	public boolean submit(final GoCardlessWebhookEvent event) {
+		if (stopping) {
+			logger.info("Stopping, rejecting webhook event {}", event.getId());
+			return false;
+		}
+		received.increment();
+		if (seenEventIds.asMap().putIfAbsent(event.getId(), Boolean.TRUE) != null) {
+			duplicates.increment();
+			logger.debug("Ignoring duplicate webhook event {}", event.getId());
+			return true;
+		}
+		if (!queue.offer(event)) {
+			// Forget about it, so that the redelivery isn't mistaken for a duplicate
+			seenEventIds.invalidate(event.getId());
+			dropped.increment();
+			logger.warn("Webhook queue full, rejecting event {}", event.getId());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Applies all queued events on the calling thread
+	 */
+	void processPending() {
+		final List<GoCardlessWebhookEvent> batch = new ArrayList<>();
+		while (queue.drainTo(batch, batchSize) > 0) {
+			applyBatch(batch);
+			batch.clear();
+		}
+	}
+
+	private void run() {
+		final List<GoCardlessWebhookEvent> batch = new ArrayList<>(batchSize);
+		while (running) {
+			try {
+				final GoCardlessWebhookEvent first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				applyBatch(batch);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (final RuntimeException e) {
+				logger.warn("Unexpected error while processing webhook events", e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void applyBatch(final List<GoCardlessWebhookEvent> batch) {
+		batch.sort(Comparator.comparing(GoCardlessWebhookEvent::getCreatedAt, Comparator.nullsFirst(Comparator.naturalOrder())));
+
+		// Several events for the same payment or refund collapse into the latest one
+		final Map<String, GoCardlessWebhookEvent> latestPaymentEvents = new LinkedHashMap<>();
+		for (final GoCardlessWebhookEvent event : batch) {
+			lastLagMillis = clock.getUTCNow().getMillis() - event.getReceivedAtMillis();
+			if (("payments".equals(event.getResourceType()) && toPaymentStatus(event.getAction()) != null)
+			    || ("refunds".equals(event.getResourceType()) && toRefundStatus(event.getAction()) != null)) {
+				final GoCardlessWebhookEvent superseded = latestPaymentEvents.put(event.getKbTenantId() + ":" + event.getResourceId(), event);
+				if (superseded != null) {
+					processed.increment();
+				}
+			} else if ("mandates".equals(event.getResourceType())) {
+				applyMandateEvent(event);
+				processed.increment();
+			} else {
+				logger.debug("Ignoring webhook event {}", event);
+				processed.increment();
+			}
+		}
+
+		for (final GoCardlessWebhookEvent event : latestPaymentEvents.values()) {
+			try {
+				if ("refunds".equals(event.getResourceType())) {
+					applyRefundEvent(event);
+				} else {
+					applyPaymentEvent(event);
+				}
+				processed.increment();
+			} catch (final Exception e) {
+				logger.warn("Error while applying webhook event {}", event, e);
+				retry(event);
+			}
+		}
+	}
+
+	private void retry(final GoCardlessWebhookEvent event) {
+		final int attempts = event.incrementAttempts();
+		if (attempts <= maxRetries && !stopping) {
+			// 1x, 2x, 4x... the delay, so that a database or Kill Bill hiccup has time to clear
+			final long delayMillis = retryDelayMillis << Math.min(attempts - 1, 16);
+			delayedRetries.put(event.getId(), event);
+			retryScheduler.schedule(() -> {
+				if (delayedRetries.remove(event.getId()) != null) {
+					requeue(event);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+			retried.increment();
+			return;
+		}
+		drop(event);
+	}
+
+	private void requeue(final GoCardlessWebhookEvent event) {
+		if (!queue.offer(event)) {
+			drop(event);
+		}
+	}
+
+	private void drop(final GoCardlessWebhookEvent event) {
+		// Give up, but let a manual redelivery from the GoCardless dashboard through
+		delayedRetries.remove(event.getId());
+		seenEventIds.invalidate(event.getId());
+		dropped.increment();
+		logger.warn("Dropping webhook event {} after {} attempts", event.getId(), event.getAttempts());
+	}
+
+	private void applyPaymentEvent(final GoCardlessWebhookEvent event) throws Exception {
+		final Payment.Status status = toPaymentStatus(event.getAction());
+		final GoCardlessPaymentRecord paymentRecord = dao.getPaymentByGoCardlessId(event.getResourceId(), event.getKbTenantId());
+		if (paymentRecord == null) {
+			logger.debug("Ignoring webhook event {} for unknown payment", event.getId());
+			return;
+		}
+		final Payment.Status previousStatus = paymentRecord.getGoCardlessStatus() == null ? null : Payment.Status.valueOf(paymentRecord.getGoCardlessStatus());
+		if (status == previousStatus || isOutOfOrder(previousStatus, status, event.getAction())) {
+			return;
+		}
+		applyStatus(paymentRecord, status.name());
+	}
+
+	private void applyRefundEvent(final GoCardlessWebhookEvent event) throws Exception {
+		final Refund.Status status = toRefundStatus(event.getAction());
+		final GoCardlessPaymentRecord refundRecord = dao.getPaymentByGoCardlessId(event.getResourceId(), event.getKbTenantId());
+		if (refundRecord == null || refundRecord.getTransactionType() != TransactionType.REFUND) {
+			logger.debug("Ignoring webhook event {} for unknown refund", event.getId());
+			return;
+		}
+		final Refund.Status previousStatus = refundRecord.getGoCardlessStatus() == null ? null : Refund.Status.valueOf(refundRecord.getGoCardlessStatus());
+		if (status == previousStatus || (previousStatus != null && rank(status) < rank(previousStatus))) {
+			return;
+		}
+		applyStatus(refundRecord, status.name());
+	}
+
+	/**
+	 * Records the new status of the payment or refund, notifying Kill Bill first when a pending transaction reaches a final state
+	 * (if this fails, the status isn't recorded and the next attempt notifies again). A purchase charged back or failing late once
+	 * confirmed is recorded as a chargeback in Kill Bill. Kill Bill has no way to reverse a successful refund or to reopen a failed
+	 * transaction, so the other changes of a final state (a refund bouncing once paid, a failed payment resubmitted) are only
+	 * recorded in the plugin table.
+	 *
+	 * @param paymentRecord
+	 * @param goCardlessStatus current GoCardless status, of the payment or of the refund depending on the transaction type
+	 * @return true if the status changed
+	 */
+	boolean applyStatus(final GoCardlessPaymentRecord paymentRecord, final String goCardlessStatus) throws AccountApiException, SQLException {
+		if (goCardlessStatus.equals(paymentRecord.getGoCardlessStatus())) {
+			return false;
+		}
+		final PaymentPluginStatus previousKbStatus = paymentRecord.getGoCardlessStatus() == null ? PaymentPluginStatus.PENDING
+				: GoCardlessPaymentPluginApi.convertGoCardlessToKillBillStatus(paymentRecord.getTransactionType(), paymentRecord.getGoCardlessStatus());
+		final PaymentPluginStatus kbStatus = GoCardlessPaymentPluginApi.convertGoCardlessToKillBillStatus(paymentRecord.getTransactionType(), goCardlessStatus);
+		if (previousKbStatus == PaymentPluginStatus.PENDING && kbStatus != PaymentPluginStatus.PENDING) {
+			notifyKillBill(paymentRecord, kbStatus == PaymentPluginStatus.PROCESSED);
+		} else if (previousKbStatus == PaymentPluginStatus.PROCESSED && paymentRecord.getTransactionType() == TransactionType.PURCHASE
+		           && (kbStatus == PaymentPluginStatus.ERROR || Payment.Status.CHARGED_BACK.name().equals(goCardlessStatus))) {
+			// charged_back is still reported as PROCESSED by getPaymentInfo
+			recordChargeback(paymentRecord, goCardlessStatus);
+		} else if (previousKbStatus != kbStatus && previousKbStatus != PaymentPluginStatus.PENDING) {
+			logger.warn("GoCardless status of kbTransactionId={} changed from {} to {} after it was final, not reported to Kill Bill",
+			            paymentRecord.getKbPaymentTransactionId(), paymentRecord.getGoCardlessStatus(), goCardlessStatus);
+		}
+		dao.updatePaymentStatus(paymentRecord.getGoCardlessId(), goCardlessStatus, clock.getUTCNow(), paymentRecord.getKbTenantId());
+		return true;
+	}
+
+	private void notifyKillBill(final GoCardlessPaymentRecord paymentRecord, final boolean isSuccess) throws AccountApiException {
+		final CallContext context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getUTCNow(), paymentRecord.getKbAccountId(), paymentRecord.getKbTenantId());
+		final Account account = killbillAPI.getAccountUserApi().getAccountById(paymentRecord.getKbAccountId(), context);
+		try {
+			killbillAPI.getPaymentApi().notifyPendingTransactionOfStateChanged(account, paymentRecord.getKbPaymentTransactionId(), isSuccess, context);
+		} catch (final PaymentApiException e) {
+			// Typically the transaction isn't pending anymore in Kill Bill, retrying won't help
+			logger.warn("Unable to notify Kill Bill of the new state of kbTransactionId={}", paymentRecord.getKbPaymentTransactionId(), e);
+		}
+	}
+
+	private void recordChargeback(final GoCardlessPaymentRecord paymentRecord, final String goCardlessStatus) throws AccountApiException {
+		final CallContext context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getUTCNow(), paymentRecord.getKbAccountId(), paymentRecord.getKbTenantId());
+		final Account account = killbillAPI.getAccountUserApi().getAccountById(paymentRecord.getKbAccountId(), context);
+		// Derived from the GoCardless payment, so that Kill Bill rejects a second chargeback for the same event
+		final String chargebackExternalKey = paymentRecord.getGoCardlessId() + "-" + goCardlessStatus.toLowerCase();
+		try {
+			killbillAPI.getPaymentApi().createChargeback(account, paymentRecord.getKbPaymentId(), paymentRecord.getAmount(), paymentRecord.getCurrency(),
+			                                             clock.getUTCNow(), chargebackExternalKey, context);
+		} catch (final PaymentApiException e) {
+			// Typically already recorded, retrying won't help
+			logger.warn("Unable to record the chargeback of kbPaymentId={}", paymentRecord.getKbPaymentId(), e);
+		}
+	}
+
+	private void applyMandateEvent(final GoCardlessWebhookEvent event) {
+		final Mandate.Status status = toMandateStatus(event.getAction());
+		if (status != null) {
+			try {
+				dao.updateMandate(event.getResourceId(), status.name(), null, clock.getUTCNow(), event.getKbTenantId());
+			} catch (final SQLException e) {
+				// the next mandate event or a payment method refresh catches up
+				logger.warn("Error while updating mandate {} for webhook event {}", event.getResourceId(), event.getId(), e);
+			}
+		}
+		switch (event.getAction()) {
+			case "cancelled":
+			case "failed":
+			case "expired":
+			case "replaced":
+			case "blocked":
+				// The account will have to go through a new redirect flow
+				goCardlessMandateCache.invalidateMandate(event.getKbTenantId(), event.getResourceId());
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * @param action
+	 * @return the payment status after the event, or null if the action doesn't change the status
+	 */
+	@Nullable
+	static Payment.Status toPaymentStatus(final String action) {
+		if (action == null) {
+			return null;
+		}
+		if ("resubmission_requested".equals(action)) {
+			return Payment.Status.PENDING_SUBMISSION;
+		}
+		try {
+			return Payment.Status.valueOf(action.toUpperCase());
+		} catch (final IllegalArgumentException e) {
+			// e.g. created, late_failure_settled, chargeback_settled
+			return null;
+		}
+	}
+
+	/**
+	 * @param action
+	 * @return the refund status after the event, or null if the action doesn't change the status
+	 */
+	@Nullable
+	static Refund.Status toRefundStatus(final String action) {
+		if (action == null) {
+			return null;
+		}
+		if ("failed".equals(action)) {
+			// The refund didn't reach the customer, there is no failed refund status
+			return Refund.Status.BOUNCED;
+		}
+		try {
+			return Refund.Status.valueOf(action.toUpperCase());
+		} catch (final IllegalArgumentException e) {
+			// e.g. refund_settled
+			return null;
+		}
+	}
+
+	/**
+	 * @param action
+	 * @return the mandate status after the event, or null if the action doesn't change the status
+	 */
+	@Nullable
+	static Mandate.Status toMandateStatus(final String action) {
+		if (action == null) {
+			return null;
+		}
+		if ("reinstated".equals(action)) {
+			return Mandate.Status.ACTIVE;
+		}
+		try {
+			return Mandate.Status.valueOf(action.toUpperCase());
+		} catch (final IllegalArgumentException e) {
+			// e.g. created, transferred, replaced
+			return null;
+		}
+	}
+
+	// GoCardless doesn't guarantee delivery order: don't let a late event move a payment backwards
+	private static boolean isOutOfOrder(@Nullable final Payment.Status previousStatus, final Payment.Status status, final String action) {
+		return previousStatus != null && !"resubmission_requested".equals(action) && rank(status) < rank(previousStatus);
+	}
+
+	private static int rank(final Payment.Status status) {
+		switch (status) {
+			case PENDING_CUSTOMER_APPROVAL:
+				return 0;
+			case PENDING_SUBMISSION:
+				return 1;
+			case SUBMITTED:
+				return 2;
+			case CONFIRMED:
+				return 3;
+			case PAID_OUT:
+				return 4;
+			default:
+				// failed, cancelled, customer_approval_denied, charged_back
+				return 5;
+		}
+	}
+
+	private static int rank(final Refund.Status status) {
+		switch (status) {
+			case CREATED:
+				return 0;
+			case PENDING_SUBMISSION:
+				return 1;
+			case SUBMITTED:
+				return 2;
+			case PAID:
+				return 3;
+			default:
+				// cancelled, bounced, funds_returned
+				return 4;
+		}
+	}
+
+	/**
+	 * Verifies the Webhook-Signature header, the hex HMAC-SHA256 of the body keyed by the endpoint secret
+	 *
+	 * @param body
+	 * @param signature
+	 * @param secret
+	 * @return true if the body was signed with the secret
+	 */
+	public static boolean isValidSignature(final String body, @Nullable final String signature, @Nullable final String secret) {
+		if (signature == null || secret == null || secret.isEmpty()) {
+			return false;
+		}
+		try {
+			final Mac mac = Mac.getInstance(HMAC_SHA256);
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_SHA256));
+			final String expected = BaseEncoding.base16().lowerCase().encode(mac.doFinal(body.getBytes(StandardCharsets.UTF_8)));
+			return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), signature.trim().toLowerCase().getBytes(StandardCharsets.UTF_8));
+		} catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+			logger.warn("Unable to verify webhook signature", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @param body           the webhook body, {"events": [...]}
+	 * @param kbTenantId
+	 * @param receivedAtMillis
+	 * @return the events, in the order GoCardless sent them, without those missing an id, resource type or action
+	 * @throws IOException if the body isn't valid JSON
+	 */
+	public static List<GoCardlessWebhookEvent> parseEvents(final String body, final UUID kbTenantId, final long receivedAtMillis) throws IOException {
+		final List<GoCardlessWebhookEvent> events = new ArrayList<>();
+		for (final JsonNode node : objectMapper.readTree(body).path("events")) {
+			final String id = node.path("id").asText(null);
+			final String resourceType = node.path("resource_type").asText(null);
+			final String action = node.path("action").asText(null);
+			if (Strings.isNullOrEmpty(id) || Strings.isNullOrEmpty(resourceType) || Strings.isNullOrEmpty(action)) {
+				// Can't be deduped nor applied, the other events of the webhook still are
+				logger.warn("Skipping malformed webhook event {}, kbTenantId={}", node, kbTenantId);
+				continue;
+			}
+			// links.payment for payments, links.mandate for mandates, etc.
+			final String linkName = resourceType.endsWith("s") ? resourceType.substring(0, resourceType.length() - 1) : resourceType;
+			events.add(new GoCardlessWebhookEvent(id,
+			                                      node.path("created_at").asText(null),
+			                                      resourceType,
+			                                      action,
+			                                      node.path("links").path(linkName).asText(null),
+			                                      kbTenantId,
+			                                      receivedAtMillis));
+		}
+		return events;
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return how long the oldest queued event has been waiting, in milliseconds
+	 */
+	public long getOldestEventAgeMillis() {
+		final GoCardlessWebhookEvent oldest = queue.peek();
+		return oldest == null ? 0 : clock.getUTCNow().getMillis() - oldest.getReceivedAtMillis();
+	}
+
+	/**
+	 * @return the time between reception and processing of the last processed event, in milliseconds
+	 */
+	public long getLastLagMillis() {
+		return lastLagMillis;
+	}
+
+	public long getReceived() {
+		return received.sum();
+	}
+
+	public long getProcessed() {
+		return processed.sum();
+	}
+
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getRetried() {
+		return retried.sum();
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.mvc.Body;
+import org.jooby.mvc.Header;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.POST;
+import org.jooby.mvc.Path;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.GatewayNotification;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.util.callcontext.CallContext;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.Optional;
+
+@Singleton
+// Handle /plugins/killbill-gocardless/webhook
+@Path("/webhook")
+public class GoCardlessWebhookServlet {
+
+    private final OSGIKillbillClock clock;
+    // Instrumented, so that webhooks show up in the processNotification metrics
+    private final GoCardlessInstrumentedPaymentPluginApi goCardlessPaymentPluginApi;
+
+    @Inject
+    public GoCardlessWebhookServlet(final OSGIKillbillClock clock,
+                                    final GoCardlessInstrumentedPaymentPluginApi goCardlessPaymentPluginApi) {
+        this.clock = clock;
+        this.goCardlessPaymentPluginApi = goCardlessPaymentPluginApi;
+    }
+
+    // GoCardless webhook endpoint: events are verified and queued, then applied asynchronously
+    @POST
+    public Result receiveWebhook(@Header(GoCardlessPaymentPluginApi.WEBHOOK_SIGNATURE_HEADER) final Optional<String> signature,
+                                 @Body final String body,
+                                 @Local @Named("killbill_tenant") final Tenant tenant) throws PaymentPluginApiException {
+        final CallContext context = new PluginCallContext(GoCardlessActivator.PLUGIN_NAME, clock.getClock().getUTCNow(), null, tenant.getId());
+        final ImmutableList<PluginProperty> properties = signature.isPresent() ?
+                                                         ImmutableList.of(new PluginProperty(GoCardlessPaymentPluginApi.WEBHOOK_SIGNATURE_HEADER, signature.get(), false)) :
+                                                         ImmutableList.of();
+        final GatewayNotification notification = goCardlessPaymentPluginApi.processNotification(body, properties, context);
+        return Results.with(notification.getStatus());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless.dao;
+
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+
+/**
+ * A row of the gocardless_audit_log table: one attempt of a GoCardless request
+ */
+public class GoCardlessAuditRecord {
+
+	private final Long recordId;
+	private final String operation;
+	private final String objectId;
+	private final String idempotencyKey;
+	private final int attempt;
+	private final Integer statusCode;
+	private final long latencyMillis;
+	private final String outcome;
+	private final String errorType;
+	private final String requestId;
+	private final DateTime createdDate;
+	private final UUID kbTenantId;
+
+	public GoCardlessAuditRecord(final Long recordId, final String operation, final String objectId, final String idempotencyKey,
+			final int attempt, final Integer statusCode, final long latencyMillis, final String outcome, final String errorType,
+			final String requestId, final DateTime createdDate, final UUID kbTenantId) {
+		this.recordId = recordId;
+		this.operation = operation;
+		this.objectId = objectId;
+		this.idempotencyKey = idempotencyKey;
+		this.attempt = attempt;
+		this.statusCode = statusCode;
+		this.latencyMillis = latencyMillis;
+		this.outcome = outcome;
+		this.errorType = errorType;
+		this.requestId = requestId;
+		this.createdDate = createdDate;
+		this.kbTenantId = kbTenantId;
+	}
+
+	public Long getRecordId() {
+		return recordId;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return the Kill Bill or GoCardless id the request is about, e.g. the Kill Bill payment id of a payment creation
+	 */
+	public String getObjectId() {
+		return objectId;
+	}
+
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+
+	public int getAttempt() {
+		return attempt;
+	}
+
+	/**
+	 * @return the HTTP status, or null if GoCardless didn't answer
+	 */
+	public Integer getStatusCode() {
+		return statusCode;
+	}
+
+	public long getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public String getOutcome() {
+		return outcome;
+	}
+
+	public String getErrorType() {
+		return errorType;
+	}
+
+	/**
+	 * @return the GoCardless request id of a failed request, to quote to GoCardless support
+	 */
+	public String getRequestId() {
+		return requestId;
+	}
+
+	public DateTime getCreatedDate() {
+		return createdDate;
+	}
+
+	/**
+	 * @return the tenant, or null for the default configuration
+	 */
+	public UUID getKbTenantId() {
+		return kbTenantId;
+	}
+}
@@ -0,0 +1,868 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless.dao;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jooq.Condition;
+import org.jooq.Field;
+import org.jooq.InsertValuesStep11;
+import org.jooq.Record;
+import org.jooq.SelectConditionStep;
+import org.jooq.Table;
+import org.jooq.exception.DataAccessException;
+import org.jooq.exception.SQLStateClass;
+import org.jooq.impl.DSL;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.dao.PluginDao;
+
+import com.gocardless.resources.Mandate;
+import com.gocardless.resources.Payment;
+
+/**
+ * Access to the plugin tables (see ddl.sql)
+ */
+public class GoCardlessDao extends PluginDao {
+
+	static final Table<Record> GOCARDLESS_PAYMENTS = DSL.table(DSL.unquotedName("gocardless_payments"));
+	static final Field<Long> RECORD_ID = DSL.field(DSL.unquotedName("record_id"), Long.class);
+	static final Field<String> KB_ACCOUNT_ID = DSL.field(DSL.unquotedName("kb_account_id"), String.class);
+	static final Field<String> KB_PAYMENT_ID = DSL.field(DSL.unquotedName("kb_payment_id"), String.class);
+	static final Field<String> KB_PAYMENT_TRANSACTION_ID = DSL.field(DSL.unquotedName("kb_payment_transaction_id"), String.class);
+	static final Field<String> TRANSACTION_TYPE = DSL.field(DSL.unquotedName("transaction_type"), String.class);
+	static final Field<BigDecimal> AMOUNT = DSL.field(DSL.unquotedName("amount"), BigDecimal.class);
+	static final Field<String> CURRENCY = DSL.field(DSL.unquotedName("currency"), String.class);
+	static final Field<String> GOCARDLESS_ID = DSL.field(DSL.unquotedName("gocardless_id"), String.class);
+	static final Field<String> GOCARDLESS_MANDATE_ID = DSL.field(DSL.unquotedName("gocardless_mandate_id"), String.class);
+	static final Field<String> GOCARDLESS_STATUS = DSL.field(DSL.unquotedName("gocardless_status"), String.class);
+	static final Field<LocalDateTime> CREATED_DATE = DSL.field(DSL.unquotedName("created_date"), LocalDateTime.class);
+	static final Field<LocalDateTime> UPDATED_DATE = DSL.field(DSL.unquotedName("updated_date"), LocalDateTime.class);
+	static final Field<String> KB_TENANT_ID = DSL.field(DSL.unquotedName("kb_tenant_id"), String.class);
+	static final Field<?>[] GOCARDLESS_PAYMENTS_FIELDS = {RECORD_ID, KB_ACCOUNT_ID, KB_PAYMENT_ID, KB_PAYMENT_TRANSACTION_ID, TRANSACTION_TYPE, AMOUNT, CURRENCY,
+			GOCARDLESS_ID, GOCARDLESS_MANDATE_ID, GOCARDLESS_STATUS, CREATED_DATE, UPDATED_DATE, KB_TENANT_ID};
+
+	// GoCardless ids are prefixed by the resource type
+	static final String MANDATE_ID_PREFIX = "MD";
+	static final String CUSTOMER_ID_PREFIX = "CU";
+
+	static final Table<Record> GOCARDLESS_PAYMENT_METHODS = DSL.table(DSL.unquotedName("gocardless_payment_methods"));
+	static final Field<String> KB_PAYMENT_METHOD_ID = DSL.field(DSL.unquotedName("kb_payment_method_id"), String.class);
+	static final Field<String> GOCARDLESS_CUSTOMER_ID = DSL.field(DSL.unquotedName("gocardless_customer_id"), String.class);
+	static final Field<String> MANDATE_STATUS = DSL.field(DSL.unquotedName("mandate_status"), String.class);
+	static final Field<String> SCHEME = DSL.field(DSL.unquotedName("scheme"), String.class);
+	static final Field<LocalDate> NEXT_POSSIBLE_CHARGE_DATE = DSL.field(DSL.unquotedName("next_possible_charge_date"), LocalDate.class);
+	static final Field<Short> IS_DEFAULT = DSL.field(DSL.unquotedName("is_default"), Short.class);
+	static final Field<Short> IS_DELETED = DSL.field(DSL.unquotedName("is_deleted"), Short.class);
+	static final Field<?>[] GOCARDLESS_PAYMENT_METHODS_FIELDS = {RECORD_ID, KB_ACCOUNT_ID, KB_PAYMENT_METHOD_ID, GOCARDLESS_MANDATE_ID, GOCARDLESS_CUSTOMER_ID,
+			MANDATE_STATUS, SCHEME, NEXT_POSSIBLE_CHARGE_DATE, IS_DEFAULT, IS_DELETED, CREATED_DATE, UPDATED_DATE, KB_TENANT_ID};
+	private static final short TRUE = 1;
+	private static final short FALSE = 0;
+
+	static final Table<Record> GOCARDLESS_JOB_CURSORS = DSL.table(DSL.unquotedName("gocardless_job_cursors"));
+	static final Field<String> JOB_NAME = DSL.field(DSL.unquotedName("job_name"), String.class);
+	static final Field<String> JOB_CURSOR = DSL.field(DSL.unquotedName("job_cursor"), String.class);
+
+	static final Table<Record> GOCARDLESS_JOB_LEASES = DSL.table(DSL.unquotedName("gocardless_job_leases"));
+	static final Field<String> LEASE_OWNER = DSL.field(DSL.unquotedName("lease_owner"), String.class);
+	static final Field<LocalDateTime> LEASE_EXPIRES = DSL.field(DSL.unquotedName("lease_expires"), LocalDateTime.class);
+
+	static final Table<Record> GOCARDLESS_AUDIT_LOG = DSL.table(DSL.unquotedName("gocardless_audit_log"));
+	static final Field<String> OPERATION = DSL.field(DSL.unquotedName("operation"), String.class);
+	static final Field<String> OBJECT_ID = DSL.field(DSL.unquotedName("object_id"), String.class);
+	static final Field<String> IDEMPOTENCY_KEY = DSL.field(DSL.unquotedName("idempotency_key"), String.class);
+	static final Field<Integer> ATTEMPT = DSL.field(DSL.unquotedName("attempt"), Integer.class);
+	static final Field<Integer> STATUS_CODE = DSL.field(DSL.unquotedName("status_code"), Integer.class);
+	static final Field<Long> LATENCY_MS = DSL.field(DSL.unquotedName("latency_ms"), Long.class);
+	static final Field<String> OUTCOME = DSL.field(DSL.unquotedName("outcome"), String.class);
+	static final Field<String> ERROR_TYPE = DSL.field(DSL.unquotedName("error_type"), String.class);
+	static final Field<String> REQUEST_ID = DSL.field(DSL.unquotedName("request_id"), String.class);
+
+	public GoCardlessDao(final DataSource dataSource) throws SQLException {
+		super(dataSource);
+	}
+
+	// Payments
+
+	public void addPayment(final UUID kbAccountId,
+	                       final UUID kbPaymentId,
+	                       final UUID kbTransactionId,
+	                       final TransactionType transactionType,
+	                       final BigDecimal amount,
+	                       final Currency currency,
+	                       final String goCardlessId,
+	                       final String goCardlessMandateId,
+	                       final String goCardlessStatus,
+	                       final DateTime utcNow,
+	                       final UUID kbTenantId) throws SQLException {
+		execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.insertInto(GOCARDLESS_PAYMENTS,
+								KB_ACCOUNT_ID,
+								KB_PAYMENT_ID,
+								KB_PAYMENT_TRANSACTION_ID,
+								TRANSACTION_TYPE,
+								AMOUNT,
+								CURRENCY,
+								GOCARDLESS_ID,
+								GOCARDLESS_MANDATE_ID,
+								GOCARDLESS_STATUS,
+								CREATED_DATE,
+								UPDATED_DATE,
+								KB_TENANT_ID)
+						.values(kbAccountId.toString(),
+								kbPaymentId.toString(),
+								kbTransactionId.toString(),
+								transactionType.toString(),
+								amount,
+								currency == null ? null : currency.toString(),
+								goCardlessId,
+								goCardlessMandateId,
+								goCardlessStatus,
+								toLocalDateTime(utcNow),
+								toLocalDateTime(utcNow),
+								kbTenantId.toString())
+						.execute());
+	}
+
+	/**
+	 * @param kbPaymentId
+	 * @param kbTenantId
+	 * @return all GoCardless resources linked to the Kill Bill payment, oldest first
+	 */
+	public List<GoCardlessPaymentRecord> getPayments(final UUID kbPaymentId, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> toPaymentRecords(DSL.using(conn, dialect, settings)
+						.select(GOCARDLESS_PAYMENTS_FIELDS)
+						.from(GOCARDLESS_PAYMENTS)
+						.where(KB_PAYMENT_ID.equal(kbPaymentId.toString()))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.orderBy(RECORD_ID.asc())
+						.fetch()));
+	}
+
+	/**
+	 * @param goCardlessId
+	 * @param kbTenantId
+	 * @return the payment record, or null if the GoCardless payment wasn't created by this plugin
+	 */
+	public GoCardlessPaymentRecord getPaymentByGoCardlessId(final String goCardlessId, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> {
+					final Record record = DSL.using(conn, dialect, settings)
+							.select(GOCARDLESS_PAYMENTS_FIELDS)
+							.from(GOCARDLESS_PAYMENTS)
+							.where(GOCARDLESS_ID.equal(goCardlessId))
+							.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+							.orderBy(RECORD_ID.desc())
+							.limit(1)
+							.fetchOne();
+					return record == null ? null : toPaymentRecord(record);
+				});
+	}
+
+	public void updatePaymentStatus(final String goCardlessId, final String goCardlessStatus, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+		execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.update(GOCARDLESS_PAYMENTS)
+						.set(GOCARDLESS_STATUS, goCardlessStatus)
+						.set(UPDATED_DATE, toLocalDateTime(utcNow))
+						.where(GOCARDLESS_ID.equal(goCardlessId))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.execute());
+	}
+
+	/**
+	 * @param goCardlessIds
+	 * @param kbTenantId
+	 * @return the payment records of the GoCardless payments created by this plugin, in one query
+	 */
+	public List<GoCardlessPaymentRecord> getPaymentsByGoCardlessIds(final Collection<String> goCardlessIds, final UUID kbTenantId) throws SQLException {
+		if (goCardlessIds.isEmpty()) {
+			return new ArrayList<>();
+		}
+		return execute(dataSource.getConnection(),
+				conn -> toPaymentRecords(DSL.using(conn, dialect, settings)
+						.select(GOCARDLESS_PAYMENTS_FIELDS)
+						.from(GOCARDLESS_PAYMENTS)
+						.where(GOCARDLESS_ID.in(goCardlessIds))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.orderBy(RECORD_ID.asc())
+						.fetch()));
+	}
+
+	/**
+	 * @param goCardlessStatuses
+	 * @return the tenants having payments in one of the statuses
+	 */
+	public List<UUID> getTenantsWithPaymentsInStatus(final Collection<String> goCardlessStatuses) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> {
+					final List<UUID> kbTenantIds = new ArrayList<>();
+					for (final String kbTenantId : DSL.using(conn, dialect, settings)
+							.selectDistinct(KB_TENANT_ID)
+							.from(GOCARDLESS_PAYMENTS)
+							.where(GOCARDLESS_STATUS.in(goCardlessStatuses))
+							.fetch(KB_TENANT_ID)) {
+						kbTenantIds.add(UUID.fromString(kbTenantId));
+					}
+					return kbTenantIds;
+				});
+	}
+
+	/**
+	 * @param transactionType    PURCHASE for GoCardless payments, REFUND for GoCardless refunds
+	 * @param goCardlessStatuses
+	 * @param limit
+	 * @param kbTenantId
+	 * @return up to limit records of the tenant in one of the statuses, oldest first
+	 */
+	public List<GoCardlessPaymentRecord> getPaymentsInStatus(final TransactionType transactionType, final Collection<String> goCardlessStatuses, final int limit, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> toPaymentRecords(DSL.using(conn, dialect, settings)
+						.select(GOCARDLESS_PAYMENTS_FIELDS)
+						.from(GOCARDLESS_PAYMENTS)
+						.where(GOCARDLESS_STATUS.in(goCardlessStatuses))
+						.and(TRANSACTION_TYPE.equal(transactionType.toString()))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.orderBy(RECORD_ID.asc())
+						.limit(limit)
+						.fetch()));
+	}
+
+	/**
+	 * @param transactionType    PURCHASE for GoCardless payments, REFUND for GoCardless refunds
+	 * @param goCardlessStatuses
+	 * @param kbTenantId
+	 * @return the creation date of the oldest record of the tenant in one of the statuses, or null if there is none
+	 */
+	public DateTime getOldestPaymentDateInStatus(final TransactionType transactionType, final Collection<String> goCardlessStatuses, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> toDateTime(DSL.using(conn, dialect, settings)
+						.select(DSL.min(CREATED_DATE))
+						.from(GOCARDLESS_PAYMENTS)
+						.where(GOCARDLESS_STATUS.in(goCardlessStatuses))
+						.and(TRANSACTION_TYPE.equal(transactionType.toString()))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.fetchOne(0, LocalDateTime.class)));
+	}
+
+	// Payment methods
+
+	public void addPaymentMethod(final UUID kbAccountId,
+	                             final UUID kbPaymentMethodId,
+	                             final String goCardlessMandateId,
+	                             @Nullable final String goCardlessCustomerId,
+	                             @Nullable final String mandateStatus,
+	                             @Nullable final String scheme,
+	                             @Nullable final org.joda.time.LocalDate nextPossibleChargeDate,
+	                             final boolean isDefault,
+	                             final DateTime utcNow,
+	                             final UUID kbTenantId) throws SQLException {
+		execute(dataSource.getConnection(),
+				conn -> {
+					if (isDefault) {
+						clearDefaultPaymentMethod(conn, kbAccountId, utcNow, kbTenantId);
+					}
+					return DSL.using(conn, dialect, settings)
+							.insertInto(GOCARDLESS_PAYMENT_METHODS,
+									KB_ACCOUNT_ID,
+									KB_PAYMENT_METHOD_ID,
+									GOCARDLESS_MANDATE_ID,
+									GOCARDLESS_CUSTOMER_ID,
+									MANDATE_STATUS,
+									SCHEME,
+									NEXT_POSSIBLE_CHARGE_DATE,
+									IS_DEFAULT,
+									IS_DELETED,
+									CREATED_DATE,
+									UPDATED_DATE,
+									KB_TENANT_ID)
+							.values(kbAccountId.toString(),
+									kbPaymentMethodId.toString(),
+									goCardlessMandateId,
+									goCardlessCustomerId,
+									mandateStatus,
+									scheme,
+									toLocalDate(nextPossibleChargeDate),
+									isDefault ? TRUE : FALSE,
+									FALSE,
+									toLocalDateTime(utcNow),
+									toLocalDateTime(utcNow),
+									kbTenantId.toString())
+							.execute();
+				});
+	}
+
+	/**
+	 * @param kbPaymentMethodId
+	 * @param kbTenantId
+	 * @return the payment method, deleted or not, or null if it wasn't added through this plugin
+	 */
+	public GoCardlessPaymentMethodRecord getPaymentMethod(final UUID kbPaymentMethodId, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> {
+					final Record record = DSL.using(conn, dialect, settings)
+							.select(GOCARDLESS_PAYMENT_METHODS_FIELDS)
+							.from(GOCARDLESS_PAYMENT_METHODS)
+							.where(KB_PAYMENT_METHOD_ID.equal(kbPaymentMethodId.toString()))
+							.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+							.fetchOne();
+					return record == null ? null : toPaymentMethodRecord(record);
+				});
+	}
+
+	/**
+	 * @param kbAccountId
+	 * @param kbTenantId
+	 * @return the payment methods of the account which haven't been deleted, oldest first
+	 */
+	public List<GoCardlessPaymentMethodRecord> getPaymentMethods(final UUID kbAccountId, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> toPaymentMethodRecords(DSL.using(conn, dialect, settings)
+						.select(GOCARDLESS_PAYMENT_METHODS_FIELDS)
+						.from(GOCARDLESS_PAYMENT_METHODS)
+						.where(KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.and(IS_DELETED.equal(FALSE))
+						.orderBy(RECORD_ID.asc())
+						.fetch()));
+	}
+
+	/**
+	 * Records the latest known state of the mandate, for every payment method using it
+	 *
+	 * @param goCardlessMandateId
+	 * @param mandateStatus
+	 * @param nextPossibleChargeDate left untouched when null
+	 * @param utcNow
+	 * @param kbTenantId
+	 * @return the number of payment methods updated
+	 */
+	public int updateMandate(final String goCardlessMandateId, final String mandateStatus, @Nullable final org.joda.time.LocalDate nextPossibleChargeDate,
+			final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> {
+					final Map<Field<?>, Object> values = new HashMap<>();
+					values.put(MANDATE_STATUS, mandateStatus);
+					values.put(UPDATED_DATE, toLocalDateTime(utcNow));
+					if (nextPossibleChargeDate != null) {
+						values.put(NEXT_POSSIBLE_CHARGE_DATE, toLocalDate(nextPossibleChargeDate));
+					}
+					return DSL.using(conn, dialect, settings)
+							.update(GOCARDLESS_PAYMENT_METHODS)
+							.set(values)
+							.where(GOCARDLESS_MANDATE_ID.equal(goCardlessMandateId))
+							.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+							.execute();
+				});
+	}
+
+	/**
+	 * @param goCardlessMandateIds
+	 * @param kbTenantId
+	 * @return the payment methods using one of the mandates, in one query
+	 */
+	public List<GoCardlessPaymentMethodRecord> getPaymentMethodsByMandateIds(final Collection<String> goCardlessMandateIds, final UUID kbTenantId) throws SQLException {
+		if (goCardlessMandateIds.isEmpty()) {
+			return new ArrayList<>();
+		}
+		return execute(dataSource.getConnection(),
+				conn -> toPaymentMethodRecords(DSL.using(conn, dialect, settings)
+						.select(GOCARDLESS_PAYMENT_METHODS_FIELDS)
+						.from(GOCARDLESS_PAYMENT_METHODS)
+						.where(GOCARDLESS_MANDATE_ID.in(goCardlessMandateIds))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.orderBy(RECORD_ID.asc())
+						.fetch()));
+	}
+
+	/**
+	 * @return the tenants having payment methods
+	 */
+	public List<UUID> getTenantsWithPaymentMethods() throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> {
+					final List<UUID> kbTenantIds = new ArrayList<>();
+					for (final String kbTenantId : DSL.using(conn, dialect, settings)
+							.selectDistinct(KB_TENANT_ID)
+							.from(GOCARDLESS_PAYMENT_METHODS)
+							.where(IS_DELETED.equal(FALSE))
+							.fetch(KB_TENANT_ID)) {
+						kbTenantIds.add(UUID.fromString(kbTenantId));
+					}
+					return kbTenantIds;
+				});
+	}
+
+	/**
+	 * @param kbTenantId
+	 * @return the creation date of the oldest payment method of the tenant, or null if there is none
+	 */
+	public DateTime getOldestPaymentMethodDate(final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> toDateTime(DSL.using(conn, dialect, settings)
+						.select(DSL.min(CREATED_DATE))
+						.from(GOCARDLESS_PAYMENT_METHODS)
+						.where(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.fetchOne(0, LocalDateTime.class)));
+	}
+
+	/**
+	 * Marks as deleted the payment methods of the account which are not in the list
+	 *
+	 * @param kbAccountId
+	 * @param kbPaymentMethodIds the payment methods to keep
+	 * @param utcNow
+	 * @param kbTenantId
+	 * @return the number of payment methods deleted
+	 */
+	public int markOtherPaymentMethodsAsDeleted(final UUID kbAccountId, final Collection<UUID> kbPaymentMethodIds, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+		final List<String> kbPaymentMethodIdsToKeep = new ArrayList<>();
+		for (final UUID kbPaymentMethodId : kbPaymentMethodIds) {
+			kbPaymentMethodIdsToKeep.add(kbPaymentMethodId.toString());
+		}
+		return execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.update(GOCARDLESS_PAYMENT_METHODS)
+						.set(IS_DELETED, TRUE)
+						.set(IS_DEFAULT, FALSE)
+						.set(UPDATED_DATE, toLocalDateTime(utcNow))
+						.where(KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.and(IS_DELETED.equal(FALSE))
+						.and(kbPaymentMethodIdsToKeep.isEmpty() ? DSL.trueCondition() : KB_PAYMENT_METHOD_ID.notIn(kbPaymentMethodIdsToKeep))
+						.execute());
+	}
+
+	public void setDefaultPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+		execute(dataSource.getConnection(),
+				conn -> {
+					clearDefaultPaymentMethod(conn, kbAccountId, utcNow, kbTenantId);
+					return DSL.using(conn, dialect, settings)
+							.update(GOCARDLESS_PAYMENT_METHODS)
+							.set(IS_DEFAULT, TRUE)
+							.set(UPDATED_DATE, toLocalDateTime(utcNow))
+							.where(KB_PAYMENT_METHOD_ID.equal(kbPaymentMethodId.toString()))
+							.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+							.execute();
+				});
+	}
+
+	public void markPaymentMethodAsDeleted(final UUID kbPaymentMethodId, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+		execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.update(GOCARDLESS_PAYMENT_METHODS)
+						.set(IS_DELETED, TRUE)
+						.set(IS_DEFAULT, FALSE)
+						.set(UPDATED_DATE, toLocalDateTime(utcNow))
+						.where(KB_PAYMENT_METHOD_ID.equal(kbPaymentMethodId.toString()))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.execute());
+	}
+
+	private int clearDefaultPaymentMethod(final Connection conn, final UUID kbAccountId, final DateTime utcNow, final UUID kbTenantId) {
+		return DSL.using(conn, dialect, settings)
+				.update(GOCARDLESS_PAYMENT_METHODS)
+				.set(IS_DEFAULT, FALSE)
+				.set(UPDATED_DATE, toLocalDateTime(utcNow))
+				.where(KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+				.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+				.and(IS_DEFAULT.equal(TRUE))
+				.execute();
+	}
+
+	/**
+	 * Search over the payment methods which haven't been deleted, ordered by record id (see searchPayments)
+	 *
+	 * @param searchKey  GoCardless mandate id, customer id, mandate status, or Kill Bill payment method or account id
+	 * @param offset     number of records to skip
+	 * @param limit
+	 * @param kbTenantId
+	 * @return the matching records
+	 */
+	public List<GoCardlessPaymentMethodRecord> searchPaymentMethods(final String searchKey, final long offset, final long limit, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> {
+					final Condition condition = paymentMethodSearchCondition(searchKey).and(KB_TENANT_ID.equal(kbTenantId.toString()))
+							.and(IS_DELETED.equal(FALSE));
+					SelectConditionStep<Record> query = DSL.using(conn, dialect, settings)
+							.select(GOCARDLESS_PAYMENT_METHODS_FIELDS)
+							.from(GOCARDLESS_PAYMENT_METHODS)
+							.where(condition);
+					if (offset > 0) {
+						query = query.and(RECORD_ID.greaterThan(lastSkippedRecordId(GOCARDLESS_PAYMENT_METHODS, condition, offset)));
+					}
+					return toPaymentMethodRecords(query.orderBy(RECORD_ID.asc())
+							.limit((int) limit)
+							.fetch());
+				});
+	}
+
+	// Record id of the last of the offset records skipped, null (so no page) past the last record
+	private static Field<Long> lastSkippedRecordId(final Table<Record> table, final Condition condition, final long offset) {
+		return DSL.field(DSL.select(RECORD_ID)
+				.from(table)
+				.where(condition)
+				.orderBy(RECORD_ID.asc())
+				.limit(1)
+				.offset((int) offset - 1));
+	}
+
+	public long getSearchPaymentMethodsCount(final String searchKey, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.selectCount()
+						.from(GOCARDLESS_PAYMENT_METHODS)
+						.where(paymentMethodSearchCondition(searchKey))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.and(IS_DELETED.equal(FALSE))
+						.fetchOne(0, Long.class));
+	}
+
+	// Same approach as searchCondition: one indexed column per key shape
+	static Condition paymentMethodSearchCondition(final String searchKey) {
+		final String key = searchKey.trim();
+		for (final Mandate.Status status : Mandate.Status.values()) {
+			if (status.name().equalsIgnoreCase(key)) {
+				return MANDATE_STATUS.equal(status.name());
+			}
+		}
+		if (key.startsWith(MANDATE_ID_PREFIX)) {
+			return GOCARDLESS_MANDATE_ID.equal(key);
+		}
+		if (key.startsWith(CUSTOMER_ID_PREFIX)) {
+			return GOCARDLESS_CUSTOMER_ID.equal(key);
+		}
+		try {
+			final String kbId = UUID.fromString(key).toString();
+			return KB_PAYMENT_METHOD_ID.equal(kbId).or(KB_ACCOUNT_ID.equal(kbId));
+		} catch (final IllegalArgumentException e) {
+			return DSL.falseCondition();
+		}
+	}
+
+	private static List<GoCardlessPaymentMethodRecord> toPaymentMethodRecords(final Iterable<Record> records) {
+		final List<GoCardlessPaymentMethodRecord> paymentMethodRecords = new ArrayList<>();
+		for (final Record record : records) {
+			paymentMethodRecords.add(toPaymentMethodRecord(record));
+		}
+		return paymentMethodRecords;
+	}
+
+	static GoCardlessPaymentMethodRecord toPaymentMethodRecord(final Record record) {
+		final LocalDate nextPossibleChargeDate = record.get(NEXT_POSSIBLE_CHARGE_DATE);
+		return new GoCardlessPaymentMethodRecord(record.get(RECORD_ID),
+				UUID.fromString(record.get(KB_ACCOUNT_ID)),
+				UUID.fromString(record.get(KB_PAYMENT_METHOD_ID)),
+				record.get(GOCARDLESS_MANDATE_ID),
+				record.get(GOCARDLESS_CUSTOMER_ID),
+				record.get(MANDATE_STATUS),
+				record.get(SCHEME),
+				nextPossibleChargeDate == null ? null : new org.joda.time.LocalDate(nextPossibleChargeDate.getYear(), nextPossibleChargeDate.getMonthValue(), nextPossibleChargeDate.getDayOfMonth()),
+				record.get(IS_DEFAULT) == TRUE,
+				record.get(IS_DELETED) == TRUE,
+				toDateTime(record.get(CREATED_DATE)),
+				toDateTime(record.get(UPDATED_DATE)),
+				UUID.fromString(record.get(KB_TENANT_ID)));
+	}
+
+	private static LocalDate toLocalDate(@Nullable final org.joda.time.LocalDate localDate) {
+		return localDate == null ? null : LocalDate.of(localDate.getYear(), localDate.getMonthOfYear(), localDate.getDayOfMonth());
+	}
+
+	// Job cursors
+
+	/**
+	 * @param jobName
+	 * @param kbTenantId
+	 * @return where the job stopped for the tenant, or null if it never ran
+	 */
+	public String getJobCursor(final String jobName, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.select(JOB_CURSOR)
+						.from(GOCARDLESS_JOB_CURSORS)
+						.where(JOB_NAME.equal(jobName))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.fetchOne(JOB_CURSOR));
+	}
+
+	public void saveJobCursor(final String jobName, final String jobCursor, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+		execute(dataSource.getConnection(),
+				conn -> {
+					final int updated = DSL.using(conn, dialect, settings)
+							.update(GOCARDLESS_JOB_CURSORS)
+							.set(JOB_CURSOR, jobCursor)
+							.set(UPDATED_DATE, toLocalDateTime(utcNow))
+							.where(JOB_NAME.equal(jobName))
+							.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+							.execute();
+					if (updated == 0) {
+						DSL.using(conn, dialect, settings)
+								.insertInto(GOCARDLESS_JOB_CURSORS, JOB_NAME, JOB_CURSOR, UPDATED_DATE, KB_TENANT_ID)
+								.values(jobName, jobCursor, toLocalDateTime(utcNow), kbTenantId.toString())
+								.execute();
+					}
+					return null;
+				});
+	}
+
+	// Job leases
+
+	/**
+	 * Takes the lease of a job for a tenant, if nobody holds it
+	 *
+	 * @param jobName
+	 * @param leaseOwner   node taking the lease
+	 * @param utcNow
+	 * @param leaseExpires when the lease is up for grabs again, unless renewed
+	 * @param kbTenantId
+	 * @return true if the lease was taken, false if another node (or this one) holds it
+	 */
+	public boolean acquireJobLease(final String jobName, final String leaseOwner, final DateTime utcNow, final DateTime leaseExpires, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> {
+					// Single statement, so that two nodes can't both take over an expired lease
+					final int updated = DSL.using(conn, dialect, settings)
+							.update(GOCARDLESS_JOB_LEASES)
+							.set(LEASE_OWNER, leaseOwner)
+							.set(LEASE_EXPIRES, toLocalDateTime(leaseExpires))
+							.set(UPDATED_DATE, toLocalDateTime(utcNow))
+							.where(JOB_NAME.equal(jobName))
+							.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+							.and(LEASE_EXPIRES.lessOrEqual(toLocalDateTime(utcNow)))
+							.execute();
+					if (updated > 0) {
+						return true;
+					}
+					try {
+						DSL.using(conn, dialect, settings)
+								.insertInto(GOCARDLESS_JOB_LEASES, JOB_NAME, LEASE_OWNER, LEASE_EXPIRES, UPDATED_DATE, KB_TENANT_ID)
+								.values(jobName, leaseOwner, toLocalDateTime(leaseExpires), toLocalDateTime(utcNow), kbTenantId.toString())
+								.execute();
+						return true;
+					} catch (final DataAccessException e) {
+						if (e.sqlStateClass() == SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+							// The lease exists and hasn't expired
+							return false;
+						}
+						throw e;
+					}
+				});
+	}
+
+	/**
+	 * Moves the expiry of a lease, e.g. to renew it while the job runs, or to give it up
+	 *
+	 * @param jobName
+	 * @param leaseOwner   node holding the lease
+	 * @param utcNow
+	 * @param leaseExpires new expiry
+	 * @param kbTenantId
+	 * @return false if the lease was lost, i.e. it expired and another node took it over
+	 */
+	public boolean updateJobLease(final String jobName, final String leaseOwner, final DateTime utcNow, final DateTime leaseExpires, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.update(GOCARDLESS_JOB_LEASES)
+						.set(LEASE_EXPIRES, toLocalDateTime(leaseExpires))
+						.set(UPDATED_DATE, toLocalDateTime(utcNow))
+						.where(JOB_NAME.equal(jobName))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.and(LEASE_OWNER.equal(leaseOwner))
+						.execute() > 0);
+	}
+
+	// Audit log
+
+	/**
+	 * Writes the records in a single statement
+	 *
+	 * @param auditRecords
+	 */
+	public void addAuditRecords(final Collection<GoCardlessAuditRecord> auditRecords) throws SQLException {
+		if (auditRecords.isEmpty()) {
+			return;
+		}
+		execute(dataSource.getConnection(),
+				conn -> {
+					final InsertValuesStep11<Record, String, String, String, Integer, Integer, Long, String, String, String, LocalDateTime, String> insert = DSL.using(conn, dialect, settings)
+							.insertInto(GOCARDLESS_AUDIT_LOG, OPERATION, OBJECT_ID, IDEMPOTENCY_KEY, ATTEMPT, STATUS_CODE, LATENCY_MS, OUTCOME, ERROR_TYPE, REQUEST_ID, CREATED_DATE, KB_TENANT_ID);
+					for (final GoCardlessAuditRecord auditRecord : auditRecords) {
+						insert.values(auditRecord.getOperation(),
+								auditRecord.getObjectId(),
+								auditRecord.getIdempotencyKey(),
+								auditRecord.getAttempt(),
+								auditRecord.getStatusCode(),
+								auditRecord.getLatencyMillis(),
+								auditRecord.getOutcome(),
+								auditRecord.getErrorType(),
+								auditRecord.getRequestId(),
+								toLocalDateTime(auditRecord.getCreatedDate()),
+								auditRecord.getKbTenantId() == null ? null : auditRecord.getKbTenantId().toString());
+					}
+					return insert.execute();
+				});
+	}
+
+	/**
+	 * @param objectId   Kill Bill or GoCardless id the requests were about
+	 * @param kbTenantId
+	 * @return the GoCardless requests about the object, oldest first
+	 */
+	public List<GoCardlessAuditRecord> getAuditRecords(final String objectId, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.select(RECORD_ID, OPERATION, OBJECT_ID, IDEMPOTENCY_KEY, ATTEMPT, STATUS_CODE, LATENCY_MS, OUTCOME, ERROR_TYPE, REQUEST_ID, CREATED_DATE, KB_TENANT_ID)
+						.from(GOCARDLESS_AUDIT_LOG)
+						.where(OBJECT_ID.equal(objectId))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.orderBy(RECORD_ID.asc())
+						.fetch(record -> new GoCardlessAuditRecord(record.get(RECORD_ID),
+								record.get(OPERATION),
+								record.get(OBJECT_ID),
+								record.get(IDEMPOTENCY_KEY),
+								record.get(ATTEMPT),
+								record.get(STATUS_CODE),
+								record.get(LATENCY_MS),
+								record.get(OUTCOME),
+								record.get(ERROR_TYPE),
+								record.get(REQUEST_ID),
+								toDateTime(record.get(CREATED_DATE)),
+								record.get(KB_TENANT_ID) == null ? null : UUID.fromString(record.get(KB_TENANT_ID)))));
+	}
+
+	/**
+	 * @param cutoff
+	 * @return the number of audit records older than the cutoff which were deleted
+	 */
+	public int deleteAuditRecordsBefore(final DateTime cutoff) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.deleteFrom(GOCARDLESS_AUDIT_LOG)
+						.where(CREATED_DATE.lessThan(toLocalDateTime(cutoff)))
+						.execute());
+	}
+
+	/**
+	 * An exact match on one indexed column, ordered by record id. The page starts after the record id found at the offset
+	 * by a subquery: it still walks the offset entries skipped (O(offset)), but only in the index, the rows themselves
+	 * being never fetched.
+	 *
+	 * @param searchKey  GoCardless payment id, mandate id, customer id, status, or Kill Bill payment id
+	 * @param offset     number of records to skip
+	 * @param limit
+	 * @param kbTenantId
+	 * @return the matching records
+	 */
+	public List<GoCardlessPaymentRecord> searchPayments(final String searchKey, final long offset, final long limit, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> {
+					final Condition condition = searchCondition(searchKey, kbTenantId).and(KB_TENANT_ID.equal(kbTenantId.toString()));
+					SelectConditionStep<Record> query = DSL.using(conn, dialect, settings)
+							.select(GOCARDLESS_PAYMENTS_FIELDS)
+							.from(GOCARDLESS_PAYMENTS)
+							.where(condition);
+					if (offset > 0) {
+						query = query.and(RECORD_ID.greaterThan(lastSkippedRecordId(GOCARDLESS_PAYMENTS, condition, offset)));
+					}
+					return toPaymentRecords(query.orderBy(RECORD_ID.asc())
+							.limit((int) limit)
+							.fetch());
+				});
+	}
+
+	public long getSearchPaymentsCount(final String searchKey, final UUID kbTenantId) throws SQLException {
+		return execute(dataSource.getConnection(),
+				conn -> DSL.using(conn, dialect, settings)
+						.selectCount()
+						.from(GOCARDLESS_PAYMENTS)
+						.where(searchCondition(searchKey, kbTenantId))
+						.and(KB_TENANT_ID.equal(kbTenantId.toString()))
+						.fetchOne(0, Long.class));
+	}
+
+	// The column is picked from the shape of the key, so that a single index is used
+	static Condition searchCondition(final String searchKey, final UUID kbTenantId) {
+		final String key = searchKey.trim();
+		for (final Payment.Status status : Payment.Status.values()) {
+			if (status.name().equalsIgnoreCase(key)) {
+				return GOCARDLESS_STATUS.equal(status.name());
+			}
+		}
+		if (key.startsWith(MANDATE_ID_PREFIX)) {
+			return GOCARDLESS_MANDATE_ID.equal(key);
+		}
+		if (key.startsWith(CUSTOMER_ID_PREFIX)) {
+			// Payments only reference the mandate, the customer is known from the payment methods table
+			return GOCARDLESS_MANDATE_ID.in(DSL.select(GOCARDLESS_MANDATE_ID)
+			                                   .from(GOCARDLESS_PAYMENT_METHODS)
+			                                   .where(GOCARDLESS_CUSTOMER_ID.equal(key))
+			                                   .and(KB_TENANT_ID.equal(kbTenantId.toString())));
+		}
+		try {
+			return KB_PAYMENT_ID.equal(UUID.fromString(key).toString());
+		} catch (final IllegalArgumentException e) {
+			return GOCARDLESS_ID.equal(key);
+		}
+	}
+
+	private static List<GoCardlessPaymentRecord> toPaymentRecords(final Iterable<Record> records) {
+		final List<GoCardlessPaymentRecord> paymentRecords = new ArrayList<>();
+		for (final Record record : records) {
+			paymentRecords.add(toPaymentRecord(record));
+		}
+		return paymentRecords;
+	}
+
+	static GoCardlessPaymentRecord toPaymentRecord(final Record record) {
+		final String currency = record.get(CURRENCY);
+		return new GoCardlessPaymentRecord(record.get(RECORD_ID),
+				UUID.fromString(record.get(KB_ACCOUNT_ID)),
+				UUID.fromString(record.get(KB_PAYMENT_ID)),
+				UUID.fromString(record.get(KB_PAYMENT_TRANSACTION_ID)),
+				TransactionType.valueOf(record.get(TRANSACTION_TYPE)),
+				record.get(AMOUNT),
+				currency == null ? null : Currency.valueOf(currency),
+				record.get(GOCARDLESS_ID),
+				record.get(GOCARDLESS_MANDATE_ID),
+				record.get(GOCARDLESS_STATUS),
+				toDateTime(record.get(CREATED_DATE)),
+				toDateTime(record.get(UPDATED_DATE)),
+				UUID.fromString(record.get(KB_TENANT_ID)));
+	}
+
+	static DateTime toDateTime(final LocalDateTime localDateTime) {
+		return localDateTime == null ? null : new DateTime(localDateTime.toInstant(ZoneOffset.UTC).toEpochMilli(), DateTimeZone.UTC);
+	}
+}
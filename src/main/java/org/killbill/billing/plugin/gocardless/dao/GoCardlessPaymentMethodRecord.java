@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless.dao;
+
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+/**
+ * A row of the gocardless_payment_methods table: the GoCardless mandate behind a Kill Bill payment method
+ */
+public class GoCardlessPaymentMethodRecord {
+
+	private final Long recordId;
+	private final UUID kbAccountId;
+	private final UUID kbPaymentMethodId;
+	private final String goCardlessMandateId;
+	private final String goCardlessCustomerId;
+	private final String mandateStatus;
+	private final String scheme;
+	private final LocalDate nextPossibleChargeDate;
+	private final boolean isDefault;
+	private final boolean isDeleted;
+	private final DateTime createdDate;
+	private final DateTime updatedDate;
+	private final UUID kbTenantId;
+
+	public GoCardlessPaymentMethodRecord(final Long recordId, final UUID kbAccountId, final UUID kbPaymentMethodId, final String goCardlessMandateId,
+			final String goCardlessCustomerId, final String mandateStatus, final String scheme, final LocalDate nextPossibleChargeDate,
+			final boolean isDefault, final boolean isDeleted, final DateTime createdDate, final DateTime updatedDate, final UUID kbTenantId) {
+		this.recordId = recordId;
+		this.kbAccountId = kbAccountId;
+		this.kbPaymentMethodId = kbPaymentMethodId;
+		this.goCardlessMandateId = goCardlessMandateId;
+		this.goCardlessCustomerId = goCardlessCustomerId;
+		this.mandateStatus = mandateStatus;
+		this.scheme = scheme;
+		this.nextPossibleChargeDate = nextPossibleChargeDate;
+		this.isDefault = isDefault;
+		this.isDeleted = isDeleted;
+		this.createdDate = createdDate;
+		this.updatedDate = updatedDate;
+		this.kbTenantId = kbTenantId;
+	}
+
+	public Long getRecordId() {
+		return recordId;
+	}
+
+	public UUID getKbAccountId() {
+		return kbAccountId;
+	}
+
+	public UUID getKbPaymentMethodId() {
+		return kbPaymentMethodId;
+	}
+
+	public String getGoCardlessMandateId() {
+		return goCardlessMandateId;
+	}
+
+	public String getGoCardlessCustomerId() {
+		return goCardlessCustomerId;
+	}
+
+	public String getMandateStatus() {
+		return mandateStatus;
+	}
+
+	public String getScheme() {
+		return scheme;
+	}
+
+	public LocalDate getNextPossibleChargeDate() {
+		return nextPossibleChargeDate;
+	}
+
+	public boolean isDefault() {
+		return isDefault;
+	}
+
+	public boolean isDeleted() {
+		return isDeleted;
+	}
+
+	public DateTime getCreatedDate() {
+		return createdDate;
+	}
+
+	public DateTime getUpdatedDate() {
+		return updatedDate;
+	}
+
+	public UUID getKbTenantId() {
+		return kbTenantId;
+	}
+
+	@Override
+	public String toString() {
+		return "GoCardlessPaymentMethodRecord{" +
+				"recordId=" + recordId +
+				", kbAccountId=" + kbAccountId +
+				", kbPaymentMethodId=" + kbPaymentMethodId +
+				", goCardlessMandateId='" + goCardlessMandateId + '\'' +
+				", mandateStatus='" + mandateStatus + '\'' +
+				", isDefault=" + isDefault +
+				", isDeleted=" + isDeleted +
+				'}';
+	}
+}
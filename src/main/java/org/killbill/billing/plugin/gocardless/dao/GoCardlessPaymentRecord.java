@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless.dao;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+
+/**
+ * A row of the gocardless_payments table: the link between a Kill Bill transaction and a GoCardless resource
+ */
+public class GoCardlessPaymentRecord {
+
+	private final Long recordId;
+	private final UUID kbAccountId;
+	private final UUID kbPaymentId;
+	private final UUID kbPaymentTransactionId;
+	private final TransactionType transactionType;
+	private final BigDecimal amount;
+	private final Currency currency;
+	private final String goCardlessId;
+	private final String goCardlessMandateId;
+	private final String goCardlessStatus;
+	private final DateTime createdDate;
+	private final DateTime updatedDate;
+	private final UUID kbTenantId;
+
+	public GoCardlessPaymentRecord(final Long recordId, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbPaymentTransactionId,
+			final TransactionType transactionType, final BigDecimal amount, final Currency currency, final String goCardlessId,
+			final String goCardlessMandateId, final String goCardlessStatus, final DateTime createdDate, final DateTime updatedDate,
+			final UUID kbTenantId) {
+		this.recordId = recordId;
+		this.kbAccountId = kbAccountId;
+		this.kbPaymentId = kbPaymentId;
+		this.kbPaymentTransactionId = kbPaymentTransactionId;
+		this.transactionType = transactionType;
+		this.amount = amount;
+		this.currency = currency;
+		this.goCardlessId = goCardlessId;
+		this.goCardlessMandateId = goCardlessMandateId;
+		this.goCardlessStatus = goCardlessStatus;
+		this.createdDate = createdDate;
+		this.updatedDate = updatedDate;
+		this.kbTenantId = kbTenantId;
+	}
+
+	public Long getRecordId() {
+		return recordId;
+	}
+
+	public UUID getKbAccountId() {
+		return kbAccountId;
+	}
+
+	public UUID getKbPaymentId() {
+		return kbPaymentId;
+	}
+
+	public UUID getKbPaymentTransactionId() {
+		return kbPaymentTransactionId;
+	}
+
+	public TransactionType getTransactionType() {
+		return transactionType;
+	}
+
+	public BigDecimal getAmount() {
+		return amount;
+	}
+
+	public Currency getCurrency() {
+		return currency;
+	}
+
+	public String getGoCardlessId() {
+		return goCardlessId;
+	}
+
+	public String getGoCardlessMandateId() {
+		return goCardlessMandateId;
+	}
+
+	public String getGoCardlessStatus() {
+		return goCardlessStatus;
+	}
+
+	public DateTime getCreatedDate() {
+		return createdDate;
+	}
+
+	public DateTime getUpdatedDate() {
+		return updatedDate;
+	}
+
+	public UUID getKbTenantId() {
+		return kbTenantId;
+	}
+
+	@Override
+	public String toString() {
+		return "GoCardlessPaymentRecord{" +
+				"recordId=" + recordId +
+				", kbPaymentId=" + kbPaymentId +
+				", kbPaymentTransactionId=" + kbPaymentTransactionId +
+				", transactionType=" + transactionType +
+				", goCardlessId='" + goCardlessId + '\'' +
+				", goCardlessStatus='" + goCardlessStatus + '\'' +
+				'}';
+	}
+}
@@ -0,0 +1,88 @@
+drop table if exists gocardless_payments;
+create table gocardless_payments (
+  record_id serial
+, kb_account_id char(36) not null
+, kb_payment_id char(36) not null
+, kb_payment_transaction_id char(36) not null
+, transaction_type varchar(32) not null
+, amount numeric(15,9)
+, currency char(3)
+, gocardless_id varchar(255) not null
+, gocardless_mandate_id varchar(255) default null
+, gocardless_status varchar(64) default null
+, created_date timestamp not null
+, updated_date timestamp not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+);
+create index gocardless_payments_kb_payment_id on gocardless_payments(kb_payment_id, kb_tenant_id);
+create unique index gocardless_payments_kb_payment_transaction_id on gocardless_payments(kb_payment_transaction_id);
+create index gocardless_payments_gocardless_id on gocardless_payments(gocardless_id);
+create index gocardless_payments_gocardless_mandate_id on gocardless_payments(gocardless_mandate_id, kb_tenant_id, record_id);
+create index gocardless_payments_gocardless_status on gocardless_payments(gocardless_status, kb_tenant_id, record_id);
+
+drop table if exists gocardless_job_cursors;
+create table gocardless_job_cursors (
+  record_id serial
+, job_name varchar(64) not null
+, job_cursor varchar(2048) default null
+, updated_date timestamp not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+);
+create unique index gocardless_job_cursors_job_name on gocardless_job_cursors(job_name, kb_tenant_id);
+
+drop table if exists gocardless_job_leases;
+create table gocardless_job_leases (
+  record_id serial
+, job_name varchar(64) not null
+, lease_owner varchar(255) not null
+, lease_expires timestamp not null
+, updated_date timestamp not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+);
+create unique index gocardless_job_leases_job_name on gocardless_job_leases(job_name, kb_tenant_id);
+
+drop table if exists gocardless_payment_methods;
+create table gocardless_payment_methods (
+  record_id serial
+, kb_account_id char(36) not null
+, kb_payment_method_id char(36) not null
+, gocardless_mandate_id varchar(255) not null
+, gocardless_customer_id varchar(255) default null
+, mandate_status varchar(64) default null
+, scheme varchar(64) default null
+, next_possible_charge_date date default null
+, is_default smallint not null default 0
+, is_deleted smallint not null default 0
+, created_date timestamp not null
+, updated_date timestamp not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+);
+create unique index gocardless_payment_methods_kb_payment_method_id on gocardless_payment_methods(kb_payment_method_id);
+create index gocardless_payment_methods_kb_account_id on gocardless_payment_methods(kb_account_id, kb_tenant_id);
+create index gocardless_payment_methods_gocardless_mandate_id on gocardless_payment_methods(gocardless_mandate_id, kb_tenant_id, record_id);
+create index gocardless_payment_methods_gocardless_customer_id on gocardless_payment_methods(gocardless_customer_id, kb_tenant_id, record_id);
+create index gocardless_payment_methods_mandate_status on gocardless_payment_methods(mandate_status, kb_tenant_id, record_id);
+
+drop table if exists gocardless_audit_log;
+create table gocardless_audit_log (
+  record_id serial
+, operation varchar(64) not null
+, object_id varchar(255) default null
+, idempotency_key varchar(255) default null
+, attempt int not null
+, status_code int default null
+, latency_ms bigint not null
+, outcome varchar(32) not null
+, error_type varchar(64) default null
+, request_id varchar(255) default null
+, created_date timestamp not null
+, kb_tenant_id char(36) default null
+, primary key(record_id)
+);
+create index gocardless_audit_log_object_id on gocardless_audit_log(object_id, kb_tenant_id);
+create index gocardless_audit_log_idempotency_key on gocardless_audit_log(idempotency_key, kb_tenant_id);
+create index gocardless_audit_log_created_date on gocardless_audit_log(created_date);
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process GoCardless API, enough for the plugin calls: payments, refunds, mandates, redirect flows and creditors.
+ * Point the plugin to it with the baseUrl property. Latency, server errors and rate limiting (429) can be injected
+ * to exercise the plugin under load.
+ */
+public class FakeGoCardlessServer {
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final ConcurrentMap<String, ObjectNode> payments = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, ObjectNode> refunds = new ConcurrentHashMap<>();
+	private final AtomicLong ids = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong injectedRateLimits = new AtomicLong();
+
+	private volatile long minLatencyMillis;
+	private volatile long maxLatencyMillis;
+	private volatile double errorRate;
+	private volatile double rateLimitRate;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public void start() throws IOException {
+		start(16);
+	}
+
+	public void start(final int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	public long getInjectedRateLimits() {
+		return injectedRateLimits.get();
+	}
+
+	/**
+	 * Delays every response by a random duration between the bounds
+	 */
+	public FakeGoCardlessServer setLatency(final long minLatencyMillis, final long maxLatencyMillis) {
+		this.minLatencyMillis = minLatencyMillis;
+		this.maxLatencyMillis = Math.max(minLatencyMillis, maxLatencyMillis);
+		return this;
+	}
+
+	/**
+	 * @param errorRate share of the requests (0 to 1) failing with a 500
+	 */
+	public FakeGoCardlessServer setErrorRate(final double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	/**
+	 * @param rateLimitRate share of the requests (0 to 1) rejected with a 429
+	 */
+	public FakeGoCardlessServer setRateLimitRate(final double rateLimitRate) {
+		this.rateLimitRate = rateLimitRate;
+		return this;
+	}
+
+	/**
+	 * Stores a payment, as if it had been created through the API
+	 */
+	public void addPayment(final String id, final int amount, final String currency, final String status, final String mandateId) {
+		payments.put(id, buildPayment(id, amount, currency, status, mandateId, null));
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try (final InputStream body = exchange.getRequestBody()) {
+			final byte[] request = ByteStreams.toByteArray(body);
+			final String method = exchange.getRequestMethod();
+			final String[] path = exchange.getRequestURI().getPath().substring(1).split("/");
+
+			final long latencyMillis = minLatencyMillis == maxLatencyMillis ? minLatencyMillis : ThreadLocalRandom.current().nextLong(minLatencyMillis, maxLatencyMillis + 1);
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+			final double dice = ThreadLocalRandom.current().nextDouble();
+			if (dice < rateLimitRate) {
+				injectedRateLimits.incrementAndGet();
+				exchange.getResponseHeaders().set("RateLimit-Reset", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(1)));
+				respondError(exchange, 429, "invalid_api_usage", "Rate limit exceeded");
+				return;
+			}
+			if (dice < rateLimitRate + errorRate) {
+				injectedErrors.incrementAndGet();
+				respondError(exchange, 500, "gocardless", "Injected error");
+				return;
+			}
+
+			if ("payments".equals(path[0]) && path.length == 1 && "POST".equals(method)) {
+				respond(exchange, 201, wrap("payments", createPayment(objectMapper.readTree(request).path("payments"))));
+			} else if ("payments".equals(path[0]) && path.length == 1) {
+				respond(exchange, 200, list("payments", new ArrayList<>(payments.values())));
+			} else if ("payments".equals(path[0]) && path.length == 2) {
+				respond(exchange, 200, wrap("payments", payments.computeIfAbsent(path[1], id -> buildPayment(id, 1000, "GBP", "confirmed", "MD000", null))));
+			} else if ("refunds".equals(path[0]) && path.length == 1 && "POST".equals(method)) {
+				final ObjectNode refund = createRefund(objectMapper.readTree(request).path("refunds"));
+				if (refund == null) {
+					respondError(exchange, 422, "validation_failed", "Payment not found or amount too high");
+				} else {
+					respond(exchange, 201, wrap("refunds", refund));
+				}
+			} else if ("refunds".equals(path[0]) && path.length == 1) {
+				respond(exchange, 200, list("refunds", new ArrayList<>(refunds.values())));
+			} else if ("refunds".equals(path[0]) && path.length == 2 && refunds.containsKey(path[1])) {
+				respond(exchange, 200, wrap("refunds", refunds.get(path[1])));
+			} else if ("mandates".equals(path[0]) && path.length == 2) {
+				final ObjectNode mandate = objectMapper.createObjectNode().put("id", path[1]).put("status", "active").put("scheme", "bacs");
+				mandate.putObject("links").put("customer", "CU000").put("creditor", "CR000");
+				respond(exchange, 200, wrap("mandates", mandate));
+			} else if ("redirect_flows".equals(path[0]) && path.length == 1) {
+				final String id = "RE" + ids.incrementAndGet();
+				respond(exchange, 201, wrap("redirect_flows", objectMapper.createObjectNode().put("id", id).put("redirect_url", getBaseUrl() + "/flow/" + id)));
+			} else if ("redirect_flows".equals(path[0]) && path.length == 4) {
+				final ObjectNode redirectFlow = objectMapper.createObjectNode().put("id", path[1]);
+				redirectFlow.putObject("links").put("mandate", "MD" + ids.incrementAndGet()).put("customer", "CU000");
+				respond(exchange, 200, wrap("redirect_flows", redirectFlow));
+			} else if ("creditors".equals(path[0])) {
+				final List<ObjectNode> creditors = new ArrayList<>();
+				creditors.add(objectMapper.createObjectNode().put("id", "CR000").put("name", "Fake creditor"));
+				respond(exchange, 200, list("creditors", creditors));
+			} else {
+				respondError(exchange, 404, "invalid_api_usage", "Resource not found");
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respondError(exchange, 500, "gocardless", e.toString());
+		} catch (final RuntimeException e) {
+			respondError(exchange, 500, "gocardless", e.toString());
+		}
+	}
+
+	private ObjectNode createPayment(final JsonNode request) {
+		final String id = "PM" + ids.incrementAndGet();
+		final ObjectNode payment = buildPayment(id,
+		                                        request.path("amount").asInt(),
+		                                        request.path("currency").asText("GBP"),
+		                                        "pending_submission",
+		                                        request.path("links").path("mandate").asText(null),
+		                                        request.path("metadata"));
+		payments.put(id, payment);
+		return payment;
+	}
+
+	private ObjectNode createRefund(final JsonNode request) {
+		final ObjectNode payment = payments.get(request.path("links").path("payment").asText(""));
+		final int amount = request.path("amount").asInt();
+		if (payment == null) {
+			return null;
+		}
+		synchronized (payment) {
+			final int refunded = payment.path("amount_refunded").asInt() + amount;
+			if (refunded > payment.path("amount").asInt()) {
+				return null;
+			}
+			payment.put("amount_refunded", refunded);
+		}
+		final String id = "RF" + ids.incrementAndGet();
+		final ObjectNode refund = objectMapper.createObjectNode()
+		                                      .put("id", id)
+		                                      .put("amount", amount)
+		                                      .put("currency", payment.path("currency").asText())
+		                                      .put("status", "created")
+		                                      .put("reference", request.path("reference").asText(null))
+		                                      .put("created_at", Instant.now().toString());
+		refund.set("metadata", request.path("metadata").isObject() ? request.path("metadata") : objectMapper.createObjectNode());
+		refund.putObject("links").put("payment", payment.path("id").asText()).put("mandate", payment.path("links").path("mandate").asText(null));
+		refunds.put(id, refund);
+		return refund;
+	}
+
+	private static ObjectNode buildPayment(final String id, final int amount, final String currency, final String status, final String mandateId, final JsonNode metadata) {
+		final ObjectNode payment = objectMapper.createObjectNode()
+		                                       .put("id", id)
+		                                       .put("amount", amount)
+		                                       .put("amount_refunded", 0)
+		                                       .put("currency", currency)
+		                                       .put("status", status)
+		                                       .put("created_at", Instant.now().toString())
+		                                       .put("charge_date", "2023-01-01");
+		if (metadata != null && metadata.isObject()) {
+			payment.set("metadata", metadata);
+		} else {
+			payment.putObject("metadata");
+		}
+		payment.putObject("links").put("mandate", mandateId).put("creditor", "CR000");
+		return payment;
+	}
+
+	private static ObjectNode wrap(final String name, final JsonNode resource) {
+		final ObjectNode envelope = objectMapper.createObjectNode();
+		envelope.set(name, resource);
+		return envelope;
+	}
+
+	private static ObjectNode list(final String name, final List<ObjectNode> resources) {
+		final ObjectNode envelope = objectMapper.createObjectNode();
+		envelope.putArray(name).addAll(resources);
+		final ObjectNode meta = envelope.putObject("meta");
+		meta.putObject("cursors").putNull("before").putNull("after");
+		meta.put("limit", 50);
+		return envelope;
+	}
+
+	private static void respondError(final HttpExchange exchange, final int code, final String type, final String message) throws IOException {
+		final ObjectNode error = objectMapper.createObjectNode();
+		error.putObject("error")
+		     .put("message", message)
+		     .put("type", type)
+		     .put("code", code)
+		     .put("request_id", "fake")
+		     .put("documentation_url", "https://developer.gocardless.com/api-reference")
+		     .putArray("errors");
+		respond(exchange, code, error);
+	}
+
+	private static void respond(final HttpExchange exchange, final int code, final JsonNode body) throws IOException {
+		final byte[] bytes = objectMapper.writeValueAsBytes(body);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.getResponseHeaders().set("RateLimit-Limit", "1000000");
+		exchange.getResponseHeaders().set("RateLimit-Remaining", code == 429 ? "0" : "1000000");
+		exchange.sendResponseHeaders(code, bytes.length);
+		try (final OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
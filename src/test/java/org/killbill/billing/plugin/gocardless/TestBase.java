@@ -24,9 +24,12 @@ import org.killbill.billing.account.api.Account;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.TestWithEmbeddedDBBase;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
 import org.killbill.billing.util.api.CustomFieldUserApi;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.clock.ClockMock;
+import org.killbill.commons.embeddeddb.EmbeddedDB;
 import org.mockito.Mockito;
 
 import org.testng.annotations.BeforeMethod;
@@ -34,7 +37,7 @@ import org.testng.annotations.BeforeMethod;
 
 import com.gocardless.GoCardlessClient;
 
-public class TestBase {
+public class TestBase extends TestWithEmbeddedDBBase {
 
     private static final String PROPERTIES_FILE_NAME = "gocardless.properties";
 
@@ -48,6 +51,9 @@ public class TestBase {
     protected OSGIKillbillAPI killbillApi;
     protected CustomFieldUserApi customFieldUserApi;
     protected GoCardlessConfigurationHandler goCardlessconfigurationHandler;
+    protected GoCardlessDao dao;
+    protected GoCardlessMandateCache goCardlessMandateCache;
+    protected GoCardlessWebhookProcessor goCardlessWebhookProcessor;
     protected GoCardlessClient goCardlessClient;
 
     @BeforeMethod(groups = {"slow", "integration"})
@@ -68,7 +74,35 @@ public class TestBase {
 
         goCardlessconfigurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, killbillApi);
 
+        dao = new GoCardlessDao(embeddedDB.getDataSource());
+
+        goCardlessMandateCache = new GoCardlessMandateCache(goCardlessconfigurationHandler);
+        goCardlessWebhookProcessor = new GoCardlessWebhookProcessor(new GoCardlessConfigProperties(new Properties(), ""),
+                                                                    dao,
+                                                                    goCardlessMandateCache,
+                                                                    killbillApi,
+                                                                    clock);
+
+        final GoCardlessHttpTransport goCardlessHttpTransport = new GoCardlessHttpTransport(new GoCardlessConfigProperties(new Properties(), ""));
+        final GoCardlessClientCache goCardlessClientCache = new GoCardlessClientCache(goCardlessconfigurationHandler, goCardlessHttpTransport);
+        final GoCardlessApiExecutor goCardlessApiExecutor = new GoCardlessApiExecutor(goCardlessconfigurationHandler,
+                                                                                      new GoCardlessRateLimiter(goCardlessconfigurationHandler),
+                                                                                      new GoCardlessCircuitBreaker(goCardlessconfigurationHandler),
+                                                                                      new GoCardlessMetrics(new GoCardlessConfigProperties(new Properties(), "")),
+                                                                                      goCardlessHttpTransport,
+                                                                                      new GoCardlessAuditLog(new GoCardlessConfigProperties(new Properties(), ""), dao, clock));
         goCardlessPaymentpluginApi = new GoCardlessPaymentPluginApi(goCardlessconfigurationHandler,
+                                                            goCardlessClientCache,
+                                                            goCardlessApiExecutor,
+                                                            goCardlessMandateCache,
+                                                            new GoCardlessRedirectFlowCache(goCardlessconfigurationHandler),
+                                                            dao,
+                                                            goCardlessWebhookProcessor,
+                                                            new GoCardlessMandateSync(new GoCardlessConfigProperties(new Properties(), ""),
+                                                                                      dao,
+                                                                                      goCardlessClientCache,
+                                                                                      goCardlessApiExecutor,
+                                                                                      clock),
                                                             killbillApi,
                                                             clock);
 
@@ -76,6 +110,11 @@ public class TestBase {
 
     }
 
+    @Override
+    protected String getDdlFileName() {
+        return "org/killbill/billing/plugin/gocardless/" + (embeddedDB.getDBEngine() == EmbeddedDB.DBEngine.POSTGRESQL ? "postgresql/" : "") + "ddl.sql";
+    }
+
     @BeforeMethod(groups = "integration")
     public void setUpIntegration() throws Exception {
         Properties properties = new Properties();
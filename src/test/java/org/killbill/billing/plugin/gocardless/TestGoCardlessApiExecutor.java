@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.gocardless.GoCardlessCircuitBreaker.State;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.clock.ClockMock;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.gocardless.GoCardlessException;
+import com.gocardless.errors.GoCardlessApiException;
+import com.gocardless.http.ApiResponse;
+
+public class TestGoCardlessApiExecutor {
+
+	@Test(groups = "fast")
+	public void testIdempotentCallsAreRetried() {
+		final GoCardlessConfigurationHandler configurationHandler = buildConfigurationHandler("10");
+		final GoCardlessApiExecutor executor = buildExecutor(configurationHandler, new GoCardlessCircuitBreaker(configurationHandler));
+
+		final AtomicInteger attempts = new AtomicInteger();
+		assertEquals(executor.execute(null, "payments.get", true, failingCall(attempts, 2)), "PM123");
+		assertEquals(attempts.get(), 3);
+
+		// Not retried
+		attempts.set(0);
+		try {
+			executor.execute(null, "redirect_flows.create", false, failingCall(attempts, 2));
+			fail("Non idempotent calls shouldn't be retried");
+		} catch (final GoCardlessException expected) {
+			assertEquals(attempts.get(), 1);
+		}
+
+		// Gives up after retryMaxAttempts
+		attempts.set(0);
+		try {
+			executor.execute(null, "payments.get", true, failingCall(attempts, 5));
+			fail("Should have given up");
+		} catch (final GoCardlessException expected) {
+			assertEquals(attempts.get(), 3);
+		}
+	}
+
+	@Test(groups = "fast")
+	public void testOnlyIdempotentCallsAreSentAgainWhenRateLimited() {
+		final GoCardlessConfigurationHandler configurationHandler = buildConfigurationHandler("10");
+		final GoCardlessApiExecutor executor = buildExecutor(configurationHandler, new GoCardlessCircuitBreaker(configurationHandler));
+
+		final AtomicInteger attempts = new AtomicInteger();
+		try {
+			executor.execute(null, "redirect_flows.create", false, rateLimitedCall(attempts));
+			fail("Should have been rate limited");
+		} catch (final GoCardlessApiException expected) {
+			assertEquals(attempts.get(), 1);
+		}
+
+		attempts.set(0);
+		try {
+			executor.execute(null, "payments.get", true, rateLimitedCall(attempts));
+			fail("Should have been rate limited");
+		} catch (final GoCardlessApiException expected) {
+			assertEquals(attempts.get(), 2);
+		}
+	}
+
+	@Test(groups = "fast")
+	public void testCircuitOpensAndRecovers() throws InterruptedException {
+		final GoCardlessConfigurationHandler configurationHandler = buildConfigurationHandler("2");
+		final GoCardlessCircuitBreaker circuitBreaker = new GoCardlessCircuitBreaker(configurationHandler);
+		final GoCardlessApiExecutor executor = buildExecutor(configurationHandler, circuitBreaker);
+
+		final AtomicInteger attempts = new AtomicInteger();
+		try {
+			executor.execute(null, "payments.get", true, failingCall(attempts, 5));
+			fail("Should have failed");
+		} catch (final GoCardlessCircuitOpenException expected) {
+			// Opened after the second failure, the third attempt isn't sent
+			assertEquals(attempts.get(), 2);
+		}
+		assertEquals(circuitBreaker.getState(null), State.OPEN);
+
+		// Fails fast, without calling GoCardless
+		attempts.set(0);
+		try {
+			executor.execute(null, "payments.get", true, failingCall(attempts, 0));
+			fail("Circuit should be open");
+		} catch (final GoCardlessCircuitOpenException expected) {
+			assertEquals(attempts.get(), 0);
+		}
+
+		Thread.sleep(150);
+		assertEquals(circuitBreaker.getState(null), State.HALF_OPEN);
+		assertEquals(executor.execute(null, "payments.get", true, failingCall(attempts, 0)), "PM123");
+		assertEquals(circuitBreaker.getState(null), State.CLOSED);
+	}
+
+	@Test(groups = "fast")
+	public void testOpenCircuitDoesntSpendRateLimitTokens() throws InterruptedException {
+		// Two requests a minute
+		final GoCardlessConfigurationHandler configurationHandler = buildConfigurationHandler("1", "2");
+		final GoCardlessApiExecutor executor = buildExecutor(configurationHandler, new GoCardlessCircuitBreaker(configurationHandler));
+
+		final AtomicInteger attempts = new AtomicInteger();
+		for (int i = 0; i < 5; i++) {
+			try {
+				executor.execute(null, "payments.get", true, failingCall(attempts, 1));
+				fail("Circuit should be open");
+			} catch (final GoCardlessCircuitOpenException expected) {
+				assertEquals(attempts.get(), 1);
+			}
+		}
+
+		// The second token is still there for the probe
+		Thread.sleep(150);
+		assertEquals(executor.execute(null, "payments.get", true, failingCall(attempts, 0)), "PM123");
+	}
+
+	@Test(groups = "fast")
+	public void testBackoff() {
+		for (int attempt = 1; attempt < 40; attempt++) {
+			final long backoff = GoCardlessApiExecutor.backoffMillis(attempt, 100, 2000);
+			assertEquals(backoff >= 0 && backoff <= Math.min(2000, 100L << (attempt - 1)), true);
+		}
+	}
+
+	private static Supplier<ApiResponse<String>> failingCall(final AtomicInteger attempts, final int failures) {
+		return () -> {
+			if (attempts.incrementAndGet() <= failures) {
+				throw Mockito.mock(GoCardlessException.class);
+			}
+			@SuppressWarnings("unchecked")
+			final ApiResponse<String> response = Mockito.mock(ApiResponse.class);
+			Mockito.when(response.getResource()).thenReturn("PM123");
+			return response;
+		};
+	}
+
+	private static Supplier<ApiResponse<String>> rateLimitedCall(final AtomicInteger attempts) {
+		return () -> {
+			attempts.incrementAndGet();
+			final GoCardlessApiException rateLimited = Mockito.mock(GoCardlessApiException.class);
+			Mockito.when(rateLimited.getCode()).thenReturn(429);
+			throw rateLimited;
+		};
+	}
+
+	private static GoCardlessApiExecutor buildExecutor(final GoCardlessConfigurationHandler configurationHandler, final GoCardlessCircuitBreaker circuitBreaker) {
+		return new GoCardlessApiExecutor(configurationHandler, new GoCardlessRateLimiter(configurationHandler), circuitBreaker,
+		                                 new GoCardlessMetrics(configurationHandler.getConfigurable(null)),
+		                                 new GoCardlessHttpTransport(configurationHandler.getConfigurable(null)),
+		                                 new GoCardlessAuditLog(configurationHandler.getConfigurable(null), Mockito.mock(GoCardlessDao.class), new ClockMock()));
+	}
+
+	private static GoCardlessConfigurationHandler buildConfigurationHandler(final String failureThreshold) {
+		return buildConfigurationHandler(failureThreshold, "1000");
+	}
+
+	private static GoCardlessConfigurationHandler buildConfigurationHandler(final String failureThreshold, final String rateLimitPerMinute) {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.rateLimitPerMinute", rateLimitPerMinute);
+		properties.put("org.killbill.billing.plugin.gocardless.rateLimitMaxWaitMillis", "2000");
+		properties.put("org.killbill.billing.plugin.gocardless.retryInitialBackoffMillis", "1");
+		properties.put("org.killbill.billing.plugin.gocardless.retryMaxBackoffMillis", "5");
+		properties.put("org.killbill.billing.plugin.gocardless.circuitBreakerFailureThreshold", failureThreshold);
+		properties.put("org.killbill.billing.plugin.gocardless.circuitBreakerOpenMillis", "100");
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(new GoCardlessConfigProperties(properties, ""));
+		return configurationHandler;
+	}
+}
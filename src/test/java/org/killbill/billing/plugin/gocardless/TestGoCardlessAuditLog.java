@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessAuditRecord;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.clock.ClockMock;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.gocardless.GoCardlessException;
+import com.gocardless.http.ApiResponse;
+
+public class TestGoCardlessAuditLog {
+
+	@Test(groups = "fast")
+	public void testEveryAttemptIsAudited() throws Exception {
+		final List<GoCardlessAuditRecord> written = new ArrayList<>();
+		final GoCardlessDao dao = recordingDao(written);
+		final GoCardlessConfigProperties config = buildConfig("10", "100");
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(config);
+		final GoCardlessAuditLog auditLog = new GoCardlessAuditLog(config, dao, new ClockMock());
+		final GoCardlessApiExecutor executor = new GoCardlessApiExecutor(configurationHandler,
+		                                                                 new GoCardlessRateLimiter(configurationHandler),
+		                                                                 new GoCardlessCircuitBreaker(configurationHandler),
+		                                                                 new GoCardlessMetrics(config),
+		                                                                 new GoCardlessHttpTransport(config),
+		                                                                 auditLog);
+		final UUID kbTenantId = UUID.randomUUID();
+
+		// Fails once on a network error, then succeeds
+		final AtomicInteger attempts = new AtomicInteger();
+		executor.execute(kbTenantId, "payments.create", "kb-payment-id", "idempotency-key", true, () -> {
+			if (attempts.incrementAndGet() == 1) {
+				throw Mockito.mock(GoCardlessException.class);
+			}
+			@SuppressWarnings("unchecked")
+			final ApiResponse<String> response = Mockito.mock(ApiResponse.class);
+			Mockito.when(response.getStatusCode()).thenReturn(201);
+			return response;
+		});
+		assertEquals(auditLog.getQueueDepth(), 2);
+		auditLog.flushPending();
+
+		assertEquals(written.size(), 2);
+		assertEquals(written.get(0).getAttempt(), 1);
+		assertEquals(written.get(0).getOutcome(), GoCardlessApiExecutor.OUTCOME_NETWORK_ERROR);
+		assertNull(written.get(0).getStatusCode());
+		assertEquals(written.get(1).getAttempt(), 2);
+		assertEquals(written.get(1).getOutcome(), GoCardlessApiExecutor.OUTCOME_SUCCESS);
+		assertEquals(written.get(1).getStatusCode(), Integer.valueOf(201));
+		assertNull(written.get(1).getErrorType());
+		for (final GoCardlessAuditRecord auditRecord : written) {
+			assertEquals(auditRecord.getOperation(), "payments.create");
+			assertEquals(auditRecord.getObjectId(), "kb-payment-id");
+			assertEquals(auditRecord.getIdempotencyKey(), "idempotency-key");
+			assertEquals(auditRecord.getKbTenantId(), kbTenantId);
+		}
+	}
+
+	@Test(groups = "fast")
+	public void testRecordsAreDroppedWhenTheBufferIsFull() throws Exception {
+		final List<GoCardlessAuditRecord> written = new ArrayList<>();
+		final GoCardlessDao dao = recordingDao(written);
+		final GoCardlessAuditLog auditLog = new GoCardlessAuditLog(buildConfig("3", "2"), dao, new ClockMock());
+
+		for (int i = 0; i < 5; i++) {
+			auditLog.record(null, "payments.get", "PM" + i, null, 1, 200, 10, GoCardlessApiExecutor.OUTCOME_SUCCESS, null, null);
+		}
+		assertEquals(auditLog.getRecorded(), 5);
+		assertEquals(auditLog.getDropped(), 2);
+
+		// Written in batches of at most 2
+		auditLog.flushPending();
+		Mockito.verify(dao, Mockito.times(2)).addAuditRecords(ArgumentMatchers.any());
+		assertEquals(auditLog.getWritten(), 3);
+		assertEquals(written.size(), 3);
+		assertEquals(written.get(0).getObjectId(), "PM0");
+		assertEquals(auditLog.getQueueDepth(), 0);
+	}
+
+	@Test(groups = "fast")
+	public void testWriteFailuresAreCounted() throws Exception {
+		final GoCardlessDao dao = Mockito.mock(GoCardlessDao.class);
+		Mockito.doThrow(new SQLException("down")).when(dao).addAuditRecords(ArgumentMatchers.any());
+		final GoCardlessAuditLog auditLog = new GoCardlessAuditLog(buildConfig("10", "100"), dao, new ClockMock());
+
+		auditLog.record(null, "payments.get", "PM1", null, 1, 200, 10, GoCardlessApiExecutor.OUTCOME_SUCCESS, null, null);
+		auditLog.flushPending();
+		assertEquals(auditLog.getWritten(), 0);
+		assertEquals(auditLog.getFailed(), 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static GoCardlessDao recordingDao(final List<GoCardlessAuditRecord> written) throws SQLException {
+		final GoCardlessDao dao = Mockito.mock(GoCardlessDao.class);
+		Mockito.doAnswer(invocation -> {
+			final Collection<GoCardlessAuditRecord> batch = invocation.getArgument(0);
+			written.addAll(batch);
+			return null;
+		}).when(dao).addAuditRecords(ArgumentMatchers.any());
+		return dao;
+	}
+
+	private static GoCardlessConfigProperties buildConfig(final String queueCapacity, final String batchSize) {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.auditQueueCapacity", queueCapacity);
+		properties.put("org.killbill.billing.plugin.gocardless.auditBatchSize", batchSize);
+		return new GoCardlessConfigProperties(properties, "");
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.TransactionStatus;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.gocardless.GoCardlessBulkPaymentService.BulkCancelEntry;
+import org.killbill.billing.plugin.gocardless.GoCardlessBulkPaymentService.BulkPaymentEntry;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gocardless.GoCardlessClient;
+import com.gocardless.errors.InvalidStateException;
+import com.gocardless.http.ApiResponse;
+import com.google.common.collect.ImmutableList;
+
+public class TestGoCardlessBulkPaymentService extends TestBase {
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test(groups = "slow")
+	public void testResultsAreStreamedPerEntry() throws Exception {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.bulkPaymentParallelism", "2");
+		goCardlessconfigurationHandler.setDefaultConfigurable(new GoCardlessConfigProperties(properties, ""));
+
+		goCardlessMandateCache.put(context.getTenantId(), account.getId(), "MD1");
+		final UUID accountWithoutMandateId = UUID.randomUUID();
+		final AccountUserApi accountUserApi = killbillApi.getAccountUserApi();
+		final Account accountWithoutMandate = Mockito.mock(Account.class);
+		Mockito.when(accountWithoutMandate.getId()).thenReturn(accountWithoutMandateId);
+		Mockito.when(accountUserApi.getAccountById(ArgumentMatchers.eq(accountWithoutMandateId), ArgumentMatchers.<TenantContext>any())).thenReturn(accountWithoutMandate);
+
+		final UUID kbPaymentId = UUID.randomUUID();
+		final UUID kbTransactionId = UUID.randomUUID();
+		final PaymentTransaction transaction = Mockito.mock(PaymentTransaction.class);
+		Mockito.when(transaction.getId()).thenReturn(kbTransactionId);
+		Mockito.when(transaction.getTransactionStatus()).thenReturn(TransactionStatus.PENDING);
+		final Payment payment = Mockito.mock(Payment.class);
+		Mockito.when(payment.getId()).thenReturn(kbPaymentId);
+		Mockito.when(payment.getTransactions()).thenReturn(ImmutableList.of(transaction));
+		final PaymentApi paymentApi = killbillApi.getPaymentApi();
+		Mockito.doReturn(payment).when(paymentApi).createPurchase(ArgumentMatchers.<Account>any(), ArgumentMatchers.<UUID>any(), ArgumentMatchers.<UUID>any(),
+		                                                          ArgumentMatchers.<BigDecimal>any(), ArgumentMatchers.<Currency>any(), ArgumentMatchers.<DateTime>any(),
+		                                                          ArgumentMatchers.<String>any(), ArgumentMatchers.<String>any(), ArgumentMatchers.any(), ArgumentMatchers.<CallContext>any());
+
+		final List<BulkPaymentEntry> entries = GoCardlessBulkPaymentService.parseEntries("[" +
+				"{\"kbAccountId\":\"" + account.getId() + "\",\"amount\":\"10.5\",\"currency\":\"EUR\",\"idempotencyKey\":\"key-0\"}," +
+				"{\"kbAccountId\":\"" + account.getId() + "\",\"amount\":20,\"currency\":\"EUR\",\"idempotencyKey\":\"key-1\"}," +
+				"{\"kbAccountId\":\"" + accountWithoutMandateId + "\",\"amount\":\"5\",\"currency\":\"EUR\",\"idempotencyKey\":\"key-2\"}," +
+				"{\"kbAccountId\":\"" + account.getId() + "\",\"amount\":\"-1\",\"currency\":\"EUR\",\"idempotencyKey\":\"key-3\"}" +
+				"]");
+
+		final GoCardlessBulkPaymentService service = new GoCardlessBulkPaymentService(goCardlessconfigurationHandler, goCardlessPaymentpluginApi, goCardlessWebhookProcessor,
+		                                                                              new GoCardlessMetrics(goCardlessconfigurationHandler.getConfigurable(null)), killbillApi, clock);
+		final Map<Integer, JsonNode> results = new HashMap<>();
+		try (final InputStream stream = service.submit(entries, context.getTenantId());
+		     final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final JsonNode result = objectMapper.readTree(line);
+				results.put(result.get("index").asInt(), result);
+			}
+		} finally {
+			service.shutdown();
+		}
+
+		assertEquals(results.size(), 4);
+		assertEquals(results.get(0).get("status").asText(), "PENDING");
+		assertEquals(results.get(0).get("kbPaymentId").asText(), kbPaymentId.toString());
+		assertEquals(results.get(1).get("idempotencyKey").asText(), "key-1");
+		assertEquals(results.get(1).get("status").asText(), "PENDING");
+		assertEquals(results.get(2).get("status").asText(), GoCardlessBulkPaymentService.BulkPaymentResult.NO_MANDATE);
+		assertNull(results.get(2).get("kbPaymentId"));
+		assertEquals(results.get(3).get("status").asText(), GoCardlessBulkPaymentService.BulkPaymentResult.INVALID);
+		Mockito.verify(paymentApi, Mockito.times(2)).createPurchase(ArgumentMatchers.<Account>any(), ArgumentMatchers.<UUID>any(), ArgumentMatchers.<UUID>any(),
+		                                                            ArgumentMatchers.<BigDecimal>any(), ArgumentMatchers.<Currency>any(), ArgumentMatchers.<DateTime>any(),
+		                                                            ArgumentMatchers.<String>any(), ArgumentMatchers.<String>any(), ArgumentMatchers.any(), ArgumentMatchers.<CallContext>any());
+	}
+
+	@Test(groups = "slow")
+	public void testPaymentsAreCancelledPerEntry() throws Exception {
+		final GoCardlessConfigProperties config = new GoCardlessConfigProperties(new Properties(), "");
+		goCardlessconfigurationHandler.setDefaultConfigurable(config);
+		final PaymentApi paymentApi = killbillApi.getPaymentApi();
+		Mockito.doReturn(null).when(paymentApi)
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.<UUID>any(), ArgumentMatchers.anyBoolean(), ArgumentMatchers.<CallContext>any());
+		final UUID kbPaymentId1 = UUID.randomUUID();
+		final UUID kbTransactionId1 = UUID.randomUUID();
+		dao.addPayment(account.getId(), kbPaymentId1, kbTransactionId1, TransactionType.PURCHASE, BigDecimal.TEN, Currency.GBP,
+				"PM1", "MD1", "PENDING_SUBMISSION", clock.getUTCNow(), context.getTenantId());
+		final UUID kbPaymentId2 = UUID.randomUUID();
+		dao.addPayment(account.getId(), kbPaymentId2, UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.GBP,
+				"PM2", "MD1", "PENDING_SUBMISSION", clock.getUTCNow(), context.getTenantId());
+
+		// PM1 can still be cancelled, PM2 was submitted to the banks in the meantime
+		final ApiResponse<com.gocardless.resources.Payment> cancelled = response(payment("PM1", com.gocardless.resources.Payment.Status.CANCELLED));
+		final ApiResponse<com.gocardless.resources.Payment> submitted = response(payment("PM2", com.gocardless.resources.Payment.Status.SUBMITTED));
+		final InvalidStateException cancellationFailed = Mockito.mock(InvalidStateException.class);
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(client.payments().cancel("PM1").executeWrapped()).thenReturn(cancelled);
+		Mockito.when(client.payments().cancel("PM2").executeWrapped()).thenThrow(cancellationFailed);
+		Mockito.when(client.payments().get("PM2").executeWrapped()).thenReturn(submitted);
+		final GoCardlessPaymentPluginApi pluginApi = buildPluginApi(config, client);
+
+		final PaymentTransactionInfoPlugin voided = pluginApi.voidPayment(account.getId(), kbPaymentId1, UUID.randomUUID(), null, ImmutableList.of(), context);
+		assertEquals(voided.getStatus(), PaymentPluginStatus.PROCESSED);
+		assertEquals(voided.getFirstPaymentReferenceId(), "PM1");
+		assertEquals(pluginApi.voidPayment(account.getId(), kbPaymentId2, UUID.randomUUID(), null, ImmutableList.of(), context).getStatus(), PaymentPluginStatus.ERROR);
+		assertEquals(pluginApi.voidPayment(account.getId(), UUID.randomUUID(), UUID.randomUUID(), null, ImmutableList.of(), context).getStatus(), PaymentPluginStatus.CANCELED);
+
+		final List<BulkCancelEntry> entries = GoCardlessBulkPaymentService.parseCancelEntries("[" +
+				"{\"kbPaymentId\":\"" + kbPaymentId1 + "\"}," +
+				"{\"kbPaymentId\":\"" + kbPaymentId2 + "\"}," +
+				"{\"kbPaymentId\":\"" + UUID.randomUUID() + "\"}," +
+				"{\"kbPaymentId\":\"not-a-uuid\"}" +
+				"]");
+		final GoCardlessMetrics metrics = new GoCardlessMetrics(config);
+		final GoCardlessBulkPaymentService service = new GoCardlessBulkPaymentService(goCardlessconfigurationHandler, pluginApi, goCardlessWebhookProcessor, metrics, killbillApi, clock);
+		final Map<Integer, JsonNode> results = new HashMap<>();
+		try (final InputStream stream = service.cancel(entries, context.getTenantId());
+		     final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final JsonNode result = objectMapper.readTree(line);
+				results.put(result.get("index").asInt(), result);
+			}
+		} finally {
+			service.shutdown();
+		}
+
+		assertEquals(results.size(), 4);
+		assertEquals(results.get(0).get("status").asText(), "CANCELLED");
+		assertEquals(results.get(0).get("paymentId").asText(), "PM1");
+		assertEquals(results.get(1).get("status").asText(), GoCardlessBulkPaymentService.BulkCancelResult.ERROR);
+		assertEquals(results.get(2).get("status").asText(), GoCardlessBulkPaymentService.BulkCancelResult.NOT_FOUND);
+		assertEquals(results.get(3).get("status").asText(), GoCardlessBulkPaymentService.BulkCancelResult.INVALID);
+		// The purchase is failed in Kill Bill without waiting for the webhook
+		assertEquals(dao.getPaymentByGoCardlessId("PM1", context.getTenantId()).getGoCardlessStatus(), "CANCELLED");
+		// Not seen by the plugin API, measured by the service
+		assertTrue(metrics.toPrometheus().contains("gocardless_plugin_api_total{tenant=\"" + context.getTenantId() + "\",operation=\"bulkCancelPayment\",outcome=\"CANCELLED\"} 1\n"));
+		assertTrue(metrics.toPrometheus().contains("gocardless_plugin_api_total{tenant=\"" + context.getTenantId() + "\",operation=\"bulkCancelPayment\",outcome=\"NOT_FOUND\"} 1\n"));
+		assertEquals(dao.getPaymentByGoCardlessId("PM2", context.getTenantId()).getGoCardlessStatus(), "PENDING_SUBMISSION");
+		Mockito.verify(paymentApi).notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId1), ArgumentMatchers.eq(false), ArgumentMatchers.<CallContext>any());
+	}
+
+	private GoCardlessPaymentPluginApi buildPluginApi(final GoCardlessConfigProperties config, final GoCardlessClient client) {
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(ArgumentMatchers.any())).thenReturn(client);
+		final GoCardlessApiExecutor apiExecutor = new GoCardlessApiExecutor(goCardlessconfigurationHandler,
+		                                                                    new GoCardlessRateLimiter(goCardlessconfigurationHandler),
+		                                                                    new GoCardlessCircuitBreaker(goCardlessconfigurationHandler),
+		                                                                    new GoCardlessMetrics(config),
+		                                                                    new GoCardlessHttpTransport(config),
+		                                                                    new GoCardlessAuditLog(config, dao, clock));
+		return new GoCardlessPaymentPluginApi(goCardlessconfigurationHandler, clientCache, apiExecutor, goCardlessMandateCache,
+		                                      new GoCardlessRedirectFlowCache(goCardlessconfigurationHandler), dao, goCardlessWebhookProcessor,
+		                                      Mockito.mock(GoCardlessMandateSync.class), killbillApi, clock);
+	}
+
+	private static com.gocardless.resources.Payment payment(final String id, final com.gocardless.resources.Payment.Status status) {
+		final com.gocardless.resources.Payment payment = Mockito.mock(com.gocardless.resources.Payment.class);
+		Mockito.when(payment.getId()).thenReturn(id);
+		Mockito.when(payment.getStatus()).thenReturn(status);
+		return payment;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ApiResponse<com.gocardless.resources.Payment> response(final com.gocardless.resources.Payment payment) {
+		final ApiResponse<com.gocardless.resources.Payment> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(payment);
+		return response;
+	}
+}
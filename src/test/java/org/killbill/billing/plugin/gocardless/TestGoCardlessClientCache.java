@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.Properties;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.gocardless.GoCardlessClient;
+
+public class TestGoCardlessClientCache {
+
+	@Test(groups = "fast")
+	public void testClientIsReusedUntilConfigurationChanges() {
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(buildConfig("token1"));
+		final GoCardlessClientCache clientCache = new GoCardlessClientCache(configurationHandler, new GoCardlessHttpTransport(buildConfig("token1")));
+
+		final GoCardlessClient client = clientCache.getClient(null);
+		assertSame(clientCache.getClient(null), client);
+		assertEquals(clientCache.getLiveClients(), 1);
+		assertEquals(clientCache.getHits().get("default"), (Long) 1L);
+
+		// A new token means a new client
+		configurationHandler.setDefaultConfigurable(buildConfig("token2"));
+		assertNotSame(clientCache.getClient(null), client);
+		assertEquals(clientCache.getLiveClients(), 1);
+
+		clientCache.invalidate(null);
+		assertEquals(clientCache.getLiveClients(), 0);
+	}
+
+	@Test(groups = "fast")
+	public void testNoClientWithoutToken() {
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(new GoCardlessConfigProperties(new Properties(), ""));
+		final GoCardlessClientCache clientCache = new GoCardlessClientCache(configurationHandler, new GoCardlessHttpTransport(new GoCardlessConfigProperties(new Properties(), "")));
+
+		if (System.getenv(GoCardlessConfigProperties.GOCARDLESS_ACCESS_TOKEN_KEY) == null) {
+			assertNull(clientCache.getClient(null));
+			assertEquals(clientCache.getLiveClients(), 0);
+		}
+	}
+
+	private GoCardlessConfigProperties buildConfig(final String token) {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.gocardlesstoken", token);
+		properties.put("org.killbill.billing.plugin.gocardless.environment", "sandbox");
+		return new GoCardlessConfigProperties(properties, "");
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.billing.osgi.api.Healthcheck.HealthStatus;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.clock.ClockMock;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.gocardless.GoCardlessClient;
+import com.gocardless.GoCardlessException;
+import com.gocardless.http.ApiResponse;
+
+public class TestGoCardlessHealthCheck {
+
+	@Test(groups = "fast")
+	public void testProbeIsCached() {
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(client.creditors().list().withLimit(1).executeWrapped()).thenReturn(Mockito.mock(ApiResponse.class));
+		final GoCardlessHealthCheck healthCheck = buildHealthCheck(client, "3600");
+		final Tenant tenant = buildTenant();
+
+		final HealthStatus status = healthCheck.getHealthStatus(tenant, null);
+		assertTrue(status.isHealthy());
+		assertTrue(((Map<?, ?>) status.getDetails()).containsKey("latencyMs"));
+		assertTrue(healthCheck.getHealthStatus(tenant, null).isHealthy());
+		assertTrue(healthCheck.getHealthStatus(tenant, null).isHealthy());
+
+		// GoCardless was only called once
+		Mockito.verify(client.creditors().list().withLimit(1), Mockito.times(1)).executeWrapped();
+	}
+
+	@Test(groups = "fast")
+	public void testProbeFailure() {
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class, Mockito.RETURNS_DEEP_STUBS);
+		final GoCardlessException unauthorized = Mockito.mock(GoCardlessException.class);
+		Mockito.when(unauthorized.getMessage()).thenReturn("Invalid access token");
+		Mockito.when(client.creditors().list().withLimit(1).executeWrapped()).thenThrow(unauthorized);
+		final GoCardlessHealthCheck healthCheck = buildHealthCheck(client, "0");
+		final Tenant tenant = buildTenant();
+
+		final HealthStatus status = healthCheck.getHealthStatus(tenant, null);
+		assertFalse(status.isHealthy());
+		assertEquals(((Map<?, ?>) status.getDetails()).get("message"), "Gocardless error: Invalid access token");
+
+		// No TTL, every check is a new probe
+		healthCheck.getHealthStatus(tenant, null);
+		Mockito.verify(client.creditors().list().withLimit(1), Mockito.times(2)).executeWrapped();
+	}
+
+	private static GoCardlessHealthCheck buildHealthCheck(final GoCardlessClient client, final String ttlSeconds) {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.healthCheckTtlSeconds", ttlSeconds);
+		final GoCardlessConfigProperties config = new GoCardlessConfigProperties(properties, "");
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(config);
+
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(Mockito.any())).thenReturn(client);
+		final GoCardlessRateLimiter rateLimiter = new GoCardlessRateLimiter(configurationHandler);
+		final GoCardlessCircuitBreaker circuitBreaker = new GoCardlessCircuitBreaker(configurationHandler);
+		final GoCardlessAuditLog auditLog = new GoCardlessAuditLog(config, Mockito.mock(GoCardlessDao.class), new ClockMock());
+		final GoCardlessApiExecutor apiExecutor = new GoCardlessApiExecutor(configurationHandler, rateLimiter, circuitBreaker, new GoCardlessMetrics(config), new GoCardlessHttpTransport(config), auditLog);
+		return new GoCardlessHealthCheck(configurationHandler,
+		                                 clientCache,
+		                                 apiExecutor,
+		                                 new GoCardlessMandateCache(configurationHandler),
+		                                 new GoCardlessRedirectFlowCache(configurationHandler),
+		                                 Mockito.mock(GoCardlessWebhookProcessor.class),
+		                                 rateLimiter,
+		                                 circuitBreaker,
+		                                 new GoCardlessWarmUp(config, Mockito.mock(GoCardlessDao.class), clientCache, apiExecutor),
+		                                 auditLog);
+	}
+
+	private static Tenant buildTenant() {
+		final Tenant tenant = Mockito.mock(Tenant.class);
+		Mockito.when(tenant.getId()).thenReturn(UUID.randomUUID());
+		return tenant;
+	}
+}
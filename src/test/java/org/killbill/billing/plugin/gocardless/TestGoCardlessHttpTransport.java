@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.gocardless.GoCardlessClient;
+import com.google.common.collect.ImmutableList;
+
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class TestGoCardlessHttpTransport {
+
+	@Test(groups = "fast")
+	public void testConcurrentRequestsAreBounded() throws Exception {
+		final GoCardlessHttpTransport transport = new GoCardlessHttpTransport(buildConfig("1", null));
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<String> inFlight = executor.submit(() -> transport.execute(() -> {
+				started.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "first";
+			}));
+			started.await();
+			assertEquals(transport.getActiveRequests(), 1);
+
+			// No free slot within the connect timeout: the request isn't sent
+			try {
+				transport.execute(() -> "second");
+				fail("Expected GoCardlessRateLimitedException");
+			} catch (final GoCardlessRateLimitedException expected) {
+			}
+
+			release.countDown();
+			assertEquals(inFlight.get(), "first");
+			assertEquals(transport.execute(() -> "third"), "third");
+			assertEquals(transport.getActiveRequests(), 0);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(groups = "fast")
+	public void testProxyAndMetrics() {
+		final GoCardlessHttpTransport transport = new GoCardlessHttpTransport(buildConfig("5", "proxy.example.com"));
+		assertEquals(((InetSocketAddress) transport.getProxy().address()).getHostString(), "proxy.example.com");
+		assertNull(new GoCardlessHttpTransport(buildConfig("5", null)).getProxy());
+
+		// A client which doesn't have the expected layout can't be used
+		try {
+			transport.install(Mockito.mock(GoCardlessClient.class));
+			fail("Expected IllegalStateException");
+		} catch (final IllegalStateException expected) {
+		}
+
+		final GoCardlessMetrics metrics = new GoCardlessMetrics(buildConfig("5", null));
+		metrics.registerTransport(transport);
+		assertTrue(metrics.toPrometheus().contains("gocardless_http_pool_max_connections 5\n"));
+		assertTrue(metrics.toPrometheus().contains("gocardless_http_pool_active_requests 0\n"));
+	}
+
+	@Test(groups = "fast")
+	public void testClientsShareOneConnectionPool() {
+		final GoCardlessHttpTransport transport = new GoCardlessHttpTransport(buildConfig("5", "proxy.example.com"));
+		transport.verify();
+
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.environment", "sandbox");
+		properties.put("org.killbill.billing.plugin.gocardless.gocardlesstoken", "token1");
+		final GoCardlessClient first = GoCardlessClientCache.buildClient(new GoCardlessConfigProperties(properties, ""), transport);
+		properties.put("org.killbill.billing.plugin.gocardless.gocardlesstoken", "token2");
+		final GoCardlessClient second = GoCardlessClientCache.buildClient(new GoCardlessConfigProperties(properties, ""), transport);
+
+		assertNotSame(first, second);
+		assertSame(GoCardlessHttpTransport.getRawClient(first).connectionPool(), GoCardlessHttpTransport.getRawClient(second).connectionPool());
+		assertEquals(GoCardlessHttpTransport.getRawClient(first).connectTimeoutMillis(), 50);
+		assertSame(GoCardlessHttpTransport.getRawClient(second).proxy(), transport.getProxy());
+	}
+
+	@Test(groups = "fast")
+	public void testLibraryVersionIsTheSupportedOne() {
+		// install relies on the private fields of this version: check it again (testClientsShareOneConnectionPool) before upgrading
+		final String location = GoCardlessClient.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+		if (location.endsWith(".jar")) {
+			assertTrue(location.endsWith("/gocardless-pro-" + GoCardlessHttpTransport.GOCARDLESS_PRO_VERSION + ".jar"), location);
+		}
+	}
+
+	@Test(groups = "fast")
+	public void testRateLimitedHeadersAreRecorded() throws Exception {
+		final GoCardlessHttpTransport transport = new GoCardlessHttpTransport(buildConfig("5", null));
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.environment", "sandbox");
+		properties.put("org.killbill.billing.plugin.gocardless.gocardlesstoken", "token1");
+		final List<Interceptor> interceptors = GoCardlessHttpTransport.getRawClient(GoCardlessClientCache.buildClient(new GoCardlessConfigProperties(properties, ""), transport))
+		                                                              .interceptors();
+		final Interceptor interceptor = interceptors.get(interceptors.size() - 1);
+
+		final Request request = new Request.Builder().url("https://api-sandbox.gocardless.com/payments").build();
+		final Interceptor.Chain chain = Mockito.mock(Interceptor.Chain.class);
+		Mockito.when(chain.request()).thenReturn(request);
+		Mockito.when(chain.proceed(request)).thenReturn(new Response.Builder().request(request)
+		                                                                       .protocol(Protocol.HTTP_1_1)
+		                                                                       .code(429)
+		                                                                       .message("Too Many Requests")
+		                                                                       .header("RateLimit-Reset", "Thu, 01 Jan 1970 00:00:00 GMT")
+		                                                                       .build());
+		transport.execute(() -> intercept(interceptor, chain));
+		assertEquals(transport.getRateLimitedHeaders().get("ratelimit-reset"), ImmutableList.of("Thu, 01 Jan 1970 00:00:00 GMT"));
+
+		// Only kept until the next request
+		transport.execute(() -> "next");
+		assertNull(transport.getRateLimitedHeaders());
+	}
+
+	private static Response intercept(final Interceptor interceptor, final Interceptor.Chain chain) {
+		try {
+			return interceptor.intercept(chain);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static GoCardlessConfigProperties buildConfig(final String maxConnections, final String proxyHost) {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.httpMaxConnections", maxConnections);
+		properties.put("org.killbill.billing.plugin.gocardless.httpConnectTimeoutMillis", "50");
+		if (proxyHost != null) {
+			properties.put("org.killbill.billing.plugin.gocardless.proxyHost", proxyHost);
+			properties.put("org.killbill.billing.plugin.gocardless.proxyPort", "3128");
+		}
+		return new GoCardlessConfigProperties(properties, "");
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.gocardless.GoCardlessJobLeases.Lease;
+import org.testng.annotations.Test;
+
+public class TestGoCardlessJobLeases extends TestBase {
+
+	private static final String JOB_NAME = "test_job";
+
+	@Test(groups = "slow")
+	public void testLeaseIsHeldByASingleNode() throws Exception {
+		final GoCardlessJobLeases node1 = buildNode();
+		final GoCardlessJobLeases node2 = buildNode();
+		final UUID kbTenantId = UUID.randomUUID();
+
+		final Lease lease = node1.tryAcquire(JOB_NAME, kbTenantId);
+		assertNotNull(lease);
+		assertNull(node2.tryAcquire(JOB_NAME, kbTenantId));
+		assertNull(node1.tryAcquire(JOB_NAME, kbTenantId));
+		// Leases are per job and per tenant
+		assertNotNull(node2.tryAcquire(JOB_NAME, UUID.randomUUID()));
+		assertNotNull(node2.tryAcquire("other_job", kbTenantId));
+
+		// Renewed by the heartbeat while the work lasts
+		clock.addDeltaFromReality(40 * 1000);
+		node1.renewHeldLeases();
+		clock.addDeltaFromReality(40 * 1000);
+		assertNull(node2.tryAcquire(JOB_NAME, kbTenantId));
+		assertTrue(lease.isHeld());
+
+		// Kept until the next run once completed
+		lease.complete(clock.getUTCNow().plusMinutes(10));
+		assertEquals(node1.getHeldLeases(), 0);
+		assertNull(node2.tryAcquire(JOB_NAME, kbTenantId));
+		clock.addDeltaFromReality(11 * 60 * 1000);
+		final Lease next = node2.tryAcquire(JOB_NAME, kbTenantId);
+		assertNotNull(next);
+
+		// Given up right away when closed
+		next.close();
+		assertNotNull(node1.tryAcquire(JOB_NAME, kbTenantId));
+	}
+
+	@Test(groups = "slow")
+	public void testExpiredLeaseIsTakenOver() throws Exception {
+		final GoCardlessJobLeases node1 = buildNode();
+		final GoCardlessJobLeases node2 = buildNode();
+		final UUID kbTenantId = UUID.randomUUID();
+
+		final Lease lease = node1.tryAcquire(JOB_NAME, kbTenantId);
+		assertNotNull(lease);
+
+		// node1 stops renewing, e.g. it died
+		clock.addDeltaFromReality(61 * 1000);
+		assertNotNull(node2.tryAcquire(JOB_NAME, kbTenantId));
+
+		// And finds out on its next heartbeat
+		node1.renewHeldLeases();
+		assertFalse(lease.isHeld());
+		assertEquals(node1.getHeldLeases(), 0);
+		// Completing a lost lease doesn't give away the new owner's
+		lease.close();
+		assertNull(node1.tryAcquire(JOB_NAME, kbTenantId));
+	}
+
+	private GoCardlessJobLeases buildNode() {
+		return new GoCardlessJobLeases(new GoCardlessConfigProperties(new Properties(), ""), dao, clock);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+public class TestGoCardlessMandateCache {
+
+	@Test(groups = "fast")
+	public void testBoundedPerTenantCache() {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.mandateCacheMaxSize", "2");
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(new GoCardlessConfigProperties(properties, ""));
+		final GoCardlessMandateCache mandateCache = new GoCardlessMandateCache(configurationHandler);
+
+		final UUID kbAccountId = UUID.randomUUID();
+		assertNull(mandateCache.getIfPresent(null, kbAccountId));
+		mandateCache.put(null, kbAccountId, "MD123");
+		assertEquals(mandateCache.getIfPresent(null, kbAccountId), "MD123");
+		assertEquals(mandateCache.getStats().hitCount(), 1);
+		assertEquals(mandateCache.getStats().missCount(), 1);
+
+		mandateCache.invalidate(null, kbAccountId);
+		assertNull(mandateCache.getIfPresent(null, kbAccountId));
+
+		for (int i = 0; i < 10; i++) {
+			mandateCache.put(null, UUID.randomUUID(), "MD" + i);
+		}
+		assertEquals(mandateCache.getSize(), 2);
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.gocardless.GoCardlessMandateImportService.ImportResult;
+import org.killbill.billing.plugin.gocardless.GoCardlessMandateImportService.ImportSummary;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.entity.Pagination;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ApiResponse;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Customer;
+import com.gocardless.resources.Mandate;
+import com.gocardless.services.MandateService;
+import com.gocardless.services.MandateService.MandateListRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestGoCardlessMandateImportService extends TestBase {
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	private MandateListRequest<ListResponse<Mandate>> mandateListRequest;
+	private ApiResponse<ListResponse<Mandate>> firstPage;
+	private ApiResponse<ListResponse<Mandate>> secondPage;
+	private Account emailAccount;
+	private PaymentApi paymentApi;
+	private GoCardlessJobLeases jobLeases;
+	private GoCardlessMandateImportService importService;
+
+	@BeforeMethod(groups = "slow")
+	@SuppressWarnings("unchecked")
+	public void setUpImport() throws Exception {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.mandateImportPageSize", "3");
+		properties.put("org.killbill.billing.plugin.gocardless.mandateImportParallelism", "2");
+		final GoCardlessConfigProperties config = new GoCardlessConfigProperties(properties, "");
+		goCardlessconfigurationHandler.setDefaultConfigurable(config);
+
+		// MD1 names its account, MD2 is matched through the email of its customer, MD3 is cancelled, then MD4 whose customer is unknown to Kill Bill
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class, Mockito.RETURNS_DEEP_STUBS);
+		final MandateService mandateService = Mockito.mock(MandateService.class);
+		Mockito.when(client.mandates()).thenReturn(mandateService);
+		mandateListRequest = Mockito.mock(MandateListRequest.class, Mockito.RETURNS_SELF);
+		Mockito.when(mandateService.list()).thenReturn(mandateListRequest);
+		firstPage = page(ImmutableList.of(mandate("MD1", "CU1", Mandate.Status.ACTIVE, ImmutableMap.of("kbAccountId", account.getId().toString())),
+		                                  mandate("MD2", "CU2", Mandate.Status.PENDING_SUBMISSION, null),
+		                                  mandate("MD3", "CU3", Mandate.Status.CANCELLED, null)), "MD3");
+		secondPage = page(ImmutableList.of(mandate("MD4", "CU4", Mandate.Status.ACTIVE, null)), null);
+		final ApiResponse<Customer> jane = customer("JANE@example.com");
+		final ApiResponse<Customer> withoutEmail = customer(null);
+		Mockito.when(client.customers().get("CU2").executeWrapped()).thenReturn(jane);
+		Mockito.when(client.customers().get("CU4").executeWrapped()).thenReturn(withoutEmail);
+
+		emailAccount = Mockito.mock(Account.class);
+		Mockito.when(emailAccount.getId()).thenReturn(UUID.randomUUID());
+		Mockito.when(emailAccount.getEmail()).thenReturn("jane@example.com");
+		final Account otherAccount = Mockito.mock(Account.class);
+		Mockito.when(otherAccount.getEmail()).thenReturn("jane@example.com.au");
+		final Pagination<Account> searchResults = Mockito.mock(Pagination.class);
+		Mockito.when(searchResults.iterator()).thenAnswer(invocation -> ImmutableList.of(otherAccount, emailAccount).iterator());
+		final AccountUserApi accountUserApi = killbillApi.getAccountUserApi();
+		Mockito.when(accountUserApi.searchAccounts(ArgumentMatchers.eq("JANE@example.com"), ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.<TenantContext>any()))
+		       .thenReturn(searchResults);
+
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(ArgumentMatchers.any())).thenReturn(client);
+		final GoCardlessApiExecutor apiExecutor = new GoCardlessApiExecutor(goCardlessconfigurationHandler,
+		                                                                    new GoCardlessRateLimiter(goCardlessconfigurationHandler),
+		                                                                    new GoCardlessCircuitBreaker(goCardlessconfigurationHandler),
+		                                                                    new GoCardlessMetrics(config),
+		                                                                    new GoCardlessHttpTransport(config),
+		                                                                    new GoCardlessAuditLog(config, dao, clock));
+		final GoCardlessPaymentPluginApi pluginApi = new GoCardlessPaymentPluginApi(goCardlessconfigurationHandler, clientCache, apiExecutor, goCardlessMandateCache,
+		                                                                            new GoCardlessRedirectFlowCache(goCardlessconfigurationHandler), dao, goCardlessWebhookProcessor,
+		                                                                            Mockito.mock(GoCardlessMandateSync.class), killbillApi, clock);
+
+		// Kill Bill hands the payment method over to the plugin
+		paymentApi = killbillApi.getPaymentApi();
+		Mockito.doAnswer(invocation -> {
+			final UUID kbPaymentMethodId = UUID.randomUUID();
+			pluginApi.addPaymentMethod(invocation.<Account>getArgument(0).getId(), kbPaymentMethodId, invocation.<PaymentMethodPlugin>getArgument(4),
+			                           invocation.<Boolean>getArgument(3), invocation.<Iterable<PluginProperty>>getArgument(5), invocation.<CallContext>getArgument(6));
+			return kbPaymentMethodId;
+		}).when(paymentApi).addPaymentMethod(ArgumentMatchers.<Account>any(), ArgumentMatchers.<String>any(), ArgumentMatchers.<String>any(), ArgumentMatchers.anyBoolean(),
+		                                     ArgumentMatchers.<PaymentMethodPlugin>any(), ArgumentMatchers.any(), ArgumentMatchers.<CallContext>any());
+
+		jobLeases = new GoCardlessJobLeases(config, dao, clock);
+		importService = new GoCardlessMandateImportService(config, clientCache, apiExecutor, pluginApi, goCardlessMandateCache, dao, jobLeases, killbillApi, clock);
+	}
+
+	@Test(groups = "slow")
+	@SuppressWarnings("unchecked")
+	public void testDryRunThenImport() throws Exception {
+		Mockito.when(mandateListRequest.executeWrapped()).thenReturn(firstPage, secondPage, firstPage, secondPage, firstPage, secondPage);
+
+		final List<JsonNode> dryRun = read(importService.importMandates(context.getTenantId(), true, false));
+		assertEquals(dryRun.size(), 5);
+		assertResult(dryRun.get(0), "MD1", ImportResult.WOULD_IMPORT, ImportResult.MANDATE_METADATA, account.getId());
+		assertResult(dryRun.get(1), "MD2", ImportResult.WOULD_IMPORT, ImportResult.EMAIL, emailAccount.getId());
+		assertResult(dryRun.get(2), "MD3", ImportResult.INACTIVE, null, null);
+		assertResult(dryRun.get(3), "MD4", ImportResult.NO_ACCOUNT, null, null);
+		assertEquals(dryRun.get(4).get("status").asText(), ImportSummary.COMPLETED);
+		assertEquals(dryRun.get(4).get("counts").get(ImportResult.WOULD_IMPORT).asInt(), 2);
+		Mockito.verify(paymentApi, Mockito.never()).addPaymentMethod(ArgumentMatchers.<Account>any(), ArgumentMatchers.<String>any(), ArgumentMatchers.<String>any(), ArgumentMatchers.anyBoolean(),
+		                                                             ArgumentMatchers.<PaymentMethodPlugin>any(), ArgumentMatchers.any(), ArgumentMatchers.<CallContext>any());
+
+		final List<JsonNode> imported = read(importService.importMandates(context.getTenantId(), false, false));
+		assertEquals(imported.size(), 5);
+		assertResult(imported.get(0), "MD1", ImportResult.IMPORTED, ImportResult.MANDATE_METADATA, account.getId());
+		assertResult(imported.get(1), "MD2", ImportResult.IMPORTED, ImportResult.EMAIL, emailAccount.getId());
+		assertNotNull(imported.get(1).get("kbPaymentMethodId"));
+		assertEquals(imported.get(4).get("status").asText(), ImportSummary.COMPLETED);
+		assertNull(imported.get(4).get("checkpoint"));
+		// The account without payment method pays through the imported mandate from now on
+		Mockito.verify(paymentApi).addPaymentMethod(ArgumentMatchers.eq(emailAccount), ArgumentMatchers.eq("MD2"), ArgumentMatchers.eq(GoCardlessActivator.PLUGIN_NAME), ArgumentMatchers.eq(true),
+		                                            ArgumentMatchers.<PaymentMethodPlugin>any(), ArgumentMatchers.any(), ArgumentMatchers.<CallContext>any());
+		assertEquals(dao.getPaymentMethodsByMandateIds(ImmutableList.of("MD1", "MD2"), context.getTenantId()).size(), 2);
+		assertEquals(dao.getPaymentMethods(emailAccount.getId(), context.getTenantId()).get(0).getMandateStatus(), "PENDING_SUBMISSION");
+		// The custom fields of the page are written at once
+		Mockito.verify(customFieldUserApi).addCustomFields((List<CustomField>) ArgumentMatchers.argThat(customFields -> ((List<CustomField>) customFields).size() == 2),
+		                                                   ArgumentMatchers.<CallContext>any());
+		assertEquals(goCardlessMandateCache.getIfPresent(context.getTenantId(), emailAccount.getId()), "MD2");
+		assertNull(dao.getJobCursor(GoCardlessMandateImportService.JOB_NAME, context.getTenantId()));
+
+		// Imported mandates are skipped by the next import
+		final List<JsonNode> reimported = read(importService.importMandates(context.getTenantId(), false, false));
+		assertResult(reimported.get(0), "MD1", ImportResult.ALREADY_IMPORTED, null, account.getId());
+		assertResult(reimported.get(1), "MD2", ImportResult.ALREADY_IMPORTED, null, emailAccount.getId());
+	}
+
+	@Test(groups = "slow")
+	@SuppressWarnings("unchecked")
+	public void testExistingMandateCustomFieldIsKept() throws Exception {
+		// Set up through a redirect flow before the import
+		final CustomField existing = Mockito.mock(CustomField.class);
+		Mockito.when(existing.getFieldName()).thenReturn(GoCardlessPaymentPluginApi.MANDATE_ID_CUSTOM_FIELD);
+		Mockito.when(existing.getFieldValue()).thenReturn("MD0");
+		Mockito.when(customFieldUserApi.getCustomFieldsForAccountType(ArgumentMatchers.eq(emailAccount.getId()), ArgumentMatchers.eq(ObjectType.ACCOUNT), ArgumentMatchers.<TenantContext>any()))
+		       .thenReturn(ImmutableList.of(existing));
+		Mockito.when(mandateListRequest.executeWrapped()).thenReturn(firstPage, secondPage);
+
+		final List<JsonNode> imported = read(importService.importMandates(context.getTenantId(), false, false));
+		assertResult(imported.get(1), "MD2", ImportResult.IMPORTED, ImportResult.EMAIL, emailAccount.getId());
+		// Only the account without one gets a custom field
+		Mockito.verify(customFieldUserApi).addCustomFields((List<CustomField>) ArgumentMatchers.argThat(customFields -> ((List<CustomField>) customFields).size() == 1
+		                                                                                                               && ((List<CustomField>) customFields).get(0).getObjectId().equals(account.getId())),
+		                                                   ArgumentMatchers.<CallContext>any());
+	}
+
+	@Test(groups = "slow")
+	public void testImportResumesFromCheckpoint() throws Exception {
+		Mockito.when(mandateListRequest.executeWrapped()).thenReturn(firstPage).thenThrow(new IllegalStateException("Connection reset")).thenReturn(secondPage);
+
+		final List<JsonNode> failed = read(importService.importMandates(context.getTenantId(), false, false));
+		assertEquals(failed.size(), 4);
+		assertEquals(failed.get(3).get("status").asText(), ImportSummary.FAILED);
+		assertEquals(failed.get(3).get("checkpoint").asText(), "MD3");
+		assertEquals(dao.getJobCursor(GoCardlessMandateImportService.JOB_NAME, context.getTenantId()), "MD3");
+
+		final List<JsonNode> resumed = read(importService.importMandates(context.getTenantId(), false, false));
+		assertEquals(resumed.size(), 2);
+		assertResult(resumed.get(0), "MD4", ImportResult.NO_ACCOUNT, null, null);
+		assertEquals(resumed.get(1).get("status").asText(), ImportSummary.COMPLETED);
+		// The first page isn't listed again
+		Mockito.verify(mandateListRequest, Mockito.times(3)).executeWrapped();
+		Mockito.verify(mandateListRequest, Mockito.times(2)).withAfter("MD3");
+	}
+
+	@Test(groups = "slow")
+	public void testSingleImportPerTenant() throws Exception {
+		final GoCardlessJobLeases.Lease lease = jobLeases.tryAcquire(GoCardlessMandateImportService.JOB_NAME, context.getTenantId());
+		assertNotNull(lease);
+		try {
+			importService.importMandates(context.getTenantId(), false, false);
+			fail("The import should not start while another one runs");
+		} catch (final IllegalStateException e) {
+			// expected
+		} finally {
+			lease.close();
+		}
+	}
+
+	private static List<JsonNode> read(final InputStream stream) throws Exception {
+		final List<JsonNode> results = new ArrayList<>();
+		try (final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				results.add(objectMapper.readTree(line));
+			}
+		}
+		return results;
+	}
+
+	private static void assertResult(final JsonNode result, final String mandateId, final String status, final String matchedBy, final UUID kbAccountId) {
+		assertEquals(result.get("mandateId").asText(), mandateId);
+		assertEquals(result.get("status").asText(), status);
+		if (matchedBy == null) {
+			assertNull(result.get("matchedBy"));
+		} else {
+			assertEquals(result.get("matchedBy").asText(), matchedBy);
+		}
+		if (kbAccountId == null) {
+			assertNull(result.get("kbAccountId"));
+		} else {
+			assertEquals(result.get("kbAccountId").asText(), kbAccountId.toString());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ApiResponse<ListResponse<Mandate>> page(final List<Mandate> mandates, final String after) {
+		final ListResponse<Mandate> page = Mockito.mock(ListResponse.class);
+		Mockito.when(page.getItems()).thenReturn(mandates);
+		Mockito.when(page.getAfter()).thenReturn(after);
+		final ApiResponse<ListResponse<Mandate>> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(page);
+		return response;
+	}
+
+	private static Mandate mandate(final String id, final String customerId, final Mandate.Status status, final Map<String, String> metadata) {
+		final Mandate mandate = Mockito.mock(Mandate.class);
+		final Mandate.Links links = Mockito.mock(Mandate.Links.class);
+		Mockito.when(links.getCustomer()).thenReturn(customerId);
+		Mockito.when(mandate.getId()).thenReturn(id);
+		Mockito.when(mandate.getLinks()).thenReturn(links);
+		Mockito.when(mandate.getStatus()).thenReturn(status);
+		Mockito.when(mandate.getScheme()).thenReturn("bacs");
+		Mockito.when(mandate.getMetadata()).thenReturn(metadata);
+		return mandate;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ApiResponse<Customer> customer(final String email) {
+		final Customer customer = Mockito.mock(Customer.class);
+		Mockito.when(customer.getEmail()).thenReturn(email);
+		final ApiResponse<Customer> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(customer);
+		return response;
+	}
+}
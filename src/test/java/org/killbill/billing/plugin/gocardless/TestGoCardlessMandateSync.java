@@ -0,0 +1,149 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.LocalDate;
+import org.mockito.Answers;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ApiResponse;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Event;
+import com.gocardless.resources.Mandate;
+import com.gocardless.services.EventService;
+import com.gocardless.services.EventService.EventListRequest;
+import com.gocardless.services.MandateService;
+import com.gocardless.services.MandateService.MandateListRequest;
+import com.google.common.collect.ImmutableList;
+
+public class TestGoCardlessMandateSync extends TestBase {
+
+	private EventListRequest<ListResponse<Event>> eventListRequest;
+	private MandateListRequest<ListResponse<Mandate>> mandateListRequest;
+	private GoCardlessMandateSync mandateSync;
+	private UUID kbPaymentMethodId1;
+	private UUID kbPaymentMethodId2;
+
+	@BeforeMethod(groups = "slow")
+	public void setUpSync() throws Exception {
+		final GoCardlessConfigProperties config = new GoCardlessConfigProperties(new Properties(), "");
+		goCardlessconfigurationHandler.setDefaultConfigurable(config);
+
+		eventListRequest = Mockito.mock(EventListRequest.class, Answers.RETURNS_SELF);
+		final EventService eventService = Mockito.mock(EventService.class);
+		Mockito.when(eventService.list()).thenReturn(eventListRequest);
+		mandateListRequest = Mockito.mock(MandateListRequest.class, Answers.RETURNS_SELF);
+		final MandateService mandateService = Mockito.mock(MandateService.class);
+		Mockito.when(mandateService.list()).thenReturn(mandateListRequest);
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class);
+		Mockito.when(client.events()).thenReturn(eventService);
+		Mockito.when(client.mandates()).thenReturn(mandateService);
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(ArgumentMatchers.any())).thenReturn(client);
+
+		mandateSync = new GoCardlessMandateSync(config,
+		                                        dao,
+		                                        clientCache,
+		                                        new GoCardlessApiExecutor(goCardlessconfigurationHandler,
+		                                                                  new GoCardlessRateLimiter(goCardlessconfigurationHandler),
+		                                                                  new GoCardlessCircuitBreaker(goCardlessconfigurationHandler),
+		                                                                  new GoCardlessMetrics(config),
+		                                                                  new GoCardlessHttpTransport(config),
+		                                                                  new GoCardlessAuditLog(config, dao, clock)),
+		                                        clock);
+
+		kbPaymentMethodId1 = UUID.randomUUID();
+		kbPaymentMethodId2 = UUID.randomUUID();
+		dao.addPaymentMethod(account.getId(), kbPaymentMethodId1, "MD1", "CU1", "PENDING_SUBMISSION", "bacs", null, true, clock.getUTCNow(), context.getTenantId());
+		dao.addPaymentMethod(account.getId(), kbPaymentMethodId2, "MD2", "CU1", "ACTIVE", "bacs", null, false, clock.getUTCNow(), context.getTenantId());
+	}
+
+	@Test(groups = "slow")
+	public void testOnlyChangesSinceTheLastSyncAreApplied() throws Exception {
+		// Newest first, MD9 isn't known to the plugin
+		final ApiResponse<ListResponse<Event>> firstPage = page("EV3", event("2023-01-01T12:00:00.000Z", "MD1", "active"), event("2023-01-01T11:00:00.000Z", "MD9", "cancelled"));
+		final ApiResponse<ListResponse<Event>> lastPage = page(null, event("2023-01-01T10:00:00.000Z", "MD1", "submitted"), event("2023-01-01T09:00:00.000Z", "MD2", "created"));
+		Mockito.when(eventListRequest.executeWrapped()).thenReturn(firstPage).thenReturn(lastPage);
+
+		assertEquals(mandateSync.sync(context.getTenantId()), 1);
+
+		// The latest event wins
+		assertEquals(dao.getPaymentMethod(kbPaymentMethodId1, context.getTenantId()).getMandateStatus(), "ACTIVE");
+		assertEquals(dao.getPaymentMethod(kbPaymentMethodId2, context.getTenantId()).getMandateStatus(), "ACTIVE");
+		Mockito.verify(eventListRequest, Mockito.times(2)).withResourceType(EventListRequest.ResourceType.MANDATES);
+		Mockito.verify(eventListRequest).withAfter("EV3");
+		assertEquals(dao.getJobCursor(GoCardlessMandateSync.JOB_NAME, context.getTenantId()), "2023-01-01T12:00:00.000Z");
+
+		// The next sync starts from the newest event seen
+		final ApiResponse<ListResponse<Event>> nextPage = page(null, event("2023-01-02T10:00:00.000Z", "MD2", "cancelled"));
+		Mockito.when(eventListRequest.executeWrapped()).thenReturn(nextPage);
+		assertEquals(mandateSync.sync(context.getTenantId()), 1);
+		Mockito.verify(eventListRequest).withCreatedAtGte("2023-01-01T12:00:00.000Z");
+		assertEquals(dao.getPaymentMethod(kbPaymentMethodId2, context.getTenantId()).getMandateStatus(), "CANCELLED");
+	}
+
+	@Test(groups = "slow")
+	public void testResyncListsMandatesPageByPage() throws Exception {
+		final ApiResponse<ListResponse<Mandate>> firstPage = page("MD1", mandate("MD1", Mandate.Status.ACTIVE, "2023-02-01"));
+		final ApiResponse<ListResponse<Mandate>> lastPage = page(null, mandate("MD2", Mandate.Status.ACTIVE, null));
+		Mockito.when(mandateListRequest.executeWrapped()).thenReturn(firstPage).thenReturn(lastPage);
+
+		assertEquals(mandateSync.resync(context.getTenantId()), 1);
+
+		assertEquals(dao.getPaymentMethod(kbPaymentMethodId1, context.getTenantId()).getMandateStatus(), "ACTIVE");
+		assertEquals(dao.getPaymentMethod(kbPaymentMethodId1, context.getTenantId()).getNextPossibleChargeDate(), new LocalDate(2023, 2, 1));
+		Mockito.verify(mandateListRequest).withAfter("MD1");
+		// Incremental syncs continue from the start of the pass
+		assertNotNull(dao.getJobCursor(GoCardlessMandateSync.JOB_NAME, context.getTenantId()));
+	}
+
+	private static Event event(final String createdAt, final String mandateId, final String action) {
+		final Event event = Mockito.mock(Event.class, Answers.RETURNS_DEEP_STUBS);
+		Mockito.when(event.getCreatedAt()).thenReturn(createdAt);
+		Mockito.when(event.getAction()).thenReturn(action);
+		Mockito.when(event.getLinks().getMandate()).thenReturn(mandateId);
+		return event;
+	}
+
+	private static Mandate mandate(final String id, final Mandate.Status status, final String nextPossibleChargeDate) {
+		final Mandate mandate = Mockito.mock(Mandate.class);
+		Mockito.when(mandate.getId()).thenReturn(id);
+		Mockito.when(mandate.getStatus()).thenReturn(status);
+		Mockito.when(mandate.getNextPossibleChargeDate()).thenReturn(nextPossibleChargeDate);
+		return mandate;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> ApiResponse<ListResponse<T>> page(final String after, final T... items) {
+		final ListResponse<T> page = Mockito.mock(ListResponse.class);
+		Mockito.when(page.getItems()).thenReturn(ImmutableList.copyOf(items));
+		Mockito.when(page.getAfter()).thenReturn(after);
+		final ApiResponse<ListResponse<T>> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(page);
+		return response;
+	}
+}
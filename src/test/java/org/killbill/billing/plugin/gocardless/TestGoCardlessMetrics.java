@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestGoCardlessMetrics {
+
+	@Test(groups = "fast")
+	public void testRecordsLatencyOutcomeAndInFlight() {
+		final GoCardlessMetrics metrics = new GoCardlessMetrics(buildConfig("true"));
+		final UUID kbTenantId = UUID.randomUUID();
+
+		final long startNanos = metrics.startGoCardlessApiCall(kbTenantId, "payments.get");
+		assertTrue(metrics.toPrometheus().contains("gocardless_api_requests_in_flight{tenant=\"" + kbTenantId + "\",operation=\"payments.get\"} 1\n"));
+		metrics.endGoCardlessApiCall(kbTenantId, "payments.get", startNanos, GoCardlessApiExecutor.OUTCOME_SUCCESS);
+		metrics.endGoCardlessApiCall(null, "payments.get", System.nanoTime(), GoCardlessApiExecutor.OUTCOME_SERVER_ERROR);
+
+		final String scrape = metrics.toPrometheus();
+		assertTrue(scrape.contains("# TYPE gocardless_api_requests_duration_seconds histogram\n"));
+		assertTrue(scrape.contains("gocardless_api_requests_in_flight{tenant=\"" + kbTenantId + "\",operation=\"payments.get\"} 0\n"));
+		assertTrue(scrape.contains("gocardless_api_requests_total{tenant=\"" + kbTenantId + "\",operation=\"payments.get\",outcome=\"success\"} 1\n"));
+		assertTrue(scrape.contains("gocardless_api_requests_duration_seconds_bucket{tenant=\"" + kbTenantId + "\",operation=\"payments.get\",le=\"+Inf\"} 1\n"));
+		assertTrue(scrape.contains("gocardless_api_requests_duration_seconds_count{tenant=\"" + kbTenantId + "\",operation=\"payments.get\"} 1\n"));
+		assertTrue(scrape.contains("gocardless_api_requests_total{tenant=\"default\",operation=\"payments.get\",outcome=\"server_error\"} 1\n"));
+	}
+
+	@Test(groups = "fast")
+	public void testInstrumentedPluginApi() throws PaymentPluginApiException {
+		final GoCardlessMetrics metrics = new GoCardlessMetrics(buildConfig("true"));
+		final UUID kbTenantId = UUID.randomUUID();
+		final CallContext context = Mockito.mock(CallContext.class);
+		Mockito.when(context.getTenantId()).thenReturn(kbTenantId);
+
+		final PaymentTransactionInfoPlugin transaction = Mockito.mock(PaymentTransactionInfoPlugin.class);
+		Mockito.when(transaction.getStatus()).thenReturn(PaymentPluginStatus.PENDING);
+		final PaymentPluginApi delegate = Mockito.mock(PaymentPluginApi.class);
+		Mockito.when(delegate.purchasePayment(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(),
+		                                      ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any()))
+		       .thenReturn(transaction);
+		Mockito.when(delegate.getPaymentInfo(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any()))
+		       .thenThrow(new PaymentPluginApiException("boom", "boom"));
+
+		final PaymentPluginApi pluginApi = new GoCardlessInstrumentedPaymentPluginApi(delegate, metrics);
+		assertEquals(pluginApi.purchasePayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), BigDecimal.TEN, Currency.GBP, ImmutableList.of(), context),
+		             transaction);
+		try {
+			pluginApi.getPaymentInfo(UUID.randomUUID(), UUID.randomUUID(), ImmutableList.of(), context);
+		} catch (final PaymentPluginApiException expected) {
+		}
+
+		final String scrape = metrics.toPrometheus();
+		assertTrue(scrape.contains("gocardless_plugin_api_total{tenant=\"" + kbTenantId + "\",operation=\"purchasePayment\",outcome=\"PENDING\"} 1\n"));
+		assertTrue(scrape.contains("gocardless_plugin_api_total{tenant=\"" + kbTenantId + "\",operation=\"getPaymentInfo\",outcome=\"error\"} 1\n"));
+	}
+
+	@Test(groups = "fast")
+	public void testDisabled() {
+		final GoCardlessMetrics metrics = new GoCardlessMetrics(buildConfig("false"));
+		final long startNanos = metrics.startPluginApiCall(null, "purchasePayment");
+		metrics.endPluginApiCall(null, "purchasePayment", startNanos, GoCardlessInstrumentedPaymentPluginApi.OUTCOME_SUCCESS);
+		assertEquals(startNanos, 0L);
+		assertTrue(!metrics.toPrometheus().contains("purchasePayment"));
+	}
+
+	private static GoCardlessConfigProperties buildConfig(final String enabled) {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.metricsEnabled", enabled);
+		return new GoCardlessConfigProperties(properties, "");
+	}
+}
@@ -17,16 +17,51 @@
 
 package org.killbill.billing.plugin.gocardless;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 import java.util.UUID;
 
+import org.joda.time.LocalDate;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
 import org.killbill.billing.payment.plugin.api.HostedPaymentPageFormDescriptor;
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.api.PluginProperties;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessPaymentRecord;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.entity.Pagination;
+import org.mockito.Answers;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
 import org.testng.annotations.Test;
 
+import com.gocardless.GoCardlessClient;
+import com.gocardless.errors.ApiErrorDetail;
+import com.gocardless.errors.InvalidStateException;
+import com.gocardless.http.ApiResponse;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Mandate;
+import com.gocardless.resources.Payment;
+import com.gocardless.resources.Refund;
+import com.gocardless.services.PaymentService.PaymentCreateRequest;
+import com.gocardless.services.PaymentService.PaymentListRequest;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 
 public class TestGoCardlessPaymentPluginApi extends TestBase {
@@ -43,4 +78,239 @@ public class TestGoCardlessPaymentPluginApi extends TestBase {
 	        assertNotNull(hppDescriptor);
 	        assertNotNull(hppDescriptor.getFormUrl());
 	    }	
+
+	@Test(groups = "slow")
+	public void testSearchPayments() throws Exception {
+		for (int i = 1; i <= 5; i++) {
+			dao.addPayment(account.getId(), UUID.randomUUID(), UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.GBP,
+					"PM" + i, "MD1", i % 2 == 0 ? "CONFIRMED" : "SUBMITTED", clock.getUTCNow(), context.getTenantId());
+		}
+		dao.addPayment(account.getId(), UUID.randomUUID(), UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.GBP,
+				"PM6", "MD2", "CONFIRMED", clock.getUTCNow(), context.getTenantId());
+
+		// Walk the mandate payments two at a time
+		final List<String> goCardlessIds = new ArrayList<>();
+		Long offset = 0L;
+		while (offset != null) {
+			final Pagination<PaymentTransactionInfoPlugin> page = goCardlessPaymentpluginApi.searchPayments("MD1", offset, 2L, ImmutableList.of(), context);
+			assertEquals(page.getCurrentOffset(), offset);
+			// Counted on the first page, estimated on the next ones (exact here)
+			assertEquals(page.getTotalNbRecords(), (Long) 5L);
+			for (final PaymentTransactionInfoPlugin transaction : page) {
+				goCardlessIds.add(transaction.getFirstPaymentReferenceId());
+			}
+			offset = page.getNextOffset();
+		}
+		assertEquals(goCardlessIds, ImmutableList.of("PM1", "PM2", "PM3", "PM4", "PM5"));
+
+		// Random access works too
+		final Pagination<PaymentTransactionInfoPlugin> page = goCardlessPaymentpluginApi.searchPayments("MD1", 3L, 10L, ImmutableList.of(), context);
+		assertNull(page.getNextOffset());
+		assertEquals(page.iterator().next().getFirstPaymentReferenceId(), "PM4");
+		// Past the first page, the total only goes up to the next record
+		assertEquals(goCardlessPaymentpluginApi.searchPayments("MD1", 1L, 1L, ImmutableList.of(), context).getTotalNbRecords(), (Long) 3L);
+		assertFalse(goCardlessPaymentpluginApi.searchPayments("MD1", 5L, 10L, ImmutableList.of(), context).iterator().hasNext());
+
+		final PaymentTransactionInfoPlugin byId = goCardlessPaymentpluginApi.searchPayments("PM6", 0L, 10L, ImmutableList.of(), context).iterator().next();
+		assertEquals(byId.getStatus(), PaymentPluginStatus.PROCESSED);
+		assertEquals(goCardlessPaymentpluginApi.searchPayments("confirmed", 0L, 10L, ImmutableList.of(), context).getTotalNbRecords(), (Long) 3L);
+		// Other tenants don't see them
+		final CallContext otherTenant = Mockito.mock(CallContext.class);
+		Mockito.when(otherTenant.getTenantId()).thenReturn(UUID.randomUUID());
+		assertEquals(goCardlessPaymentpluginApi.searchPayments("MD1", 0L, 10L, ImmutableList.of(), otherTenant).getTotalNbRecords(), (Long) 0L);
+	}
+
+	@Test(groups = "slow")
+	public void testPurchaseRetryReturnsTheExistingPayment() throws Exception {
+		final UUID kbPaymentId = UUID.randomUUID();
+		final UUID kbTransactionId = UUID.randomUUID();
+		dao.addPayment(account.getId(), kbPaymentId, kbTransactionId, TransactionType.PURCHASE, BigDecimal.TEN, Currency.GBP,
+				"PM1", "MD1", "SUBMITTED", clock.getUTCNow(), context.getTenantId());
+
+		// Kill Bill retries the transaction: GoCardless isn't called again (it isn't even configured)
+		final PaymentTransactionInfoPlugin retry = goCardlessPaymentpluginApi.purchasePayment(account.getId(), kbPaymentId, kbTransactionId, UUID.randomUUID(),
+				BigDecimal.TEN, Currency.GBP, ImmutableList.of(), context);
+		assertEquals(retry.getKbTransactionPaymentId(), kbTransactionId);
+		assertEquals(retry.getFirstPaymentReferenceId(), "PM1");
+		assertEquals(retry.getStatus(), PaymentPluginStatus.PENDING);
+
+		// A replayed creation the SDK couldn't resolve points to the payment created the first time
+		final ApiErrorDetail conflict = Mockito.mock(ApiErrorDetail.class);
+		Mockito.when(conflict.getReason()).thenReturn(GoCardlessPaymentPluginApi.IDEMPOTENT_CREATION_CONFLICT);
+		Mockito.when(conflict.getLinks()).thenReturn(ImmutableMap.of("conflicting_resource_id", "PM1"));
+		final InvalidStateException e = Mockito.mock(InvalidStateException.class);
+		Mockito.when(e.getErrors()).thenReturn(ImmutableList.of(conflict));
+		assertEquals(GoCardlessPaymentPluginApi.getConflictingResourceId(e), "PM1");
+		Mockito.when(conflict.getReason()).thenReturn("mandate_is_inactive");
+		assertNull(GoCardlessPaymentPluginApi.getConflictingResourceId(e));
+
+		// It's only returned if it's the payment requested, a key reused for another amount or mandate stays an error
+		final Payment.Links paymentLinks = Mockito.mock(Payment.Links.class);
+		Mockito.when(paymentLinks.getMandate()).thenReturn("MD1");
+		final Payment payment = Mockito.mock(Payment.class);
+		Mockito.when(payment.getAmount()).thenReturn(1000);
+		Mockito.when(payment.getLinks()).thenReturn(paymentLinks);
+		assertTrue(GoCardlessPaymentPluginApi.isSamePayment(payment, 1000, "MD1"));
+		assertFalse(GoCardlessPaymentPluginApi.isSamePayment(payment, 500, "MD1"));
+		assertFalse(GoCardlessPaymentPluginApi.isSamePayment(payment, 1000, "MD2"));
+
+		final Refund.Links refundLinks = Mockito.mock(Refund.Links.class);
+		Mockito.when(refundLinks.getPayment()).thenReturn("PM1");
+		final Refund refund = Mockito.mock(Refund.class);
+		Mockito.when(refund.getAmount()).thenReturn(300);
+		Mockito.when(refund.getLinks()).thenReturn(refundLinks);
+		assertTrue(GoCardlessPaymentPluginApi.isSameRefund(refund, 300, "PM1"));
+		assertFalse(GoCardlessPaymentPluginApi.isSameRefund(refund, 200, "PM1"));
+		assertFalse(GoCardlessPaymentPluginApi.isSameRefund(refund, 300, "PM2"));
+	}
+
+	@Test(groups = "slow")
+	public void testRefundResolvesThePaymentFromThePluginTable() throws Exception {
+		// Not created through the plugin: nothing to refund
+		final PaymentTransactionInfoPlugin unknown = goCardlessPaymentpluginApi.refundPayment(account.getId(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(),
+				BigDecimal.ONE, Currency.GBP, ImmutableList.of(), context);
+		assertEquals(unknown.getStatus(), PaymentPluginStatus.CANCELED);
+
+		final UUID kbPaymentId = UUID.randomUUID();
+		final UUID kbTransactionId = UUID.randomUUID();
+		dao.addPayment(account.getId(), kbPaymentId, UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.GBP,
+				"PM1", "MD1", "CONFIRMED", clock.getUTCNow(), context.getTenantId());
+		dao.addPayment(account.getId(), kbPaymentId, kbTransactionId, TransactionType.REFUND, BigDecimal.ONE, Currency.GBP,
+				"RF1", "MD1", "SUBMITTED", clock.getUTCNow(), context.getTenantId());
+
+		// Kill Bill retries the refund: GoCardless isn't called again (it isn't even configured)
+		final PaymentTransactionInfoPlugin retry = goCardlessPaymentpluginApi.refundPayment(account.getId(), kbPaymentId, kbTransactionId, UUID.randomUUID(),
+				BigDecimal.ONE, Currency.GBP, ImmutableList.of(), context);
+		assertEquals(retry.getTransactionType(), TransactionType.REFUND);
+		assertEquals(retry.getFirstPaymentReferenceId(), "RF1");
+		assertEquals(retry.getStatus(), PaymentPluginStatus.PENDING);
+
+		assertEquals(GoCardlessPaymentPluginApi.convertGoCardlessToKillBillStatus(TransactionType.REFUND, "PAID"), PaymentPluginStatus.PROCESSED);
+		assertEquals(GoCardlessPaymentPluginApi.convertGoCardlessToKillBillStatus(TransactionType.REFUND, "FUNDS_RETURNED"), PaymentPluginStatus.ERROR);
+		assertEquals(GoCardlessPaymentPluginApi.convertGoCardlessToKillBillStatus(TransactionType.PURCHASE, "PAID_OUT"), PaymentPluginStatus.PROCESSED);
+	}
+
+	@Test(groups = "slow")
+	public void testPaymentMethods() throws Exception {
+		goCardlessconfigurationHandler.setDefaultConfigurable(new GoCardlessConfigProperties(new Properties(), ""));
+		final UUID kbPaymentMethodId = UUID.randomUUID();
+		dao.addPaymentMethod(account.getId(), kbPaymentMethodId, "MD1", "CU1", "ACTIVE", "bacs", new LocalDate(2023, 1, 5), true, clock.getUTCNow(), context.getTenantId());
+		for (int i = 2; i <= 5; i++) {
+			dao.addPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), "MD" + i, "CU1", "ACTIVE", "bacs", null, false, clock.getUTCNow(), context.getTenantId());
+		}
+		dao.addPayment(account.getId(), UUID.randomUUID(), UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.GBP,
+				"PM1", "MD2", "CONFIRMED", clock.getUTCNow(), context.getTenantId());
+
+		final PaymentMethodPlugin detail = goCardlessPaymentpluginApi.getPaymentMethodDetail(account.getId(), kbPaymentMethodId, ImmutableList.of(), context);
+		assertEquals(detail.getExternalPaymentMethodId(), "MD1");
+		assertTrue(detail.isDefaultPaymentMethod());
+		assertEquals(PluginProperties.findPluginPropertyValue("scheme", detail.getProperties()), "bacs");
+		assertEquals(PluginProperties.findPluginPropertyValue("nextPossibleChargeDate", detail.getProperties()), "2023-01-05");
+
+		final List<PaymentMethodInfoPlugin> paymentMethods = goCardlessPaymentpluginApi.getPaymentMethods(account.getId(), false, ImmutableList.of(), context);
+		assertEquals(paymentMethods.size(), 1);
+		assertEquals(paymentMethods.get(0).getPaymentMethodId(), kbPaymentMethodId);
+		assertEquals(paymentMethods.get(0).getExternalPaymentMethodId(), "MD1");
+		// The mandate is read from the table, not from custom fields
+		assertEquals(goCardlessPaymentpluginApi.getMandateId(account.getId(), context), "MD1");
+
+		// Walk the customer mandates two at a time
+		final List<String> mandateIds = new ArrayList<>();
+		Long offset = 0L;
+		while (offset != null) {
+			final Pagination<PaymentMethodPlugin> page = goCardlessPaymentpluginApi.searchPaymentMethods("CU1", offset, 2L, ImmutableList.of(), context);
+			assertEquals(page.getTotalNbRecords(), (Long) 5L);
+			for (final PaymentMethodPlugin paymentMethod : page) {
+				mandateIds.add(paymentMethod.getExternalPaymentMethodId());
+			}
+			offset = page.getNextOffset();
+		}
+		assertEquals(mandateIds, ImmutableList.of("MD1", "MD2", "MD3", "MD4", "MD5"));
+		// Payments can be searched by customer too
+		assertEquals(goCardlessPaymentpluginApi.searchPayments("CU1", 0L, 10L, ImmutableList.of(), context).getTotalNbRecords(), (Long) 1L);
+
+		goCardlessPaymentpluginApi.deletePaymentMethod(account.getId(), kbPaymentMethodId, ImmutableList.of(), context);
+		assertTrue(goCardlessPaymentpluginApi.getPaymentMethods(account.getId(), false, ImmutableList.of(), context).isEmpty());
+		assertEquals(goCardlessPaymentpluginApi.searchPaymentMethods("CU1", 0L, 10L, ImmutableList.of(), context).getTotalNbRecords(), (Long) 4L);
+	}
+
+	@Test(groups = "slow")
+	public void testPaymentNotSavedAtCreationIsSavedByGetPaymentInfo() throws Exception {
+		final GoCardlessConfigProperties config = new GoCardlessConfigProperties(new Properties(), "");
+		goCardlessconfigurationHandler.setDefaultConfigurable(config);
+		final UUID kbPaymentId = UUID.randomUUID();
+		final UUID kbTransactionId = UUID.randomUUID();
+		final Payment payment = Mockito.mock(Payment.class);
+		Mockito.when(payment.getId()).thenReturn("PM1");
+		Mockito.when(payment.getStatus()).thenReturn(Payment.Status.PENDING_SUBMISSION);
+		Mockito.when(payment.getAmount()).thenReturn(1000);
+		Mockito.when(payment.getCurrency()).thenReturn(Payment.Currency.GBP);
+		Mockito.when(payment.getMetadata()).thenReturn(ImmutableMap.of("kbPaymentId", kbPaymentId.toString(), "kbTransactionId", kbTransactionId.toString()));
+		final Mandate.Links mandateLinks = Mockito.mock(Mandate.Links.class);
+		Mockito.when(mandateLinks.getCustomer()).thenReturn("CU1");
+		final Mandate mandate = Mockito.mock(Mandate.class);
+		Mockito.when(mandate.getLinks()).thenReturn(mandateLinks);
+
+		final ApiResponse<Payment> created = response(payment);
+		final ApiResponse<ListResponse<Payment>> listed = response(page(payment));
+		final ApiResponse<Mandate> fetchedMandate = response(mandate);
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class, Mockito.RETURNS_DEEP_STUBS);
+		final PaymentCreateRequest createRequest = Mockito.mock(PaymentCreateRequest.class, Answers.RETURNS_SELF);
+		Mockito.when(createRequest.executeWrapped()).thenReturn(created);
+		Mockito.when(client.payments().create()).thenReturn(createRequest);
+		final PaymentListRequest<ListResponse<Payment>> listRequest = Mockito.mock(PaymentListRequest.class, Answers.RETURNS_SELF);
+		Mockito.when(listRequest.executeWrapped()).thenReturn(listed);
+		Mockito.when(client.payments().list()).thenReturn(listRequest);
+		Mockito.when(client.mandates().get("MD1").executeWrapped()).thenReturn(fetchedMandate);
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(ArgumentMatchers.any())).thenReturn(client);
+
+		// The database is unavailable while the payment is created
+		final GoCardlessDao failingDao = Mockito.spy(dao);
+		final SQLException failure = new SQLException("Connection refused");
+		Mockito.doThrow(failure).doThrow(failure).doThrow(failure).doCallRealMethod().when(failingDao).addPayment(ArgumentMatchers.any(), ArgumentMatchers.any(),
+				ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(),
+				ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+		final GoCardlessApiExecutor apiExecutor = new GoCardlessApiExecutor(goCardlessconfigurationHandler,
+		                                                                    new GoCardlessRateLimiter(goCardlessconfigurationHandler),
+		                                                                    new GoCardlessCircuitBreaker(goCardlessconfigurationHandler),
+		                                                                    new GoCardlessMetrics(config),
+		                                                                    new GoCardlessHttpTransport(config),
+		                                                                    new GoCardlessAuditLog(config, dao, clock));
+		final GoCardlessPaymentPluginApi pluginApi = new GoCardlessPaymentPluginApi(goCardlessconfigurationHandler, clientCache, apiExecutor, goCardlessMandateCache,
+		                                                                            new GoCardlessRedirectFlowCache(goCardlessconfigurationHandler), failingDao, goCardlessWebhookProcessor,
+		                                                                            Mockito.mock(GoCardlessMandateSync.class), killbillApi, clock);
+		goCardlessMandateCache.put(context.getTenantId(), account.getId(), "MD1");
+
+		final PaymentTransactionInfoPlugin purchase = pluginApi.purchasePayment(account.getId(), kbPaymentId, kbTransactionId, UUID.randomUUID(),
+				BigDecimal.TEN, Currency.GBP, ImmutableList.of(), context);
+		assertEquals(purchase.getStatus(), PaymentPluginStatus.PENDING);
+		assertEquals(purchase.getFirstPaymentReferenceId(), "PM1");
+		Mockito.verify(failingDao, Mockito.times(GoCardlessPaymentPluginApi.SAVE_PAYMENT_ATTEMPTS)).addPayment(ArgumentMatchers.any(), ArgumentMatchers.any(),
+				ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(),
+				ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+		assertNull(dao.getPaymentByGoCardlessId("PM1", context.getTenantId()));
+
+		// The Kill Bill janitor looks the pending payment up: found through its metadata, and saved
+		final List<PaymentTransactionInfoPlugin> transactions = pluginApi.getPaymentInfo(account.getId(), kbPaymentId, ImmutableList.of(), context);
+		assertEquals(transactions.get(0).getKbTransactionPaymentId(), kbTransactionId);
+		final GoCardlessPaymentRecord saved = dao.getPaymentByGoCardlessId("PM1", context.getTenantId());
+		assertEquals(saved.getKbPaymentTransactionId(), kbTransactionId);
+		assertEquals(saved.getGoCardlessMandateId(), "MD1");
+		assertEquals(saved.getGoCardlessStatus(), "PENDING_SUBMISSION");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> ApiResponse<T> response(final T resource) {
+		final ApiResponse<T> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(resource);
+		return response;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ListResponse<Payment> page(final Payment... payments) {
+		final ListResponse<Payment> page = Mockito.mock(ListResponse.class);
+		Mockito.when(page.getItems()).thenReturn(ImmutableList.copyOf(payments));
+		return page;
+	}
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.gocardless.GoCardlessPayoutExportService.ExportPosition;
+import org.killbill.billing.plugin.gocardless.GoCardlessPayoutExportService.Format;
+import org.killbill.billing.plugin.gocardless.GoCardlessPayoutExportService.Type;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.clock.ClockMock;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ApiResponse;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Payout;
+import com.gocardless.resources.PayoutItem;
+import com.gocardless.services.PayoutItemService;
+import com.gocardless.services.PayoutItemService.PayoutItemListRequest;
+import com.gocardless.services.PayoutService;
+import com.gocardless.services.PayoutService.PayoutListRequest;
+import com.google.common.collect.ImmutableList;
+
+public class TestGoCardlessPayoutExportService {
+
+	private static final LocalDate FROM = new LocalDate(2023, 1, 1);
+	private static final LocalDate TO = new LocalDate(2023, 3, 31);
+
+	private PayoutListRequest<ListResponse<Payout>> payoutListRequest;
+	private PayoutItemListRequest<ListResponse<PayoutItem>> payoutItemListRequest;
+	private GoCardlessPayoutExportService exportService;
+
+	@BeforeMethod(groups = "fast")
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class);
+		final PayoutService payoutService = Mockito.mock(PayoutService.class);
+		final PayoutItemService payoutItemService = Mockito.mock(PayoutItemService.class);
+		Mockito.when(client.payouts()).thenReturn(payoutService);
+		Mockito.when(client.payoutItems()).thenReturn(payoutItemService);
+		payoutListRequest = Mockito.mock(PayoutListRequest.class, Mockito.RETURNS_SELF);
+		payoutItemListRequest = Mockito.mock(PayoutItemListRequest.class, Mockito.RETURNS_SELF);
+		Mockito.when(payoutService.list()).thenReturn(payoutListRequest);
+		Mockito.when(payoutItemService.list()).thenReturn(payoutItemListRequest);
+
+		// Two pages of payouts: PO1 and PO2, then PO3
+		final ApiResponse<ListResponse<Payout>> firstPayouts = page(ImmutableList.of(payout("PO1"), payout("PO2")), "PO2");
+		final ApiResponse<ListResponse<Payout>> secondPayouts = page(ImmutableList.of(payout("PO3")), null);
+		Mockito.when(payoutListRequest.executeWrapped()).thenReturn(firstPayouts, secondPayouts, firstPayouts, secondPayouts);
+
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.payoutExportPageSize", "2");
+		final GoCardlessConfigProperties config = new GoCardlessConfigProperties(properties, "");
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(config);
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(ArgumentMatchers.any())).thenReturn(client);
+		final GoCardlessApiExecutor apiExecutor = new GoCardlessApiExecutor(configurationHandler,
+		                                                                    new GoCardlessRateLimiter(configurationHandler),
+		                                                                    new GoCardlessCircuitBreaker(configurationHandler),
+		                                                                    new GoCardlessMetrics(config),
+		                                                                    new GoCardlessHttpTransport(config),
+		                                                                    new GoCardlessAuditLog(config, Mockito.mock(GoCardlessDao.class), new ClockMock()));
+		exportService = new GoCardlessPayoutExportService(config, clientCache, apiExecutor, new ClockMock());
+	}
+
+	@Test(groups = "fast")
+	public void testPayoutsAreStreamedPageByPage() throws Exception {
+		final InputStream export = exportService.export(UUID.randomUUID(), Format.CSV, exportService.start(Type.PAYOUTS, FROM, TO));
+		// Only the first page is listed until the export is read
+		Mockito.verify(payoutListRequest, Mockito.times(1)).executeWrapped();
+		Mockito.verify(payoutListRequest).withCreatedAtGte("2023-01-01T00:00:00.000Z");
+		Mockito.verify(payoutListRequest).withCreatedAtLt("2023-04-01T00:00:00.000Z");
+
+		final List<String> lines = readLines(export);
+		assertEquals(lines.size(), 4);
+		assertTrue(lines.get(0).startsWith("id,created_at,arrival_date,status,currency,amount,deducted_fees,reference,resume_token"));
+		assertTrue(lines.get(1).startsWith("PO1,2023-01-02T00:00:00.000Z,2023-01-05,PAID,GBP,1000,20,\"ref, 1\","));
+		assertTrue(lines.get(3).startsWith("PO3,"));
+		Mockito.verify(payoutListRequest).withAfter("PO2");
+
+		// Resuming after PO1 sends the remaining payouts, without the header
+		final String resumeToken = lines.get(1).substring(lines.get(1).lastIndexOf(',') + 1);
+		final List<String> resumed = readLines(exportService.export(UUID.randomUUID(), Format.CSV, ExportPosition.decode(resumeToken)));
+		assertEquals(resumed.size(), 2);
+		assertTrue(resumed.get(0).startsWith("PO2,"));
+		assertTrue(resumed.get(1).startsWith("PO3,"));
+	}
+
+	@Test(groups = "fast")
+	@SuppressWarnings("unchecked")
+	public void testPayoutItemsAreStreamedAsJson() throws Exception {
+		final ApiResponse<ListResponse<PayoutItem>> items = page(ImmutableList.of(payoutItem("PM1"), payoutItem("PM2")), null);
+		Mockito.when(payoutItemListRequest.executeWrapped()).thenReturn(items);
+
+		final List<String> lines = readLines(exportService.export(UUID.randomUUID(), Format.NDJSON, exportService.start(Type.PAYOUT_ITEMS, FROM, TO)));
+		// Two items for each of the 3 payouts
+		assertEquals(lines.size(), 6);
+		final ObjectMapper objectMapper = new ObjectMapper();
+		final JsonNode first = objectMapper.readTree(lines.get(0));
+		assertEquals(first.get("payout_id").asText(), "PO1");
+		assertEquals(first.get("type").asText(), "PAYMENT_PAID_OUT");
+		assertEquals(first.get("amount").asText(), "5.00");
+		assertEquals(first.get("payment_id").asText(), "PM1");
+		Mockito.verify(payoutItemListRequest).withPayout("PO3");
+
+		// Resuming after the first item of PO2
+		final ExportPosition position = ExportPosition.decode(objectMapper.readTree(lines.get(2)).get("resume_token").asText());
+		final List<String> resumed = readLines(exportService.export(UUID.randomUUID(), Format.NDJSON, position));
+		assertEquals(resumed.size(), 3);
+		assertEquals(objectMapper.readTree(resumed.get(0)).get("payout_id").asText(), "PO2");
+		assertEquals(objectMapper.readTree(resumed.get(0)).get("payment_id").asText(), "PM2");
+	}
+
+	@Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+	public void testInvalidResumeToken() {
+		ExportPosition.decode("not-a-token");
+	}
+
+	private static List<String> readLines(final InputStream export) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[7];
+		int read;
+		while ((read = export.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> ApiResponse<ListResponse<T>> page(final List<T> items, final String after) {
+		final ListResponse<T> page = Mockito.mock(ListResponse.class);
+		Mockito.when(page.getItems()).thenReturn(items);
+		Mockito.when(page.getAfter()).thenReturn(after);
+		final ApiResponse<ListResponse<T>> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(page);
+		return response;
+	}
+
+	private static Payout payout(final String id) {
+		final Payout payout = Mockito.mock(Payout.class);
+		Mockito.when(payout.getId()).thenReturn(id);
+		Mockito.when(payout.getCreatedAt()).thenReturn("2023-01-02T00:00:00.000Z");
+		Mockito.when(payout.getArrivalDate()).thenReturn("2023-01-05");
+		Mockito.when(payout.getStatus()).thenReturn(Payout.Status.PAID);
+		Mockito.when(payout.getCurrency()).thenReturn(Payout.Currency.GBP);
+		Mockito.when(payout.getAmount()).thenReturn(1000);
+		Mockito.when(payout.getDeductedFees()).thenReturn(20);
+		Mockito.when(payout.getReference()).thenReturn("ref, 1");
+		return payout;
+	}
+
+	private static PayoutItem payoutItem(final String paymentId) {
+		final PayoutItem item = Mockito.mock(PayoutItem.class);
+		final PayoutItem.Links links = Mockito.mock(PayoutItem.Links.class);
+		Mockito.when(links.getPayment()).thenReturn(paymentId);
+		Mockito.when(item.getLinks()).thenReturn(links);
+		Mockito.when(item.getType()).thenReturn(PayoutItem.Type.PAYMENT_PAID_OUT);
+		Mockito.when(item.getAmount()).thenReturn("5.00");
+		return item;
+	}
+}
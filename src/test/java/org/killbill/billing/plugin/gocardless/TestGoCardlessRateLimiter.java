@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestGoCardlessRateLimiter {
+
+	@Test(groups = "fast")
+	public void testRejectsWhenBucketIsEmpty() {
+		final GoCardlessRateLimiter rateLimiter = new GoCardlessRateLimiter(buildConfigurationHandler("1", "0"));
+
+		rateLimiter.acquire(null);
+		try {
+			rateLimiter.acquire(null);
+			fail("Bucket should be empty");
+		} catch (final GoCardlessRateLimitedException expected) {
+			assertEquals(rateLimiter.getStats().get("default").get("rejections"), (Long) 1L);
+		}
+	}
+
+	@Test(groups = "fast")
+	public void testWaitsForTheNextToken() {
+		// One token every 100ms
+		final GoCardlessRateLimiter rateLimiter = new GoCardlessRateLimiter(buildConfigurationHandler("600", "1000"));
+		for (int i = 0; i < 601; i++) {
+			rateLimiter.acquire(null);
+		}
+		assertTrue(rateLimiter.getStats().get("default").get("waits") >= 1);
+		assertEquals(rateLimiter.getStats().get("default").get("rejections"), (Long) 0L);
+	}
+
+	@Test(groups = "fast")
+	public void testFollowsGoCardlessHeaders() {
+		final GoCardlessRateLimiter rateLimiter = new GoCardlessRateLimiter(buildConfigurationHandler("1000", "100"));
+		rateLimiter.acquire(null);
+
+		// GoCardless says the quota is exhausted for the next minute
+		final String reset = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(1));
+		rateLimiter.update(null, ImmutableMap.of("RateLimit-Remaining", ImmutableList.of("0"), "RateLimit-Reset", ImmutableList.of(reset)));
+		try {
+			rateLimiter.acquire(null);
+			fail("Quota should be exhausted");
+		} catch (final GoCardlessRateLimitedException expected) {
+			assertEquals(rateLimiter.getStats().get("default").get("rejections"), (Long) 1L);
+		}
+	}
+
+	@Test(groups = "fast")
+	public void testRateLimitedFollowsTheResponse() {
+		final GoCardlessRateLimiter rateLimiter = new GoCardlessRateLimiter(buildConfigurationHandler("1000", "100"));
+		final String inAMinute = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(1));
+		rateLimiter.update(null, ImmutableMap.of("RateLimit-Remaining", ImmutableList.of("10"), "RateLimit-Reset", ImmutableList.of(inAMinute)));
+
+		// The 429 says the limit already reset: the reset time of the earlier response isn't reused
+		rateLimiter.onRateLimited(null, ImmutableMap.of("RateLimit-Reset", ImmutableList.of("Thu, 01 Jan 1970 00:00:00 GMT")));
+		rateLimiter.acquire(null);
+
+		rateLimiter.onRateLimited(null, ImmutableMap.of("RateLimit-Reset", ImmutableList.of(inAMinute)));
+		try {
+			rateLimiter.acquire(null);
+			fail("Quota should be exhausted");
+		} catch (final GoCardlessRateLimitedException expected) {
+			assertEquals(rateLimiter.getStats().get("default").get("throttled"), (Long) 2L);
+		}
+	}
+
+	@Test(groups = "fast")
+	public void testParseReset() {
+		final String reset = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30));
+		final long delayNanos = GoCardlessRateLimiter.parseReset(reset);
+		assertTrue(delayNanos > TimeUnit.SECONDS.toNanos(25) && delayNanos <= TimeUnit.SECONDS.toNanos(30));
+		assertEquals(GoCardlessRateLimiter.parseReset("Thu, 01 Jan 1970 00:00:00 GMT"), (Long) 0L);
+		assertNull(GoCardlessRateLimiter.parseReset("soon"));
+	}
+
+	private GoCardlessConfigurationHandler buildConfigurationHandler(final String ratePerMinute, final String maxWaitMillis) {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.rateLimitPerMinute", ratePerMinute);
+		properties.put("org.killbill.billing.plugin.gocardless.rateLimitMaxWaitMillis", maxWaitMillis);
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(new GoCardlessConfigProperties(properties, ""));
+		return configurationHandler;
+	}
+}
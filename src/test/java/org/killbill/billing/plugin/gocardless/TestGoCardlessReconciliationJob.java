@@ -0,0 +1,285 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.mockito.Answers;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ApiResponse;
+import com.gocardless.http.ListResponse;
+import com.gocardless.resources.Payment;
+import com.gocardless.resources.Refund;
+import com.gocardless.services.PaymentService;
+import com.gocardless.services.PaymentService.PaymentListRequest;
+import com.gocardless.services.RefundService;
+import com.gocardless.services.RefundService.RefundListRequest;
+import com.google.common.collect.ImmutableList;
+
+public class TestGoCardlessReconciliationJob extends TestBase {
+
+	private PaymentApi paymentApi;
+	private PaymentListRequest<ListResponse<Payment>> listRequest;
+	private RefundListRequest<ListResponse<Refund>> refundListRequest;
+	private PaymentService paymentService;
+	private GoCardlessClientCache clientCache;
+	private GoCardlessJobLeases jobLeases;
+	private GoCardlessReconciliationJob reconciliationJob;
+
+	@BeforeMethod(groups = "slow")
+	public void setUpJob() throws Exception {
+		final Properties properties = new Properties();
+		// Listing, whatever the number of pending payments
+		properties.setProperty("org.killbill.billing.plugin.gocardless.reconciliationFetchThreshold", "0");
+		final GoCardlessConfigProperties config = new GoCardlessConfigProperties(properties, "");
+		goCardlessconfigurationHandler.setDefaultConfigurable(config);
+
+		paymentApi = killbillApi.getPaymentApi();
+		Mockito.doReturn(null).when(paymentApi)
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.<UUID>any(), ArgumentMatchers.anyBoolean(), ArgumentMatchers.<CallContext>any());
+
+		listRequest = Mockito.mock(PaymentListRequest.class, Answers.RETURNS_SELF);
+		paymentService = Mockito.mock(PaymentService.class);
+		Mockito.when(paymentService.list()).thenReturn(listRequest);
+		refundListRequest = Mockito.mock(RefundListRequest.class, Answers.RETURNS_SELF);
+		final RefundService refundService = Mockito.mock(RefundService.class);
+		Mockito.when(refundService.list()).thenReturn(refundListRequest);
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class);
+		Mockito.when(client.payments()).thenReturn(paymentService);
+		Mockito.when(client.refunds()).thenReturn(refundService);
+		clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(ArgumentMatchers.any())).thenReturn(client);
+		jobLeases = new GoCardlessJobLeases(config, dao, clock);
+
+		reconciliationJob = reconciliationJob(config);
+	}
+
+	@Test(groups = "slow")
+	public void testPendingPaymentsAreUpdatedPageByPage() throws Exception {
+		final UUID kbTransactionId1 = addPayment("PM1", "PENDING_SUBMISSION");
+		final UUID kbTransactionId2 = addPayment("PM2", "SUBMITTED");
+		addPayment("PM3", "CONFIRMED");
+
+		final ApiResponse<ListResponse<Payment>> firstPage = page("PM9", payment("PM1", Payment.Status.CONFIRMED), payment("PM9", Payment.Status.CONFIRMED));
+		final ApiResponse<ListResponse<Payment>> lastPage = page(null, payment("PM2", Payment.Status.FAILED), payment("PM3", Payment.Status.PAID_OUT));
+		Mockito.when(listRequest.executeWrapped()).thenReturn(firstPage).thenReturn(lastPage);
+		final GoCardlessJobLeases.Lease lease = lease();
+
+		assertEquals(reconciliationJob.reconcile(lease, context.getTenantId()), 2);
+
+		assertEquals(dao.getPaymentByGoCardlessId("PM1", context.getTenantId()).getGoCardlessStatus(), "CONFIRMED");
+		assertEquals(dao.getPaymentByGoCardlessId("PM2", context.getTenantId()).getGoCardlessStatus(), "FAILED");
+		// Only pending payments are reconciled
+		assertEquals(dao.getPaymentByGoCardlessId("PM3", context.getTenantId()).getGoCardlessStatus(), "CONFIRMED");
+		Mockito.verify(paymentApi).notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId1), ArgumentMatchers.eq(true), ArgumentMatchers.<CallContext>any());
+		Mockito.verify(paymentApi).notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId2), ArgumentMatchers.eq(false), ArgumentMatchers.<CallContext>any());
+		Mockito.verify(listRequest).withAfter("PM9");
+
+		// The pass is complete: only the window start is kept
+		assertEquals(dao.getJobCursor(GoCardlessReconciliationJob.JOB_NAME, context.getTenantId()).contains(" "), false);
+		// Nothing pending anymore
+		assertEquals(reconciliationJob.reconcile(lease, context.getTenantId()), 0);
+	}
+
+	@Test(groups = "slow")
+	public void testInterruptedPassResumes() throws Exception {
+		addPayment("PM4", "PENDING_SUBMISSION");
+		dao.saveJobCursor(GoCardlessReconciliationJob.JOB_NAME, "2023-01-01T00:00:00.000Z PM100", clock.getUTCNow(), context.getTenantId());
+		final ApiResponse<ListResponse<Payment>> lastPage = page(null, payment("PM4", Payment.Status.SUBMITTED));
+		Mockito.when(listRequest.executeWrapped()).thenReturn(lastPage);
+
+		assertEquals(reconciliationJob.reconcile(lease(), context.getTenantId()), 1);
+
+		Mockito.verify(listRequest).withCreatedAtGte("2023-01-01T00:00:00.000Z");
+		Mockito.verify(listRequest).withAfter("PM100");
+		assertEquals(dao.getJobCursor(GoCardlessReconciliationJob.JOB_NAME, context.getTenantId()), "2023-01-01T00:00:00.000Z");
+	}
+
+	@Test(groups = "slow")
+	public void testPassStopsOnceTheLeaseIsLost() throws Exception {
+		addPayment("PM7", "PENDING_SUBMISSION");
+		final GoCardlessJobLeases.Lease lease = lease();
+		final GoCardlessJobLeases otherNode = new GoCardlessJobLeases(new GoCardlessConfigProperties(new Properties(), ""), dao, clock);
+		final ApiResponse<ListResponse<Payment>> firstPage = page("PM7", payment("PM7", Payment.Status.CONFIRMED));
+		Mockito.when(listRequest.executeWrapped()).thenAnswer(invocation -> {
+			// The heartbeat was missed long enough for another node to take the tenant over
+			clock.addDeltaFromReality(TimeUnit.MINUTES.toMillis(10));
+			otherNode.tryAcquire(GoCardlessReconciliationJob.JOB_NAME, context.getTenantId());
+			jobLeases.renewHeldLeases();
+			return firstPage;
+		});
+
+		assertEquals(reconciliationJob.reconcile(lease, context.getTenantId()), 1);
+
+		assertFalse(lease.isHeld());
+		Mockito.verify(listRequest, Mockito.times(1)).executeWrapped();
+		// The other node resumes after the last page done
+		assertTrue(dao.getJobCursor(GoCardlessReconciliationJob.JOB_NAME, context.getTenantId()).endsWith(" PM7"));
+	}
+
+	@Test(groups = "slow")
+	public void testTenantsLeasedByAnotherNodeAreSkipped() throws Exception {
+		addPayment("PM6", "PENDING_SUBMISSION");
+		final ApiResponse<ListResponse<Payment>> lastPage = page(null, payment("PM6", Payment.Status.CONFIRMED));
+		Mockito.when(listRequest.executeWrapped()).thenReturn(lastPage);
+		final GoCardlessJobLeases otherNode = new GoCardlessJobLeases(new GoCardlessConfigProperties(new Properties(), ""), dao, clock);
+		final GoCardlessJobLeases.Lease lease = otherNode.tryAcquire(GoCardlessReconciliationJob.JOB_NAME, context.getTenantId());
+
+		reconciliationJob.runOnce();
+		assertEquals(dao.getPaymentByGoCardlessId("PM6", context.getTenantId()).getGoCardlessStatus(), "PENDING_SUBMISSION");
+
+		// Given up, e.g. on failure: picked up by the next run
+		lease.close();
+		reconciliationJob.runOnce();
+		assertEquals(dao.getPaymentByGoCardlessId("PM6", context.getTenantId()).getGoCardlessStatus(), "CONFIRMED");
+		// And kept until the next run is due
+		assertNull(otherNode.tryAcquire(GoCardlessReconciliationJob.JOB_NAME, context.getTenantId()));
+	}
+
+	@Test(groups = "slow")
+	public void testPendingRefundsAreReconciled() throws Exception {
+		// Only refunds are pending: payments aren't listed
+		addPayment("PM5", "CONFIRMED");
+		final UUID kbTransactionId = addPayment("RF1", TransactionType.REFUND, "SUBMITTED");
+		addPayment("RF2", TransactionType.REFUND, "CREATED");
+		final ApiResponse<ListResponse<Refund>> lastPage = refundPage(null, refund("RF1", Refund.Status.PAID), refund("RF2", Refund.Status.PENDING_SUBMISSION));
+		Mockito.when(refundListRequest.executeWrapped()).thenReturn(lastPage);
+
+		assertEquals(reconciliationJob.reconcile(lease(), context.getTenantId()), 2);
+
+		assertEquals(dao.getPaymentByGoCardlessId("RF1", context.getTenantId()).getGoCardlessStatus(), "PAID");
+		assertEquals(dao.getPaymentByGoCardlessId("RF2", context.getTenantId()).getGoCardlessStatus(), "PENDING_SUBMISSION");
+		Mockito.verify(paymentApi).notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId), ArgumentMatchers.eq(true), ArgumentMatchers.<CallContext>any());
+		// One call for the page, whatever the number of refunds
+		Mockito.verify(refundListRequest, Mockito.times(1)).executeWrapped();
+		Mockito.verify(listRequest, Mockito.never()).executeWrapped();
+		assertEquals(dao.getJobCursor(GoCardlessReconciliationJob.REFUNDS_JOB_NAME, context.getTenantId()).contains(" "), false);
+	}
+
+	@Test(groups = "slow")
+	public void testFewPendingPaymentsAreFetchedOneByOne() throws Exception {
+		final UUID kbTransactionId = addPayment("PM10", "PENDING_SUBMISSION");
+		addPayment("PM11", "SUBMITTED");
+		addPayment("PM12", "CONFIRMED");
+		final PaymentService.PaymentGetRequest getRequest = Mockito.mock(PaymentService.PaymentGetRequest.class);
+		final ApiResponse<Payment> confirmed = response(payment("PM10", Payment.Status.CONFIRMED));
+		final ApiResponse<Payment> submitted = response(payment("PM11", Payment.Status.SUBMITTED));
+		Mockito.when(getRequest.executeWrapped()).thenReturn(confirmed).thenReturn(submitted);
+		Mockito.when(paymentService.get(ArgumentMatchers.anyString())).thenReturn(getRequest);
+		final GoCardlessReconciliationJob fetchingJob = reconciliationJob(new GoCardlessConfigProperties(new Properties(), ""));
+
+		assertEquals(fetchingJob.reconcile(lease(), context.getTenantId()), 1);
+
+		assertEquals(dao.getPaymentByGoCardlessId("PM10", context.getTenantId()).getGoCardlessStatus(), "CONFIRMED");
+		assertEquals(dao.getPaymentByGoCardlessId("PM11", context.getTenantId()).getGoCardlessStatus(), "SUBMITTED");
+		Mockito.verify(paymentApi).notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId), ArgumentMatchers.eq(true), ArgumentMatchers.<CallContext>any());
+		// Only the pending payments are fetched, nothing is listed
+		Mockito.verify(paymentService).get("PM10");
+		Mockito.verify(paymentService).get("PM11");
+		Mockito.verify(paymentService, Mockito.never()).get("PM12");
+		Mockito.verify(listRequest, Mockito.never()).executeWrapped();
+	}
+
+	private GoCardlessReconciliationJob reconciliationJob(final GoCardlessConfigProperties config) {
+		return new GoCardlessReconciliationJob(config,
+		                                       dao,
+		                                       clientCache,
+		                                       new GoCardlessApiExecutor(goCardlessconfigurationHandler,
+		                                                                 new GoCardlessRateLimiter(goCardlessconfigurationHandler),
+		                                                                 new GoCardlessCircuitBreaker(goCardlessconfigurationHandler),
+		                                                                 new GoCardlessMetrics(config),
+		                                                                 new GoCardlessHttpTransport(config),
+		                                                                 new GoCardlessAuditLog(config, dao, clock)),
+		                                       goCardlessWebhookProcessor,
+		                                       jobLeases,
+		                                       clock);
+	}
+
+	private GoCardlessJobLeases.Lease lease() {
+		return jobLeases.tryAcquire(GoCardlessReconciliationJob.JOB_NAME, context.getTenantId());
+	}
+
+	private UUID addPayment(final String goCardlessId, final String status) throws Exception {
+		return addPayment(goCardlessId, TransactionType.PURCHASE, status);
+	}
+
+	private UUID addPayment(final String goCardlessId, final TransactionType transactionType, final String status) throws Exception {
+		final UUID kbTransactionId = UUID.randomUUID();
+		dao.addPayment(account.getId(), UUID.randomUUID(), kbTransactionId, transactionType, BigDecimal.TEN, Currency.GBP,
+				goCardlessId, "MD1", status, clock.getUTCNow(), context.getTenantId());
+		return kbTransactionId;
+	}
+
+	private static Refund refund(final String id, final Refund.Status status) {
+		final Refund refund = Mockito.mock(Refund.class);
+		Mockito.when(refund.getId()).thenReturn(id);
+		Mockito.when(refund.getStatus()).thenReturn(status);
+		return refund;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ApiResponse<ListResponse<Refund>> refundPage(final String after, final Refund... refunds) {
+		final ListResponse<Refund> page = Mockito.mock(ListResponse.class);
+		Mockito.when(page.getItems()).thenReturn(ImmutableList.copyOf(refunds));
+		Mockito.when(page.getAfter()).thenReturn(after);
+		final ApiResponse<ListResponse<Refund>> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(page);
+		return response;
+	}
+
+	private static Payment payment(final String id, final Payment.Status status) {
+		final Payment payment = Mockito.mock(Payment.class);
+		Mockito.when(payment.getId()).thenReturn(id);
+		Mockito.when(payment.getStatus()).thenReturn(status);
+		return payment;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ApiResponse<Payment> response(final Payment payment) {
+		final ApiResponse<Payment> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(payment);
+		return response;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ApiResponse<ListResponse<Payment>> page(final String after, final Payment... payments) {
+		final ListResponse<Payment> page = Mockito.mock(ListResponse.class);
+		Mockito.when(page.getItems()).thenReturn(ImmutableList.copyOf(payments));
+		Mockito.when(page.getAfter()).thenReturn(after);
+		final ApiResponse<ListResponse<Payment>> response = Mockito.mock(ApiResponse.class);
+		Mockito.when(response.getResource()).thenReturn(page);
+		return response;
+	}
+}
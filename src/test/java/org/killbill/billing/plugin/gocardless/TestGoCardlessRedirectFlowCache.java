@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.gocardless.resources.RedirectFlow;
+
+public class TestGoCardlessRedirectFlowCache {
+
+	@Test(groups = "fast")
+	public void testRedirectFlowIsReusedUntilCompleted() {
+		final GoCardlessRedirectFlowCache redirectFlowCache = new GoCardlessRedirectFlowCache(buildConfigurationHandler("1200"));
+		final AtomicInteger created = new AtomicInteger();
+		final Supplier<RedirectFlow> creator = () -> {
+			final RedirectFlow redirectFlow = Mockito.mock(RedirectFlow.class);
+			Mockito.when(redirectFlow.getId()).thenReturn("RE" + created.incrementAndGet());
+			return redirectFlow;
+		};
+		final UUID kbTenantId = UUID.randomUUID();
+		final String key = GoCardlessRedirectFlowCache.key(UUID.randomUUID(), "token", "Kill Bill payment", "https://example.com/success");
+
+		final RedirectFlow redirectFlow = redirectFlowCache.get(kbTenantId, key, creator);
+		assertSame(redirectFlowCache.get(kbTenantId, key, creator), redirectFlow);
+		assertEquals(created.get(), 1);
+		assertEquals(redirectFlowCache.getStats().hitCount(), 1);
+		assertEquals(redirectFlowCache.getStats().missCount(), 1);
+
+		// Another tenant gets its own flow
+		assertNotSame(redirectFlowCache.get(UUID.randomUUID(), key, creator), redirectFlow);
+		assertEquals(redirectFlowCache.getSize(), 2);
+
+		// Once completed, a new flow is created
+		redirectFlowCache.invalidateRedirectFlow(kbTenantId, redirectFlow.getId());
+		assertNotSame(redirectFlowCache.get(kbTenantId, key, creator), redirectFlow);
+		assertEquals(created.get(), 3);
+	}
+
+	@Test(groups = "fast")
+	public void testDisabledCacheAlwaysCreates() {
+		final GoCardlessRedirectFlowCache redirectFlowCache = new GoCardlessRedirectFlowCache(buildConfigurationHandler("0"));
+		final AtomicInteger created = new AtomicInteger();
+		final Supplier<RedirectFlow> creator = () -> {
+			created.incrementAndGet();
+			return Mockito.mock(RedirectFlow.class);
+		};
+		final String key = GoCardlessRedirectFlowCache.key(UUID.randomUUID(), "token", null, null);
+
+		redirectFlowCache.get(null, key, creator);
+		redirectFlowCache.get(null, key, creator);
+		assertEquals(created.get(), 2);
+		assertEquals(redirectFlowCache.getSize(), 0);
+	}
+
+	private static GoCardlessConfigurationHandler buildConfigurationHandler(final String ttlSeconds) {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.redirectFlowCacheTtlSeconds", ttlSeconds);
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(new GoCardlessConfigProperties(properties, ""));
+		return configurationHandler;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.gocardless.dao.GoCardlessDao;
+import org.killbill.clock.ClockMock;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.gocardless.GoCardlessClient;
+import com.gocardless.http.ApiResponse;
+
+public class TestGoCardlessWarmUp {
+
+	@Test(groups = "fast")
+	public void testDefaultConfigurationAndTenantsAreWarmedUp() throws Exception {
+		final UUID kbTenantId1 = UUID.randomUUID();
+		final UUID kbTenantId2 = UUID.randomUUID();
+		final GoCardlessDao dao = Mockito.mock(GoCardlessDao.class);
+		Mockito.when(dao.getTenantsWithPaymentMethods()).thenReturn(Arrays.asList(kbTenantId1, kbTenantId2));
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(client.creditors().list().withLimit(1).executeWrapped()).thenReturn(Mockito.mock(ApiResponse.class));
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(Mockito.any())).thenReturn(client);
+		final GoCardlessWarmUp warmUp = buildWarmUp("true", "10000", dao, clientCache);
+
+		warmUp.start();
+		assertEquals(warmUp.awaitCompletion(), GoCardlessWarmUp.State.READY);
+
+		Mockito.verify(clientCache).getClient(null);
+		Mockito.verify(clientCache).getClient(kbTenantId1);
+		Mockito.verify(clientCache).getClient(kbTenantId2);
+		// One connection opened per client
+		Mockito.verify(client.creditors().list().withLimit(1), Mockito.times(3)).executeWrapped();
+		assertEquals(warmUp.getStats().get("tenants"), 3);
+		assertEquals(warmUp.getStats().get("warmed"), 3);
+		assertEquals(warmUp.getStats().get("failed"), 0);
+	}
+
+	@Test(groups = "fast")
+	public void testWarmUpIsBoundedByItsBudget() throws Exception {
+		final GoCardlessDao dao = Mockito.mock(GoCardlessDao.class);
+		final CountDownLatch release = new CountDownLatch(1);
+		final GoCardlessClient client = Mockito.mock(GoCardlessClient.class, Mockito.RETURNS_DEEP_STUBS);
+		Mockito.when(client.creditors().list().withLimit(1).executeWrapped()).thenAnswer(invocation -> {
+			// GoCardless doesn't answer
+			release.await();
+			return Mockito.mock(ApiResponse.class);
+		});
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		Mockito.when(clientCache.getClient(Mockito.any())).thenReturn(client);
+		final GoCardlessWarmUp warmUp = buildWarmUp("true", "100", dao, clientCache);
+
+		final long startNanos = System.nanoTime();
+		warmUp.start();
+		assertEquals(warmUp.getState(), GoCardlessWarmUp.State.WARMING);
+		assertEquals(warmUp.awaitCompletion(), GoCardlessWarmUp.State.TIMED_OUT);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) < 5000);
+		release.countDown();
+	}
+
+	@Test(groups = "fast")
+	public void testDisabledByDefault() throws Exception {
+		final GoCardlessDao dao = Mockito.mock(GoCardlessDao.class);
+		final GoCardlessClientCache clientCache = Mockito.mock(GoCardlessClientCache.class);
+		final GoCardlessWarmUp warmUp = buildWarmUp(null, "100", dao, clientCache);
+
+		warmUp.start();
+		assertEquals(warmUp.awaitCompletion(), GoCardlessWarmUp.State.DISABLED);
+		Mockito.verifyNoInteractions(dao, clientCache);
+	}
+
+	private static GoCardlessWarmUp buildWarmUp(final String enabled, final String timeoutMillis, final GoCardlessDao dao, final GoCardlessClientCache clientCache) {
+		final Properties properties = new Properties();
+		if (enabled != null) {
+			properties.put("org.killbill.billing.plugin.gocardless.warmUpEnabled", enabled);
+		}
+		properties.put("org.killbill.billing.plugin.gocardless.warmUpTimeoutMillis", timeoutMillis);
+		final GoCardlessConfigProperties config = new GoCardlessConfigProperties(properties, "");
+		final GoCardlessConfigurationHandler configurationHandler = new GoCardlessConfigurationHandler("", GoCardlessActivator.PLUGIN_NAME, Mockito.mock(OSGIKillbillAPI.class));
+		configurationHandler.setDefaultConfigurable(config);
+		final GoCardlessRateLimiter rateLimiter = new GoCardlessRateLimiter(configurationHandler);
+		final GoCardlessCircuitBreaker circuitBreaker = new GoCardlessCircuitBreaker(configurationHandler);
+		final GoCardlessApiExecutor apiExecutor = new GoCardlessApiExecutor(configurationHandler, rateLimiter, circuitBreaker, new GoCardlessMetrics(config), new GoCardlessHttpTransport(config),
+		                                                                    new GoCardlessAuditLog(config, dao, new ClockMock()));
+		return new GoCardlessWarmUp(config, dao, clientCache, apiExecutor);
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+
+public class TestGoCardlessWebhookProcessor extends TestBase {
+
+	private static final String SECRET = "webhook-secret";
+
+	@Test(groups = "fast")
+	public void testSignature() {
+		// RFC 4231 style test vector
+		final String body = "The quick brown fox jumps over the lazy dog";
+		final String signature = "f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8";
+		assertTrue(GoCardlessWebhookProcessor.isValidSignature(body, signature, "key"));
+		assertTrue(GoCardlessWebhookProcessor.isValidSignature(body, signature.toUpperCase(), "key"));
+		assertFalse(GoCardlessWebhookProcessor.isValidSignature(body + " ", signature, "key"));
+		assertFalse(GoCardlessWebhookProcessor.isValidSignature(body, signature, "other"));
+		assertFalse(GoCardlessWebhookProcessor.isValidSignature(body, null, "key"));
+		assertFalse(GoCardlessWebhookProcessor.isValidSignature(body, signature, null));
+	}
+
+	@Test(groups = "slow")
+	public void testPaymentEventsAreDedupedAndApplied() throws Exception {
+		configureSecret();
+		// The transaction only exists in the plugin table
+		final PaymentApi paymentApi = killbillApi.getPaymentApi();
+		Mockito.doReturn(null).when(paymentApi)
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.<UUID>any(), ArgumentMatchers.anyBoolean(), ArgumentMatchers.<CallContext>any());
+		final UUID kbTransactionId = UUID.randomUUID();
+		dao.addPayment(account.getId(), UUID.randomUUID(), kbTransactionId, TransactionType.PURCHASE, BigDecimal.TEN, Currency.EUR,
+				"PM1", "MD1", "PENDING_SUBMISSION", clock.getUTCNow(), context.getTenantId());
+
+		final String body = "{\"events\":[" +
+				event("EV1", "2023-01-01T10:00:00.000Z", "payments", "submitted", "payment", "PM1") + "," +
+				event("EV2", "2023-01-01T11:00:00.000Z", "payments", "confirmed", "payment", "PM1") + "]}";
+		assertEquals(notify(body, sign(body)), 204);
+		// GoCardless redelivery
+		assertEquals(notify(body, sign(body)), 204);
+		assertEquals(goCardlessWebhookProcessor.getQueueDepth(), 2);
+		assertEquals(goCardlessWebhookProcessor.getDuplicates(), 2);
+
+		goCardlessWebhookProcessor.processPending();
+		assertEquals(goCardlessWebhookProcessor.getQueueDepth(), 0);
+		assertEquals(goCardlessWebhookProcessor.getProcessed(), 2);
+		assertEquals(dao.getPaymentByGoCardlessId("PM1", context.getTenantId()).getGoCardlessStatus(), "CONFIRMED");
+		Mockito.verify(paymentApi, Mockito.times(1))
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId), ArgumentMatchers.eq(true), ArgumentMatchers.<CallContext>any());
+
+		// A late event doesn't move the payment backwards
+		final String lateBody = "{\"events\":[" + event("EV3", "2023-01-01T10:30:00.000Z", "payments", "submitted", "payment", "PM1") + "]}";
+		assertEquals(notify(lateBody, sign(lateBody)), 204);
+		goCardlessWebhookProcessor.processPending();
+		assertEquals(dao.getPaymentByGoCardlessId("PM1", context.getTenantId()).getGoCardlessStatus(), "CONFIRMED");
+	}
+
+	@Test(groups = "slow")
+	public void testRefundEventsAreApplied() throws Exception {
+		configureSecret();
+		final PaymentApi paymentApi = killbillApi.getPaymentApi();
+		Mockito.doReturn(null).when(paymentApi)
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.<UUID>any(), ArgumentMatchers.anyBoolean(), ArgumentMatchers.<CallContext>any());
+		final UUID kbTransactionId = UUID.randomUUID();
+		dao.addPayment(account.getId(), UUID.randomUUID(), kbTransactionId, TransactionType.REFUND, BigDecimal.ONE, Currency.EUR,
+				"RF1", "MD1", "CREATED", clock.getUTCNow(), context.getTenantId());
+
+		final String body = "{\"events\":[" +
+				event("EV1", "2023-01-01T10:00:00.000Z", "refunds", "paid", "refund", "RF1") + "," +
+				event("EV2", "2023-01-01T11:00:00.000Z", "refunds", "refund_settled", "refund", "RF1") + "]}";
+		assertEquals(notify(body, sign(body)), 204);
+		goCardlessWebhookProcessor.processPending();
+		assertEquals(dao.getPaymentByGoCardlessId("RF1", context.getTenantId()).getGoCardlessStatus(), "PAID");
+		Mockito.verify(paymentApi, Mockito.times(1))
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId), ArgumentMatchers.eq(true), ArgumentMatchers.<CallContext>any());
+
+		// A late event doesn't move the refund backwards, but a bounce after the payout does
+		final String lateBody = "{\"events\":[" + event("EV3", "2023-01-01T10:30:00.000Z", "refunds", "created", "refund", "RF1") + "]}";
+		assertEquals(notify(lateBody, sign(lateBody)), 204);
+		goCardlessWebhookProcessor.processPending();
+		assertEquals(dao.getPaymentByGoCardlessId("RF1", context.getTenantId()).getGoCardlessStatus(), "PAID");
+		final String failedBody = "{\"events\":[" + event("EV4", "2023-01-02T10:00:00.000Z", "refunds", "failed", "refund", "RF1") + "]}";
+		assertEquals(notify(failedBody, sign(failedBody)), 204);
+		goCardlessWebhookProcessor.processPending();
+		assertEquals(dao.getPaymentByGoCardlessId("RF1", context.getTenantId()).getGoCardlessStatus(), "BOUNCED");
+	}
+
+	@Test(groups = "slow")
+	public void testChargebackAfterConfirmation() throws Exception {
+		final PaymentApi paymentApi = killbillApi.getPaymentApi();
+		final UUID kbPaymentId = UUID.randomUUID();
+		dao.addPayment(account.getId(), kbPaymentId, UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.EUR,
+				"PM8", "MD1", "CONFIRMED", clock.getUTCNow(), context.getTenantId());
+
+		assertTrue(goCardlessWebhookProcessor.submit(new GoCardlessWebhookEvent("EV8", "2023-01-02T10:00:00.000Z", "payments", "charged_back", "PM8", context.getTenantId(), 0)));
+		goCardlessWebhookProcessor.processPending();
+		assertEquals(dao.getPaymentByGoCardlessId("PM8", context.getTenantId()).getGoCardlessStatus(), "CHARGED_BACK");
+		// Kill Bill already succeeded the transaction, the funds going back are recorded as a chargeback
+		Mockito.verify(paymentApi, Mockito.times(1))
+		       .createChargeback(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbPaymentId), ArgumentMatchers.argThat(amount -> amount.compareTo(BigDecimal.TEN) == 0), ArgumentMatchers.eq(Currency.EUR),
+		                         ArgumentMatchers.any(), ArgumentMatchers.eq("PM8-charged_back"), ArgumentMatchers.<CallContext>any());
+		Mockito.verify(paymentApi, Mockito.never())
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.<UUID>any(), ArgumentMatchers.anyBoolean(), ArgumentMatchers.<CallContext>any());
+	}
+
+	@Test(groups = "slow")
+	public void testRetriesAreDelayedAndDrainedOnStop() throws Exception {
+		final PaymentApi paymentApi = killbillApi.getPaymentApi();
+		final UUID kbTransactionId = UUID.randomUUID();
+		Mockito.doThrow(new IllegalStateException("Kill Bill is unavailable")).when(paymentApi)
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId), ArgumentMatchers.anyBoolean(), ArgumentMatchers.<CallContext>any());
+		dao.addPayment(account.getId(), UUID.randomUUID(), kbTransactionId, TransactionType.PURCHASE, BigDecimal.TEN, Currency.EUR,
+				"PM9", "MD1", "SUBMITTED", clock.getUTCNow(), context.getTenantId());
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.webhookRetryDelayMillis", "60000");
+		final GoCardlessWebhookProcessor processor = new GoCardlessWebhookProcessor(new GoCardlessConfigProperties(properties, ""), dao, goCardlessMandateCache, killbillApi, clock);
+
+		assertTrue(processor.submit(new GoCardlessWebhookEvent("EV9", null, "payments", "confirmed", "PM9", context.getTenantId(), 0)));
+		processor.processPending();
+		// Waiting for its retry, outside of the queue
+		assertEquals(processor.getRetried(), 1);
+		assertEquals(processor.getQueueDepth(), 0);
+		assertEquals(dao.getPaymentByGoCardlessId("PM9", context.getTenantId()).getGoCardlessStatus(), "SUBMITTED");
+
+		// Applied once more before stopping, rather than lost
+		processor.stop();
+		Mockito.verify(paymentApi, Mockito.times(2))
+		       .notifyPendingTransactionOfStateChanged(ArgumentMatchers.<Account>any(), ArgumentMatchers.eq(kbTransactionId), ArgumentMatchers.eq(true), ArgumentMatchers.<CallContext>any());
+		assertEquals(processor.getDropped(), 1);
+		// GoCardless redelivers what comes in while stopping
+		assertFalse(processor.submit(new GoCardlessWebhookEvent("EV10", null, "payments", "confirmed", "PM9", context.getTenantId(), 0)));
+	}
+
+	@Test(groups = "slow")
+	public void testMandateEventEvictsCache() throws Exception {
+		configureSecret();
+		final UUID kbAccountId = UUID.randomUUID();
+		goCardlessMandateCache.put(context.getTenantId(), kbAccountId, "MD2");
+		final UUID kbPaymentMethodId = UUID.randomUUID();
+		dao.addPaymentMethod(kbAccountId, kbPaymentMethodId, "MD2", "CU2", "ACTIVE", "bacs", null, true, clock.getUTCNow(), context.getTenantId());
+
+		final String body = "{\"events\":[" + event("EV4", "2023-01-01T10:00:00.000Z", "mandates", "cancelled", "mandate", "MD2") + "]}";
+		assertEquals(notify(body, sign(body)), 204);
+		goCardlessWebhookProcessor.processPending();
+		assertEquals(goCardlessMandateCache.getIfPresent(context.getTenantId(), kbAccountId), null);
+		assertEquals(dao.getPaymentMethod(kbPaymentMethodId, context.getTenantId()).getMandateStatus(), "CANCELLED");
+	}
+
+	@Test(groups = "slow")
+	public void testRejectedWebhooks() throws Exception {
+		configureSecret();
+		final String body = "{\"events\":[" + event("EV5", "2023-01-01T10:00:00.000Z", "payments", "confirmed", "payment", "PM5") + "]}";
+		assertEquals(notify(body, "bad-signature"), GoCardlessPaymentPluginApi.WEBHOOK_INVALID_SIGNATURE_STATUS);
+		assertEquals(notify("not json", sign("not json")), 400);
+		assertEquals(goCardlessWebhookProcessor.getReceived(), 0);
+
+		// An event without an id is skipped, the others are still queued
+		final String partialBody = "{\"events\":[{\"resource_type\":\"payments\",\"action\":\"confirmed\"}," +
+				event("EV8", "2023-01-01T10:00:00.000Z", "payments", "confirmed", "payment", "PM8") + "]}";
+		assertEquals(notify(partialBody, sign(partialBody)), 204);
+		assertEquals(goCardlessWebhookProcessor.getReceived(), 1);
+		assertEquals(goCardlessWebhookProcessor.getQueueDepth(), 1);
+	}
+
+	@Test(groups = "slow")
+	public void testFullQueue() throws Exception {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.webhookQueueCapacity", "1");
+		final GoCardlessWebhookProcessor processor = new GoCardlessWebhookProcessor(new GoCardlessConfigProperties(properties, ""), dao, goCardlessMandateCache, killbillApi, clock);
+
+		assertTrue(processor.submit(new GoCardlessWebhookEvent("EV6", null, "payments", "confirmed", "PM6", context.getTenantId(), 0)));
+		assertFalse(processor.submit(new GoCardlessWebhookEvent("EV7", null, "payments", "confirmed", "PM7", context.getTenantId(), 0)));
+		assertEquals(processor.getDropped(), 1);
+
+		// Once drained, the redelivery is accepted
+		processor.processPending();
+		assertTrue(processor.submit(new GoCardlessWebhookEvent("EV7", null, "payments", "confirmed", "PM7", context.getTenantId(), 0)));
+		assertEquals(processor.getDuplicates(), 0);
+	}
+
+	private void configureSecret() {
+		final Properties properties = new Properties();
+		properties.put("org.killbill.billing.plugin.gocardless.webhookSecret", SECRET);
+		goCardlessconfigurationHandler.setDefaultConfigurable(new GoCardlessConfigProperties(properties, ""));
+	}
+
+	private int notify(final String body, final String signature) throws Exception {
+		return goCardlessPaymentpluginApi.processNotification(body,
+		                                                      ImmutableList.of(new PluginProperty(GoCardlessPaymentPluginApi.WEBHOOK_SIGNATURE_HEADER, signature, false)),
+		                                                      context).getStatus();
+	}
+
+	private static String sign(final String body) throws Exception {
+		final Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+		return BaseEncoding.base16().lowerCase().encode(mac.doFinal(body.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String event(final String id, final String createdAt, final String resourceType, final String action, final String link, final String resourceId) {
+		return String.format("{\"id\":\"%s\",\"created_at\":\"%s\",\"resource_type\":\"%s\",\"action\":\"%s\",\"links\":{\"%s\":\"%s\"}}",
+		                     id, createdAt, resourceType, action, link, resourceId);
+	}
+}
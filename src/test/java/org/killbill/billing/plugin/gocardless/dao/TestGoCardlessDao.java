@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.gocardless.dao;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.gocardless.TestBase;
+import org.testng.annotations.Test;
+
+public class TestGoCardlessDao extends TestBase {
+
+	@Test(groups = "slow")
+	public void testPayments() throws Exception {
+		final UUID kbAccountId = UUID.randomUUID();
+		final UUID kbPaymentId = UUID.randomUUID();
+		final UUID kbTransactionId = UUID.randomUUID();
+		final UUID kbTenantId = UUID.randomUUID();
+
+		assertTrue(dao.getPayments(kbPaymentId, kbTenantId).isEmpty());
+
+		dao.addPayment(kbAccountId, kbPaymentId, kbTransactionId, TransactionType.PURCHASE, new BigDecimal("10"), Currency.EUR,
+				"PM123", "MD123", "PENDING_SUBMISSION", clock.getUTCNow(), kbTenantId);
+
+		List<GoCardlessPaymentRecord> payments = dao.getPayments(kbPaymentId, kbTenantId);
+		assertEquals(payments.size(), 1);
+		assertEquals(payments.get(0).getKbPaymentTransactionId(), kbTransactionId);
+		assertEquals(payments.get(0).getTransactionType(), TransactionType.PURCHASE);
+		assertEquals(payments.get(0).getAmount().compareTo(BigDecimal.TEN), 0);
+		assertEquals(payments.get(0).getCurrency(), Currency.EUR);
+		assertEquals(payments.get(0).getGoCardlessId(), "PM123");
+		assertEquals(payments.get(0).getGoCardlessMandateId(), "MD123");
+		assertEquals(payments.get(0).getGoCardlessStatus(), "PENDING_SUBMISSION");
+
+		// Other tenants don't see it
+		assertTrue(dao.getPayments(kbPaymentId, UUID.randomUUID()).isEmpty());
+
+		dao.updatePaymentStatus("PM123", "CONFIRMED", clock.getUTCNow(), kbTenantId);
+		payments = dao.getPayments(kbPaymentId, kbTenantId);
+		assertEquals(payments.get(0).getGoCardlessStatus(), "CONFIRMED");
+	}
+
+	@Test(groups = "fast")
+	public void testCustomerSearchIsScopedToTheTenant() {
+		final UUID kbTenantId = UUID.randomUUID();
+		// The payment methods subquery uses the (gocardless_customer_id, kb_tenant_id) index
+		final String condition = GoCardlessDao.searchCondition("CU1", kbTenantId).toString();
+		assertTrue(condition.contains("gocardless_customer_id = 'CU1'"), condition);
+		assertTrue(condition.contains("kb_tenant_id = '" + kbTenantId + "'"), condition);
+	}
+
+	@Test(groups = "slow")
+	public void testPaymentMethods() throws Exception {
+		final UUID kbAccountId = UUID.randomUUID();
+		final UUID kbPaymentMethodId1 = UUID.randomUUID();
+		final UUID kbPaymentMethodId2 = UUID.randomUUID();
+		final UUID kbTenantId = UUID.randomUUID();
+
+		dao.addPaymentMethod(kbAccountId, kbPaymentMethodId1, "MD1", "CU1", "PENDING_SUBMISSION", "bacs", new LocalDate(2023, 1, 5), true, clock.getUTCNow(), kbTenantId);
+		dao.addPaymentMethod(kbAccountId, kbPaymentMethodId2, "MD2", "CU1", "ACTIVE", "sepa_core", null, true, clock.getUTCNow(), kbTenantId);
+
+		GoCardlessPaymentMethodRecord paymentMethod = dao.getPaymentMethod(kbPaymentMethodId1, kbTenantId);
+		assertEquals(paymentMethod.getGoCardlessMandateId(), "MD1");
+		assertEquals(paymentMethod.getGoCardlessCustomerId(), "CU1");
+		assertEquals(paymentMethod.getScheme(), "bacs");
+		assertEquals(paymentMethod.getNextPossibleChargeDate(), new LocalDate(2023, 1, 5));
+		// The second one took over as default
+		assertFalse(paymentMethod.isDefault());
+		assertTrue(dao.getPaymentMethod(kbPaymentMethodId2, kbTenantId).isDefault());
+		assertNull(dao.getPaymentMethod(kbPaymentMethodId1, UUID.randomUUID()));
+		assertTrue(dao.getTenantsWithPaymentMethods().contains(kbTenantId));
+
+		assertEquals(dao.updateMandate("MD1", "ACTIVE", new LocalDate(2023, 1, 6), clock.getUTCNow(), kbTenantId), 1);
+		paymentMethod = dao.getPaymentMethod(kbPaymentMethodId1, kbTenantId);
+		assertEquals(paymentMethod.getMandateStatus(), "ACTIVE");
+		assertEquals(paymentMethod.getNextPossibleChargeDate(), new LocalDate(2023, 1, 6));
+
+		dao.setDefaultPaymentMethod(kbAccountId, kbPaymentMethodId1, clock.getUTCNow(), kbTenantId);
+		assertTrue(dao.getPaymentMethod(kbPaymentMethodId1, kbTenantId).isDefault());
+		assertFalse(dao.getPaymentMethod(kbPaymentMethodId2, kbTenantId).isDefault());
+
+		assertEquals(dao.getSearchPaymentMethodsCount("CU1", kbTenantId), 2);
+		assertEquals(dao.getSearchPaymentMethodsCount("active", kbTenantId), 2);
+		assertEquals(dao.getSearchPaymentMethodsCount(kbAccountId.toString(), kbTenantId), 2);
+		assertEquals(dao.searchPaymentMethods("CU1", 1, 10, kbTenantId).get(0).getKbPaymentMethodId(), kbPaymentMethodId2);
+
+		dao.markPaymentMethodAsDeleted(kbPaymentMethodId2, clock.getUTCNow(), kbTenantId);
+		final List<GoCardlessPaymentMethodRecord> paymentMethods = dao.getPaymentMethods(kbAccountId, kbTenantId);
+		assertEquals(paymentMethods.size(), 1);
+		assertEquals(paymentMethods.get(0).getKbPaymentMethodId(), kbPaymentMethodId1);
+		assertTrue(dao.getPaymentMethod(kbPaymentMethodId2, kbTenantId).isDeleted());
+		assertEquals(dao.getSearchPaymentMethodsCount("MD2", kbTenantId), 0);
+	}
+
+	@Test(groups = "slow")
+	public void testAuditLog() throws Exception {
+		final UUID kbTenantId = UUID.randomUUID();
+		final String kbPaymentId = UUID.randomUUID().toString();
+
+		dao.addAuditRecords(Arrays.asList(new GoCardlessAuditRecord(null, "payments.create", kbPaymentId, "key1", 1, null, 30000, "network_error",
+		                                                            "SocketTimeoutException", null, clock.getUTCNow().minusDays(100), kbTenantId),
+		                                  new GoCardlessAuditRecord(null, "payments.create", kbPaymentId, "key1", 2, 201, 120, "success",
+		                                                            null, null, clock.getUTCNow(), kbTenantId),
+		                                  new GoCardlessAuditRecord(null, "healthcheck", null, null, 1, 200, 50, "success",
+		                                                            null, null, clock.getUTCNow(), null)));
+
+		List<GoCardlessAuditRecord> auditRecords = dao.getAuditRecords(kbPaymentId, kbTenantId);
+		assertEquals(auditRecords.size(), 2);
+		assertEquals(auditRecords.get(0).getAttempt(), 1);
+		assertNull(auditRecords.get(0).getStatusCode());
+		assertEquals(auditRecords.get(0).getErrorType(), "SocketTimeoutException");
+		assertEquals(auditRecords.get(1).getStatusCode(), Integer.valueOf(201));
+		assertEquals(auditRecords.get(1).getIdempotencyKey(), "key1");
+		assertEquals(auditRecords.get(1).getLatencyMillis(), 120);
+		assertTrue(dao.getAuditRecords(kbPaymentId, UUID.randomUUID()).isEmpty());
+
+		assertEquals(dao.deleteAuditRecordsBefore(clock.getUTCNow().minusDays(90)), 1);
+		auditRecords = dao.getAuditRecords(kbPaymentId, kbTenantId);
+		assertEquals(auditRecords.size(), 1);
+		assertEquals(auditRecords.get(0).getAttempt(), 2);
+	}
+}